@@ -0,0 +1,141 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.net.Uri;
+
+import java.io.File;
+
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * The sessions and the positions the benchmarks insert. A position is generated from its index
+ * so the same index always gives the same values
+ */
+public final class BenchmarkFixture {
+
+    /**
+     * The owner of the sessions of the benchmarks
+     */
+    public static final String OWNER = "benchmark";
+
+    /**
+     * The time of the position with index 0 and the start of the session with index 0
+     */
+    private static final long BASE_TIME = 1400000000000L;
+
+    /**
+     * The time between two positions
+     */
+    private static final long POSITION_INTERVAL = 1000L;
+
+    /**
+     * The time between the start of two sessions
+     */
+    private static final long SESSION_INTERVAL = 86400000L;
+
+    /**
+     * Private constructor
+     */
+    private BenchmarkFixture() {
+        throw new AssertionError("Never call this!!! I'm an Utility class!");
+    }
+
+    /**
+     * The classes that keep the ApplicationContext would use the real ContentResolver and so
+     * the data of the user. The returned Context is its own ApplicationContext so they use the
+     * MockContentResolver of the isolated Context
+     *
+     * @param mockContext The isolated Context of a ProviderTestCase2
+     * @param context     The Context of the test for the cache files
+     * @return The Context to give to the classes under test
+     */
+    public static Context createIsolatedContext(final Context mockContext, final Context context) {
+        return new ContextWrapper(mockContext) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public File getCacheDir() {
+                return context.getCacheDir();
+            }
+        };
+    }
+
+    /**
+     * @param contentResolver The ContentResolver to use
+     * @return The id of a new open FenceSession without positions
+     */
+    public static long createSession(final ContentResolver contentResolver) {
+        final ContentValues values = new ContentValues();
+        values.put(FenceDB.FenceSession.SESSION_OWNER, OWNER);
+        values.put(FenceDB.FenceSession.START_DATE, System.currentTimeMillis());
+        final Uri sessionUri = contentResolver.insert(FenceDB.FenceSession.CONTENT_URI, values);
+        return FenceDB.FenceSession.getSessionId(sessionUri);
+    }
+
+    /**
+     * Creates a closed session with its positions. Sessions with different indexes have
+     * different positions
+     *
+     * @param contentResolver The ContentResolver to use
+     * @param owner           The owner of the session
+     * @param index           The index of the session
+     * @param positionNumber  The number of positions of the session
+     * @return The id of the new FenceSession
+     */
+    public static long createClosedSession(final ContentResolver contentResolver, final String owner,
+                                           final int index, final int positionNumber) {
+        final long startDate = BASE_TIME + index * SESSION_INTERVAL;
+        final ContentValues values = new ContentValues();
+        values.put(FenceDB.FenceSession.SESSION_OWNER, owner);
+        values.put(FenceDB.FenceSession.START_DATE, startDate);
+        values.put(FenceDB.FenceSession.END_DATE, startDate + positionNumber * POSITION_INTERVAL);
+        final Uri sessionUri = contentResolver.insert(FenceDB.FenceSession.CONTENT_URI, values);
+        final long sessionId = FenceDB.FenceSession.getSessionId(sessionUri);
+        contentResolver.bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId),
+                createPositionBatch(index * positionNumber, positionNumber));
+        return sessionId;
+    }
+
+    /**
+     * @param firstIndex The index of the first position
+     * @param count      The number of positions
+     * @return The ContentValues for count fake positions starting from the given index
+     */
+    public static ContentValues[] createPositionBatch(final int firstIndex, final int count) {
+        final ContentValues[] positionValues = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            positionValues[i] = createPositionValues(firstIndex + i);
+        }
+        return positionValues;
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The ContentValues for a fake position without activity
+     */
+    public static ContentValues createPositionValues(final int index) {
+        return createPositionValues(index, 0);
+    }
+
+    /**
+     * @param index        The index of the position
+     * @param activityType The activity of the position
+     * @return The ContentValues for a fake position
+     */
+    public static ContentValues createPositionValues(final int index, final int activityType) {
+        final ContentValues values = new ContentValues();
+        values.put(FenceDB.FencePosition.POSITION_TIME, BASE_TIME + index * POSITION_INTERVAL);
+        values.put(FenceDB.FencePosition.LATITUDE_E7, CoordinateUtil.toE7(51.5 + index * 0.00001));
+        values.put(FenceDB.FencePosition.LONGITUDE_E7, CoordinateUtil.toE7(-0.12 + index * 0.00001));
+        values.put(FenceDB.FencePosition.ALTITUDE, 10.0);
+        values.put(FenceDB.FencePosition.DISTANCE, index * 1.5f);
+        values.put(FenceDB.FencePosition.ACTIVITY, activityType);
+        return values;
+    }
+}
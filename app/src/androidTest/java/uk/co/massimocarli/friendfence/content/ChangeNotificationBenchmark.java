@@ -0,0 +1,162 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentProviderOperation;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the notifications the observers of the sessions and of the positions would receive
+ * while positions are inserted. The MockContentResolver doesn't deliver notifications so the
+ * FenceContentProvider runs in an isolated Context with a MockContentResolver that counts them.
+ * In this way the data of the user are not touched. The results are written in the Log
+ */
+public class ChangeNotificationBenchmark extends AndroidTestCase {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = ChangeNotificationBenchmark.class.getName();
+
+    /**
+     * The prefix of the DB of the benchmark
+     */
+    private static final String DB_PREFIX = "notification_test.";
+
+    /**
+     * The number of positions we insert one by one and then with a single applyBatch
+     */
+    private static final int POSITION_NUMBER = 100;
+
+    /**
+     * A MockContentResolver that counts the notifications for the descendants of two Uris as
+     * the observers registered for them would receive
+     */
+    private static class CountingContentResolver extends MockContentResolver {
+
+        /**
+         * The Uri of the sessions
+         */
+        private final String mSessionUri = FenceDB.FenceSession.CONTENT_URI.toString();
+
+        /**
+         * The Uri of the positions
+         */
+        private final String mPositionUri = FenceDB.FencePosition.CONTENT_URI.toString();
+
+        /**
+         * The number of notifications for the sessions
+         */
+        private final AtomicInteger mSessionCount = new AtomicInteger();
+
+        /**
+         * The number of notifications for the positions
+         */
+        private final AtomicInteger mPositionCount = new AtomicInteger();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            if (isDescendant(uri.toString(), mSessionUri)) {
+                mSessionCount.incrementAndGet();
+            }
+            if (isDescendant(uri.toString(), mPositionUri)) {
+                mPositionCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * @param uri       The notified Uri
+         * @param parentUri The Uri of the observer
+         * @return True if an observer of parentUri with descendants receives the notification
+         */
+        private static boolean isDescendant(final String uri, final String parentUri) {
+            return uri.equals(parentUri) || uri.startsWith(parentUri + "/");
+        }
+
+        /**
+         * @return The number of notifications for the sessions since the last call
+         */
+        private int resetSessionCount() {
+            return mSessionCount.getAndSet(0);
+        }
+
+        /**
+         * @return The number of notifications for the positions since the last call
+         */
+        private int resetPositionCount() {
+            return mPositionCount.getAndSet(0);
+        }
+    }
+
+    /**
+     * The ContentResolver of the isolated Context
+     */
+    private CountingContentResolver mContentResolver;
+
+    /**
+     * The Context of the FenceContentProvider
+     */
+    private IsolatedContext mProviderContext;
+
+    /**
+     * The FenceContentProvider under test
+     */
+    private FenceContentProvider mProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = new CountingContentResolver();
+        mProviderContext = new IsolatedContext(mContentResolver,
+                new RenamingDelegatingContext(new MockContext(), getContext(), DB_PREFIX));
+        mProviderContext.deleteDatabase(FenceDB.DB_NAME);
+        mProvider = new FenceContentProvider();
+        mProvider.attachInfo(mProviderContext, null);
+        mContentResolver.addProvider(FenceDB.AUTHORITY, mProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.shutdown();
+        mProviderContext.deleteDatabase(FenceDB.DB_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Counts the notifications for single inserts and for a batch of inserts
+     */
+    public void testPositionNotifications() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(mContentResolver);
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        mContentResolver.resetSessionCount();
+        mContentResolver.resetPositionCount();
+        // The positions one by one as the PositionBuffer did before
+        for (int i = 0; i < POSITION_NUMBER; i++) {
+            mContentResolver.insert(positionUri, BenchmarkFixture.createPositionValues(i));
+        }
+        Log.i(TAG_LOG, "insert: " + POSITION_NUMBER + " positions -> " + mContentResolver.resetSessionCount()
+                + " session notifications, " + mContentResolver.resetPositionCount() + " position notifications");
+        // The same positions with a single applyBatch
+        final ArrayList<ContentProviderOperation> insertOps =
+                new ArrayList<ContentProviderOperation>(POSITION_NUMBER);
+        for (int i = 0; i < POSITION_NUMBER; i++) {
+            insertOps.add(ContentProviderOperation.newInsert(positionUri)
+                    .withValues(BenchmarkFixture.createPositionValues(POSITION_NUMBER + i)).build());
+        }
+        mContentResolver.applyBatch(FenceDB.AUTHORITY, insertOps);
+        final int batchSessionCount = mContentResolver.resetSessionCount();
+        final int batchPositionCount = mContentResolver.resetPositionCount();
+        Log.i(TAG_LOG, "applyBatch: " + POSITION_NUMBER + " positions -> " + batchSessionCount
+                + " session notifications, " + batchPositionCount + " position notifications");
+        // The notifications of the batch are coalesced so they don't grow with the positions
+        assertTrue(batchPositionCount < POSITION_NUMBER);
+    }
+}
@@ -0,0 +1,149 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * Compares the coordinates stored as REAL, as float and as E7 integers in terms of size on
+ * SQLite and of accuracy of the total distance of a track. The results are written in the Log
+ */
+public class CoordinateStorageBenchmark extends AndroidTestCase {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = CoordinateStorageBenchmark.class.getName();
+
+    /**
+     * The number of positions of the track
+     */
+    private static final int POSITION_NUMBER = 50000;
+
+    /**
+     * The step between two positions in degrees (about 1 meter)
+     */
+    private static final double STEP = 0.00001;
+
+    /**
+     * Compares the size of a table with the coordinates as REAL and as E7 integers
+     */
+    public void testStorageSize() {
+        final long realSize = tableSize("REAL", false);
+        final long e7Size = tableSize("INTEGER", true);
+        Log.i(TAG_LOG, "REAL coordinates: " + realSize + " bytes for " + POSITION_NUMBER + " positions");
+        Log.i(TAG_LOG, "E7 coordinates: " + e7Size + " bytes for " + POSITION_NUMBER + " positions");
+        assertTrue(e7Size < realSize);
+    }
+
+    /**
+     * Compares the total distance of a track calculated from the coordinates as float and as E7
+     * with the one calculated with the double coordinates
+     */
+    public void testDistanceAccuracy() {
+        final float[] result = new float[1];
+        double doubleDistance = 0.0;
+        double floatDistance = 0.0;
+        double e7Distance = 0.0;
+        double maxFloatError = 0.0;
+        double maxE7Error = 0.0;
+        for (int i = 1; i < POSITION_NUMBER; i++) {
+            final double lastLatitude = latitude(i - 1);
+            final double lastLongitude = longitude(i - 1);
+            final double latitude = latitude(i);
+            final double longitude = longitude(i);
+            Location.distanceBetween(lastLatitude, lastLongitude, latitude, longitude, result);
+            doubleDistance += result[0];
+            Location.distanceBetween((float) lastLatitude, (float) lastLongitude,
+                    (float) latitude, (float) longitude, result);
+            floatDistance += result[0];
+            Location.distanceBetween(CoordinateUtil.fromE7(CoordinateUtil.toE7(lastLatitude)),
+                    CoordinateUtil.fromE7(CoordinateUtil.toE7(lastLongitude)),
+                    CoordinateUtil.fromE7(CoordinateUtil.toE7(latitude)),
+                    CoordinateUtil.fromE7(CoordinateUtil.toE7(longitude)), result);
+            e7Distance += result[0];
+            // The error of the single position
+            Location.distanceBetween(latitude, longitude, (float) latitude, (float) longitude, result);
+            maxFloatError = Math.max(maxFloatError, result[0]);
+            Location.distanceBetween(latitude, longitude, CoordinateUtil.fromE7(CoordinateUtil.toE7(latitude)),
+                    CoordinateUtil.fromE7(CoordinateUtil.toE7(longitude)), result);
+            maxE7Error = Math.max(maxE7Error, result[0]);
+        }
+        Log.i(TAG_LOG, "double distance: " + doubleDistance + " m");
+        Log.i(TAG_LOG, "float distance: " + floatDistance + " m, max position error " + maxFloatError + " m");
+        Log.i(TAG_LOG, "E7 distance: " + e7Distance + " m, max position error " + maxE7Error + " m");
+        assertTrue(Math.abs(e7Distance - doubleDistance) <= Math.abs(floatDistance - doubleDistance));
+    }
+
+    /**
+     * Creates a table with the positions into an in memory DB and returns its size
+     *
+     * @param columnType The type of the columns for the coordinates
+     * @param e7         True if the coordinates are written as E7
+     * @return The size of the DB in bytes
+     */
+    private static long tableSize(final String columnType, final boolean e7) {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE Position (_id INTEGER PRIMARY KEY, latitude " + columnType
+                    + ", longitude " + columnType + ")");
+            final SQLiteStatement insertStatement = db.compileStatement(
+                    "INSERT INTO Position (latitude, longitude) VALUES (?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < POSITION_NUMBER; i++) {
+                    if (e7) {
+                        insertStatement.bindLong(1, CoordinateUtil.toE7(latitude(i)));
+                        insertStatement.bindLong(2, CoordinateUtil.toE7(longitude(i)));
+                    } else {
+                        insertStatement.bindDouble(1, latitude(i));
+                        insertStatement.bindDouble(2, longitude(i));
+                    }
+                    insertStatement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertStatement.close();
+            }
+            return pragmaLong(db, "PRAGMA page_count") * pragmaLong(db, "PRAGMA page_size");
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @param db     The SQLiteDatabase to use
+     * @param pragma The PRAGMA to execute
+     * @return The result of the PRAGMA as long
+     */
+    private static long pragmaLong(final SQLiteDatabase db, final String pragma) {
+        final Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The latitude of a fake walk
+     */
+    private static double latitude(final int index) {
+        return 51.5 + index * STEP + Math.sin(index) * STEP;
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The longitude of a fake walk
+     */
+    private static double longitude(final int index) {
+        return -0.12 + index * STEP + Math.cos(index) * STEP;
+    }
+}
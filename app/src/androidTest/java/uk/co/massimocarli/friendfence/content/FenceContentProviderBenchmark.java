@@ -0,0 +1,566 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionRow;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * Throughput benchmarks for the FenceContentProvider. The results are written in the Log
+ */
+public class FenceContentProviderBenchmark extends ProviderTestCase2<FenceContentProvider> {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = FenceContentProviderBenchmark.class.getName();
+
+    /**
+     * The number of positions we insert for every run
+     */
+    private static final int POSITION_NUMBER = 5000;
+
+    /**
+     * The number of sessions for the delete benchmark
+     */
+    private static final int DELETE_SESSION_NUMBER = 1000;
+
+    /**
+     * The number of positions for every session of the delete benchmark
+     */
+    private static final int DELETE_POSITION_NUMBER = 1000;
+
+    /**
+     * The number of positions for the bounding box benchmark
+     */
+    private static final int SPATIAL_POSITION_NUMBER = 1000000;
+
+    /**
+     * The number of positions for every bulkInsert of the bounding box benchmark
+     */
+    private static final int SPATIAL_BATCH_SIZE = 10000;
+
+    /**
+     * The positions of the bounding box benchmark are on a grid of this size
+     */
+    private static final int SPATIAL_GRID_SIZE = 1000;
+
+    /**
+     * The number of times we read an archived session
+     */
+    private static final int ARCHIVE_READ_NUMBER = 20;
+
+    /**
+     * Every position with an index multiple of this has no altitude and distance
+     */
+    private static final int ARCHIVE_NULL_INTERVAL = 10;
+
+    /**
+     * The number of positions of the result cache benchmark
+     */
+    private static final int RESULT_POSITION_NUMBER = 500;
+
+    /**
+     * The number of times we repeat the same query
+     */
+    private static final int RESULT_QUERY_NUMBER = 100;
+
+    /**
+     * The number of positions of the export benchmark
+     */
+    private static final int EXPORT_POSITION_NUMBER = 20000;
+
+    public FenceContentProviderBenchmark() {
+        super(FenceContentProvider.class, FenceDB.AUTHORITY);
+    }
+
+    /**
+     * Compares the insert of POSITION_NUMBER positions using applyBatch and bulkInsert
+     */
+    public void testPositionInsertThroughput() throws Exception {
+        // The applyBatch version with an insert operation for every position
+        final Uri batchPositionUri = FenceDB.FencePosition.getPositionUriForSession(
+                BenchmarkFixture.createSession(getMockContentResolver()));
+        final ArrayList<ContentProviderOperation> insertOps =
+                new ArrayList<ContentProviderOperation>(POSITION_NUMBER);
+        for (int i = 0; i < POSITION_NUMBER; i++) {
+            insertOps.add(ContentProviderOperation.newInsert(batchPositionUri)
+                    .withValues(BenchmarkFixture.createPositionValues(i)).build());
+        }
+        final long batchStart = SystemClock.elapsedRealtime();
+        getProvider().applyBatch(insertOps);
+        final long batchTime = SystemClock.elapsedRealtime() - batchStart;
+        // The bulkInsert version
+        final Uri bulkPositionUri = FenceDB.FencePosition.getPositionUriForSession(
+                BenchmarkFixture.createSession(getMockContentResolver()));
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, POSITION_NUMBER);
+        final long bulkStart = SystemClock.elapsedRealtime();
+        final int insertedCount = getProvider().bulkInsert(bulkPositionUri, positionValues);
+        final long bulkTime = SystemClock.elapsedRealtime() - bulkStart;
+        assertEquals(POSITION_NUMBER, insertedCount);
+        Log.i(TAG_LOG, "applyBatch: " + POSITION_NUMBER + " positions in " + batchTime + " ms ("
+                + throughput(POSITION_NUMBER, batchTime) + " rows/s)");
+        Log.i(TAG_LOG, "bulkInsert: " + POSITION_NUMBER + " positions in " + bulkTime + " ms ("
+                + throughput(POSITION_NUMBER, bulkTime) + " rows/s)");
+    }
+
+    /**
+     * Deletes DELETE_SESSION_NUMBER sessions with DELETE_POSITION_NUMBER positions each
+     */
+    public void testSessionDeleteThroughput() throws Exception {
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, DELETE_POSITION_NUMBER);
+        long lastSessionId = 0;
+        for (int i = 0; i < DELETE_SESSION_NUMBER; i++) {
+            lastSessionId = BenchmarkFixture.createSession(getMockContentResolver());
+            getProvider().bulkInsert(FenceDB.FencePosition.getPositionUriForSession(lastSessionId), positionValues);
+        }
+        final long deleteStart = SystemClock.elapsedRealtime();
+        final int deletedCount = getProvider().delete(FenceDB.FenceSession.CONTENT_URI, null, null);
+        final long deleteTime = SystemClock.elapsedRealtime() - deleteStart;
+        assertEquals(DELETE_SESSION_NUMBER, deletedCount);
+        // All the positions have to be deleted by the foreign key
+        final Cursor positionCursor = getProvider().query(
+                FenceDB.FencePosition.getPositionUriForSession(lastSessionId), null, null, null, null);
+        assertEquals(0, positionCursor.getCount());
+        positionCursor.close();
+        Log.i(TAG_LOG, "delete: " + DELETE_SESSION_NUMBER + " sessions with "
+                + DELETE_SESSION_NUMBER * DELETE_POSITION_NUMBER + " positions in " + deleteTime + " ms");
+    }
+
+    /**
+     * Compares the query of the positions into a small bounding box with SPATIAL_POSITION_NUMBER
+     * positions using the R*Tree Uri and reading all the positions of the session
+     */
+    public void testBoundingBoxQuery() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        final ContentValues[] positionValues = new ContentValues[SPATIAL_BATCH_SIZE];
+        for (int batchStart = 0; batchStart < SPATIAL_POSITION_NUMBER; batchStart += SPATIAL_BATCH_SIZE) {
+            for (int i = 0; i < SPATIAL_BATCH_SIZE; i++) {
+                final int index = batchStart + i;
+                positionValues[i] = BenchmarkFixture.createPositionValues(index);
+                // We put the positions on a grid of about 1 km
+                positionValues[i].put(FenceDB.FencePosition.LATITUDE_E7,
+                        CoordinateUtil.toE7(51.0 + (index / SPATIAL_GRID_SIZE) * 0.00001));
+                positionValues[i].put(FenceDB.FencePosition.LONGITUDE_E7,
+                        CoordinateUtil.toE7(-0.5 + (index % SPATIAL_GRID_SIZE) * 0.00001));
+            }
+            getProvider().bulkInsert(positionUri, positionValues);
+        }
+        // A box of 1% of the grid
+        final double minLatitude = 51.004;
+        final double maxLatitude = 51.005;
+        final double minLongitude = -0.496;
+        final double maxLongitude = -0.495;
+        // The query using the R*Tree
+        final long boxStart = SystemClock.elapsedRealtime();
+        final Cursor boxCursor = getProvider().query(FenceDB.FencePosition.getBoundingBoxUriForSession(sessionId,
+                minLatitude, minLongitude, maxLatitude, maxLongitude), null, null, null, null);
+        int boxCount = 0;
+        while (boxCursor.moveToNext()) {
+            boxCount++;
+        }
+        boxCursor.close();
+        final long boxTime = SystemClock.elapsedRealtime() - boxStart;
+        // Reading all the positions and filtering them
+        final long scanStart = SystemClock.elapsedRealtime();
+        final Cursor scanCursor = getProvider().query(positionUri, null, null, null, null);
+        final int latitudeIndex = scanCursor.getColumnIndex(FenceDB.FencePosition.LATITUDE_E7);
+        final int longitudeIndex = scanCursor.getColumnIndex(FenceDB.FencePosition.LONGITUDE_E7);
+        int scanCount = 0;
+        while (scanCursor.moveToNext()) {
+            final double latitude = CoordinateUtil.fromE7(scanCursor.getInt(latitudeIndex));
+            final double longitude = CoordinateUtil.fromE7(scanCursor.getInt(longitudeIndex));
+            if (latitude >= minLatitude && latitude <= maxLatitude
+                    && longitude >= minLongitude && longitude <= maxLongitude) {
+                scanCount++;
+            }
+        }
+        scanCursor.close();
+        final long scanTime = SystemClock.elapsedRealtime() - scanStart;
+        assertTrue(boxCount > 0);
+        Log.i(TAG_LOG, "bbox query: " + boxCount + " of " + SPATIAL_POSITION_NUMBER + " positions in "
+                + boxTime + " ms");
+        Log.i(TAG_LOG, "full scan: " + scanCount + " of " + SPATIAL_POSITION_NUMBER + " positions in "
+                + scanTime + " ms");
+    }
+
+    /**
+     * Counts the objects allocated reading POSITION_NUMBER positions with the Date and float
+     * accessors and with the primitive accessors and a reused FencePositionRow
+     */
+    @SuppressWarnings("deprecation")
+    public void testPositionReadAllocations() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, POSITION_NUMBER);
+        getProvider().bulkInsert(positionUri, positionValues);
+        final Cursor cursor = getProvider().query(positionUri, null, null, null, null);
+        final FenceCursorFactory.FencePositionCursorData cursorData =
+                CursorResolver.CURSOR_RESOLVER.extractPositionCursor(cursor);
+        // We fill the window before counting
+        cursorData.getCount();
+        Debug.startAllocCounting();
+        try {
+            // The accessors that create a Date for every row
+            Debug.resetThreadAllocCount();
+            long checksum = 0;
+            cursorData.moveToPosition(-1);
+            while (cursorData.moveToNext()) {
+                checksum += cursorData.getPositionTime().getTime();
+                checksum += (long) cursorData.getLatitude() + (long) cursorData.getLongitude();
+            }
+            final int dateAllocations = Debug.getThreadAllocCount();
+            // The primitive accessors with the reused holder
+            final FencePositionRow positionRow = new FencePositionRow();
+            Debug.resetThreadAllocCount();
+            cursorData.moveToPosition(-1);
+            while (cursorData.moveToNext()) {
+                cursorData.readRow(positionRow);
+                checksum -= positionRow.getPositionTimeMillis();
+                checksum -= positionRow.getLatitudeE7() / 10000000 + positionRow.getLongitudeE7() / 10000000;
+            }
+            final int rowAllocations = Debug.getThreadAllocCount();
+            Log.i(TAG_LOG, "Date accessors: " + dateAllocations + " allocations for " + POSITION_NUMBER + " rows");
+            Log.i(TAG_LOG, "FencePositionRow: " + rowAllocations + " allocations for " + POSITION_NUMBER
+                    + " rows (checksum " + checksum + ")");
+            assertTrue(rowAllocations < dateAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compares the space of POSITION_NUMBER positions into the FencePosition table and its indexes
+     * with the size of their archive and measures the time to decode the archived positions. Some
+     * positions have no altitude and distance and they must be null after the archive too
+     */
+    public void testArchiveCompression() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, POSITION_NUMBER);
+        for (int i = 0; i < POSITION_NUMBER; i += ARCHIVE_NULL_INTERVAL) {
+            positionValues[i].putNull(FenceDB.FencePosition.ALTITUDE);
+            positionValues[i].putNull(FenceDB.FencePosition.DISTANCE);
+        }
+        // We measure the growth of the DB file after a checkpoint
+        final File dbFile = getMockContext().getDatabasePath(FenceDB.DB_NAME);
+        getProvider().call(FenceDB.METHOD_CHECKPOINT, null, null);
+        final long initialSize = dbFile.length();
+        getProvider().bulkInsert(positionUri, positionValues);
+        getProvider().call(FenceDB.METHOD_CHECKPOINT, null, null);
+        final long rowSize = dbFile.length() - initialSize;
+        final Bundle result = getProvider().call(FenceDB.METHOD_ARCHIVE_SESSION, String.valueOf(sessionId), null);
+        assertEquals(POSITION_NUMBER, result.getInt(FenceDB.EXTRA_ARCHIVED_POSITION_COUNT));
+        final int archiveSize = result.getInt(FenceDB.EXTRA_ARCHIVE_SIZE);
+        // Every column has to be decoded as it was written
+        final Cursor archivedCursor = getProvider().query(positionUri, null, null, null,
+                FenceDB.FencePosition.POSITION_TIME + " ASC");
+        try {
+            assertEquals(POSITION_NUMBER, archivedCursor.getCount());
+            final int altitudeIndex = archivedCursor.getColumnIndex(FenceDB.FencePosition.ALTITUDE);
+            final int distanceIndex = archivedCursor.getColumnIndex(FenceDB.FencePosition.DISTANCE);
+            final FenceCursorFactory.FencePositionCursorData cursorData =
+                    CursorResolver.CURSOR_RESOLVER.extractPositionCursor(archivedCursor);
+            for (int i = 0; cursorData.moveToNext(); i++) {
+                assertEquals(positionValues[i].getAsLong(FenceDB.FencePosition.POSITION_TIME).longValue(),
+                        cursorData.getPositionTimeMillis());
+                assertEquals(positionValues[i].getAsInteger(FenceDB.FencePosition.LATITUDE_E7).intValue(),
+                        cursorData.getLatitudeE7());
+                assertEquals(positionValues[i].getAsInteger(FenceDB.FencePosition.LONGITUDE_E7).intValue(),
+                        cursorData.getLongitudeE7());
+                if (i % ARCHIVE_NULL_INTERVAL == 0) {
+                    assertTrue(archivedCursor.isNull(altitudeIndex));
+                    assertTrue(archivedCursor.isNull(distanceIndex));
+                } else {
+                    assertFalse(archivedCursor.isNull(altitudeIndex));
+                    assertEquals(positionValues[i].getAsDouble(FenceDB.FencePosition.ALTITUDE),
+                            archivedCursor.getDouble(altitudeIndex), 0.05);
+                    assertEquals(positionValues[i].getAsDouble(FenceDB.FencePosition.DISTANCE),
+                            cursorData.getDistance(), 0.005);
+                }
+                assertEquals(positionValues[i].getAsInteger(FenceDB.FencePosition.ACTIVITY).intValue(),
+                        cursorData.getActivityType());
+            }
+        } finally {
+            archivedCursor.close();
+        }
+        // We read the archived positions a few times
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ARCHIVE_READ_NUMBER; i++) {
+            final Cursor cursor = getProvider().query(positionUri, null, null, null, null);
+            try {
+                assertEquals(POSITION_NUMBER, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        final long decodeTime = SystemClock.elapsedRealtime() - start;
+        // The bounding box of all the positions finds the archived ones too
+        final Cursor boxCursor = getProvider().query(FenceDB.FencePosition.getBoundingBoxUri(51.0, -1.0, 52.0, 1.0),
+                null, null, null, null);
+        try {
+            final int sessionIdIndex = boxCursor.getColumnIndex(FenceDB.FencePosition.SESSION_ID);
+            int archivedCount = 0;
+            while (boxCursor.moveToNext()) {
+                if (boxCursor.getLong(sessionIdIndex) == sessionId) {
+                    archivedCount++;
+                }
+            }
+            assertEquals(POSITION_NUMBER, archivedCount);
+        } finally {
+            boxCursor.close();
+        }
+        Log.i(TAG_LOG, "rows: " + rowSize + " bytes for " + POSITION_NUMBER + " positions");
+        Log.i(TAG_LOG, "archive: " + archiveSize + " bytes for " + POSITION_NUMBER + " positions");
+        Log.i(TAG_LOG, "decode: " + ARCHIVE_READ_NUMBER * POSITION_NUMBER + " positions in " + decodeTime + " ms ("
+                + throughput(ARCHIVE_READ_NUMBER * POSITION_NUMBER, decodeTime) + " rows/s)");
+        assertTrue(archiveSize < rowSize);
+    }
+
+    /**
+     * Compares the first query of the summary of a session with the same query repeated
+     * RESULT_QUERY_NUMBER times as the screens do on every resume. Then checks that the positions
+     * are not cached and that a new position invalidates the cached summary
+     */
+    public void testResultCache() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, RESULT_POSITION_NUMBER);
+        getProvider().bulkInsert(positionUri, positionValues);
+        final Uri summaryUri = FenceDB.FenceSessionSummary.getSummaryUri(sessionId);
+        final Bundle initialStats = getProvider().call(FenceDB.METHOD_RESULT_CACHE_STATS, null, null);
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(RESULT_POSITION_NUMBER, readPositionCount(summaryUri));
+        final long missTime = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < RESULT_QUERY_NUMBER; i++) {
+            readPositionCount(summaryUri);
+        }
+        final long hitTime = SystemClock.elapsedRealtime() - start;
+        // The positions are always read from the DB
+        readAll(positionUri);
+        readAll(positionUri);
+        final Bundle stats = getProvider().call(FenceDB.METHOD_RESULT_CACHE_STATS, null, null);
+        final long hitCount = stats.getLong(FenceDB.EXTRA_CACHE_HIT_COUNT)
+                - initialStats.getLong(FenceDB.EXTRA_CACHE_HIT_COUNT);
+        assertEquals(RESULT_QUERY_NUMBER, hitCount);
+        // A new position must be visible
+        getProvider().insert(positionUri, BenchmarkFixture.createPositionValues(RESULT_POSITION_NUMBER));
+        assertEquals(RESULT_POSITION_NUMBER + 1, readPositionCount(summaryUri));
+        Log.i(TAG_LOG, "first summary query in " + missTime + " ms");
+        Log.i(TAG_LOG, "cached summary queries: " + RESULT_QUERY_NUMBER + " in " + hitTime + " ms (evictions "
+                + stats.getLong(FenceDB.EXTRA_CACHE_EVICTION_COUNT) + ")");
+    }
+
+    /**
+     * Reads the Json export of a session from the pipe of the ContentProvider
+     */
+    public void testStreamingExport() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, EXPORT_POSITION_NUMBER);
+        getProvider().bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId), positionValues);
+        final Uri exportUri = FenceDB.FenceSession.getExportUri(sessionId, FenceDB.JSON_FORMAT);
+        assertEquals(FenceDB.JSON_MIME_TYPE, getProvider().getType(exportUri));
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        final long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        final long start = SystemClock.elapsedRealtime();
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(getProvider().openFile(exportUri, "r"));
+        final byte[] buffer = new byte[8192];
+        long exportedBytes = 0L;
+        long maxUsed = 0L;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            exportedBytes += read;
+            // We keep only the beginning to check the content
+            if (json.size() < buffer.length) {
+                json.write(buffer, 0, read);
+            }
+            maxUsed = Math.max(maxUsed, runtime.totalMemory() - runtime.freeMemory());
+        }
+        in.close();
+        final long exportTime = SystemClock.elapsedRealtime() - start;
+        assertTrue(json.toString("UTF-8").startsWith("{\"" + FenceDB.FenceSession.SESSION_OWNER + "\""));
+        Log.i(TAG_LOG, "export: " + EXPORT_POSITION_NUMBER + " positions, " + exportedBytes + " bytes in "
+                + exportTime + " ms (" + throughput(EXPORT_POSITION_NUMBER, exportTime) + " rows/s, max heap growth "
+                + ((maxUsed - usedBefore) / 1024L) + " KB)");
+    }
+
+    /**
+     * Imports the Json export of a session reading it from the pipe of the ContentProvider
+     */
+    public void testStreamingImport() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, EXPORT_POSITION_NUMBER);
+        getProvider().bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId), positionValues);
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(getProvider()
+                .openFile(FenceDB.FenceSession.getExportUri(sessionId, FenceDB.JSON_FORMAT), "r"));
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        final long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        final long[] maxUsed = new long[1];
+        final long start = SystemClock.elapsedRealtime();
+        final long importedSessionId = SessionJson.read(getMockContentResolver(), in,
+                new SessionJson.ImportListener() {
+                    @Override
+                    public void onProgress(int importedPositions) {
+                        maxUsed[0] = Math.max(maxUsed[0], runtime.totalMemory() - runtime.freeMemory());
+                    }
+                });
+        final long importTime = SystemClock.elapsedRealtime() - start;
+        in.close();
+        assertEquals(EXPORT_POSITION_NUMBER,
+                readAll(FenceDB.FencePosition.getPositionUriForSession(importedSessionId)));
+        Log.i(TAG_LOG, "import: " + EXPORT_POSITION_NUMBER + " positions in " + importTime + " ms ("
+                + throughput(EXPORT_POSITION_NUMBER, importTime) + " rows/s, max heap growth "
+                + ((maxUsed[0] - usedBefore) / 1024L) + " KB)");
+    }
+
+    /**
+     * Compares the size and the time of the Json and binary exports and imports of a session
+     */
+    public void testBinaryExport() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, EXPORT_POSITION_NUMBER);
+        getProvider().bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId), positionValues);
+        final Uri binaryUri = FenceDB.FenceSession.getBinaryExportUri(sessionId, false);
+        final Uri deflateUri = FenceDB.FenceSession.getBinaryExportUri(sessionId, true);
+        assertEquals(FenceDB.BINARY_MIME_TYPE, getProvider().getType(binaryUri));
+        long start = SystemClock.elapsedRealtime();
+        final byte[] json = exportAll(FenceDB.FenceSession.getExportUri(sessionId, FenceDB.JSON_FORMAT));
+        final long jsonTime = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        final byte[] binary = exportAll(binaryUri);
+        final long binaryTime = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        final byte[] deflate = exportAll(deflateUri);
+        final long deflateTime = SystemClock.elapsedRealtime() - start;
+        assertTrue(SessionBinary.isBinary(binary, binary.length));
+        assertTrue(binary.length < json.length);
+        start = SystemClock.elapsedRealtime();
+        final long jsonSessionId = SessionJson.read(getMockContentResolver(), new ByteArrayInputStream(json), null);
+        final long jsonImportTime = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        final long deflateSessionId = SessionBinary.read(getMockContentResolver(),
+                new ByteArrayInputStream(deflate), null);
+        final long deflateImportTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(EXPORT_POSITION_NUMBER,
+                readAll(FenceDB.FencePosition.getPositionUriForSession(jsonSessionId)));
+        assertEquals(EXPORT_POSITION_NUMBER,
+                readAll(FenceDB.FencePosition.getPositionUriForSession(deflateSessionId)));
+        Log.i(TAG_LOG, "export json: " + json.length + " bytes in " + jsonTime + " ms, import in "
+                + jsonImportTime + " ms");
+        Log.i(TAG_LOG, "export binary: " + binary.length + " bytes in " + binaryTime + " ms");
+        Log.i(TAG_LOG, "export binary deflate: " + deflate.length + " bytes in " + deflateTime
+                + " ms, import in " + deflateImportTime + " ms");
+    }
+
+    /**
+     * Reads the GPX and KML exports of a session from the pipe of the ContentProvider
+     */
+    public void testXmlExport() throws Exception {
+        final long sessionId = BenchmarkFixture.createSession(getMockContentResolver());
+        final ContentValues[] positionValues = BenchmarkFixture.createPositionBatch(0, EXPORT_POSITION_NUMBER);
+        getProvider().bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId), positionValues);
+        final Uri gpxUri = FenceDB.FenceSession.getExportUri(sessionId, FenceDB.GPX_FORMAT);
+        final Uri kmlUri = FenceDB.FenceSession.getExportUri(sessionId, FenceDB.KML_FORMAT);
+        assertEquals(FenceDB.GPX_MIME_TYPE, getProvider().getType(gpxUri));
+        assertEquals(FenceDB.KML_MIME_TYPE, getProvider().getType(kmlUri));
+        long start = SystemClock.elapsedRealtime();
+        final String gpx = new String(exportAll(gpxUri), "UTF-8");
+        final long gpxTime = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        final String kml = new String(exportAll(kmlUri), "UTF-8");
+        final long kmlTime = SystemClock.elapsedRealtime() - start;
+        assertTrue(gpx.trim().endsWith("</gpx>"));
+        assertTrue(kml.trim().endsWith("</kml>"));
+        Log.i(TAG_LOG, "export gpx: " + gpx.length() + " chars in " + gpxTime + " ms ("
+                + throughput(EXPORT_POSITION_NUMBER, gpxTime) + " rows/s)");
+        Log.i(TAG_LOG, "export kml: " + kml.length() + " chars in " + kmlTime + " ms ("
+                + throughput(EXPORT_POSITION_NUMBER, kmlTime) + " rows/s)");
+    }
+
+    /**
+     * Reads the whole export of a session from the pipe of the ContentProvider
+     *
+     * @param exportUri The Uri of the export
+     * @return The content of the export
+     */
+    private byte[] exportAll(final Uri exportUri) throws IOException {
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(getProvider().openFile(exportUri, "r"));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param summaryUri The Uri of the summary of a session
+     * @return The number of positions into the summary
+     */
+    private int readPositionCount(final Uri summaryUri) {
+        final Cursor cursor = getProvider().query(summaryUri, null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(cursor.getColumnIndex(FenceDB.FenceSessionSummary.POSITION_COUNT));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query the given Uri and read all the rows
+     *
+     * @param uri The Uri to query
+     * @return The number of rows
+     */
+    private int readAll(final Uri uri) {
+        final Cursor cursor = getProvider().query(uri, null, null, null, null);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param rows   The number of rows
+     * @param millis The time in milliseconds
+     * @return The number of rows per second
+     */
+    private static long throughput(final int rows, final long millis) {
+        return millis > 0 ? rows * 1000L / millis : rows * 1000L;
+    }
+}
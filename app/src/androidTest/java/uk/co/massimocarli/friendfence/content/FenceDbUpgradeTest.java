@@ -0,0 +1,114 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * Upgrades a DB created with the schema of version 2 to the current version through all the
+ * migration steps. The DB is created with a prefix so the one of the app is not touched
+ */
+public class FenceDbUpgradeTest extends AndroidTestCase {
+
+    /**
+     * The prefix of the DB of the test
+     */
+    private static final String DB_PREFIX = "upgrade_test.";
+
+    /**
+     * The schema and the data of version 2 of the DB. The second session has no positions and
+     * the last position has no session so it's dropped by the migration of the foreign key
+     */
+    private static final String[] VERSION_2_FIXTURE = {
+            "CREATE TABLE FenceSession (_id integer PRIMARY KEY AUTOINCREMENT, session_owner TEXT,"
+                    + " start_date NUMERIC, end_date NUMERIC, totalDistance NUMERIC);",
+            "CREATE TABLE FencePosition (_id integer PRIMARY KEY AUTOINCREMENT, session_id INTEGER,"
+                    + " position_time INTEGER, latitude NUMERIC, longitude NUMERIC, altitude NUMERIC,"
+                    + " distance NUMERIC, activity NUMERIC);",
+            "CREATE TABLE Geofence (_id INTEGER PRIMARY KEY AUTOINCREMENT, fence_id TEXT, latitude NUMERIC,"
+                    + " longitude NUMERIC, radius NUMERIC, duration NUMERIC, transition_type INTEGER);",
+            "INSERT INTO FenceSession (_id, session_owner, start_date, end_date, totalDistance)"
+                    + " VALUES (1, 'upgrade', 1400000000000, 1400000003000, 3.0);",
+            "INSERT INTO FenceSession (_id, session_owner, start_date, end_date, totalDistance)"
+                    + " VALUES (2, 'upgrade', 1400100000000, NULL, 0.0);",
+            "INSERT INTO FencePosition (session_id, position_time, latitude, longitude, altitude, distance, activity)"
+                    + " VALUES (1, 1400000001000, 51.5, -0.12, 10.0, 1.0, 0);",
+            "INSERT INTO FencePosition (session_id, position_time, latitude, longitude, altitude, distance, activity)"
+                    + " VALUES (1, 1400000002000, 51.50001, -0.11999, 10.0, 2.0, 0);",
+            "INSERT INTO FencePosition (session_id, position_time, latitude, longitude, altitude, distance, activity)"
+                    + " VALUES (1, 1400000003000, 51.50002, -0.11998, 10.0, 3.0, 1);",
+            "INSERT INTO FencePosition (session_id, position_time, latitude, longitude, altitude, distance, activity)"
+                    + " VALUES (99, 1400000004000, 45.0, 9.0, 10.0, 0.0, 0);",
+            "INSERT INTO Geofence (fence_id, latitude, longitude, radius, duration, transition_type)"
+                    + " VALUES ('home', 51.5, -0.12, 100.0, -1, 3);"
+    };
+
+    /**
+     * The Context that renames the DB of the test
+     */
+    private Context mTestContext;
+
+    /**
+     * The helper under test
+     */
+    private FenceDbHelper mDbHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), DB_PREFIX);
+        mTestContext.deleteDatabase(FenceDB.DB_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mTestContext.deleteDatabase(FenceDB.DB_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Upgrades the version 2 fixture and checks the data of every migration step
+     */
+    public void testUpgradeFromVersion2() {
+        final SQLiteDatabase oldDb = mTestContext.openOrCreateDatabase(FenceDB.DB_NAME, Context.MODE_PRIVATE, null);
+        try {
+            for (String sql : VERSION_2_FIXTURE) {
+                oldDb.execSQL(sql);
+            }
+            oldDb.setVersion(2);
+        } finally {
+            oldDb.close();
+        }
+        mDbHelper = new FenceDbHelper(mTestContext);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertEquals(FenceDB.DB_VERSION, db.getVersion());
+        // The position without a session is dropped and the others are in E7
+        assertEquals(3L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM " + FenceDB.FencePosition.TABLE_NAME));
+        assertEquals(CoordinateUtil.toE7(51.50002), FenceDbHelper.pragmaLong(db, "SELECT "
+                + FenceDB.FencePosition.LATITUDE_E7 + " FROM " + FenceDB.FencePosition.TABLE_NAME
+                + " WHERE " + FenceDB.FencePosition.POSITION_TIME + " = 1400000003000"));
+        assertEquals(CoordinateUtil.toE7(-0.12), FenceDbHelper.pragmaLong(db, "SELECT "
+                + FenceDB.Geofence.LONGITUDE_E7 + " FROM " + FenceDB.Geofence.TABLE_NAME));
+        // The summary is calculated only for the session with positions
+        assertEquals(1L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM " + FenceDB.FenceSessionSummary.TABLE_NAME));
+        assertEquals(3L, FenceDbHelper.pragmaLong(db, "SELECT " + FenceDB.FenceSessionSummary.POSITION_COUNT
+                + " FROM " + FenceDB.FenceSessionSummary.TABLE_NAME + " WHERE "
+                + FenceDB.FenceSessionSummary.SESSION_ID + " = 1"));
+        // The spatial index contains all the positions and the geofence
+        assertEquals(3L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM "
+                + FenceDB.FencePosition.SPATIAL_INDEX_TABLE_NAME));
+        assertEquals(1L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM "
+                + FenceDB.Geofence.SPATIAL_INDEX_TABLE_NAME));
+        // The table of the archive and its spatial index are available
+        assertEquals(1L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = '"
+                + FenceDB.FenceTrackArchive.TABLE_NAME + "'"));
+        assertEquals(0L, FenceDbHelper.pragmaLong(db, "SELECT COUNT(*) FROM "
+                + FenceDB.FenceTrackArchive.SPATIAL_INDEX_TABLE_NAME));
+    }
+}
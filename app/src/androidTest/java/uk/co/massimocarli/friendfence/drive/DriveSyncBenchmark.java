@@ -0,0 +1,172 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import uk.co.massimocarli.friendfence.content.BenchmarkFixture;
+import uk.co.massimocarli.friendfence.content.FenceContentProvider;
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * Measures the incremental sync against a FakeDriveStore. The second sync must not upload the
+ * sessions that didn't change and the import of a session already present must not create a
+ * copy. The sessions are read through the export of the isolated ContentProvider so the data
+ * of the user are not touched. The results are written in the Log
+ */
+public class DriveSyncBenchmark extends ProviderTestCase2<FenceContentProvider> {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = DriveSyncBenchmark.class.getName();
+
+    /**
+     * The name of the manifest of the benchmark
+     */
+    private static final String MANIFEST_NAME = "DriveSyncBenchmark";
+
+    /**
+     * The owner of the sessions of the benchmark
+     */
+    private static final String OWNER = "syncBenchmark";
+
+    /**
+     * The number of sessions we synchronize
+     */
+    private static final int SESSION_NUMBER = 4;
+
+    /**
+     * The number of positions of every session
+     */
+    private static final int POSITION_NUMBER = 2000;
+
+    /**
+     * The MockContentResolver
+     */
+    private ContentResolver mContentResolver;
+
+    /**
+     * The isolated Context we give to the DriveSync
+     */
+    private Context mIsolatedContext;
+
+    /**
+     * The manifest of the benchmark
+     */
+    private SyncManifest mManifest;
+
+    public DriveSyncBenchmark() {
+        super(FenceContentProvider.class, FenceDB.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getMockContentResolver();
+        mIsolatedContext = BenchmarkFixture.createIsolatedContext(getMockContext(), getContext());
+        mManifest = new SyncManifest(getContext(), MANIFEST_NAME);
+        mManifest.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContentResolver.delete(FenceDB.FenceSession.CONTENT_URI, FenceDB.FenceSession.SESSION_OWNER + " = ?",
+                new String[]{OWNER});
+        mManifest.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Synchronizes the sessions twice and then after the change of a session
+     */
+    public void testIncrementalSync() throws Exception {
+        final long[] sessionIds = new long[SESSION_NUMBER];
+        for (int i = 0; i < SESSION_NUMBER; i++) {
+            sessionIds[i] = BenchmarkFixture.createClosedSession(mContentResolver, OWNER, i, POSITION_NUMBER);
+        }
+        final FakeDriveStore driveStore = new FakeDriveStore();
+        final DriveSync driveSync = new DriveSync(mIsolatedContext, driveStore, mManifest);
+        long start = SystemClock.elapsedRealtime();
+        final DriveSync.SyncResult firstSync = driveSync.sync();
+        final long firstTime = SystemClock.elapsedRealtime() - start;
+        // The store was empty so it must have one file for every distinct closed session
+        final Set<String> closedHashes = readClosedSessionHashes();
+        final Set<String> storedHashes = new HashSet<String>();
+        for (DriveStore.RemoteFile remoteFile : driveStore.list()) {
+            storedHashes.add(remoteFile.getHash());
+        }
+        assertEquals(closedHashes.size(), firstSync.getUploadedCount());
+        assertEquals(closedHashes.size(), driveStore.resetWriteCount());
+        assertEquals(closedHashes, storedHashes);
+        for (long sessionId : sessionIds) {
+            assertTrue(storedHashes.contains(DriveSync.computeHash(mContentResolver, sessionId)));
+        }
+        start = SystemClock.elapsedRealtime();
+        final DriveSync.SyncResult secondSync = driveSync.sync();
+        final long secondTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(0, secondSync.getUploadedCount());
+        assertEquals(0, secondSync.getDownloadedCount());
+        assertEquals(0, driveStore.resetWriteCount());
+        assertEquals(0, driveStore.resetReadCount());
+        // We add a position to a session so only that one is uploaded again
+        mContentResolver.insert(FenceDB.FencePosition.getPositionUriForSession(sessionIds[0]),
+                BenchmarkFixture.createPositionValues(POSITION_NUMBER));
+        start = SystemClock.elapsedRealtime();
+        final DriveSync.SyncResult thirdSync = driveSync.sync();
+        final long thirdTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(1, thirdSync.getUploadedCount());
+        assertEquals(1, driveStore.resetWriteCount());
+        // The file we have just replaced must not be imported again
+        assertEquals(0, driveStore.resetReadCount());
+        assertEquals(0, thirdSync.getDownloadedCount());
+        assertEquals(0, thirdSync.getDuplicateCount());
+        Log.i(TAG_LOG, "first sync: " + firstSync + " in " + firstTime + " ms");
+        Log.i(TAG_LOG, "unchanged sync: " + secondSync + " in " + secondTime + " ms");
+        Log.i(TAG_LOG, "one changed sync: " + thirdSync + " in " + thirdTime + " ms");
+    }
+
+    /**
+     * Imports a session that is already present and downloads the files of a new manifest
+     */
+    public void testDeduplicatedImport() throws Exception {
+        final long sessionId = BenchmarkFixture.createClosedSession(mContentResolver, OWNER, 0, POSITION_NUMBER);
+        final DriveSync driveSync = new DriveSync(mIsolatedContext, new FakeDriveStore(), mManifest);
+        final ByteArrayOutputStream export = new ByteArrayOutputStream();
+        FenceDriveUtil.writeFenceSession(mIsolatedContext, sessionId, FenceDB.BINARY_FORMAT, export);
+        final long importedSessionId = FenceDriveUtil.importFenceSession(mIsolatedContext,
+                new ByteArrayInputStream(export.toByteArray()), null);
+        final long start = SystemClock.elapsedRealtime();
+        final long keptSessionId = driveSync.deduplicate(importedSessionId);
+        final long deduplicateTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(sessionId, keptSessionId);
+        Log.i(TAG_LOG, "deduplicate: " + POSITION_NUMBER + " positions in " + deduplicateTime + " ms");
+    }
+
+    /**
+     * @return The distinct hashes of all the closed sessions of the DB
+     * @throws IOException In case of error reading the sessions
+     */
+    private Set<String> readClosedSessionHashes() throws IOException {
+        final Set<String> hashes = new HashSet<String>();
+        final Cursor sessionCursor = mContentResolver.query(FenceDB.FenceSession.CONTENT_URI,
+                new String[]{FenceDB.FenceSession._ID}, FenceDB.FenceSession.END_DATE + " IS NOT NULL", null, null);
+        try {
+            while (sessionCursor.moveToNext()) {
+                hashes.add(DriveSync.computeHash(mContentResolver, sessionCursor.getLong(0)));
+            }
+        } finally {
+            sessionCursor.close();
+        }
+        return hashes;
+    }
+}
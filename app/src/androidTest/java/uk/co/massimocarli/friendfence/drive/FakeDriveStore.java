@@ -0,0 +1,91 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A DriveStore that keeps the files into memory in place of Google Drive. It counts the
+ * operations so the benchmarks can check what the sync transfers
+ */
+class FakeDriveStore implements DriveStore {
+
+    /**
+     * The hash of every file
+     */
+    private final Map<String, String> mHashes = new LinkedHashMap<String, String>();
+
+    /**
+     * The content of every file
+     */
+    private final Map<String, byte[]> mContents = new LinkedHashMap<String, byte[]>();
+
+    /**
+     * The number of created or updated files
+     */
+    private int mWriteCount;
+
+    /**
+     * The number of read files
+     */
+    private int mReadCount;
+
+    @Override
+    public List<RemoteFile> list() {
+        final List<RemoteFile> remoteFiles = new ArrayList<RemoteFile>(mHashes.size());
+        for (Map.Entry<String, String> file : mHashes.entrySet()) {
+            remoteFiles.add(new RemoteFile(file.getKey(), file.getValue()));
+        }
+        return remoteFiles;
+    }
+
+    @Override
+    public String create(final String title, final String hash, final ContentWriter writer) throws IOException {
+        final String fileId = "fake-" + mHashes.size();
+        update(fileId, title, hash, writer);
+        return fileId;
+    }
+
+    @Override
+    public void update(final String fileId, final String title, final String hash,
+                       final ContentWriter writer) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writer.write(content);
+        mHashes.put(fileId, hash);
+        mContents.put(fileId, content.toByteArray());
+        mWriteCount++;
+    }
+
+    @Override
+    public long read(final String fileId, final ContentReader reader) throws Exception {
+        final byte[] content = mContents.get(fileId);
+        if (content == null) {
+            throw new FileNotFoundException(fileId);
+        }
+        mReadCount++;
+        return reader.read(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * @return The number of created or updated files since the last call
+     */
+    int resetWriteCount() {
+        final int writeCount = mWriteCount;
+        mWriteCount = 0;
+        return writeCount;
+    }
+
+    /**
+     * @return The number of read files since the last call
+     */
+    int resetReadCount() {
+        final int readCount = mReadCount;
+        mReadCount = 0;
+        return readCount;
+    }
+}
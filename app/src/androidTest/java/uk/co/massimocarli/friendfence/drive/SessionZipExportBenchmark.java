@@ -0,0 +1,116 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.ZipInputStream;
+
+import uk.co.massimocarli.friendfence.content.BenchmarkFixture;
+import uk.co.massimocarli.friendfence.content.FenceContentProvider;
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * Measures the time of the export of many sessions into a single ZIP archive with a growing
+ * number of Threads up to the number of cores. The sessions are read through the export of the
+ * isolated ContentProvider so the data of the user are not touched. The results are written in
+ * the Log
+ */
+public class SessionZipExportBenchmark extends ProviderTestCase2<FenceContentProvider> {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = SessionZipExportBenchmark.class.getName();
+
+    /**
+     * The number of sessions into the archive
+     */
+    private static final int SESSION_NUMBER = 8;
+
+    /**
+     * The number of positions of every session
+     */
+    private static final int POSITION_NUMBER = 5000;
+
+    public SessionZipExportBenchmark() {
+        super(FenceContentProvider.class, FenceDB.AUTHORITY);
+    }
+
+    /**
+     * Exports the same sessions with 1, 2, 4... Threads up to the number of cores
+     */
+    public void testParallelExport() throws Exception {
+        final ContentResolver contentResolver = getMockContentResolver();
+        final Context isolatedContext = BenchmarkFixture.createIsolatedContext(getMockContext(), getContext());
+        final long[] sessionIds = new long[SESSION_NUMBER];
+        try {
+            for (int i = 0; i < SESSION_NUMBER; i++) {
+                sessionIds[i] = createSession(contentResolver);
+            }
+            final int coreCount = Runtime.getRuntime().availableProcessors();
+            long serialTime = 0L;
+            for (int threadCount = 1; ; threadCount = Math.min(threadCount * 2, coreCount)) {
+                final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+                final long start = SystemClock.elapsedRealtime();
+                final long exportedBytes = new SessionZipExport(isolatedContext, threadCount)
+                        .export(sessionIds, FenceDB.BINARY_FORMAT, archive, null);
+                final long exportTime = SystemClock.elapsedRealtime() - start;
+                if (threadCount == 1) {
+                    serialTime = exportTime;
+                }
+                assertEquals(SESSION_NUMBER, countEntries(archive.toByteArray()));
+                Log.i(TAG_LOG, "export: " + SESSION_NUMBER + " sessions, " + threadCount + " threads, "
+                        + exportedBytes + " bytes in " + exportTime + " ms (speedup "
+                        + (exportTime > 0 ? (float) serialTime / exportTime : 1.0f) + ")");
+                if (threadCount == coreCount) {
+                    break;
+                }
+            }
+        } finally {
+            for (long sessionId : sessionIds) {
+                if (sessionId > 0) {
+                    contentResolver.delete(Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI,
+                            String.valueOf(sessionId)), null, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param archive The content of the archive
+     * @return The number of entries of the archive
+     */
+    private static int countEntries(final byte[] archive) throws Exception {
+        final ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(archive));
+        try {
+            int count = 0;
+            while (zipIn.getNextEntry() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            zipIn.close();
+        }
+    }
+
+    /**
+     * @param contentResolver The ContentResolver
+     * @return The id of a new FenceSession with POSITION_NUMBER positions of different activities
+     */
+    private static long createSession(final ContentResolver contentResolver) {
+        final long sessionId = BenchmarkFixture.createSession(contentResolver);
+        final ContentValues[] positionValues = new ContentValues[POSITION_NUMBER];
+        for (int i = 0; i < POSITION_NUMBER; i++) {
+            positionValues[i] = BenchmarkFixture.createPositionValues(i, i / 500 % 4);
+        }
+        contentResolver.bulkInsert(FenceDB.FencePosition.getPositionUriForSession(sessionId), positionValues);
+        return sessionId;
+    }
+}
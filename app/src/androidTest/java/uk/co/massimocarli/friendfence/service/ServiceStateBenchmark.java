@@ -0,0 +1,101 @@
+package uk.co.massimocarli.friendfence.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Measures the cost of a single fix into the ServiceState. The results are written in the Log
+ */
+public class ServiceStateBenchmark extends AndroidTestCase {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = ServiceStateBenchmark.class.getName();
+
+    /**
+     * The number of fixes for every run
+     */
+    private static final int FIX_NUMBER = 500;
+
+    /**
+     * The name of the SharedPreferences for the previous implementation
+     */
+    private static final String BENCHMARK_PREFS = "ServiceStateBenchmark";
+
+    /**
+     * The name of the journal of the benchmark
+     */
+    private static final String BENCHMARK_JOURNAL = "ServiceStateBenchmark.journal";
+
+    /**
+     * Compares the SharedPreferences commit() per fix we used before with the in memory state
+     */
+    public void testPerFixCost() {
+        // The previous implementation: read the last position and commit() for every fix
+        final SharedPreferences prefs = getContext().getSharedPreferences(BENCHMARK_PREFS, Context.MODE_PRIVATE);
+        final float[] distances = new float[1];
+        final long prefsStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < FIX_NUMBER; i++) {
+            final Location location = createLocation(i);
+            float currentDistance = prefs.getFloat("distance", 0.0f);
+            if (prefs.contains("latitude")) {
+                Location.distanceBetween(prefs.getFloat("latitude", 0.0f), prefs.getFloat("longitude", 0.0f),
+                        location.getLatitude(), location.getLongitude(), distances);
+                currentDistance += distances[0];
+            }
+            prefs.edit()
+                    .putFloat("latitude", (float) location.getLatitude())
+                    .putFloat("longitude", (float) location.getLongitude())
+                    .putFloat("distance", currentDistance)
+                    .commit();
+        }
+        final long prefsTime = SystemClock.elapsedRealtime() - prefsStart;
+        prefs.edit().clear().commit();
+        // The in memory state with the asynchronous journal. We use a journal of the benchmark
+        // because the one of the ServiceState contains the state of the tracking
+        final File journalFile = new File(getContext().getCacheDir(), BENCHMARK_JOURNAL);
+        journalFile.delete();
+        final ServiceStateJournal journal = new ServiceStateJournal(journalFile);
+        boolean hasLastPosition = false;
+        double lastLatitude = 0.0;
+        double lastLongitude = 0.0;
+        float currentDistance = 0.0f;
+        final long stateStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < FIX_NUMBER; i++) {
+            final Location location = createLocation(i);
+            if (hasLastPosition) {
+                Location.distanceBetween(lastLatitude, lastLongitude, location.getLatitude(),
+                        location.getLongitude(), distances);
+                currentDistance += distances[0];
+            }
+            hasLastPosition = true;
+            lastLatitude = location.getLatitude();
+            lastLongitude = location.getLongitude();
+            journal.append(new ServiceStateJournal.Snapshot(Long.MAX_VALUE, true, lastLatitude,
+                    lastLongitude, currentDistance, 0), false);
+        }
+        final long stateTime = SystemClock.elapsedRealtime() - stateStart;
+        journal.close();
+        Log.i(TAG_LOG, "SharedPreferences commit: " + (prefsTime * 1000L / FIX_NUMBER) + " us per fix");
+        Log.i(TAG_LOG, "ServiceState journal: " + (stateTime * 1000L / FIX_NUMBER) + " us per fix");
+    }
+
+    /**
+     * @param index The index of the fix
+     * @return A fake Location
+     */
+    private static Location createLocation(final int index) {
+        final Location location = new Location("benchmark");
+        location.setLatitude(51.5 + index * 0.0001);
+        location.setLongitude(-0.12 + index * 0.0001);
+        location.setTime(1400000000000L + index * 1000L);
+        return location;
+    }
+}
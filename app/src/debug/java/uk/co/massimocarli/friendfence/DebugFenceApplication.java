@@ -0,0 +1,56 @@
+package uk.co.massimocarli.friendfence;
+
+import android.annotation.TargetApi;
+import android.app.Application;
+import android.os.Build;
+import android.os.StrictMode;
+import android.preference.PreferenceManager;
+
+import uk.co.massimocarli.friendfence.model.UserModel;
+import uk.co.massimocarli.friendfence.service.ServiceState;
+
+/**
+ * This is the Application of the debug build. It enables StrictMode so that any access to the
+ * disk into the UI Thread kills the app and the DB is only accessed through the FenceRepository,
+ * the Loaders and the services.
+ */
+public class DebugFenceApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // The small files the UI reads when it starts are loaded once before the policy is set
+        PreferenceManager.getDefaultSharedPreferences(this).getAll();
+        UserModel.get(this).isLogged();
+        ServiceState.get(this);
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .penaltyLog()
+                .penaltyDeath()
+                .build());
+        StrictMode.setVmPolicy(createVmPolicy());
+    }
+
+    /**
+     * @return The VmPolicy for the leaked Cursors and objects to close
+     */
+    private static StrictMode.VmPolicy createVmPolicy() {
+        final StrictMode.VmPolicy.Builder builder = new StrictMode.VmPolicy.Builder()
+                .detectLeakedSqlLiteObjects()
+                .penaltyLog();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            detectLeakedClosableObjects(builder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param builder The Builder of the VmPolicy
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void detectLeakedClosableObjects(final StrictMode.VmPolicy.Builder builder) {
+        builder.detectLeakedClosableObjects();
+    }
+}
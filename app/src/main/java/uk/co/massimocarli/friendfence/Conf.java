@@ -34,4 +34,15 @@ public final class Conf {
      * The SenderId for GCM
      */
     public static final String GCM_SENDER_ID = "625172533037";
+
+    /**
+     * If true the positions of a session are archived as a compact track when it is closed
+     */
+    public static final boolean ARCHIVE_CLOSED_SESSIONS = true;
+
+    /**
+     * If true the sessions are exported to Drive in the compressed binary format instead of Json
+     * when no format is selected into the settings
+     */
+    public static final boolean BINARY_SESSION_EXPORT = true;
 }
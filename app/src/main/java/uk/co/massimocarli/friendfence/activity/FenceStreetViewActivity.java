@@ -2,11 +2,8 @@ package uk.co.massimocarli.friendfence.activity;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.ActionBarActivity;
 import android.util.Log;
@@ -16,21 +13,17 @@ import com.google.android.gms.maps.StreetViewPanorama;
 import com.google.android.gms.maps.SupportStreetViewPanoramaFragment;
 import com.google.android.gms.maps.model.LatLng;
 
-import java.util.LinkedList;
-import java.util.List;
-
 import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.R;
-import uk.co.massimocarli.friendfence.content.FenceDB;
-import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
-import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.track.PositionTrack;
+import uk.co.massimocarli.friendfence.content.track.PositionTrackLoader;
 import uk.co.massimocarli.friendfence.util.UI;
 
 /**
  * This is the Activity that hosts the Fragment for the StreetView management
  * Created by Massimo Carli on 21/09/14.
  */
-public class FenceStreetViewActivity extends ActionBarActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class FenceStreetViewActivity extends ActionBarActivity implements LoaderManager.LoaderCallbacks<PositionTrack> {
 
     /**
      * The Tag for the Log
@@ -63,9 +56,9 @@ public class FenceStreetViewActivity extends ActionBarActivity implements Loader
     private SeekBar mSeekBar;
 
     /**
-     * The List of all positions
+     * The positions of the session or null if not loaded yet
      */
-    private List<LatLng> mPositionList = new LinkedList<LatLng>();
+    private PositionTrack mPositionTrack;
 
     /**
      * Starts the Activity for the given Session
@@ -94,9 +87,7 @@ public class FenceStreetViewActivity extends ActionBarActivity implements Loader
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 // Here we just show the current position if any
-                if (mPositionList.size() > progress) {
-                    showPosition(progress);
-                }
+                showPosition(progress);
             }
 
             @Override
@@ -124,37 +115,32 @@ public class FenceStreetViewActivity extends ActionBarActivity implements Loader
     @Override
     protected void onResume() {
         super.onResume();
-        getSupportLoaderManager().restartLoader(STREET_VIEW_LOADER_ID, new Bundle(), this);
+        getSupportLoaderManager().initLoader(STREET_VIEW_LOADER_ID, null, this);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // We create the Uri for all the position of a given session
-        final Uri sessionPositionUri = FenceDB.FencePosition.getPositionUriForSession(mSessionId);
-        CursorLoader loader = new CursorLoader(this, sessionPositionUri,
-                null, null, null, FenceDB.FencePosition.POSITION_TIME + " DESC ");
-        return loader;
+    public Loader<PositionTrack> onCreateLoader(int i, Bundle bundle) {
+        // The track is shared with the other screens of the same session
+        return new PositionTrackLoader(this, mSessionId);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
-        mPositionList.clear();
-        final FenceCursorFactory.FencePositionCursorData cursorData =
-                CursorResolver.CURSOR_RESOLVER.extractPositionCursor(cursor);
-        while (cursorData.moveToNext()) {
-            final LatLng latLng = new LatLng(cursorData.getLatitude(), cursorData.getLongitude());
-            mPositionList.add(latLng);
-        }
-        // We go to the first position
-        if (mPositionList.size() > 0) {
-            showPosition(0);
-            mSeekBar.setMax(mPositionList.size());
-            mSeekBar.setProgress(0);
+    public void onLoadFinished(Loader<PositionTrack> trackLoader, PositionTrack positionTrack) {
+        final boolean firstLoad = mPositionTrack == null || mPositionTrack.isEmpty();
+        mPositionTrack = positionTrack;
+        if (!positionTrack.isEmpty()) {
+            mSeekBar.setMax(positionTrack.size() - 1);
+            if (firstLoad) {
+                // We go to the first position
+                showPosition(0);
+                mSeekBar.setProgress(0);
+            }
         }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> cursorLoader) {
+    public void onLoaderReset(Loader<PositionTrack> trackLoader) {
+        mPositionTrack = null;
     }
 
 
@@ -164,8 +150,11 @@ public class FenceStreetViewActivity extends ActionBarActivity implements Loader
      * @param positionIndex The index of the position to show
      */
     private void showPosition(final int positionIndex) {
-        if (mPositionList.size() > positionIndex) {
-            mStreetViewPanorama.setPosition(mPositionList.get(positionIndex));
+        if (mPositionTrack != null && mPositionTrack.size() > positionIndex) {
+            // We start from the last position
+            final int trackIndex = mPositionTrack.size() - 1 - positionIndex;
+            mStreetViewPanorama.setPosition(new LatLng(mPositionTrack.getLatitude(trackIndex),
+                    mPositionTrack.getLongitude(trackIndex)));
         }
     }
 
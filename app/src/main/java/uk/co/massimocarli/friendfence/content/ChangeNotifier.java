@@ -0,0 +1,104 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the object that sends the change notifications of the FenceContentProvider. During
+ * a batch the Uris are collected for the thread of the batch and every Uri is notified only
+ * once at its end.
+ */
+final class ChangeNotifier {
+
+    /**
+     * The ContentResolver we use for the notifications
+     */
+    private final ContentResolver mContentResolver;
+
+    /**
+     * The Uris to notify at the end of the batch of the current thread
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mPendingUris = new ThreadLocal<LinkedHashSet<Uri>>();
+
+    /**
+     * The number of sent notifications
+     */
+    private final AtomicLong mSentCount = new AtomicLong();
+
+    /**
+     * The number of notifications merged with another one of the same batch
+     */
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Creates a ChangeNotifier
+     *
+     * @param contentResolver The ContentResolver we use for the notifications
+     */
+    ChangeNotifier(final ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Starts collecting the notifications of the current thread
+     */
+    void beginBatch() {
+        if (mPendingUris.get() == null) {
+            mPendingUris.set(new LinkedHashSet<Uri>());
+        }
+    }
+
+    /**
+     * Ends the batch of the current thread
+     *
+     * @param successful If true the collected Uris are notified, otherwise nothing changed
+     */
+    void endBatch(final boolean successful) {
+        final LinkedHashSet<Uri> pendingUris = mPendingUris.get();
+        mPendingUris.remove();
+        if (successful && pendingUris != null) {
+            for (Uri uri : pendingUris) {
+                send(uri);
+            }
+        }
+    }
+
+    /**
+     * Notify the change of the given Uri or keep it for the end of the current batch
+     *
+     * @param uri The changed Uri
+     */
+    void notifyChange(final Uri uri) {
+        final LinkedHashSet<Uri> pendingUris = mPendingUris.get();
+        if (pendingUris == null) {
+            send(uri);
+        } else if (!pendingUris.add(uri)) {
+            mCoalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param uri The Uri to notify now
+     */
+    private void send(final Uri uri) {
+        mSentCount.incrementAndGet();
+        mContentResolver.notifyChange(uri, null);
+    }
+
+    /**
+     * @return The number of sent notifications
+     */
+    long getSentCount() {
+        return mSentCount.get();
+    }
+
+    /**
+     * @return The number of notifications merged into a batch
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+}
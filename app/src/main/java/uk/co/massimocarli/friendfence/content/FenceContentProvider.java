@@ -1,5 +1,6 @@
 package uk.co.massimocarli.friendfence.content;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -8,10 +9,27 @@ import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.text.TextUtils;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionMergeCursor;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
 
 /**
  * The ContentProvider for the FriendFence application
@@ -28,12 +46,26 @@ public class FenceContentProvider extends ContentProvider {
      * The UriMatcher to match Uri for the given data
      */
     private final static UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
-    private final static int SESSION_DIR_INDICATOR = 1;
-    private final static int SESSION_ITEM_INDICATOR = 2;
-    private final static int POSITION_DIR_INDICATOR = 3;
-    private final static int POSITION_ITEM_INDICATOR = 4;
-    private final static int GEOFENCE_DIR_INDICATOR = 5;
-    private final static int GEOFENCE_ITEM_INDICATOR = 6;
+    final static int SESSION_DIR_INDICATOR = 1;
+    final static int SESSION_ITEM_INDICATOR = 2;
+    final static int POSITION_DIR_INDICATOR = 3;
+    final static int POSITION_ITEM_INDICATOR = 4;
+    final static int GEOFENCE_DIR_INDICATOR = 5;
+    final static int GEOFENCE_ITEM_INDICATOR = 6;
+    final static int SUMMARY_ITEM_INDICATOR = 7;
+    final static int ACTIVITY_SUMMARY_DIR_INDICATOR = 8;
+    final static int POSITION_BOUNDING_BOX_INDICATOR = 9;
+    final static int ALL_POSITION_BOUNDING_BOX_INDICATOR = 10;
+    final static int GEOFENCE_BOUNDING_BOX_INDICATOR = 11;
+    final static int STATS_DIR_INDICATOR = 12;
+    final static int SESSION_EXPORT_INDICATOR = 13;
+
+    /**
+     * The names of the types of Uri for the statistics. The index is the value of the UriMatcher
+     */
+    private final static String[] URI_TYPE_NAMES = {"unknown", "session", "session_item", "position",
+            "position_item", "geofence", "geofence_item", "summary", "activity_summary", "position_bbox",
+            "all_position_bbox", "geofence_bbox", "stats", "session_export"};
 
     static {
         // The Uri for all the FenceSession is of the type AUTHORITY/session
@@ -48,168 +80,136 @@ public class FenceContentProvider extends ContentProvider {
         // AUTHORITY/session/<sessionId>/position/<positionId>
         URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceSession.PATH + "/#/" +
                 FenceDB.FencePosition.PATH + "/#", POSITION_ITEM_INDICATOR);
+        // The Uri for the summary of a given session is of the type
+        // AUTHORITY/session/<sessionId>/summary
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceSession.PATH + "/#/" +
+                FenceDB.FenceSessionSummary.PATH, SUMMARY_ITEM_INDICATOR);
+        // The Uri for the activities of a given session is of the type
+        // AUTHORITY/session/<sessionId>/summary/activity
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceSession.PATH + "/#/" +
+                FenceDB.FenceSessionSummary.PATH + "/" + FenceDB.FenceActivitySummary.PATH,
+                ACTIVITY_SUMMARY_DIR_INDICATOR);
+        // The Uri for the positions of a given session into a bounding box is of the type
+        // AUTHORITY/session/<sessionId>/position/bbox?minLat=..&maxLat=..&minLon=..&maxLon=..
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceSession.PATH + "/#/" +
+                FenceDB.FencePosition.PATH + "/" + FenceDB.BOUNDING_BOX_PATH, POSITION_BOUNDING_BOX_INDICATOR);
+        // The Uri for the positions of all the sessions into a bounding box is of the type
+        // AUTHORITY/position/bbox?minLat=..&maxLat=..&minLon=..&maxLon=..
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FencePosition.PATH + "/" +
+                FenceDB.BOUNDING_BOX_PATH, ALL_POSITION_BOUNDING_BOX_INDICATOR);
         // We manage the Geofence Uri
         URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.Geofence.PATH, GEOFENCE_DIR_INDICATOR);
         URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.Geofence.PATH + "/#", GEOFENCE_ITEM_INDICATOR);
-
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.Geofence.PATH + "/" +
+                FenceDB.BOUNDING_BOX_PATH, GEOFENCE_BOUNDING_BOX_INDICATOR);
+        // The Uri for the latency statistics is of the type AUTHORITY/stats
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceStats.PATH, STATS_DIR_INDICATOR);
+        // The Uri for the export of a session is of the type
+        // AUTHORITY/session/<sessionId>/export?format=<format>
+        URI_MATCHER.addURI(FenceDB.AUTHORITY, FenceDB.FenceSession.PATH + "/#/" +
+                FenceDB.EXPORT_PATH, SESSION_EXPORT_INDICATOR);
     }
 
+    /**
+     * The SQL for the insert of a single position. The values are bound in the same order of
+     * the columns and the statement is reused for all the positions of a bulk insert
+     */
+    private final static String INSERT_POSITION_SQL = "INSERT INTO " + FenceDB.FencePosition.TABLE_NAME
+            + " (" + FenceDB.FencePosition.SESSION_ID + ", " + FenceDB.FencePosition.POSITION_TIME
+            + ", " + FenceDB.FencePosition.LATITUDE_E7 + ", " + FenceDB.FencePosition.LONGITUDE_E7
+            + ", " + FenceDB.FencePosition.ALTITUDE + ", " + FenceDB.FencePosition.DISTANCE
+            + ", " + FenceDB.FencePosition.ACTIVITY + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * The where clause for the positions of the exported session
+     */
+    private final static String EXPORT_POSITION_WHERE = FenceDB.FencePosition.SESSION_ID + " = ?";
+
+    /**
+     * The order of the positions of an export which is the same of the archived ones
+     */
+    private final static String EXPORT_POSITION_ORDER = FenceDB.FencePosition.POSITION_TIME + " ASC, "
+            + FenceDB.FencePosition._ID + " ASC";
+
     /**
      * The DbHelper for this ContentProvider
      */
     private FenceDbHelper mDbHelper;
 
+    /**
+     * The cache for the compiled statements of the deletes
+     */
+    private final StatementCache mStatementCache = new StatementCache();
+
+    /**
+     * The cache for the results of the queries
+     */
+    private final ResultCache mResultCache = new ResultCache();
+
+    /**
+     * The latency of the operations
+     */
+    private final LatencyStats mLatencyStats = new LatencyStats(URI_TYPE_NAMES);
+
+    /**
+     * The object that sends the change notifications
+     */
+    private ChangeNotifier mChangeNotifier;
+
+    /**
+     * The Executor for the Threads that write the exports into their pipes
+     */
+    private final ExecutorService mExportExecutor = Executors.newCachedThreadPool();
+
     @Override
     public boolean onCreate() {
         // We create the DbHelper
         mDbHelper = new FenceDbHelper(getContext());
+        mChangeNotifier = new ChangeNotifier(getContext().getContentResolver());
         return true;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // We detect the uri to manage
+        final long startTime = LatencyStats.start();
+        // We detect the uri to manage and the related selection with the ids from the Uri
         final int uriMatch = URI_MATCHER.match(uri);
-        int deletedCount = -1;
-        switch (uriMatch) {
-            case SESSION_DIR_INDICATOR: {
-                // In this case we have to delete all the session with the selection. Before
-                // invoke delete we have to get all the information related to the sessionIds
-                // because we also have to delete all the related items. We execute everything
-                // into a transaction
-                SQLiteDatabase db = mDbHelper.getWritableDatabase();
-                try {
-                    db.beginTransaction();
-                    // We get all the session with the given selection
-                    final Cursor sessionsToDeleteCursor = db.query(FenceDB.FenceSession.TABLE_NAME,
-                            new String[]{FenceDB.FenceSession._ID}, selection, selectionArgs, null, null, null);
-                    // We delete all the related FencePosition
-                    final int idIndex = sessionsToDeleteCursor.getColumnIndex(FenceDB.FenceSession._ID);
-                    final String whereClause = new StringBuilder(FenceDB.FencePosition.SESSION_ID).append("= ?").toString();
-                    while (sessionsToDeleteCursor.moveToNext()) {
-                        final long sessionId = sessionsToDeleteCursor.getLong(idIndex);
-                        final String[] whereArgs = {String.valueOf(sessionId)};
-                        db.delete(FenceDB.FencePosition.TABLE_NAME, whereClause, whereArgs);
-                    }
-                    sessionsToDeleteCursor.close();
-                    // Now we can delete the sessions
-                    deletedCount = db.delete(FenceDB.FenceSession.TABLE_NAME, selection, selectionArgs);
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                break;
-            }
-            case SESSION_ITEM_INDICATOR: {
-                // In this case the sessionId is into the Uri as path segment
-                final String sessionId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FenceSession._ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // In this case we can delete al least 1 session so we try to delete it and if
-                // everything is fine we delete the related positions
-                SQLiteDatabase db = mDbHelper.getWritableDatabase();
-                try {
-                    db.beginTransaction();
-                    deletedCount = db.delete(FenceDB.FenceSession.TABLE_NAME,
-                            where.toString(), selectionArgs);
-                    if (deletedCount > 0) {
-                        // In this case we have to delete the related position as well
-                        final String whereClause = new StringBuilder(FenceDB.FencePosition.SESSION_ID).append("= ?").toString();
-                        final String[] whereArgs = {sessionId};
-                        db.delete(FenceDB.FencePosition.TABLE_NAME, whereClause, whereArgs);
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                break;
-            }
-            case POSITION_DIR_INDICATOR: {
-                // In this case we have to delete all the items in FencePosition for the given session
-                // which is contained into the Uri as path element
-                final String sessionId = uri.getPathSegments().get(1);
-                // As before we have to create the where clause based, this time, on the
-                // sessionId field
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // We delete using the created where
-                deletedCount = mDbHelper.getWritableDatabase().delete(FenceDB.FencePosition.TABLE_NAME,
-                        where.toString(), selectionArgs);
-                break;
-            }
-            case POSITION_ITEM_INDICATOR: {
-                // In this case we delete a given position for a given session. The id of the position
-                // can appear useless but to delete an item we want both the position identifier and the
-                // session identifier. We remind that the Uri for a given position is of this form
-                // AUTHORITY/session/<sessionId>/position/<positionId>
-                // so we need the session as the pahElements in 1 and the positionId as the element in 3
-                final String sessionId = uri.getPathSegments().get(1);
-                final String positionId = uri.getPathSegments().get(3);
-                // We build the query as before using these two informations
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" AND ")
-                        .append(FenceDB.FencePosition._ID).append(" = ")
-                        .append(positionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // We delete using the created where
-                deletedCount = mDbHelper.getWritableDatabase().delete(FenceDB.FencePosition.TABLE_NAME,
-                        where.toString(), selectionArgs);
-                break;
+        final UriSelection uriSelection = UriSelection.create(uriMatch, uri, selection, selectionArgs);
+        if (uriSelection == null) {
+            // It means that the Uri didn't match
+            throw new UnsupportedOperationException("The given Uri " + uri + " is not supported");
+        }
+        checkWritable(uriMatch, uri);
+        // When we delete sessions the related FencePosition and summaries are deleted by the
+        // foreign key. If we delete some positions the summary has to be calculated again
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final int deletedCount;
+        mResultCache.beginWrite();
+        db.beginTransaction();
+        try {
+            restoreArchivedPositions(db, uriMatch, uri);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // We use the compiled statement for this type of Uri
+                deletedCount = mStatementCache.executeDelete(db, uriMatch, uriSelection);
+            } else {
+                deletedCount = db.delete(uriSelection.getTable(), uriSelection.getWhere(), uriSelection.getArgs());
             }
-            case GEOFENCE_DIR_INDICATOR: {
-                // In this case we have to delete all the items in Geofence
-                deletedCount = mDbHelper.getWritableDatabase().delete(FenceDB.Geofence.TABLE_NAME,
-                        selection, selectionArgs);
-                break;
+            if (deletedCount > 0 && isPositionUri(uriMatch)) {
+                SessionSummary.rebuild(db, Long.parseLong(uri.getPathSegments().get(1)));
             }
-            case GEOFENCE_ITEM_INDICATOR: {
-                final String fenceId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.Geofence._ID)
-                        .append(" = ").append(fenceId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // In this case we can delete al least 1 session so we try to delete it and if
-                // everything is fine we delete the related positions
-                SQLiteDatabase db = mDbHelper.getWritableDatabase();
-                try {
-                    db.beginTransaction();
-                    deletedCount = db.delete(FenceDB.Geofence.TABLE_NAME,
-                            where.toString(), selectionArgs);
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                break;
+            if (deletedCount > 0) {
+                invalidateResults(uriMatch, uri, true);
             }
-            default:
-                break;
-        }
-        if (deletedCount >= 0) {
-            // We notify the deletion
-            getContext().getContentResolver().notifyChange(uri, null);
-            // We return the number of deleted items
-            return deletedCount;
-        } else {
-            // It means that the Uri didn't match
-            throw new UnsupportedOperationException("The given Uri " + uri + " is not supported");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mResultCache.endWrite();
         }
+        // We notify the deletion
+        notifyChange(uri, uriMatch, true);
+        mLatencyStats.record(uriMatch, LatencyStats.DELETE, startTime);
+        // We return the number of deleted items
+        return deletedCount;
     }
 
     @Override
@@ -223,10 +223,23 @@ public class FenceContentProvider extends ContentProvider {
                 return FenceDB.FencePosition.CURSOR_DIR_MIME_TYPE;
             case POSITION_ITEM_INDICATOR:
                 return FenceDB.FencePosition.CURSOR_ITEM_MIME_TYPE;
+            case POSITION_BOUNDING_BOX_INDICATOR:
+            case ALL_POSITION_BOUNDING_BOX_INDICATOR:
+                return FenceDB.FencePosition.CURSOR_DIR_MIME_TYPE;
+            case SUMMARY_ITEM_INDICATOR:
+                return FenceDB.FenceSessionSummary.CURSOR_ITEM_MIME_TYPE;
+            case ACTIVITY_SUMMARY_DIR_INDICATOR:
+                return FenceDB.FenceActivitySummary.CURSOR_DIR_MIME_TYPE;
             case GEOFENCE_DIR_INDICATOR:
                 return FenceDB.Geofence.CURSOR_DIR_MIME_TYPE;
             case GEOFENCE_ITEM_INDICATOR:
                 return FenceDB.Geofence.CURSOR_ITEM_MIME_TYPE;
+            case GEOFENCE_BOUNDING_BOX_INDICATOR:
+                return FenceDB.Geofence.CURSOR_DIR_MIME_TYPE;
+            case STATS_DIR_INDICATOR:
+                return FenceDB.FenceStats.CURSOR_DIR_MIME_TYPE;
+            case SESSION_EXPORT_INDICATOR:
+                return getExportMimeType(uri.getQueryParameter(FenceDB.FORMAT_PARAM));
             default:
                 break;
         }
@@ -235,260 +248,706 @@ public class FenceContentProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final long startTime = LatencyStats.start();
         // We can only insert into the DIR types
         final int uriMatch = URI_MATCHER.match(uri);
         Uri newItemUri = null;
-        switch (uriMatch) {
-            case SESSION_DIR_INDICATOR: {
-                // In this case we have to simply insert into the Session
-                final long newId = mDbHelper.getWritableDatabase().insert(FenceDB.FenceSession.TABLE_NAME,
-                        FenceDB.FenceSession.SESSION_OWNER, values);
-                newItemUri = Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(newId));
-                break;
-            }
-            case POSITION_DIR_INDICATOR: {
-                // Here we have to get the sessionId from the Uri
-                final int sessionId = Integer.parseInt(uri.getPathSegments().get(1));
-                // We add this information to the values
-                values.put(FenceDB.FencePosition.SESSION_ID, sessionId);
-                // We insert the data into the DB
-                final long newId = mDbHelper.getWritableDatabase().insert(FenceDB.FencePosition.TABLE_NAME,
-                        FenceDB.FenceSession.SESSION_OWNER, values);
-                newItemUri = Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(newId));
-                break;
+        mResultCache.beginWrite();
+        try {
+            switch (uriMatch) {
+                case SESSION_DIR_INDICATOR: {
+                    // In this case we have to simply insert into the Session
+                    final long newId = mDbHelper.getWritableDatabase().insert(FenceDB.FenceSession.TABLE_NAME,
+                            FenceDB.FenceSession.SESSION_OWNER, values);
+                    newItemUri = Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(newId));
+                    break;
+                }
+                case POSITION_DIR_INDICATOR: {
+                    // Here we have to get the sessionId from the Uri
+                    final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+                    // We add this information to the values
+                    values.put(FenceDB.FencePosition.SESSION_ID, sessionId);
+                    // We insert the data into the DB together with the update of the summary
+                    final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                    final long newId;
+                    db.beginTransaction();
+                    try {
+                        restoreArchivedPositions(db, uriMatch, uri);
+                        newId = db.insert(FenceDB.FencePosition.TABLE_NAME, FenceDB.FenceSession.SESSION_OWNER, values);
+                        if (newId != -1) {
+                            final SessionSummary summary = SessionSummary.load(db, sessionId);
+                            addToSummary(summary, values);
+                            saveSummary(db, summary, sessionId);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    if (newId != -1) {
+                        newItemUri = FenceDB.FencePosition.getPositionUri(sessionId, newId);
+                    }
+                    break;
+                }
+                case GEOFENCE_DIR_INDICATOR: {
+                    // In this case we have to simply insert into the Session
+                    final long newId = mDbHelper.getWritableDatabase().insert(FenceDB.Geofence.TABLE_NAME,
+                            FenceDB.Geofence.FENCE_ID, values);
+                    newItemUri = Uri.withAppendedPath(FenceDB.Geofence.CONTENT_URI, String.valueOf(newId));
+                    break;
+                }
+                default:
+                    throw new UnsupportedOperationException("The given Uri " + uri + "is not supported");
             }
-            case GEOFENCE_DIR_INDICATOR: {
-                // In this case we have to simply insert into the Session
-                final long newId = mDbHelper.getWritableDatabase().insert(FenceDB.Geofence.TABLE_NAME,
-                        FenceDB.Geofence.FENCE_ID, values);
-                newItemUri = Uri.withAppendedPath(FenceDB.Geofence.CONTENT_URI, String.valueOf(newId));
-                break;
+            if (newItemUri != null) {
+                invalidateResults(uriMatch, uri, false);
             }
-            default:
-                throw new UnsupportedOperationException("The given Uri " + uri + "is not supported");
+        } finally {
+            mResultCache.endWrite();
         }
         // We notify the creation of the entity
         if (newItemUri != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, uriMatch, false);
         }
+        mLatencyStats.record(uriMatch, LatencyStats.INSERT, startTime);
         return newItemUri;
     }
 
-
     @Override
-    public Cursor query(Uri uri, String[] projection, String selection,
-                        String[] selectionArgs, String sortOrder) {
-        // We detect the uri to manage
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final long startTime = LatencyStats.start();
         final int uriMatch = URI_MATCHER.match(uri);
-        Cursor cursor = null;
-        switch (uriMatch) {
-            case SESSION_DIR_INDICATOR: {
-                // In this case we simply execute the given query on the FenceSession Table
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.FenceSession.TABLE_NAME, projection,
-                        selection, selectionArgs, null, null, sortOrder);
-                break;
-            }
-            case SESSION_ITEM_INDICATOR: {
-                // In this case the sessionId is into the Uri as path segment
-                final String sessionId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FenceSession._ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+        if (uriMatch != POSITION_DIR_INDICATOR) {
+            // For all the other Uri we use the default implementation
+            final int insertedCount = super.bulkInsert(uri, values);
+            mLatencyStats.record(uriMatch, LatencyStats.BULK_INSERT, startTime);
+            return insertedCount;
+        }
+        // The sessionId is the same for all the positions so we read it only once
+        final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+        final String totalDistance = uri.getQueryParameter(FenceDB.FencePosition.TOTAL_DISTANCE_PARAM);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int insertedCount = 0;
+        boolean sessionUpdated = false;
+        // We compile the statement once and we bind the values for every position. This is
+        // done before the transaction so a failure cannot leave it open
+        final SQLiteStatement insertStatement = db.compileStatement(INSERT_POSITION_SQL);
+        mResultCache.beginWrite();
+        try {
+            db.beginTransaction();
+            try {
+                TrackArchive.restore(db, sessionId);
+                // The summary of the session is read once and updated with all the positions
+                final SessionSummary summary = SessionSummary.load(db, sessionId);
+                for (ContentValues positionValues : values) {
+                    insertStatement.bindLong(1, sessionId);
+                    bindNumber(insertStatement, 2, positionValues.getAsLong(FenceDB.FencePosition.POSITION_TIME));
+                    bindNumber(insertStatement, 3, positionValues.getAsInteger(FenceDB.FencePosition.LATITUDE_E7));
+                    bindNumber(insertStatement, 4, positionValues.getAsInteger(FenceDB.FencePosition.LONGITUDE_E7));
+                    bindNumber(insertStatement, 5, positionValues.getAsDouble(FenceDB.FencePosition.ALTITUDE));
+                    bindNumber(insertStatement, 6, positionValues.getAsDouble(FenceDB.FencePosition.DISTANCE));
+                    bindNumber(insertStatement, 7, positionValues.getAsInteger(FenceDB.FencePosition.ACTIVITY));
+                    if (insertStatement.executeInsert() != -1) {
+                        addToSummary(summary, positionValues);
+                        insertedCount++;
+                    }
                 }
-                // We use our constrains for the query
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.FenceSession.TABLE_NAME, projection,
-                        where.toString(), selectionArgs, null, null, sortOrder);
-                break;
+                saveSummary(db, summary, sessionId);
+                if (totalDistance != null) {
+                    // The total distance of the session is written with its positions
+                    final ContentValues sessionValues = new ContentValues();
+                    sessionValues.put(FenceDB.FenceSession.TOTAL_DISTANCE, Float.parseFloat(totalDistance));
+                    sessionUpdated = db.update(FenceDB.FenceSession.TABLE_NAME, sessionValues,
+                            FenceDB.FenceSession._ID + " = ?", new String[]{String.valueOf(sessionId)}) > 0;
+                }
+                if (insertedCount > 0 || sessionUpdated) {
+                    invalidateResults(POSITION_DIR_INDICATOR, uri, false);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            case POSITION_DIR_INDICATOR: {
-                // In this case we have to delete all the items in FencePosition for the given session
-                // which is contained into the Uri as path element
-                final String sessionId = uri.getPathSegments().get(1);
-                // As before we have to create the where clause based, this time, on the
-                // sessionId field
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+        } finally {
+            mResultCache.endWrite();
+            insertStatement.close();
+        }
+        if (insertedCount > 0) {
+            // We send a single notification for all the inserted positions
+            notifyChange(uri, POSITION_DIR_INDICATOR, false);
+        }
+        if (sessionUpdated) {
+            mChangeNotifier.notifyChange(Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI,
+                    String.valueOf(sessionId)));
+        }
+        mLatencyStats.record(uriMatch, LatencyStats.BULK_INSERT, startTime);
+        return insertedCount;
+    }
+
+    /**
+     * Add the position with the given values to the summary of the session
+     *
+     * @param summary        The summary to update
+     * @param positionValues The values of the position
+     */
+    private static void addToSummary(final SessionSummary summary, final ContentValues positionValues) {
+        summary.add(getLong(positionValues, FenceDB.FencePosition.POSITION_TIME),
+                CoordinateUtil.fromE7((int) getLong(positionValues, FenceDB.FencePosition.LATITUDE_E7)),
+                CoordinateUtil.fromE7((int) getLong(positionValues, FenceDB.FencePosition.LONGITUDE_E7)),
+                getDouble(positionValues, FenceDB.FencePosition.DISTANCE),
+                (int) getLong(positionValues, FenceDB.FencePosition.ACTIVITY));
+    }
+
+    /**
+     * Save the summary of the session. If the positions were not in order of time the
+     * summary is calculated again from all the positions. This happens for instance
+     * with imported sessions
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param summary   The summary to save
+     * @param sessionId The session of the summary
+     */
+    private static void saveSummary(final SQLiteDatabase db, final SessionSummary summary, final long sessionId) {
+        if (summary.isOutOfOrder()) {
+            SessionSummary.rebuild(db, sessionId);
+        } else {
+            summary.save(db);
+        }
+    }
+
+    /**
+     * @param values The ContentValues
+     * @param key    The key of the value
+     * @return The value as long or 0 if not present
+     */
+    private static long getLong(final ContentValues values, final String key) {
+        final Long value = values.getAsLong(key);
+        return value == null ? 0L : value;
+    }
+
+    /**
+     * @param values The ContentValues
+     * @param key    The key of the value
+     * @return The value as double or 0 if not present
+     */
+    private static double getDouble(final ContentValues values, final String key) {
+        final Double value = values.getAsDouble(key);
+        return value == null ? 0.0 : value;
+    }
+
+    /**
+     * Notify the change of the given Uri. The positions are notified with their own Uri which
+     * is not into the tree of the sessions together with the summary of their session. This is
+     * because the list of the sessions only shows the summary. If sessions are deleted their
+     * positions are deleted too
+     *
+     * @param uri      The changed Uri
+     * @param uriMatch The type of the Uri
+     * @param cascade  True if the change deletes the data of the sessions
+     */
+    private void notifyChange(final Uri uri, final int uriMatch, final boolean cascade) {
+        if (isPositionUri(uriMatch)) {
+            final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+            mChangeNotifier.notifyChange(FenceDB.FencePosition.getChangeUri(sessionId));
+            mChangeNotifier.notifyChange(FenceDB.FenceSessionSummary.getSummaryUri(sessionId));
+            return;
+        }
+        mChangeNotifier.notifyChange(uri);
+        if (cascade && uriMatch == SESSION_ITEM_INDICATOR) {
+            final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+            mChangeNotifier.notifyChange(FenceDB.FencePosition.getChangeUri(sessionId));
+        } else if (cascade && uriMatch == SESSION_DIR_INDICATOR) {
+            mChangeNotifier.notifyChange(FenceDB.FencePosition.CONTENT_URI);
+        }
+    }
+
+    /**
+     * @param uriMatch The type of the Uri
+     * @param uri      The Uri of the query
+     * @return The Uri to observe for the result of the query
+     */
+    private static Uri getNotificationUri(final int uriMatch, final Uri uri) {
+        if (isSessionPositionUri(uriMatch)) {
+            return FenceDB.FencePosition.getChangeUri(Long.parseLong(uri.getPathSegments().get(1)));
+        } else if (uriMatch == ALL_POSITION_BOUNDING_BOX_INDICATOR) {
+            // The positions of all the sessions
+            return FenceDB.FencePosition.CONTENT_URI;
+        }
+        return uri;
+    }
+
+    /**
+     * @param uriMatch The type of the Uri
+     * @return True if the Uri is related to positions
+     */
+    private static boolean isPositionUri(final int uriMatch) {
+        return uriMatch == POSITION_DIR_INDICATOR || uriMatch == POSITION_ITEM_INDICATOR;
+    }
+
+    /**
+     * We only cache the small results the screens read again on every resume. The positions are
+     * not cached because they are mostly read once by exports, sync and pages of live sessions
+     * and the snapshot would read all of them into memory
+     *
+     * @param uriMatch The type of the Uri
+     * @return True if the results for the Uri are kept into the ResultCache
+     */
+    private static boolean isCachedUri(final int uriMatch) {
+        return uriMatch == SESSION_DIR_INDICATOR || uriMatch == SESSION_ITEM_INDICATOR
+                || uriMatch == SUMMARY_ITEM_INDICATOR || uriMatch == ACTIVITY_SUMMARY_DIR_INDICATOR;
+    }
+
+    /**
+     * @param uriMatch The type of the Uri
+     * @param uri      The Uri
+     * @return The scope of the ResultCache for the data of the given Uri
+     */
+    private static String getResultScope(final int uriMatch, final Uri uri) {
+        switch (uriMatch) {
+            case SESSION_DIR_INDICATOR:
+            case SESSION_ITEM_INDICATOR:
+                return ResultCache.SESSION_SCOPE;
+            default:
+                // Summaries of a session
+                return ResultCache.getSessionDataScope(Long.parseLong(uri.getPathSegments().get(1)));
+        }
+    }
+
+    /**
+     * Remove from the ResultCache the results changed by a write on the given Uri. The list of
+     * the sessions contains their summary so it changes with the positions too
+     *
+     * @param uriMatch The type of the changed Uri
+     * @param uri      The changed Uri
+     * @param cascade  True if the write deletes the data of the sessions
+     */
+    private void invalidateResults(final int uriMatch, final Uri uri, final boolean cascade) {
+        switch (uriMatch) {
+            case SESSION_DIR_INDICATOR:
+                mResultCache.invalidate(ResultCache.SESSION_SCOPE);
+                if (cascade) {
+                    mResultCache.invalidateAllSessionData();
                 }
-                // We use our constrains for the query
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.FencePosition.TABLE_NAME, projection,
-                        where.toString(), selectionArgs, null, null, sortOrder);
                 break;
-            }
-            case POSITION_ITEM_INDICATOR: {
-                // In this case we delete a given position for a given session. The id of the position
-                // can appear useless but to delete an item we want both the position identifier and the
-                // session identifier. We remind that the Uri for a given position is of this form
-                // AUTHORITY/session/<sessionId>/position/<positionId>
-                // so we need the session as the pahElements in 1 and the positionId as the element in 3
-                final String sessionId = uri.getPathSegments().get(1);
-                final String positionId = uri.getPathSegments().get(3);
-                // We build the query as before using these two information
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" AND ")
-                        .append(FenceDB.FencePosition._ID).append(" = ")
-                        .append(positionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+            case SESSION_ITEM_INDICATOR:
+                mResultCache.invalidate(ResultCache.SESSION_SCOPE);
+                if (cascade) {
+                    mResultCache.invalidate(
+                            ResultCache.getSessionDataScope(Long.parseLong(uri.getPathSegments().get(1))));
                 }
-                // We use our constrains for the query
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.FencePosition.TABLE_NAME, projection,
-                        where.toString(), selectionArgs, null, null, sortOrder);
                 break;
-            }
-            case GEOFENCE_DIR_INDICATOR: {
-                // In this case we simply execute the given query on the Geofence Table
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.Geofence.TABLE_NAME, projection,
-                        selection, selectionArgs, null, null, sortOrder);
+            case POSITION_DIR_INDICATOR:
+            case POSITION_ITEM_INDICATOR:
+                mResultCache.invalidate(ResultCache.SESSION_SCOPE,
+                        ResultCache.getSessionDataScope(Long.parseLong(uri.getPathSegments().get(1))));
                 break;
-            }
-            case GEOFENCE_ITEM_INDICATOR: {
-                // In this case the fenceId is into the Uri as path segment
-                final String fenceId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.Geofence._ID)
-                        .append(" = ").append(fenceId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // We use our constrains for the query
-                cursor = mDbHelper.getReadableDatabase().query(FenceDB.Geofence.TABLE_NAME, projection,
-                        where.toString(), selectionArgs, null, null, sortOrder);
+            default:
                 break;
-            }
+        }
+    }
+
+    /**
+     * @param uriMatch The type of the Uri
+     * @return True if the Uri is for the positions of a single session
+     */
+    private static boolean isSessionPositionUri(final int uriMatch) {
+        return isPositionUri(uriMatch) || uriMatch == POSITION_BOUNDING_BOX_INDICATOR;
+    }
+
+    /**
+     * The positions of an archived session are moved back into the FencePosition table before
+     * we change them. It must be called into a transaction
+     *
+     * @param db       The SQLiteDatabase to use
+     * @param uriMatch The type of the Uri
+     * @param uri      The Uri to change
+     */
+    private static void restoreArchivedPositions(final SQLiteDatabase db, final int uriMatch, final Uri uri) {
+        if (isPositionUri(uriMatch)) {
+            TrackArchive.restore(db, Long.parseLong(uri.getPathSegments().get(1)));
+        }
+    }
+
+    /**
+     * The summaries are calculated from the positions so they cannot be changed directly. The
+     * bounding boxes are only for queries
+     *
+     * @param uriMatch The type of the Uri
+     * @param uri      The Uri
+     */
+    private static void checkWritable(final int uriMatch, final Uri uri) {
+        switch (uriMatch) {
+            case SUMMARY_ITEM_INDICATOR:
+            case ACTIVITY_SUMMARY_DIR_INDICATOR:
+            case POSITION_BOUNDING_BOX_INDICATOR:
+            case ALL_POSITION_BOUNDING_BOX_INDICATOR:
+            case GEOFENCE_BOUNDING_BOX_INDICATOR:
+                throw new UnsupportedOperationException("The given Uri " + uri + " is read only");
             default:
                 break;
         }
-        if (cursor != null) {
-            // We notify the query on the cursor for the requested Uri
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
-            // We return the cursor itself
-            return cursor;
+    }
+
+    /**
+     * Utility method that binds a numeric value to the given statement managing the null case
+     *
+     * @param statement The statement to bind the value to
+     * @param index     The index of the value (1 based)
+     * @param value     The value to bind
+     */
+    private static void bindNumber(final SQLiteStatement statement, final int index, final Number value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, value.doubleValue());
         } else {
+            statement.bindLong(index, value.longValue());
+        }
+    }
+
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        final long startTime = LatencyStats.start();
+        // We detect the uri to manage and the related selection with the ids from the Uri
+        final int uriMatch = URI_MATCHER.match(uri);
+        if (uriMatch == STATS_DIR_INDICATOR) {
+            // The statistics are not into the DB
+            return mLatencyStats.toCursor();
+        }
+        final UriSelection uriSelection = UriSelection.create(uriMatch, uri, selection, selectionArgs);
+        if (uriSelection == null) {
             // It means that the Uri didn't match
             throw new UnsupportedOperationException("The given Uri " + uri + " is not supported");
         }
+        // We look for the result into the cache
+        final boolean cachedUri = isCachedUri(uriMatch);
+        final String resultKey = cachedUri
+                ? ResultCache.createKey(uri, projection, selection, selectionArgs, sortOrder) : null;
+        Cursor cursor = cachedUri ? mResultCache.get(resultKey) : null;
+        if (cursor == null) {
+            final long generation = mResultCache.getGeneration();
+            Cursor archivedCursor = null;
+            if (isSessionPositionUri(uriMatch)) {
+                // The positions of an archived session are decoded from its track
+                archivedCursor = TrackArchive.query(mDbHelper.getReadableDatabase(), uriMatch, uri,
+                        projection, selection, sortOrder);
+            }
+            if (archivedCursor != null) {
+                cursor = archivedCursor;
+            } else {
+                // The SQL is the same for every Uri of the same type so SQLite can reuse the statement
+                final String sql = SQLiteQueryBuilder.buildQueryString(false, uriSelection.getQueryTables(),
+                        projection, uriSelection.getWhere(), null, null, uriSelection.getSortOrder(sortOrder),
+                        uriSelection.getLimit());
+                cursor = mDbHelper.getReadableDatabase().rawQueryWithFactory(null, sql,
+                        uriSelection.getArgs(), uriSelection.getTable());
+                if (uriMatch == ALL_POSITION_BOUNDING_BOX_INDICATOR) {
+                    // The positions of the archived sessions follow the ones into the table
+                    cursor = mergeArchivedPositions(cursor, uri, projection, selection, sortOrder);
+                }
+            }
+            if (cachedUri) {
+                cursor = mResultCache.put(resultKey, getResultScope(uriMatch, uri), uriSelection.getTable(),
+                        generation, cursor);
+            }
+        }
+        // We notify the query on the cursor for the Uri of its data
+        cursor.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uriMatch, uri));
+        mLatencyStats.record(uriMatch, LatencyStats.QUERY, startTime);
+        // We return the cursor itself
+        return cursor;
+    }
+
+    /**
+     * Adds the positions of the archived sessions into the bounding box of the given Uri to the
+     * ones of the FencePosition table
+     *
+     * @param tableCursor The Cursor with the positions of the table
+     * @param uri         The Uri of the bounding box of all the positions
+     * @param projection  The columns to return
+     * @param selection   The selection of the caller
+     * @param sortOrder   The order of the caller
+     * @return The Cursor with all the positions into the bounding box
+     */
+    private Cursor mergeArchivedPositions(final Cursor tableCursor, final Uri uri, final String[] projection,
+                                          final String selection, final String sortOrder) {
+        final Cursor archivedCursor;
+        try {
+            archivedCursor = TrackArchive.queryBoundingBox(mDbHelper.getReadableDatabase(), uri, projection,
+                    selection, sortOrder);
+        } catch (RuntimeException e) {
+            tableCursor.close();
+            throw e;
+        }
+        if (archivedCursor == null) {
+            return tableCursor;
+        }
+        return new FencePositionMergeCursor(new Cursor[]{tableCursor, archivedCursor});
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
-        // We detect the uri to manage
+        final long startTime = LatencyStats.start();
+        // We detect the uri to manage and the related selection with the ids from the Uri
         final int uriMatch = URI_MATCHER.match(uri);
-        int updatedCount = -1;
-        switch (uriMatch) {
-            case SESSION_DIR_INDICATOR: {
-                // In this case we have to update using the all session Uri
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.FenceSession.TABLE_NAME,
-                        values, selection, selectionArgs);
-                break;
+        final UriSelection uriSelection = UriSelection.create(uriMatch, uri, selection, selectionArgs);
+        if (uriSelection == null) {
+            // It means that the Uri didn't match
+            throw new UnsupportedOperationException("The given Uri " + uri + " is not supported");
+        }
+        checkWritable(uriMatch, uri);
+        // We update using the created where. If positions are changed we calculate the summary again
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final int updatedCount;
+        mResultCache.beginWrite();
+        db.beginTransaction();
+        try {
+            restoreArchivedPositions(db, uriMatch, uri);
+            updatedCount = db.update(uriSelection.getTable(), values, uriSelection.getWhere(), uriSelection.getArgs());
+            if (updatedCount > 0 && isPositionUri(uriMatch)) {
+                SessionSummary.rebuild(db, Long.parseLong(uri.getPathSegments().get(1)));
             }
-            case SESSION_ITEM_INDICATOR: {
-                // In this case the sessionId is into the Uri as path segment
-                final String sessionId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FenceSession._ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
-                }
-                // We update using the created where
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.FenceSession.TABLE_NAME,
-                        values, where.toString(), selectionArgs);
-                break;
+            if (updatedCount > 0) {
+                invalidateResults(uriMatch, uri, false);
             }
-            case POSITION_DIR_INDICATOR: {
-                // In this case we have to delete all the items in FencePosition for the given session
-                // which is contained into the Uri as path element
-                final String sessionId = uri.getPathSegments().get(1);
-                // As before we have to create the where clause based, this time, on the
-                // sessionId field
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mResultCache.endWrite();
+        }
+        // We notify the update
+        notifyChange(uri, uriMatch, false);
+        mLatencyStats.record(uriMatch, LatencyStats.UPDATE, startTime);
+        // We return the number of updated items
+        return updatedCount;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (URI_MATCHER.match(uri) != SESSION_EXPORT_INDICATOR) {
+            return super.openFile(uri, mode);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export " + uri + " can only be read");
+        }
+        final String format = uri.getQueryParameter(FenceDB.FORMAT_PARAM);
+        if (getExportMimeType(format) == null) {
+            throw new FileNotFoundException("The format of " + uri + " is not supported");
+        }
+        if (FenceDB.JSON_FORMAT.equals(format) && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The JsonWriter is not available
+            throw new FileNotFoundException("The export " + uri + " needs Honeycomb");
+        }
+        // We check the session here so the caller knows if it doesn't exist
+        final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+        final Cursor sessionCursor = query(Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI,
+                String.valueOf(sessionId)), null, null, null, null);
+        if (!sessionCursor.moveToFirst()) {
+            sessionCursor.close();
+            throw new FileNotFoundException("The session of " + uri + " doesn't exist");
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException ioe) {
+            sessionCursor.close();
+            throw new FileNotFoundException("Unable to create the pipe for " + uri);
+        }
+        // The rows are written while the caller reads them so we never keep the whole session
+        final boolean deflate = Boolean.parseBoolean(uri.getQueryParameter(FenceDB.DEFLATE_PARAM));
+        mExportExecutor.execute(new ExportTask(sessionId, sessionCursor, pipe[1], format, deflate));
+        return pipe[0];
+    }
+
+    /**
+     * @param format The format of the export
+     * @return The MimeType of the format or null if it's not supported
+     */
+    private static String getExportMimeType(final String format) {
+        if (FenceDB.JSON_FORMAT.equals(format)) {
+            return FenceDB.JSON_MIME_TYPE;
+        } else if (FenceDB.BINARY_FORMAT.equals(format)) {
+            return FenceDB.BINARY_MIME_TYPE;
+        } else if (FenceDB.GPX_FORMAT.equals(format)) {
+            return FenceDB.GPX_MIME_TYPE;
+        } else if (FenceDB.KML_FORMAT.equals(format)) {
+            return FenceDB.KML_MIME_TYPE;
+        }
+        return null;
+    }
+
+    /**
+     * The task that writes a session into the write side of a pipe
+     */
+    private class ExportTask implements Runnable {
+
+        /**
+         * The id of the session
+         */
+        private final long mSessionId;
+
+        /**
+         * The Cursor on the session positioned on its row
+         */
+        private final Cursor mSessionCursor;
+
+        /**
+         * The write side of the pipe
+         */
+        private final ParcelFileDescriptor mOutput;
+
+        /**
+         * The format of the export
+         */
+        private final String mFormat;
+
+        /**
+         * True if the binary format has to be compressed
+         */
+        private final boolean mDeflate;
+
+        private ExportTask(final long sessionId, final Cursor sessionCursor, final ParcelFileDescriptor output,
+                           final String format, final boolean deflate) {
+            mSessionId = sessionId;
+            mSessionCursor = sessionCursor;
+            mOutput = output;
+            mFormat = format;
+            mDeflate = deflate;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public void run() {
+            final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(mOutput);
+            Cursor positionCursor = null;
+            String error = null;
+            try {
+                // An archived session is decoded while we write it
+                final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+                positionCursor = TrackArchive.openTrack(db, mSessionId, null);
+                if (positionCursor == null) {
+                    // We read the table directly because the ResultCache doesn't help a single read
+                    positionCursor = db.query(FenceDB.FencePosition.TABLE_NAME, null, EXPORT_POSITION_WHERE,
+                            new String[]{String.valueOf(mSessionId)}, null, null, EXPORT_POSITION_ORDER);
                 }
-                // We update using the created where
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.FencePosition.TABLE_NAME,
-                        values, where.toString(), selectionArgs);
-                break;
-            }
-            case POSITION_ITEM_INDICATOR: {
-                // In this case we delete a given position for a given session. The id of the position
-                // can appear useless but to delete an item we want both the position identifier and the
-                // session identifier. We remind that the Uri for a given position is of this form
-                // AUTHORITY/session/<sessionId>/position/<positionId>
-                // so we need the session as the pahElements in 1 and the positionId as the element in 3
-                final String sessionId = uri.getPathSegments().get(1);
-                final String positionId = uri.getPathSegments().get(3);
-                // We build the query as before using these two information
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
-                        .append(" = ").append(sessionId).append(" AND ")
-                        .append(FenceDB.FencePosition._ID).append(" = ")
-                        .append(positionId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+                mSessionCursor.moveToPosition(-1);
+                final FenceCursorFactory.FenceSessionCursorData sessionData =
+                        CursorResolver.CURSOR_RESOLVER.extractSessionCursor(mSessionCursor);
+                sessionData.moveToNext();
+                final FenceCursorFactory.FencePositionCursorData positionData =
+                        CursorResolver.CURSOR_RESOLVER.extractPositionCursor(positionCursor);
+                if (FenceDB.BINARY_FORMAT.equals(mFormat)) {
+                    SessionBinary.write(sessionData, positionData, out, mDeflate);
+                } else if (FenceDB.GPX_FORMAT.equals(mFormat)) {
+                    SessionGpx.write(sessionData, positionData, out);
+                } else if (FenceDB.KML_FORMAT.equals(mFormat)) {
+                    SessionKml.write(sessionData, positionData, out);
+                } else {
+                    SessionJson.write(sessionData, positionData, out);
                 }
-                // We update using the created where
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.FencePosition.TABLE_NAME,
-                        values, where.toString(), selectionArgs);
-                break;
-            }
-            case GEOFENCE_DIR_INDICATOR: {
-                // In this case we have to update using the all session Uri
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.Geofence.TABLE_NAME,
-                        values, selection, selectionArgs);
-                break;
+            } catch (IOException ioe) {
+                // The reader has closed the pipe
+                Log.w(TAG_LOG, "Export of session " + mSessionId + " interrupted", ioe);
+            } catch (RuntimeException re) {
+                // For instance a SQLiteException or an archive we cannot decode
+                Log.e(TAG_LOG, "Export of session " + mSessionId + " failed", re);
+                error = "Export of session " + mSessionId + " failed: " + re.getMessage();
+            } finally {
+                mSessionCursor.close();
+                if (positionCursor != null) {
+                    positionCursor.close();
+                }
+                closeOutput(out, error);
             }
-            case GEOFENCE_ITEM_INDICATOR: {
-                // In this case the fenceId is into the Uri as path segment
-                final String fenceId = uri.getPathSegments().get(1);
-                // We have to add this constraint to the one that we receive
-                // with the params
-                final StringBuilder where = new StringBuilder("( ").append(FenceDB.Geofence._ID)
-                        .append(" = ").append(fenceId).append(" ) ");
-                if (!TextUtils.isEmpty(selection)) {
-                    // If we have to append the filter based on the _ID
-                    where.append(" AND ").append(selection);
+        }
+
+        /**
+         * Close the write side of the pipe. From KitKat the reader receives the error so it
+         * doesn't take a truncated export as a complete one
+         *
+         * @param out   The OutputStream of the pipe
+         * @param error The error of the export or null
+         */
+        private void closeOutput(final OutputStream out, final String error) {
+            try {
+                if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    closeWithError(error);
+                } else {
+                    out.close();
                 }
-                // We update using the created where
-                updatedCount = mDbHelper.getWritableDatabase().update(FenceDB.Geofence.TABLE_NAME,
-                        values, where.toString(), selectionArgs);
-                break;
+            } catch (IOException ioe) {
+                Log.w(TAG_LOG, "Error closing the export of session " + mSessionId, ioe);
             }
-            default:
-                break;
         }
-        if (updatedCount >= 0) {
-            // We notify the deletion
-            getContext().getContentResolver().notifyChange(uri, null);
-            // We return the number of updated items
-            return updatedCount;
-        } else {
-            // It means that the Uri didn't match
-            throw new UnsupportedOperationException("The given Uri " + uri + " is not supported");
+
+        /**
+         * @param error The error to send to the reader
+         * @throws IOException In case of error closing the pipe
+         */
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        private void closeWithError(final String error) throws IOException {
+            mOutput.closeWithError(error);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (FenceDB.METHOD_CHECKPOINT.equals(method)) {
+            // We move the content of the WAL into the DB
+            mDbHelper.checkpoint();
+            return null;
+        } else if (FenceDB.METHOD_STATEMENT_CACHE_STATS.equals(method)) {
+            // We return the counters of the statement cache
+            final Bundle stats = new Bundle();
+            stats.putLong(FenceDB.EXTRA_CACHE_HIT_COUNT, mStatementCache.getReuseCount());
+            stats.putLong(FenceDB.EXTRA_CACHE_MISS_COUNT, mStatementCache.getCompileCount());
+            stats.putFloat(FenceDB.EXTRA_CACHE_HIT_RATE, mStatementCache.getReuseRate());
+            return stats;
+        } else if (FenceDB.METHOD_RESULT_CACHE_STATS.equals(method)) {
+            // We return the counters of the result cache
+            final Bundle stats = new Bundle();
+            stats.putLong(FenceDB.EXTRA_CACHE_HIT_COUNT, mResultCache.getHitCount());
+            stats.putLong(FenceDB.EXTRA_CACHE_MISS_COUNT, mResultCache.getMissCount());
+            stats.putLong(FenceDB.EXTRA_CACHE_EVICTION_COUNT, mResultCache.getEvictionCount());
+            stats.putFloat(FenceDB.EXTRA_CACHE_HIT_RATE, mResultCache.getHitRate());
+            return stats;
+        } else if (FenceDB.METHOD_MAINTENANCE.equals(method)) {
+            // We execute the maintenance of the DB
+            return mDbHelper.runMaintenance();
+        } else if (FenceDB.METHOD_ARCHIVE_SESSION.equals(method)) {
+            // We move the positions of the session into its compact track
+            final long sessionId = Long.parseLong(arg);
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final Bundle result;
+            mResultCache.beginWrite();
+            db.beginTransaction();
+            try {
+                result = TrackArchive.archive(db, sessionId);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                mResultCache.endWrite();
+            }
+            // The positions are the same but the observers of the bounding boxes have to know
+            mChangeNotifier.notifyChange(FenceDB.FencePosition.getChangeUri(sessionId));
+            return result;
         }
+        return super.call(method, arg, extras);
     }
 
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
+        final long startTime = LatencyStats.start();
         // We have overridden the applyBatch to improve performances. In this was we can
         // execute them into a transaction
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        // The results are not cached until the whole batch is committed and the changes are
+        // notified once at its end
+        mResultCache.beginWrite();
+        mChangeNotifier.beginBatch();
+        boolean successful = false;
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
@@ -497,11 +956,36 @@ public class FenceContentProvider extends ContentProvider {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
+            successful = true;
             return results;
         } finally {
             db.endTransaction();
+            mResultCache.endWrite();
+            mChangeNotifier.endBatch(successful);
+            // A batch has no Uri of its own
+            mLatencyStats.record(UriMatcher.NO_MATCH, LatencyStats.APPLY_BATCH, startTime);
         }
     }
 
+    @Override
+    public void shutdown() {
+        // We close the compiled statements before the DB
+        mStatementCache.close();
+        mDbHelper.close();
+        super.shutdown();
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // We write the latency statistics with adb shell dumpsys activity provider
+        mLatencyStats.dump(writer);
+        writer.println("Delete statements: " + mStatementCache.getReuseCount() + " reused, "
+                + mStatementCache.getCompileCount() + " compiled");
+        writer.println("Result cache: " + mResultCache.getHitCount() + " hits, " + mResultCache.getMissCount()
+                + " misses, " + mResultCache.getEvictionCount() + " evictions");
+        writer.println("Notifications: " + mChangeNotifier.getSentCount() + " sent, "
+                + mChangeNotifier.getCoalescedCount() + " coalesced");
+    }
+
 
 }
@@ -1,6 +1,5 @@
 package uk.co.massimocarli.friendfence.content;
 
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -11,6 +10,7 @@ import java.util.Date;
 
 import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.geofence.GeofenceData;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
 
 /**
  * This is the interface we use to manage constants related to the FriendFence DB for our
@@ -27,7 +27,7 @@ public final class FenceDB {
     /**
      * This is the version of the DB
      */
-    public static final int DB_VERSION = 2;
+    public static final int DB_VERSION = 9;
 
     /**
      * This is the name of the Authority for the ContentProvider. We'll use this to manage
@@ -36,6 +36,177 @@ public final class FenceDB {
     public static final String AUTHORITY = Conf.PKG + ".authority.friendfence";
 
 
+    /**
+     * The method for ContentResolver.call() that asks for a checkpoint of the WAL file. We use
+     * it when the tracking is idle
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /**
+     * The method for ContentResolver.call() that returns the counters of the statement cache
+     * of the ContentProvider. A hit is a delete with a reused compiled statement and a miss is a
+     * delete that had to compile its statement
+     */
+    public static final String METHOD_STATEMENT_CACHE_STATS = "statementCacheStats";
+
+    /**
+     * The key for the number of hits of the cache (long)
+     */
+    public static final String EXTRA_CACHE_HIT_COUNT = Conf.PKG + ".extra.EXTRA_CACHE_HIT_COUNT";
+
+    /**
+     * The key for the number of misses of the cache (long)
+     */
+    public static final String EXTRA_CACHE_MISS_COUNT = Conf.PKG + ".extra.EXTRA_CACHE_MISS_COUNT";
+
+    /**
+     * The key for the hit rate of the cache (float)
+     */
+    public static final String EXTRA_CACHE_HIT_RATE = Conf.PKG + ".extra.EXTRA_CACHE_HIT_RATE";
+
+    /**
+     * The method for ContentResolver.call() that returns the counters of the result cache of
+     * the ContentProvider. The keys are the ones of the statement cache with the evictions
+     */
+    public static final String METHOD_RESULT_CACHE_STATS = "resultCacheStats";
+
+    /**
+     * The key for the number of results removed from the result cache because it was full (long)
+     */
+    public static final String EXTRA_CACHE_EVICTION_COUNT = Conf.PKG + ".extra.EXTRA_CACHE_EVICTION_COUNT";
+
+    /**
+     * The method for ContentResolver.call() that moves the positions of a closed session into
+     * the FenceTrackArchive. The argument is the id of the session
+     */
+    public static final String METHOD_ARCHIVE_SESSION = "archiveSession";
+
+    /**
+     * The key for the number of archived positions (int)
+     */
+    public static final String EXTRA_ARCHIVED_POSITION_COUNT = Conf.PKG + ".extra.EXTRA_ARCHIVED_POSITION_COUNT";
+
+    /**
+     * The key for the size in bytes of the archived track (int)
+     */
+    public static final String EXTRA_ARCHIVE_SIZE = Conf.PKG + ".extra.EXTRA_ARCHIVE_SIZE";
+
+    /**
+     * The method for ContentResolver.call() that executes the maintenance of the DB. We use it
+     * when the device is charging and the tracking is idle
+     */
+    public static final String METHOD_MAINTENANCE = "maintenance";
+
+    /**
+     * The key for the duration in milliseconds of the checkpoint of the maintenance (long)
+     */
+    public static final String EXTRA_CHECKPOINT_TIME = Conf.PKG + ".extra.EXTRA_CHECKPOINT_TIME";
+
+    /**
+     * The key for the duration in milliseconds of the vacuum of the maintenance (long)
+     */
+    public static final String EXTRA_VACUUM_TIME = Conf.PKG + ".extra.EXTRA_VACUUM_TIME";
+
+    /**
+     * The key for the duration in milliseconds of the statistics refresh of the maintenance (long)
+     */
+    public static final String EXTRA_ANALYZE_TIME = Conf.PKG + ".extra.EXTRA_ANALYZE_TIME";
+
+    /**
+     * The key for the duration in milliseconds of the integrity check of the maintenance (long)
+     */
+    public static final String EXTRA_INTEGRITY_CHECK_TIME = Conf.PKG + ".extra.EXTRA_INTEGRITY_CHECK_TIME";
+
+    /**
+     * The key for the bytes the vacuum gave back to the file system (long)
+     */
+    public static final String EXTRA_RECLAIMED_BYTES = Conf.PKG + ".extra.EXTRA_RECLAIMED_BYTES";
+
+    /**
+     * The key for the result of the integrity check (boolean)
+     */
+    public static final String EXTRA_INTEGRITY_OK = Conf.PKG + ".extra.EXTRA_INTEGRITY_OK";
+
+    /**
+     * The last segment of the Uri for the export of a session
+     */
+    public static final String EXPORT_PATH = "export";
+
+    /**
+     * The query parameter for the format of the export
+     */
+    public static final String FORMAT_PARAM = "format";
+
+    /**
+     * The Json format for the export
+     */
+    public static final String JSON_FORMAT = "json";
+
+    /**
+     * The MimeType of the Json export
+     */
+    public static final String JSON_MIME_TYPE = "application/json";
+
+    /**
+     * The format of the compact binary export of a session
+     */
+    public static final String BINARY_FORMAT = "binary";
+
+    /**
+     * The MimeType of the binary export of a session
+     */
+    public static final String BINARY_MIME_TYPE = "application/vnd.friendfence.session";
+
+    /**
+     * The name of the parameter that asks for the binary export compressed with DEFLATE
+     */
+    public static final String DEFLATE_PARAM = "deflate";
+
+    /**
+     * The GPX 1.1 format for the export of a session
+     */
+    public static final String GPX_FORMAT = "gpx";
+
+    /**
+     * The MimeType of the GPX export
+     */
+    public static final String GPX_MIME_TYPE = "application/gpx+xml";
+
+    /**
+     * The KML format for the export of a session
+     */
+    public static final String KML_FORMAT = "kml";
+
+    /**
+     * The MimeType of the KML export
+     */
+    public static final String KML_MIME_TYPE = "application/vnd.google-earth.kml+xml";
+
+    /**
+     * The last segment of the Uri for the items into a bounding box
+     */
+    public static final String BOUNDING_BOX_PATH = "bbox";
+
+    /**
+     * The query parameter for the min latitude of the bounding box
+     */
+    public static final String MIN_LATITUDE_PARAM = "minLat";
+
+    /**
+     * The query parameter for the max latitude of the bounding box
+     */
+    public static final String MAX_LATITUDE_PARAM = "maxLat";
+
+    /**
+     * The query parameter for the min longitude of the bounding box
+     */
+    public static final String MIN_LONGITUDE_PARAM = "minLon";
+
+    /**
+     * The query parameter for the max longitude of the bounding box
+     */
+    public static final String MAX_LONGITUDE_PARAM = "maxLon";
+
     /**
      * The string for the mime types specific of our application
      */
@@ -49,6 +220,27 @@ public final class FenceDB {
         throw new AssertionError("You should never instantiate this class!!");
     }
 
+    /**
+     * Creates the Uri for the items into the given bounding box. A min longitude bigger than the
+     * max one is for a box that crosses the 180th meridian
+     *
+     * @param baseUri      The Uri of the items
+     * @param minLatitude  The min latitude
+     * @param minLongitude The min longitude
+     * @param maxLatitude  The max latitude
+     * @param maxLongitude The max longitude
+     * @return The Uri for the items into the bounding box
+     */
+    private static Uri getBoundingBoxUri(final Uri baseUri, final double minLatitude, final double minLongitude,
+                                         final double maxLatitude, final double maxLongitude) {
+        return baseUri.buildUpon().appendPath(BOUNDING_BOX_PATH)
+                .appendQueryParameter(MIN_LATITUDE_PARAM, String.valueOf(minLatitude))
+                .appendQueryParameter(MAX_LATITUDE_PARAM, String.valueOf(maxLatitude))
+                .appendQueryParameter(MIN_LONGITUDE_PARAM, String.valueOf(minLongitude))
+                .appendQueryParameter(MAX_LONGITUDE_PARAM, String.valueOf(maxLongitude))
+                .build();
+    }
+
     /**
      * This describes the entity we use for every session that is the trace between a start
      * and a stop
@@ -102,7 +294,8 @@ public final class FenceDB {
         public static final String TOTAL_DISTANCE = "totalDistance";
 
         /**
-         * This is the utility method that creates a new FenceSession
+         * This is the utility method that creates a new FenceSession. It accesses the DB so it
+         * must not be called into the UI Thread. Use the FenceRepository there
          *
          * @param context The Context
          * @return The Uri of the new FenceSession
@@ -121,12 +314,14 @@ public final class FenceDB {
         }
 
         /**
-         * This is the utility method that set a session as closed updating the closing date
+         * This is the utility method that set a session as closed updating the closing date. It
+         * accesses the DB so it must not be called into the UI Thread. Use the FenceRepository there
          *
          * @param context   The Context
          * @param sessionId The id of the session to close
+         * @return The number of updated sessions
          */
-        public static void setSessionAsClosed(final Context context, final long sessionId) {
+        public static int setSessionAsClosed(final Context context, final long sessionId) {
             final ContentValues values = new ContentValues();
             // We insert the data for the startDate
             final Date now = new Date();
@@ -134,14 +329,37 @@ public final class FenceDB {
             // We insert the data
             final Uri sessionUri = Uri.withAppendedPath(CONTENT_URI, String.valueOf(sessionId));
             // We update the session
-            AsyncQueryHandler asyncQueryHandler = new AsyncQueryHandler(context.getContentResolver()) {
-                @Override
-                protected void onUpdateComplete(int token, Object cookie, int result) {
-                    super.onUpdateComplete(token, cookie, result);
-                    // Nothing to do
-                }
-            };
-            asyncQueryHandler.startUpdate(0, null, sessionUri, values, null, null);
+            return context.getContentResolver().update(sessionUri, values, null, null);
+        }
+
+        /**
+         * The Uri to read the whole session as a stream in the given format. It's of the type
+         * AUTHORITY/session/<sessionId>/export?format=<format>
+         *
+         * @param sessionId The id of the session
+         * @param format    The format of the export
+         * @return The Uri to use with ContentResolver.openInputStream()
+         */
+        public static Uri getExportUri(final long sessionId, final String format) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(sessionId))
+                    .appendPath(EXPORT_PATH)
+                    .appendQueryParameter(FORMAT_PARAM, format)
+                    .build();
+        }
+
+        /**
+         * The Uri to read the whole session as a stream in the binary format. It's of the type
+         * AUTHORITY/session/<sessionId>/export?format=binary&deflate=<deflate>
+         *
+         * @param sessionId The id of the session
+         * @param deflate   True if the content has to be compressed
+         * @return The Uri to use with ContentResolver.openInputStream()
+         */
+        public static Uri getBinaryExportUri(final long sessionId, final boolean deflate) {
+            return getExportUri(sessionId, BINARY_FORMAT).buildUpon()
+                    .appendQueryParameter(DEFLATE_PARAM, String.valueOf(deflate))
+                    .build();
         }
 
         /**
@@ -173,6 +391,17 @@ public final class FenceDB {
          */
         public static final String PATH = "position";
 
+        /**
+         * The name of the R*Tree table with the coordinates of the positions
+         */
+        public static final String SPATIAL_INDEX_TABLE_NAME = "FencePositionRTree";
+
+        /**
+         * The Uri for the positions of all the sessions. It's used only for the bounding box
+         */
+        public static final Uri CONTENT_URI = Uri.parse(ContentResolver.SCHEME_CONTENT + "://"
+                + AUTHORITY + "/" + PATH);
+
         /**
          * The MimeType for the single Item.
          */
@@ -194,14 +423,16 @@ public final class FenceDB {
         public static final String POSITION_TIME = "position_time";
 
         /**
-         * The latitude (real)
+         * The latitude in degrees multiplied by 10^7 (integer). Use CoordinateUtil for the
+         * conversion
          */
-        public static final String LATITUDE = "latitude";
+        public static final String LATITUDE_E7 = "latitude_e7";
 
         /**
-         * The longitude (real)
+         * The longitude in degrees multiplied by 10^7 (integer). Use CoordinateUtil for the
+         * conversion
          */
-        public static final String LONGITUDE = "longitude";
+        public static final String LONGITUDE_E7 = "longitude_e7";
 
         /**
          * The altitude (real)
@@ -218,6 +449,18 @@ public final class FenceDB {
          */
         public static final String ACTIVITY = "activity";
 
+        /**
+         * Return the Uri the ContentProvider notifies when the positions of the given session
+         * change. It's not into the tree of the sessions so the observers of the sessions are not
+         * notified for every position. Observe CONTENT_URI for the changes of all the sessions
+         *
+         * @param sessionId The id of the session to consider
+         * @return The Uri to observe for the positions of the session
+         */
+        public static Uri getChangeUri(final long sessionId) {
+            return Uri.withAppendedPath(CONTENT_URI, String.valueOf(sessionId));
+        }
+
         /**
          * This is the static Factory Method for the Uri related to all the position of a given session
          *
@@ -231,13 +474,128 @@ public final class FenceDB {
         }
 
         /**
-         * This is the static Factory Method for the Uri related to all the position of a given session
+         * The query parameter of the bulkInsert with the total distance of the session after the
+         * inserted positions. The session is updated into the same transaction of the positions
+         */
+        public static final String TOTAL_DISTANCE_PARAM = "total_distance";
+
+        /**
+         * This is the static Factory Method for the Uri we use for the bulkInsert of the positions
+         * of a session together with its new total distance
+         *
+         * @param sessionId     The id of the session to consider
+         * @param totalDistance The total distance of the session after the positions
+         * @return The Uri for the bulkInsert of the positions
+         */
+        public static Uri getPositionUriForSession(final long sessionId, final float totalDistance) {
+            return getPositionUriForSession(sessionId).buildUpon()
+                    .appendQueryParameter(TOTAL_DISTANCE_PARAM, String.valueOf(totalDistance))
+                    .build();
+        }
+
+        /**
+         * The query parameter for the max number of positions to return
+         */
+        public static final String LIMIT_PARAM = "limit";
+
+        /**
+         * The query parameter to get only the positions after the given time. They are returned
+         * in ascending order of time if not specified
+         */
+        public static final String AFTER_TIME_PARAM = "after_time";
+
+        /**
+         * The query parameter to get only the positions before the given time. They are returned
+         * in descending order of time if not specified
+         */
+        public static final String BEFORE_TIME_PARAM = "before_time";
+
+        /**
+         * The query parameter with the id of the position at after_time. The positions with the
+         * same time are returned only if their id is greater than this
+         */
+        public static final String AFTER_ID_PARAM = "after_id";
+
+        /**
+         * The query parameter with the id of the position at before_time. The positions with the
+         * same time are returned only if their id is less than this
+         */
+        public static final String BEFORE_ID_PARAM = "before_id";
+
+        /**
+         * This is the static Factory Method for the Uri of a page of the positions of a given
+         * session. The next page can be requested using the time and the id of the last position
+         * of this one. The positions are ordered by time and then by id so the positions with the
+         * same time of the last one are not skipped
+         *
+         * @param sessionId  The id of the session to consider
+         * @param afterTime  Only positions after this time if not null
+         * @param afterId    The id of the position at afterTime or null
+         * @param beforeTime Only positions before this time if not null
+         * @param beforeId   The id of the position at beforeTime or null
+         * @param limit      The max number of positions
+         * @return The Uri for the page of positions
+         */
+        public static Uri getPositionPageUri(final long sessionId, final Long afterTime, final Long afterId,
+                                             final Long beforeTime, final Long beforeId, final int limit) {
+            final Uri.Builder builder = getPositionUriForSession(sessionId).buildUpon();
+            if (afterTime != null) {
+                builder.appendQueryParameter(AFTER_TIME_PARAM, String.valueOf(afterTime));
+                if (afterId != null) {
+                    builder.appendQueryParameter(AFTER_ID_PARAM, String.valueOf(afterId));
+                }
+            }
+            if (beforeTime != null) {
+                builder.appendQueryParameter(BEFORE_TIME_PARAM, String.valueOf(beforeTime));
+                if (beforeId != null) {
+                    builder.appendQueryParameter(BEFORE_ID_PARAM, String.valueOf(beforeId));
+                }
+            }
+            builder.appendQueryParameter(LIMIT_PARAM, String.valueOf(limit));
+            return builder.build();
+        }
+
+        /**
+         * This is the static Factory Method for the Uri of the positions of all the sessions
+         * into the given bounding box
+         *
+         * @param minLatitude  The min latitude
+         * @param minLongitude The min longitude
+         * @param maxLatitude  The max latitude
+         * @param maxLongitude The max longitude
+         * @return The Uri for the positions into the bounding box
+         */
+        public static Uri getBoundingBoxUri(final double minLatitude, final double minLongitude,
+                                            final double maxLatitude, final double maxLongitude) {
+            return FenceDB.getBoundingBoxUri(CONTENT_URI, minLatitude, minLongitude, maxLatitude, maxLongitude);
+        }
+
+        /**
+         * This is the static Factory Method for the Uri of the positions of a given session
+         * into the given bounding box
+         *
+         * @param sessionId    The id of the session to consider
+         * @param minLatitude  The min latitude
+         * @param minLongitude The min longitude
+         * @param maxLatitude  The max latitude
+         * @param maxLongitude The max longitude
+         * @return The Uri for the positions of the session into the bounding box
+         */
+        public static Uri getBoundingBoxUriForSession(final long sessionId, final double minLatitude,
+                                                      final double minLongitude, final double maxLatitude,
+                                                      final double maxLongitude) {
+            return FenceDB.getBoundingBoxUri(getPositionUriForSession(sessionId), minLatitude, minLongitude,
+                    maxLatitude, maxLongitude);
+        }
+
+        /**
+         * This is the static Factory Method for the Uri related to a position of a given session
          *
          * @param sessionId  The id of the session to consider
          * @param positionId The id of the given position
-         * @return The Uri of all the
+         * @return The Uri of the position
          */
-        public static Uri getPositionUri(final long sessionId, final int positionId) {
+        public static Uri getPositionUri(final long sessionId, final long positionId) {
             final String uriPath = new StringBuilder().append(sessionId).append("/")
                     .append(FencePosition.PATH).append("/")
                     .append(positionId).toString();
@@ -247,6 +605,181 @@ public final class FenceDB {
     }
 
 
+    /**
+     * This describes the summary of a session. It's updated every time positions are added so
+     * we don't need to read all the positions of the session. It's read only
+     */
+    public static class FenceSessionSummary {
+
+        /**
+         * This is the name of the Table we use for this entity
+         */
+        public static final String TABLE_NAME = "FenceSessionSummary";
+
+        /**
+         * The Path we'll use to get the summary of a given session
+         */
+        public static final String PATH = "summary";
+
+        /**
+         * The MimeType for the single Item.
+         */
+        public static final String CURSOR_ITEM_MIME_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + MIME_PART + PATH;
+
+        /**
+         * The reference to the session (numeric)
+         */
+        public static final String SESSION_ID = "session_id";
+
+        /**
+         * The number of positions (integer)
+         */
+        public static final String POSITION_COUNT = "position_count";
+
+        /**
+         * The time of the first position (timestamp)
+         */
+        public static final String FIRST_POSITION_TIME = "first_position_time";
+
+        /**
+         * The time of the last position (timestamp)
+         */
+        public static final String LAST_POSITION_TIME = "last_position_time";
+
+        /**
+         * The distance of the last position (real)
+         */
+        public static final String LAST_DISTANCE = "last_distance";
+
+        /**
+         * The min latitude of the positions (real)
+         */
+        public static final String MIN_LATITUDE = "min_latitude";
+
+        /**
+         * The max latitude of the positions (real)
+         */
+        public static final String MAX_LATITUDE = "max_latitude";
+
+        /**
+         * The min longitude of the positions (real)
+         */
+        public static final String MIN_LONGITUDE = "min_longitude";
+
+        /**
+         * The max longitude of the positions (real)
+         */
+        public static final String MAX_LONGITUDE = "max_longitude";
+
+        /**
+         * The max speed between two positions in meters per second (real)
+         */
+        public static final String MAX_SPEED = "max_speed";
+
+        /**
+         * This is the static Factory Method for the Uri of the summary of a given session
+         *
+         * @param sessionId The id of the session to consider
+         * @return The Uri of the summary
+         */
+        public static Uri getSummaryUri(final long sessionId) {
+            final String uriPath = new StringBuilder().append(sessionId).append("/")
+                    .append(FenceSessionSummary.PATH).toString();
+            return Uri.withAppendedPath(FenceSession.CONTENT_URI, uriPath);
+        }
+
+    }
+
+    /**
+     * This describes the distance and the duration of a session for every type of activity.
+     * It's updated together with the FenceSessionSummary and it's read only
+     */
+    public static class FenceActivitySummary {
+
+        /**
+         * This is the name of the Table we use for this entity
+         */
+        public static final String TABLE_NAME = "FenceActivitySummary";
+
+        /**
+         * The Path we'll use to get the activities of a given session
+         */
+        public static final String PATH = "activity";
+
+        /**
+         * The MimeType for the list of Items.
+         */
+        public static final String CURSOR_DIR_MIME_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + MIME_PART + PATH;
+
+        /**
+         * The reference to the session (numeric)
+         */
+        public static final String SESSION_ID = "session_id";
+
+        /**
+         * The type of DetectedActivity (integer)
+         */
+        public static final String ACTIVITY = "activity";
+
+        /**
+         * The distance in meters with this activity (real)
+         */
+        public static final String DISTANCE = "activity_distance";
+
+        /**
+         * The duration in milliseconds with this activity (integer)
+         */
+        public static final String DURATION = "activity_duration";
+
+        /**
+         * This is the static Factory Method for the Uri of the activities of a given session
+         *
+         * @param sessionId The id of the session to consider
+         * @return The Uri of the activities
+         */
+        public static Uri getActivitySummaryUri(final long sessionId) {
+            final String uriPath = new StringBuilder().append(sessionId).append("/")
+                    .append(FenceSessionSummary.PATH).append("/")
+                    .append(FenceActivitySummary.PATH).toString();
+            return Uri.withAppendedPath(FenceSession.CONTENT_URI, uriPath);
+        }
+
+    }
+
+    /**
+     * This describes the compact archive of the positions of a closed session. The positions
+     * are encoded into a single blob and they're still read using the Uri of the positions of
+     * the session. It's not accessible with a Uri of its own
+     */
+    public static class FenceTrackArchive {
+
+        /**
+         * This is the name of the Table we use for this entity
+         */
+        public static final String TABLE_NAME = "FenceTrackArchive";
+
+        /**
+         * The reference to the session (numeric)
+         */
+        public static final String SESSION_ID = "session_id";
+
+        /**
+         * The number of archived positions (integer)
+         */
+        public static final String POSITION_COUNT = "position_count";
+
+        /**
+         * The encoded positions (blob)
+         */
+        public static final String TRACK = "track";
+
+        /**
+         * The name of the R*Tree table with the bounding box of every archived session
+         */
+        public static final String SPATIAL_INDEX_TABLE_NAME = "FenceTrackArchiveRTree";
+
+    }
+
     /**
      * This describes the entity for the Geofence
      */
@@ -262,6 +795,11 @@ public final class FenceDB {
          */
         public static final String PATH = "geofence";
 
+        /**
+         * The name of the R*Tree table with the coordinates of the Geofences
+         */
+        public static final String SPATIAL_INDEX_TABLE_NAME = "GeofenceRTree";
+
         /**
          * The Uri for the Content in Content Provider.
          */
@@ -284,14 +822,16 @@ public final class FenceDB {
         public static final String FENCE_ID = "fence_id";
 
         /**
-         * The latitude (real)
+         * The latitude in degrees multiplied by 10^7 (integer). Use CoordinateUtil for the
+         * conversion
          */
-        public static final String LATITUDE = "latitude";
+        public static final String LATITUDE_E7 = "latitude_e7";
 
         /**
-         * The longitude (real)
+         * The longitude in degrees multiplied by 10^7 (integer). Use CoordinateUtil for the
+         * conversion
          */
-        public static final String LONGITUDE = "longitude";
+        public static final String LONGITUDE_E7 = "longitude_e7";
 
         /**
          * The radius (real)
@@ -309,7 +849,23 @@ public final class FenceDB {
         public static final String TRANSITION_TYPE = "transition_type";
 
         /**
-         * This is an utility method that saves the content of a Geofence
+         * This is the static Factory Method for the Uri of the Geofences whose center is into
+         * the given bounding box
+         *
+         * @param minLatitude  The min latitude
+         * @param minLongitude The min longitude
+         * @param maxLatitude  The max latitude
+         * @param maxLongitude The max longitude
+         * @return The Uri for the Geofences into the bounding box
+         */
+        public static Uri getBoundingBoxUri(final double minLatitude, final double minLongitude,
+                                            final double maxLatitude, final double maxLongitude) {
+            return FenceDB.getBoundingBoxUri(CONTENT_URI, minLatitude, minLongitude, maxLatitude, maxLongitude);
+        }
+
+        /**
+         * This is an utility method that saves the content of a Geofence. It accesses the DB so
+         * it must not be called into the UI Thread. Use the FenceRepository there
          *
          * @param context      The Context
          * @param geofenceData The data of the Geofence to save into the ContentProvider
@@ -320,8 +876,8 @@ public final class FenceDB {
             final ContentValues values = new ContentValues();
             values.put(Geofence.FENCE_ID, geofenceData.getRequestId());
             values.put(Geofence.DURATION, geofenceData.getDuration());
-            values.put(Geofence.LATITUDE, geofenceData.getLatitude());
-            values.put(Geofence.LONGITUDE, geofenceData.getLongitude());
+            values.put(Geofence.LATITUDE_E7, CoordinateUtil.toE7(geofenceData.getLatitude()));
+            values.put(Geofence.LONGITUDE_E7, CoordinateUtil.toE7(geofenceData.getLongitude()));
             values.put(Geofence.RADIUS, geofenceData.getRadius());
             values.put(Geofence.TRANSITION_TYPE, geofenceData.getTransitionType());
             // We save into the DB
@@ -331,4 +887,80 @@ public final class FenceDB {
 
     }
 
+    /**
+     * This describes the latency statistics of the ContentProvider. There's a row for every
+     * type of Uri and operation executed since the ContentProvider was created. Times are in
+     * microseconds and it's read only
+     */
+    public static class FenceStats {
+
+        /**
+         * The Path we'll use to read the statistics
+         */
+        public static final String PATH = "stats";
+
+        /**
+         * The Uri for the Content in Content Provider.
+         */
+        public static final Uri CONTENT_URI = Uri.parse(ContentResolver.SCHEME_CONTENT + "://"
+                + AUTHORITY + "/" + PATH);
+
+        /**
+         * The MimeType for the list of Items.
+         */
+        public static final String CURSOR_DIR_MIME_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + MIME_PART + PATH;
+
+        /**
+         * The type of the Uri (text)
+         */
+        public static final String URI_TYPE = "uri_type";
+
+        /**
+         * The operation (text)
+         */
+        public static final String OPERATION = "operation";
+
+        /**
+         * The number of executed operations (integer)
+         */
+        public static final String COUNT = "count";
+
+        /**
+         * The median of the latency (integer)
+         */
+        public static final String P50 = "p50_us";
+
+        /**
+         * The 90th percentile of the latency (integer)
+         */
+        public static final String P90 = "p90_us";
+
+        /**
+         * The 99th percentile of the latency (integer)
+         */
+        public static final String P99 = "p99_us";
+
+        /**
+         * The max latency (integer)
+         */
+        public static final String MAX = "max_us";
+
+        /**
+         * The mean latency (integer)
+         */
+        public static final String MEAN = "mean_us";
+
+        /**
+         * The number of operations per second since the ContentProvider was created (real)
+         */
+        public static final String THROUGHPUT = "ops_per_second";
+
+        /**
+         * All the columns in the order of the Cursor
+         */
+        public static final String[] ALL_COLUMNS = {URI_TYPE, OPERATION, COUNT, P50, P90, P99, MAX, MEAN,
+                THROUGHPUT};
+
+    }
+
 }
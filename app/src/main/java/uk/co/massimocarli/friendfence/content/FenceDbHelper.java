@@ -1,10 +1,20 @@
 package uk.co.massimocarli.friendfence.content;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.Locale;
+
 import uk.co.massimocarli.friendfence.R;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
 import uk.co.massimocarli.friendfence.util.ResourceUtils;
@@ -25,6 +35,29 @@ public class FenceDbHelper extends SQLiteOpenHelper {
      */
     private final Context mContext;
 
+    /**
+     * The first version we're able to migrate without losing data. Older versions are
+     * dropped and created again
+     */
+    private static final int FIRST_MIGRATABLE_VERSION = 2;
+
+    /**
+     * The number of pages in the WAL file that triggers an automatic checkpoint. This is bigger
+     * than the SQLite default because we checkpoint explicitly when the tracking is idle and we
+     * don't want a checkpoint in the middle of a tracking session
+     */
+    private static final int WAL_AUTO_CHECKPOINT_PAGES = 4000;
+
+    /**
+     * The value of the auto_vacuum PRAGMA for the incremental vacuum
+     */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2L;
+
+    /**
+     * The result of the integrity check when there are no problems
+     */
+    private static final String INTEGRITY_OK = "ok";
+
     /**
      * Create a SQLiteOpenHelper for the FenceDB to manage its lifecycle
      *
@@ -33,6 +66,163 @@ public class FenceDbHelper extends SQLiteOpenHelper {
     public FenceDbHelper(Context context) {
         super(context, FenceDB.DB_NAME, new FenceCursorFactory(), FenceDB.DB_VERSION);
         this.mContext = context;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // With WAL the readers don't wait for the LocationService writes
+            enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Enables WAL from JELLY_BEAN. For previous versions we do this into onOpen()
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * @return True if the db uses WAL. Before HONEYCOMB WAL is not available so we use the
+     * default rollback journal
+     */
+    public static boolean isWriteAheadLoggingSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Moves the content of the WAL file into the database without blocking readers and
+     * writers. We invoke this when the tracking is idle.
+     */
+    public void checkpoint() {
+        if (isWriteAheadLoggingSupported()) {
+            runPragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE);");
+        }
+    }
+
+    /**
+     * Executes the maintenance of the DB. We move the WAL into the DB, give the free pages back
+     * to the file system, refresh the statistics for the query planner and check the integrity.
+     * The DB uses the incremental auto vacuum so the first time we need a full VACUUM to enable
+     * it. This must not be called into a transaction and it takes time so we use it only when
+     * the device is charging and the tracking is idle.
+     *
+     * @return The Bundle with the duration of every step and the reclaimed bytes
+     */
+    public Bundle runMaintenance() {
+        final SQLiteDatabase db = getWritableDatabase();
+        final Bundle report = new Bundle();
+        // The checkpoint
+        long start = SystemClock.elapsedRealtime();
+        checkpoint();
+        report.putLong(FenceDB.EXTRA_CHECKPOINT_TIME, SystemClock.elapsedRealtime() - start);
+        // The vacuum
+        start = SystemClock.elapsedRealtime();
+        final long pageSize = pragmaLong(db, "PRAGMA page_size;");
+        final long initialPageCount = pragmaLong(db, "PRAGMA page_count;");
+        if (pragmaLong(db, "PRAGMA auto_vacuum;") != AUTO_VACUUM_INCREMENTAL) {
+            // The mode is applied to an existing DB only with a VACUUM
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+            db.execSQL("VACUUM;");
+        } else {
+            runPragma(db, "PRAGMA incremental_vacuum;");
+        }
+        final long reclaimedPages = initialPageCount - pragmaLong(db, "PRAGMA page_count;");
+        report.putLong(FenceDB.EXTRA_VACUUM_TIME, SystemClock.elapsedRealtime() - start);
+        report.putLong(FenceDB.EXTRA_RECLAIMED_BYTES, Math.max(0L, reclaimedPages) * pageSize);
+        // The statistics for the query planner
+        start = SystemClock.elapsedRealtime();
+        db.execSQL("ANALYZE;");
+        report.putLong(FenceDB.EXTRA_ANALYZE_TIME, SystemClock.elapsedRealtime() - start);
+        // The integrity check
+        start = SystemClock.elapsedRealtime();
+        final boolean integrityOk = isIntegrityOk(db);
+        report.putLong(FenceDB.EXTRA_INTEGRITY_CHECK_TIME, SystemClock.elapsedRealtime() - start);
+        report.putBoolean(FenceDB.EXTRA_INTEGRITY_OK, integrityOk);
+        return report;
+    }
+
+    /**
+     * @param db The SQLiteDatabase to check
+     * @return True if the integrity check found no problems
+     */
+    private static boolean isIntegrityOk(final SQLiteDatabase db) {
+        final Cursor cursor = db.rawQuery("PRAGMA integrity_check;", null);
+        try {
+            boolean integrityOk = true;
+            while (cursor.moveToNext()) {
+                final String result = cursor.getString(0);
+                if (!INTEGRITY_OK.equals(result)) {
+                    Log.e(TAG_LOG, "Integrity check of " + FenceDB.DB_NAME + ": " + result);
+                    integrityOk = false;
+                }
+            }
+            return integrityOk;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Executes a PRAGMA that returns a number
+     *
+     * @param db     The SQLiteDatabase to use
+     * @param pragma The PRAGMA to execute
+     * @return The result of the PRAGMA or 0 if none
+     */
+    static long pragmaLong(final SQLiteDatabase db, final String pragma) {
+        final Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Executes a PRAGMA that returns a result. We cannot use execSQL() for these
+     *
+     * @param db     The SQLiteDatabase to use
+     * @param pragma The PRAGMA to execute
+     */
+    static void runPragma(final SQLiteDatabase db, final String pragma) {
+        final Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(final SQLiteDatabase db) {
+        super.onConfigure(db);
+        // We need foreign keys for the cascade delete of the positions
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            // Before JELLY_BEAN onConfigure() is not invoked so we enable foreign keys here
+            db.execSQL("PRAGMA foreign_keys=ON;");
+        }
+        if (isWriteAheadLoggingSupported() && !db.isReadOnly()) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                enableWriteAheadLogging(db);
+            }
+            runPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTO_CHECKPOINT_PAGES + ";");
+        }
+    }
+
+    /**
+     * Enables WAL for HONEYCOMB and ICE_CREAM_SANDWICH
+     *
+     * @param db The SQLiteDatabase to use
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(final SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
     }
 
     @Override
@@ -46,6 +236,16 @@ public class FenceDbHelper extends SQLiteOpenHelper {
             db.execSQL(createPositionSql);
             final String createGeofenceSql = ResourceUtils.getRawAsString(mContext, R.raw.create_geofence_table);
             db.execSQL(createGeofenceSql);
+            // We create the indexes
+            final String createPositionIndexSql = ResourceUtils.getRawAsString(mContext, R.raw.create_position_index);
+            db.execSQL(createPositionIndexSql);
+            // We create the tables for the summaries
+            execSqlScript(db, R.raw.create_session_summary_table);
+            // We create the spatial index
+            createSpatialIndex(db);
+            // We create the table for the archived sessions with its spatial index
+            execSqlScript(db, R.raw.create_track_archive_table);
+            createTrackArchiveIndex(db);
             db.setTransactionSuccessful();
             Log.i(TAG_LOG, FenceDB.DB_NAME + " Successfully created for version " + FenceDB.DB_VERSION);
         } catch (Exception e) {
@@ -57,9 +257,189 @@ public class FenceDbHelper extends SQLiteOpenHelper {
 
     @Override
     public final void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+            // Versions before the first migratable one don't have a stable schema so we
+            // can only drop everything and start from scratch
+            dropAndCreate(db);
+            return;
+        }
+        try {
+            db.beginTransaction();
+            // We apply every migration step from the current version to the new one so that
+            // no recorded session is lost
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                upgradeTo(db, version);
+                Log.i(TAG_LOG, FenceDB.DB_NAME + " Successfully migrated to version " + version);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // The transaction is rolled back so the DB stays at the old version. We rethrow the
+            // error because the provider cannot work with the old schema
+            Log.e(TAG_LOG, "Error upgrading DB " + FenceDB.DB_NAME + " from version " + oldVersion, e);
+            throw new IllegalStateException("Error upgrading DB " + FenceDB.DB_NAME + " from version "
+                    + oldVersion, e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * This is the single step of the migration chain that brings the schema from
+     * version - 1 to the given version. Every step must only add to the schema.
+     *
+     * @param db      The SQLiteDatabase to migrate
+     * @param version The version to migrate to
+     * @throws IOException In case of error reading the SQL resources
+     */
+    private void upgradeTo(final SQLiteDatabase db, final int version) throws IOException {
+        switch (version) {
+            case 3: {
+                // We add the index on the positions for a given session
+                final String createPositionIndexSql = ResourceUtils.getRawAsString(mContext, R.raw.create_position_index);
+                db.execSQL(createPositionIndexSql);
+                break;
+            }
+            case 4: {
+                // We rebuild the FencePosition table with the foreign key to the FenceSession.
+                // Positions without a session are dropped
+                execSqlScript(db, R.raw.migrate_position_foreign_key);
+                break;
+            }
+            case 5: {
+                // We add the tables for the summaries of the sessions. They are calculated for
+                // the existing sessions by step 7 because the SessionSummary reads the E7
+                // coordinates that don't exist yet
+                execSqlScript(db, R.raw.create_session_summary_table);
+                break;
+            }
+            case 6: {
+                // We add the spatial index for the positions and the geofences. Its triggers
+                // are created by the next step because they use the E7 coordinates
+                createSpatialIndexTables(db);
+                execSqlScript(db, R.raw.populate_spatial_index);
+                break;
+            }
+            case 7: {
+                // We rebuild the FencePosition and Geofence tables with the coordinates in E7.
+                // The triggers of the spatial index are dropped with the old tables
+                execSqlScript(db, R.raw.migrate_coordinates_e7);
+                execSqlScript(db, R.raw.create_spatial_index_triggers);
+                // We calculate the summaries of the existing sessions from the E7 coordinates
+                SessionSummary.rebuildAll(db);
+                break;
+            }
+            case 8: {
+                // We add the table for the archived sessions
+                execSqlScript(db, R.raw.create_track_archive_table);
+                break;
+            }
+            case 9: {
+                // We add the spatial index of the archived sessions. Their bounding boxes are
+                // the ones of their summaries because the positions are not into the table
+                createTrackArchiveIndex(db);
+                break;
+            }
+            default:
+                throw new IllegalStateException("No migration available to version " + version);
+        }
+    }
+
+    /**
+     * Creates the tables for the spatial index of positions and geofences with the triggers that
+     * keep them in sync
+     *
+     * @param db The SQLiteDatabase to use
+     * @throws IOException In case of error reading the SQL resources
+     */
+    private void createSpatialIndex(final SQLiteDatabase db) throws IOException {
+        createSpatialIndexTables(db);
+        execSqlScript(db, R.raw.create_spatial_index_triggers);
+    }
+
+    /**
+     * Creates the tables for the spatial index of positions and geofences
+     *
+     * @param db The SQLiteDatabase to use
+     */
+    private static void createSpatialIndexTables(final SQLiteDatabase db) {
+        createSpatialIndexTable(db, FenceDB.FencePosition.SPATIAL_INDEX_TABLE_NAME);
+        createSpatialIndexTable(db, FenceDB.Geofence.SPATIAL_INDEX_TABLE_NAME);
+    }
+
+    /**
+     * Creates the spatial index with the bounding box of every archived session and the trigger
+     * that removes a session from it when its archive is deleted. The archived sessions are
+     * added to the index from their summaries
+     *
+     * @param db The SQLiteDatabase to use
+     * @throws IOException In case of error reading the SQL resources
+     */
+    private void createTrackArchiveIndex(final SQLiteDatabase db) throws IOException {
+        createSpatialIndexTable(db, FenceDB.FenceTrackArchive.SPATIAL_INDEX_TABLE_NAME);
+        execSqlScript(db, R.raw.create_track_archive_index);
+    }
+
+    /**
+     * Creates the R*Tree table with the given name. Not all the devices have the R*Tree module
+     * into their SQLite so in that case we create a normal table with the same columns and an
+     * index on the latitude. The queries are the same because they only compare the columns.
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param tableName The name of the table
+     */
+    private static void createSpatialIndexTable(final SQLiteDatabase db, final String tableName) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + tableName
+                    + " USING rtree(id, min_latitude, max_latitude, min_longitude, max_longitude);");
+        } catch (SQLiteException e) {
+            Log.w(TAG_LOG, "R*Tree not available for " + tableName + ", we use a normal table", e);
+            db.execSQL("CREATE TABLE " + tableName + " (id INTEGER PRIMARY KEY, min_latitude REAL,"
+                    + " max_latitude REAL, min_longitude REAL, max_longitude REAL);");
+            db.execSQL("CREATE INDEX " + tableName + "_latitude_idx ON " + tableName
+                    + " (min_latitude, min_longitude);");
+        }
+    }
+
+    /**
+     * Execute all the statements into the given raw resource. The statements are separated
+     * by a semicolon. The body of a trigger contains semicolons too so it's executed as a
+     * single statement until its END
+     *
+     * @param db    The SQLiteDatabase to use
+     * @param rawId The id of the raw resource with the statements
+     * @throws IOException In case of error reading the SQL resource
+     */
+    private void execSqlScript(final SQLiteDatabase db, final int rawId) throws IOException {
+        final String script = ResourceUtils.getRawAsString(mContext, rawId);
+        final StringBuilder statement = new StringBuilder();
+        for (String part : script.split(";")) {
+            statement.append(part).append(';');
+            final String sql = statement.toString().trim();
+            final String upperSql = sql.toUpperCase(Locale.US);
+            if (upperSql.startsWith("CREATE TRIGGER") && !upperSql.endsWith("END;")) {
+                // We're into the body of a trigger
+                continue;
+            }
+            statement.setLength(0);
+            if (!TextUtils.isEmpty(sql.substring(0, sql.length() - 1).trim())) {
+                db.execSQL(sql);
+            }
+        }
+    }
+
+    /**
+     * Drop all the tables and create them again. This is used only when no migration
+     * is available for the installed version.
+     *
+     * @param db The SQLiteDatabase to reset
+     */
+    private void dropAndCreate(final SQLiteDatabase db) {
         try {
             db.beginTransaction();
             // We drop the tables
+            execSqlScript(db, R.raw.drop_spatial_index);
+            execSqlScript(db, R.raw.drop_track_archive_table);
+            execSqlScript(db, R.raw.drop_session_summary_table);
             final String dropPositionSql = ResourceUtils.getRawAsString(mContext, R.raw.drop_position_table);
             db.execSQL(dropPositionSql);
             final String dropSessionSql = ResourceUtils.getRawAsString(mContext, R.raw.drop_session_table);
@@ -67,9 +447,9 @@ public class FenceDbHelper extends SQLiteOpenHelper {
             final String dropGeofenceSql = ResourceUtils.getRawAsString(mContext, R.raw.drop_geofence_table);
             db.execSQL(dropGeofenceSql);
             db.setTransactionSuccessful();
-            Log.i(TAG_LOG, FenceDB.DB_NAME + " Successfully created for version " + FenceDB.DB_VERSION);
+            Log.i(TAG_LOG, FenceDB.DB_NAME + " Successfully dropped for version " + FenceDB.DB_VERSION);
         } catch (Exception e) {
-            Log.e(TAG_LOG, "Error creating DB " + FenceDB.DB_NAME, e);
+            Log.e(TAG_LOG, "Error dropping DB " + FenceDB.DB_NAME, e);
         } finally {
             db.endTransaction();
         }
@@ -0,0 +1,272 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.geofence.GeofenceData;
+
+/**
+ * This is the object the UI uses to create and close the sessions and to manage the Geofences
+ * without accessing the DB into the UI Thread. The operations are executed one after the other
+ * into a background Thread and the result is sent to a Callback into the UI Thread. Every
+ * method also returns the Future of the result.
+ */
+public final class FenceRepository {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = FenceRepository.class.getName();
+
+    /**
+     * The name of the Thread of the operations
+     */
+    private static final String THREAD_NAME = "FenceRepository";
+
+    /**
+     * The SingletonInstance
+     */
+    private static FenceRepository sInstance;
+
+    /**
+     * The interface of the object that receives the result of an operation into the UI Thread
+     *
+     * @param <T> The type of the result
+     */
+    public interface Callback<T> {
+
+        /**
+         * Invoked when the operation completes
+         *
+         * @param result The result of the operation
+         */
+        void onResult(T result);
+
+        /**
+         * Invoked when the operation fails
+         *
+         * @param e The error
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * The ApplicationContext
+     */
+    private final Context mContext;
+
+    /**
+     * The Executor of the operations. It's a single Thread so they're executed in order
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME);
+        }
+    });
+
+    /**
+     * The Handler we use to send the results into the UI Thread
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Creates the FenceRepository
+     *
+     * @param context The Context
+     */
+    private FenceRepository(final Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Static Factory method for the FenceRepository
+     *
+     * @param context The Context
+     * @return The FenceRepository Singleton Instance
+     */
+    public synchronized static FenceRepository get(final Context context) {
+        if (sInstance == null) {
+            sInstance = new FenceRepository(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a new session
+     *
+     * @param owner    The owner of the session
+     * @param callback The Callback for the Uri of the new session. It can be null
+     * @return The Future of the Uri of the new session
+     */
+    public Future<Uri> createSession(final String owner, final Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() throws Exception {
+                return FenceDB.FenceSession.createNewSession(mContext, owner);
+            }
+        }, callback);
+    }
+
+    /**
+     * Closes the given session
+     *
+     * @param sessionId The id of the session to close
+     * @param callback  The Callback for the number of closed sessions. It can be null
+     * @return The Future of the number of closed sessions
+     */
+    public Future<Integer> closeSession(final long sessionId, final Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return FenceDB.FenceSession.setSessionAsClosed(mContext, sessionId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Saves a new Geofence
+     *
+     * @param geofenceData The data of the Geofence
+     * @param callback     The Callback for the Uri of the new Geofence. It can be null
+     * @return The Future of the Uri of the new Geofence
+     */
+    public Future<Uri> saveGeofence(final GeofenceData geofenceData, final Callback<Uri> callback) {
+        return submit(new Callable<Uri>() {
+            @Override
+            public Uri call() throws Exception {
+                return FenceDB.Geofence.save(mContext, geofenceData);
+            }
+        }, callback);
+    }
+
+    /**
+     * Reads a Geofence
+     *
+     * @param geofenceId The id of the Geofence
+     * @param callback   The Callback for the data of the Geofence or null if it doesn't exist.
+     *                   It can be null
+     * @return The Future of the data of the Geofence
+     */
+    public Future<GeofenceData> loadGeofence(final long geofenceId, final Callback<GeofenceData> callback) {
+        return submit(new Callable<GeofenceData>() {
+            @Override
+            public GeofenceData call() throws Exception {
+                final Cursor cursor = mContext.getContentResolver()
+                        .query(getGeofenceUri(geofenceId), null, null, null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    final FenceCursorFactory.GeofenceCursorData geofenceCursor =
+                            CursorResolver.CURSOR_RESOLVER.extractGeofenceCursor(cursor);
+                    return geofenceCursor.moveToNext() ? geofenceCursor.getGeofence() : null;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes a Geofence
+     *
+     * @param geofenceId The id of the Geofence
+     * @param callback   The Callback for the number of deleted Geofences. It can be null
+     * @return The Future of the number of deleted Geofences
+     */
+    public Future<Integer> deleteGeofence(final long geofenceId, final Callback<Integer> callback) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return mContext.getContentResolver().delete(getGeofenceUri(geofenceId), null, null);
+            }
+        }, callback);
+    }
+
+    /**
+     * @param geofenceId The id of the Geofence
+     * @return The Uri of the Geofence
+     */
+    private static Uri getGeofenceUri(final long geofenceId) {
+        return Uri.withAppendedPath(FenceDB.Geofence.CONTENT_URI, String.valueOf(geofenceId));
+    }
+
+    /**
+     * Executes the given operation and sends its result to the Callback into the UI Thread
+     *
+     * @param operation The operation
+     * @param callback  The Callback or null
+     * @param <T>       The type of the result
+     * @return The Future of the result
+     */
+    private <T> Future<T> submit(final Callable<T> operation, final Callback<T> callback) {
+        final FutureTask<T> task = new FutureTask<T>(operation) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                T result = null;
+                Exception error = null;
+                try {
+                    result = get();
+                } catch (ExecutionException ee) {
+                    error = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+                } catch (InterruptedException ie) {
+                    error = ie;
+                }
+                if (error != null) {
+                    Log.e(TAG_LOG, "Operation failed", error);
+                }
+                if (callback != null) {
+                    deliver(callback, result, error);
+                }
+            }
+        };
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Sends the result of an operation to the Callback into the UI Thread
+     *
+     * @param callback The Callback
+     * @param result   The result
+     * @param error    The error or null if the operation completed
+     * @param <T>      The type of the result
+     */
+    private <T> void deliver(final Callback<T> callback, final T result, final Exception error) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    callback.onError(error);
+                } else {
+                    callback.onResult(result);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,286 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This is the object that collects the latency of the operations of the FenceContentProvider
+ * for every type of Uri. Every latency is counted into a bucket of a histogram. The buckets are
+ * 4 for every power of 2 so the percentiles have an error of at most 25% and recording a value
+ * is only an increment without locks.
+ */
+final class LatencyStats {
+
+    /**
+     * The query operation
+     */
+    static final int QUERY = 0;
+
+    /**
+     * The insert operation
+     */
+    static final int INSERT = 1;
+
+    /**
+     * The bulkInsert operation
+     */
+    static final int BULK_INSERT = 2;
+
+    /**
+     * The update operation
+     */
+    static final int UPDATE = 3;
+
+    /**
+     * The delete operation
+     */
+    static final int DELETE = 4;
+
+    /**
+     * The applyBatch operation
+     */
+    static final int APPLY_BATCH = 5;
+
+    /**
+     * The names of the operations
+     */
+    private static final String[] OPERATION_NAMES = {"query", "insert", "bulkInsert", "update", "delete",
+            "applyBatch"};
+
+    /**
+     * The number of bits for the buckets into a power of 2
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /**
+     * The number of buckets into a power of 2
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets. The last one is for all the values over about 3 days
+     */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * 37;
+
+    /**
+     * The histogram of the latency of an operation in microseconds
+     */
+    private static final class Histogram {
+
+        /**
+         * The counters of the buckets
+         */
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        /**
+         * The number of values
+         */
+        private final AtomicLong mCount = new AtomicLong();
+
+        /**
+         * The sum of the values
+         */
+        private final AtomicLong mTotal = new AtomicLong();
+
+        /**
+         * The max value
+         */
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @param value The value to add
+         */
+        private void record(final long value) {
+            mBuckets.incrementAndGet(bucketOf(value));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * @param percentile The percentile between 0 and 100
+         * @return The highest value of the bucket of the given percentile
+         */
+        private long getPercentile(final double percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0L;
+            }
+            final long target = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0L;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target) {
+                    // The max is more precise for the last bucket
+                    return Math.min(highestValueOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+
+    /**
+     * The names of the types of Uri
+     */
+    private final String[] mUriTypeNames;
+
+    /**
+     * The histograms for every type of Uri and operation. They're created when used
+     */
+    private final Histogram[][] mHistograms;
+
+    /**
+     * The time these statistics were created
+     */
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * Creates the LatencyStats
+     *
+     * @param uriTypeNames The names of the types of Uri. The index is the value of the UriMatcher
+     */
+    LatencyStats(final String[] uriTypeNames) {
+        mUriTypeNames = uriTypeNames;
+        mHistograms = new Histogram[uriTypeNames.length][OPERATION_NAMES.length];
+    }
+
+    /**
+     * @return The time to use as start of an operation
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the latency of an operation
+     *
+     * @param uriMatch  The type of the Uri. Unknown types are recorded with the index 0
+     * @param operation The operation
+     * @param startTime The time returned by start() at the beginning of the operation
+     */
+    void record(final int uriMatch, final int operation, final long startTime) {
+        final long micros = (System.nanoTime() - startTime) / 1000L;
+        getHistogram(uriMatch >= 0 && uriMatch < mHistograms.length ? uriMatch : 0, operation).record(micros);
+    }
+
+    /**
+     * @param uriIndex  The index of the type of Uri
+     * @param operation The operation
+     * @return The Histogram for the type of Uri and operation
+     */
+    private Histogram getHistogram(final int uriIndex, final int operation) {
+        Histogram histogram = mHistograms[uriIndex][operation];
+        if (histogram == null) {
+            synchronized (mHistograms) {
+                histogram = mHistograms[uriIndex][operation];
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    mHistograms[uriIndex][operation] = histogram;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return The Cursor with a row for every type of Uri and operation with the columns of
+     * FenceDB.FenceStats
+     */
+    Cursor toCursor() {
+        final MatrixCursor cursor = new MatrixCursor(FenceDB.FenceStats.ALL_COLUMNS);
+        final double seconds = getElapsedSeconds();
+        for (int uriIndex = 0; uriIndex < mHistograms.length; uriIndex++) {
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                final Histogram histogram = getUsedHistogram(uriIndex, operation);
+                if (histogram == null) {
+                    continue;
+                }
+                final long count = histogram.mCount.get();
+                cursor.addRow(new Object[]{mUriTypeNames[uriIndex], OPERATION_NAMES[operation], count,
+                        histogram.getPercentile(50), histogram.getPercentile(90), histogram.getPercentile(99),
+                        histogram.mMax.get(), histogram.mTotal.get() / count, count / seconds});
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Write the statistics as a table for dumpsys
+     *
+     * @param writer The PrintWriter to use
+     */
+    void dump(final PrintWriter writer) {
+        writer.println("Latency in microseconds since " + (long) getElapsedSeconds() + " s:");
+        writer.println(String.format("%-20s %-11s %8s %8s %8s %8s %10s %8s %8s", "uri", "operation", "count",
+                "p50", "p90", "p99", "max", "mean", "ops/s"));
+        final Cursor cursor = toCursor();
+        try {
+            while (cursor.moveToNext()) {
+                writer.println(String.format("%-20s %-11s %8d %8d %8d %8d %10d %8d %8.2f", cursor.getString(0),
+                        cursor.getString(1), cursor.getLong(2), cursor.getLong(3), cursor.getLong(4),
+                        cursor.getLong(5), cursor.getLong(6), cursor.getLong(7), cursor.getDouble(8)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param uriIndex  The index of the type of Uri
+     * @param operation The operation
+     * @return The Histogram if it has values or null
+     */
+    private Histogram getUsedHistogram(final int uriIndex, final int operation) {
+        final Histogram histogram;
+        synchronized (mHistograms) {
+            histogram = mHistograms[uriIndex][operation];
+        }
+        return histogram != null && histogram.mCount.get() > 0 ? histogram : null;
+    }
+
+    /**
+     * @return The seconds since these statistics were created
+     */
+    private double getElapsedSeconds() {
+        return Math.max(1L, SystemClock.elapsedRealtime() - mStartTime) / 1000.0;
+    }
+
+    /**
+     * The first SUB_BUCKET_COUNT values have a bucket each. After that every power of 2 is
+     * divided into SUB_BUCKET_COUNT buckets
+     *
+     * @param value The value
+     * @return The index of the bucket of the value
+     */
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0L, value);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        final int bucket = SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @param bucket The index of the bucket
+     * @return The highest value of the bucket
+     */
+    private static long highestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        final int exponent = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        final int subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        final long lowestValue = (long) (SUB_BUCKET_COUNT + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowestValue + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,268 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friendfence.content.cursor.CursorSnapshot;
+
+/**
+ * This is the LRU cache of the results of the queries of the FenceContentProvider. Every result
+ * is a CursorSnapshot for a Uri, projection, selection, arguments and order and it belongs to
+ * a scope which is the data it depends on. The write operations invalidate the scopes they
+ * change. A result is cached only if no write started or ended while it was read so a query
+ * executed during a write cannot put old data into the cache.
+ */
+final class ResultCache {
+
+    /**
+     * The scope for the results on the sessions
+     */
+    static final String SESSION_SCOPE = "session";
+
+    /**
+     * The prefix of the scope for the results on the summaries of a single session
+     */
+    private static final String SESSION_DATA_SCOPE_PREFIX = "session/";
+
+    /**
+     * The max number of values we keep into the cache
+     */
+    private static final int MAX_CACHED_VALUES = 100000;
+
+    /**
+     * The max number of rows of a result we cache. Bigger results are not cached
+     */
+    private static final int MAX_CACHED_ROWS = 2000;
+
+    /**
+     * A cached result with its scope
+     */
+    private static final class Entry {
+
+        /**
+         * The scope of the result
+         */
+        private final String mScope;
+
+        /**
+         * The rows of the result
+         */
+        private final CursorSnapshot mSnapshot;
+
+        private Entry(final String scope, final CursorSnapshot snapshot) {
+            mScope = scope;
+            mSnapshot = snapshot;
+        }
+    }
+
+    /**
+     * The results in access order
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * The number of values into the cache
+     */
+    private int mSize;
+
+    /**
+     * The number of writes in progress
+     */
+    private int mWriteCount;
+
+    /**
+     * The generation which changes at the end of every write
+     */
+    private long mGeneration;
+
+    /**
+     * The number of hits
+     */
+    private final AtomicLong mHitCount = new AtomicLong();
+
+    /**
+     * The number of misses
+     */
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * The number of results removed because the cache was full
+     */
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * @param sessionId The id of the session
+     * @return The scope of the data of the given session
+     */
+    static String getSessionDataScope(final long sessionId) {
+        return SESSION_DATA_SCOPE_PREFIX + sessionId;
+    }
+
+    /**
+     * Create the key for a query
+     *
+     * @param uri           The Uri
+     * @param projection    The projection
+     * @param selection     The selection
+     * @param selectionArgs The arguments of the selection
+     * @param sortOrder     The order
+     * @return The key for the result of the query
+     */
+    static String createKey(final Uri uri, final String[] projection, final String selection,
+                            final String[] selectionArgs, final String sortOrder) {
+        return new StringBuilder().append(uri)
+                .append('|').append(projection == null ? "*" : TextUtils.join(",", projection))
+                .append('|').append(selection)
+                .append('|').append(selectionArgs == null ? "" : TextUtils.join(",", selectionArgs))
+                .append('|').append(sortOrder).toString();
+    }
+
+    /**
+     * Return a new Cursor on the cached result for the given key
+     *
+     * @param key The key of the query
+     * @return The Cursor or null if the result is not into the cache
+     */
+    Cursor get(final String key) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        return entry.mSnapshot.newCursor();
+    }
+
+    /**
+     * @return The generation to use with put() which we read before the query
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Put the result of a query into the cache and return the Cursor to use in place of the
+     * given one. The result is cached only if it's not too big and no write happened since
+     * the given generation
+     *
+     * @param key        The key of the query
+     * @param scope      The scope of the result
+     * @param table      The table of the rows
+     * @param generation The generation before the query
+     * @param cursor     The Cursor with the result
+     * @return The Cursor to return which is the given one if it's not cached
+     */
+    Cursor put(final String key, final String scope, final String table, final long generation,
+               final Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+        final CursorSnapshot snapshot = CursorSnapshot.create(table, cursor);
+        synchronized (this) {
+            if (mWriteCount > 0 || generation != mGeneration) {
+                return cursor;
+            }
+            final Entry oldEntry = mEntries.put(key, new Entry(scope, snapshot));
+            if (oldEntry != null) {
+                mSize -= oldEntry.mSnapshot.getSize();
+            }
+            mSize += snapshot.getSize();
+            // We remove the least recently used results
+            final Iterator<Entry> iterator = mEntries.values().iterator();
+            while (mSize > MAX_CACHED_VALUES && iterator.hasNext()) {
+                mSize -= iterator.next().mSnapshot.getSize();
+                iterator.remove();
+                mEvictionCount.incrementAndGet();
+            }
+        }
+        cursor.close();
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Tells the cache that a write is starting. Every beginWrite() must be followed by an
+     * endWrite() even if the write fails
+     */
+    synchronized void beginWrite() {
+        mWriteCount++;
+    }
+
+    /**
+     * Tells the cache that a write has ended
+     */
+    synchronized void endWrite() {
+        mWriteCount--;
+        mGeneration++;
+    }
+
+    /**
+     * Remove the results of the given scopes
+     *
+     * @param scopes The scopes to invalidate
+     */
+    synchronized void invalidate(final String... scopes) {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            for (String scope : scopes) {
+                if (scope.equals(entry.mScope)) {
+                    mSize -= entry.mSnapshot.getSize();
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the results on the data of all the sessions
+     */
+    synchronized void invalidateAllSessionData() {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.mScope.startsWith(SESSION_DATA_SCOPE_PREFIX)) {
+                mSize -= entry.mSnapshot.getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of hits
+     */
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return The number of misses
+     */
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return The number of evictions
+     */
+    long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return The hit rate between 0 and 1
+     */
+    float getHitRate() {
+        final long hitCount = mHitCount.get();
+        final long total = hitCount + mMissCount.get();
+        return total > 0 ? (float) hitCount / total : 0.0f;
+    }
+}
@@ -0,0 +1,357 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+
+/**
+ * This describes the binary format of an exported session. After the magic bytes, the version
+ * and the flags there are the values of the session and then the positions in blocks of at most
+ * BLOCK_SIZE positions. Every block has the number of its positions and then the values of
+ * every column one after the other. Every value is the difference from the one of the previous
+ * position, zigzag encoded, as a varint, like into the TrackArchive. A block with no positions
+ * ends the stream. Everything after the flags can be compressed with DEFLATE. The session is
+ * written and read one block at a time so the memory doesn't depend on the number of positions.
+ */
+public final class SessionBinary {
+
+    /**
+     * The first bytes of the binary format
+     */
+    private static final byte[] MAGIC = {'F', 'F', 'S', 'B'};
+
+    /**
+     * The version of the format
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The flag for the content compressed with DEFLATE
+     */
+    private static final int FLAG_DEFLATE = 1;
+
+    /**
+     * The max number of positions of a block. It's also the number of positions we insert with
+     * a single bulkInsert during an import
+     */
+    private static final int BLOCK_SIZE = 500;
+
+    /**
+     * The number of columns of a position
+     */
+    private static final int COLUMN_COUNT = 6;
+
+    /**
+     * The index of the time into the columns of a block
+     */
+    private static final int TIME_COLUMN = 0;
+
+    /**
+     * The index of the latitude in E7 into the columns of a block
+     */
+    private static final int LATITUDE_COLUMN = 1;
+
+    /**
+     * The index of the longitude in E7 into the columns of a block
+     */
+    private static final int LONGITUDE_COLUMN = 2;
+
+    /**
+     * The index of the altitude in decimeters into the columns of a block
+     */
+    private static final int ALTITUDE_COLUMN = 3;
+
+    /**
+     * The index of the distance in centimeters into the columns of a block
+     */
+    private static final int DISTANCE_COLUMN = 4;
+
+    /**
+     * The index of the activity into the columns of a block
+     */
+    private static final int ACTIVITY_COLUMN = 5;
+
+    /**
+     * The scale of the altitude
+     */
+    private static final double ALTITUDE_SCALE = 10.0;
+
+    /**
+     * The scale of the distance
+     */
+    private static final double DISTANCE_SCALE = 100.0;
+
+    /**
+     * The private constructor
+     */
+    private SessionBinary() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * Tells if the given bytes are the beginning of the binary format
+     *
+     * @param header The first bytes of the stream
+     * @param length The number of bytes into the header
+     * @return True if the bytes are the magic bytes of the binary format
+     */
+    public static boolean isBinary(final byte[] header, final int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of bytes we need to recognize the format
+     */
+    public static int getMagicLength() {
+        return MAGIC.length;
+    }
+
+    /**
+     * Write the session and its positions in the binary format. The stream is not closed
+     *
+     * @param sessionCursor  The Cursor on the row of the session
+     * @param positionCursor The Cursor on the positions of the session in time order
+     * @param out            The OutputStream to write into
+     * @param deflate        True if the content has to be compressed
+     * @throws IOException In case of error writing the stream
+     */
+    static void write(final FenceCursorFactory.FenceSessionCursorData sessionCursor,
+                      final FenceCursorFactory.FencePositionCursorData positionCursor,
+                      final OutputStream out, final boolean deflate) throws IOException {
+        out.write(MAGIC);
+        out.write(FORMAT_VERSION);
+        out.write(deflate ? FLAG_DEFLATE : 0);
+        final Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        final DeflaterOutputStream deflaterOut = deflate ? new DeflaterOutputStream(out, deflater) : null;
+        try {
+            final DataOutputStream dataOut = new DataOutputStream(
+                    new BufferedOutputStream(deflate ? deflaterOut : out));
+            writeSession(dataOut, sessionCursor);
+            final int altitudeIndex = positionCursor.getColumnIndex(FenceDB.FencePosition.ALTITUDE);
+            final long[][] block = new long[COLUMN_COUNT][BLOCK_SIZE];
+            final long[] last = new long[COLUMN_COUNT];
+            int blockSize = 0;
+            while (positionCursor.moveToNext()) {
+                block[TIME_COLUMN][blockSize] = positionCursor.getPositionTimeMillis();
+                block[LATITUDE_COLUMN][blockSize] = positionCursor.getLatitudeE7();
+                block[LONGITUDE_COLUMN][blockSize] = positionCursor.getLongitudeE7();
+                block[ALTITUDE_COLUMN][blockSize] = altitudeIndex < 0 ? 0L
+                        : Math.round(positionCursor.getDouble(altitudeIndex) * ALTITUDE_SCALE);
+                block[DISTANCE_COLUMN][blockSize] = Math.round(positionCursor.getDistance() * DISTANCE_SCALE);
+                block[ACTIVITY_COLUMN][blockSize] = positionCursor.getActivityType();
+                if (++blockSize == BLOCK_SIZE) {
+                    writeBlock(dataOut, block, blockSize, last);
+                    blockSize = 0;
+                }
+            }
+            if (blockSize > 0) {
+                writeBlock(dataOut, block, blockSize, last);
+            }
+            // The empty block at the end
+            VarInt.writeVarLong(dataOut, 0L);
+            dataOut.flush();
+            if (deflate) {
+                // We don't close the stream because it would close the output
+                deflaterOut.finish();
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @param dataOut       The DataOutputStream to write into
+     * @param sessionCursor The Cursor on the row of the session
+     * @throws IOException In case of error writing the stream
+     */
+    private static void writeSession(final DataOutputStream dataOut,
+                                     final FenceCursorFactory.FenceSessionCursorData sessionCursor)
+            throws IOException {
+        final String owner = sessionCursor.getOwner();
+        dataOut.writeBoolean(owner != null);
+        if (owner != null) {
+            dataOut.writeUTF(owner);
+        }
+        dataOut.writeLong(sessionCursor.getStartDateMillis());
+        final Date endDate = sessionCursor.getEndDate();
+        dataOut.writeBoolean(endDate != null);
+        if (endDate != null) {
+            dataOut.writeLong(endDate.getTime());
+        }
+        dataOut.writeFloat(sessionCursor.getTotalDistance());
+    }
+
+    /**
+     * Write a block of positions column by column
+     *
+     * @param dataOut   The DataOutputStream to write into
+     * @param block     The values of the positions for every column
+     * @param blockSize The number of positions into the block
+     * @param last      The values of the previous position for every column
+     * @throws IOException In case of error writing the stream
+     */
+    private static void writeBlock(final DataOutputStream dataOut, final long[][] block, final int blockSize,
+                                   final long[] last) throws IOException {
+        VarInt.writeVarLong(dataOut, blockSize);
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            final long[] values = block[column];
+            long lastValue = last[column];
+            for (int i = 0; i < blockSize; i++) {
+                VarInt.writeVarLong(dataOut, VarInt.zigZag(values[i] - lastValue));
+                lastValue = values[i];
+            }
+            last[column] = lastValue;
+        }
+    }
+
+    /**
+     * Read a session in the binary format and insert it into the ContentProvider. The positions
+     * are inserted a block at a time while they're read. If the import fails the partially
+     * inserted session is deleted. It accesses the DB so it must not be called into the UI Thread.
+     * The stream is not closed
+     *
+     * @param contentResolver The ContentResolver to insert into
+     * @param in              The InputStream with the session
+     * @param listener        The ImportListener to notify or null
+     * @return The id of the new session
+     * @throws IOException In case of error reading the stream or if the format is not supported
+     */
+    public static long read(final ContentResolver contentResolver, final InputStream in,
+                            final SessionJson.ImportListener listener) throws IOException {
+        final DataInputStream headerIn = new DataInputStream(in);
+        final byte[] magic = new byte[MAGIC.length];
+        headerIn.readFully(magic);
+        if (!isBinary(magic, magic.length)) {
+            throw new IOException("Not a binary session");
+        }
+        final int version = headerIn.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary session version " + version);
+        }
+        final boolean deflate = (headerIn.readUnsignedByte() & FLAG_DEFLATE) != 0;
+        final Inflater inflater = deflate ? new Inflater() : null;
+        long sessionId = -1L;
+        boolean completed = false;
+        try {
+            final DataInputStream dataIn = new DataInputStream(new BufferedInputStream(
+                    deflate ? new InflaterInputStream(in, inflater) : in));
+            final Uri sessionUri = contentResolver.insert(FenceDB.FenceSession.CONTENT_URI, readSession(dataIn));
+            if (sessionUri == null) {
+                throw new IOException("Unable to insert the session");
+            }
+            sessionId = FenceDB.FenceSession.getSessionId(sessionUri);
+            final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+            final long[] last = new long[COLUMN_COUNT];
+            final long[][] block = new long[COLUMN_COUNT][BLOCK_SIZE];
+            int importedPositions = 0;
+            int blockSize;
+            while ((blockSize = readBlock(dataIn, block, last)) > 0) {
+                final ContentValues[] positionValues = new ContentValues[blockSize];
+                for (int i = 0; i < blockSize; i++) {
+                    positionValues[i] = createPositionValues(block, i);
+                }
+                importedPositions += contentResolver.bulkInsert(positionUri, positionValues);
+                if (listener != null) {
+                    listener.onProgress(importedPositions);
+                }
+            }
+            completed = true;
+            return sessionId;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (!completed && sessionId >= 0) {
+                // We don't leave half a session. The positions are deleted with it
+                contentResolver.delete(Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI,
+                        String.valueOf(sessionId)), null, null);
+            }
+        }
+    }
+
+    /**
+     * @param dataIn The DataInputStream to read from
+     * @return The values of the session
+     * @throws IOException In case of error reading the stream
+     */
+    private static ContentValues readSession(final DataInputStream dataIn) throws IOException {
+        final ContentValues sessionValues = new ContentValues();
+        if (dataIn.readBoolean()) {
+            sessionValues.put(FenceDB.FenceSession.SESSION_OWNER, dataIn.readUTF());
+        }
+        sessionValues.put(FenceDB.FenceSession.START_DATE, dataIn.readLong());
+        if (dataIn.readBoolean()) {
+            sessionValues.put(FenceDB.FenceSession.END_DATE, dataIn.readLong());
+        }
+        sessionValues.put(FenceDB.FenceSession.TOTAL_DISTANCE, dataIn.readFloat());
+        return sessionValues;
+    }
+
+    /**
+     * Read a block of positions
+     *
+     * @param dataIn The DataInputStream to read from
+     * @param block  The values of the positions for every column to fill
+     * @param last   The values of the previous position for every column
+     * @return The number of positions into the block. It's 0 at the end of the stream
+     * @throws IOException In case of error reading the stream
+     */
+    private static int readBlock(final DataInputStream dataIn, final long[][] block, final long[] last)
+            throws IOException {
+        final long blockSize = VarInt.readVarLong(dataIn);
+        if (blockSize < 0 || blockSize > BLOCK_SIZE) {
+            throw new IOException("Invalid block of " + blockSize + " positions");
+        }
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            final long[] values = block[column];
+            long lastValue = last[column];
+            for (int i = 0; i < blockSize; i++) {
+                lastValue += VarInt.unZigZag(VarInt.readVarLong(dataIn));
+                values[i] = lastValue;
+            }
+            last[column] = lastValue;
+        }
+        return (int) blockSize;
+    }
+
+    /**
+     * @param block The values of the positions for every column
+     * @param index The index of the position into the block
+     * @return The ContentValues of the position
+     */
+    private static ContentValues createPositionValues(final long[][] block, final int index) {
+        final ContentValues positionValues = new ContentValues();
+        positionValues.put(FenceDB.FencePosition.POSITION_TIME, block[TIME_COLUMN][index]);
+        positionValues.put(FenceDB.FencePosition.LATITUDE_E7, (int) block[LATITUDE_COLUMN][index]);
+        positionValues.put(FenceDB.FencePosition.LONGITUDE_E7, (int) block[LONGITUDE_COLUMN][index]);
+        positionValues.put(FenceDB.FencePosition.ALTITUDE, block[ALTITUDE_COLUMN][index] / ALTITUDE_SCALE);
+        positionValues.put(FenceDB.FencePosition.DISTANCE, block[DISTANCE_COLUMN][index] / DISTANCE_SCALE);
+        positionValues.put(FenceDB.FencePosition.ACTIVITY, (int) block[ACTIVITY_COLUMN][index]);
+        return positionValues;
+    }
+}
@@ -0,0 +1,125 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.util.IOUtils;
+
+/**
+ * This writes a session as a GPX 1.1 track. The positions are written one at a time while
+ * they're read from the Cursor so the memory doesn't depend on the number of positions.
+ */
+public final class SessionGpx {
+
+    /**
+     * The namespace of GPX 1.1
+     */
+    private static final String GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+
+    /**
+     * The version of GPX
+     */
+    private static final String GPX_VERSION = "1.1";
+
+    /**
+     * The creator of the GPX file
+     */
+    private static final String CREATOR = "FriendFence";
+
+    /**
+     * The Pattern of the time of GPX. It's always in UTC
+     */
+    private static final String TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    /**
+     * The private constructor
+     */
+    private SessionGpx() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * @return A new DateFormat for the time of GPX
+     */
+    private static SimpleDateFormat newTimeFormat() {
+        final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_PATTERN, Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return timeFormat;
+    }
+
+    /**
+     * Write the session and its positions as a GPX track with a single segment. The stream
+     * is not closed
+     *
+     * @param sessionCursor  The Cursor on the row of the session
+     * @param positionCursor The Cursor on the positions of the session in time order
+     * @param out            The OutputStream to write into
+     * @throws IOException In case of error writing the stream
+     */
+    static void write(final FenceCursorFactory.FenceSessionCursorData sessionCursor,
+                      final FenceCursorFactory.FencePositionCursorData positionCursor,
+                      final OutputStream out) throws IOException {
+        final SimpleDateFormat timeFormat = newTimeFormat();
+        final Date positionTime = new Date();
+        final int altitudeIndex = positionCursor.getColumnIndex(FenceDB.FencePosition.ALTITUDE);
+        final XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, IOUtils.DEFAULT_ENCODING);
+        serializer.startDocument(IOUtils.DEFAULT_ENCODING, null);
+        serializer.setPrefix("", GPX_NAMESPACE);
+        serializer.startTag(GPX_NAMESPACE, "gpx");
+        serializer.attribute(null, "version", GPX_VERSION);
+        serializer.attribute(null, "creator", CREATOR);
+        serializer.startTag(GPX_NAMESPACE, "metadata");
+        final String owner = sessionCursor.getOwner();
+        if (owner != null) {
+            writeText(serializer, "name", owner);
+        }
+        writeText(serializer, "time", timeFormat.format(sessionCursor.getStartDate()));
+        serializer.endTag(GPX_NAMESPACE, "metadata");
+        serializer.startTag(GPX_NAMESPACE, "trk");
+        if (owner != null) {
+            writeText(serializer, "name", owner);
+        }
+        serializer.startTag(GPX_NAMESPACE, "trkseg");
+        while (positionCursor.moveToNext()) {
+            serializer.startTag(GPX_NAMESPACE, "trkpt");
+            serializer.attribute(null, "lat", String.valueOf(positionCursor.getLatitude()));
+            serializer.attribute(null, "lon", String.valueOf(positionCursor.getLongitude()));
+            if (altitudeIndex >= 0 && !positionCursor.isNull(altitudeIndex)) {
+                writeText(serializer, "ele", String.valueOf(positionCursor.getDouble(altitudeIndex)));
+            }
+            positionTime.setTime(positionCursor.getPositionTimeMillis());
+            writeText(serializer, "time", timeFormat.format(positionTime));
+            serializer.endTag(GPX_NAMESPACE, "trkpt");
+        }
+        serializer.endTag(GPX_NAMESPACE, "trkseg");
+        serializer.endTag(GPX_NAMESPACE, "trk");
+        serializer.endTag(GPX_NAMESPACE, "gpx");
+        serializer.endDocument();
+        serializer.flush();
+    }
+
+    /**
+     * Write an element with only text
+     *
+     * @param serializer The XmlSerializer
+     * @param name       The name of the element
+     * @param text       The text of the element
+     * @throws IOException In case of error writing the stream
+     */
+    private static void writeText(final XmlSerializer serializer, final String name, final String text)
+            throws IOException {
+        serializer.startTag(GPX_NAMESPACE, name);
+        serializer.text(text);
+        serializer.endTag(GPX_NAMESPACE, name);
+    }
+}
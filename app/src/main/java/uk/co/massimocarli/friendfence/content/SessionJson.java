@@ -0,0 +1,324 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * This describes the Json format of an exported session. The session is written and read one
+ * position at a time so the memory doesn't depend on the number of positions.
+ */
+public final class SessionJson {
+
+    /**
+     * The Json property for the array of the positions
+     */
+    public static final String POSITIONS = "positions";
+
+    /**
+     * The Json property for the latitude in degrees of a position
+     */
+    public static final String LATITUDE = "latitude";
+
+    /**
+     * The Json property for the longitude in degrees of a position
+     */
+    public static final String LONGITUDE = "longitude";
+
+    /**
+     * The Pattern we use for the date and time
+     */
+    public static final String DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * The size of the buffer of the input and of the output
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The number of positions we insert with a single bulkInsert during an import
+     */
+    private static final int IMPORT_CHUNK_SIZE = 500;
+
+    /**
+     * The value for a session not inserted yet
+     */
+    private static final long NO_SESSION_ID = -1L;
+
+    /**
+     * The interface of the object notified during an import
+     */
+    public interface ImportListener {
+
+        /**
+         * Invoked after every group of positions is inserted
+         *
+         * @param importedPositions The number of positions inserted so far
+         */
+        void onProgress(int importedPositions);
+    }
+
+    /**
+     * The private constructor
+     */
+    private SessionJson() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * @return A new DateFormat for the dates of the Json. A DateFormat is not thread safe so
+     * every export uses its own
+     */
+    public static SimpleDateFormat newDateFormat() {
+        return new SimpleDateFormat(DATE_PATTERN, Locale.UK);
+    }
+
+    /**
+     * Write the session and its positions as Json. The stream is not closed
+     *
+     * @param sessionCursor  The Cursor on the row of the session
+     * @param positionCursor The Cursor on the positions of the session in time order
+     * @param out            The OutputStream to write into
+     * @throws IOException In case of error writing the stream
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void write(final FenceCursorFactory.FenceSessionCursorData sessionCursor,
+                      final FenceCursorFactory.FencePositionCursorData positionCursor,
+                      final OutputStream out) throws IOException {
+        final SimpleDateFormat dateFormat = newDateFormat();
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new BufferedOutputStream(out, BUFFER_SIZE), "UTF-8"));
+        writer.beginObject();
+        writer.name(FenceDB.FenceSession.SESSION_OWNER).value(sessionCursor.getOwner());
+        writer.name(FenceDB.FenceSession.START_DATE).value(dateFormat.format(sessionCursor.getStartDate()));
+        final Date endDate = sessionCursor.getEndDate();
+        if (endDate != null) {
+            writer.name(FenceDB.FenceSession.END_DATE).value(dateFormat.format(endDate));
+        }
+        writer.name(FenceDB.FenceSession.TOTAL_DISTANCE).value(sessionCursor.getTotalDistance());
+        writer.name(POSITIONS).beginArray();
+        // We reuse the same Date for all the positions
+        final Date positionTime = new Date();
+        while (positionCursor.moveToNext()) {
+            positionTime.setTime(positionCursor.getPositionTimeMillis());
+            writer.beginObject();
+            writer.name(FenceDB.FencePosition.ACTIVITY).value(positionCursor.getActivityType());
+            writer.name(LATITUDE).value(positionCursor.getLatitude());
+            writer.name(LONGITUDE).value(positionCursor.getLongitude());
+            writer.name(FenceDB.FencePosition.DISTANCE).value(positionCursor.getDistance());
+            writer.name(FenceDB.FencePosition.POSITION_TIME).value(dateFormat.format(positionTime));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        // We don't close the writer because it would close the stream
+        writer.flush();
+    }
+
+    /**
+     * Read a session from its Json and insert it into the ContentProvider. The positions are
+     * inserted in groups of IMPORT_CHUNK_SIZE while they're read so the memory doesn't depend on
+     * the size of the Json. If the import fails the partially inserted session is deleted. It
+     * accesses the DB so it must not be called into the UI Thread. The stream is not closed
+     *
+     * @param contentResolver The ContentResolver to insert into
+     * @param in              The InputStream with the Json
+     * @param listener        The ImportListener to notify or null
+     * @return The id of the new session
+     * @throws IOException In case of error reading or parsing the Json
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static long read(final ContentResolver contentResolver, final InputStream in,
+                            final ImportListener listener) throws IOException {
+        final SimpleDateFormat dateFormat = newDateFormat();
+        final JsonReader reader = new JsonReader(new InputStreamReader(
+                new BufferedInputStream(in, BUFFER_SIZE), "UTF-8"));
+        final ContentValues sessionValues = new ContentValues();
+        long sessionId = NO_SESSION_ID;
+        boolean completed = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (POSITIONS.equals(name)) {
+                    // The positions need the session so we insert it with the values read so far
+                    if (sessionId == NO_SESSION_ID) {
+                        sessionId = insertSession(contentResolver, sessionValues);
+                        sessionValues.clear();
+                    }
+                    readPositions(reader, dateFormat, contentResolver, sessionId, listener);
+                } else if (!readSessionValue(reader, name, dateFormat, sessionValues)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (sessionId == NO_SESSION_ID) {
+                sessionId = insertSession(contentResolver, sessionValues);
+            } else if (sessionValues.size() > 0) {
+                // The values after the positions
+                contentResolver.update(getSessionUri(sessionId), sessionValues, null, null);
+            }
+            completed = true;
+            return sessionId;
+        } finally {
+            if (!completed && sessionId != NO_SESSION_ID) {
+                // We don't leave half a session. The positions are deleted with it
+                contentResolver.delete(getSessionUri(sessionId), null, null);
+            }
+        }
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @return The Uri of the session
+     */
+    private static Uri getSessionUri(final long sessionId) {
+        return Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(sessionId));
+    }
+
+    /**
+     * @param contentResolver The ContentResolver to insert into
+     * @param sessionValues   The values of the session
+     * @return The id of the new session
+     * @throws IOException If the session cannot be inserted
+     */
+    private static long insertSession(final ContentResolver contentResolver, final ContentValues sessionValues)
+            throws IOException {
+        final Uri sessionUri = contentResolver.insert(FenceDB.FenceSession.CONTENT_URI, sessionValues);
+        if (sessionUri == null) {
+            throw new IOException("Unable to insert the session");
+        }
+        return FenceDB.FenceSession.getSessionId(sessionUri);
+    }
+
+    /**
+     * Read the value of a property of the session
+     *
+     * @param reader        The JsonReader on the value
+     * @param name          The name of the property
+     * @param dateFormat    The DateFormat for the dates
+     * @param sessionValues The ContentValues to put the value into
+     * @return True if the property is of the session and the value has been read
+     * @throws IOException In case of error reading the value
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean readSessionValue(final JsonReader reader, final String name,
+                                            final SimpleDateFormat dateFormat,
+                                            final ContentValues sessionValues) throws IOException {
+        if (FenceDB.FenceSession.SESSION_OWNER.equals(name)) {
+            sessionValues.put(FenceDB.FenceSession.SESSION_OWNER, reader.nextString());
+        } else if (FenceDB.FenceSession.START_DATE.equals(name)) {
+            sessionValues.put(FenceDB.FenceSession.START_DATE, parseDate(dateFormat, reader.nextString()));
+        } else if (FenceDB.FenceSession.END_DATE.equals(name)) {
+            sessionValues.put(FenceDB.FenceSession.END_DATE, parseDate(dateFormat, reader.nextString()));
+        } else if (FenceDB.FenceSession.TOTAL_DISTANCE.equals(name)) {
+            sessionValues.put(FenceDB.FenceSession.TOTAL_DISTANCE, reader.nextDouble());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the array of the positions and insert them in groups of IMPORT_CHUNK_SIZE
+     *
+     * @param reader          The JsonReader on the array
+     * @param dateFormat      The DateFormat for the dates
+     * @param contentResolver The ContentResolver to insert into
+     * @param sessionId       The id of the session of the positions
+     * @param listener        The ImportListener to notify or null
+     * @throws IOException In case of error reading the positions
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readPositions(final JsonReader reader, final SimpleDateFormat dateFormat,
+                                      final ContentResolver contentResolver, final long sessionId,
+                                      final ImportListener listener) throws IOException {
+        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
+        final ContentValues[] chunk = new ContentValues[IMPORT_CHUNK_SIZE];
+        int chunkSize = 0;
+        int importedPositions = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            chunk[chunkSize++] = readPosition(reader, dateFormat);
+            if (chunkSize == IMPORT_CHUNK_SIZE) {
+                importedPositions += contentResolver.bulkInsert(positionUri, chunk);
+                chunkSize = 0;
+                if (listener != null) {
+                    listener.onProgress(importedPositions);
+                }
+            }
+        }
+        reader.endArray();
+        if (chunkSize > 0) {
+            importedPositions += contentResolver.bulkInsert(positionUri, Arrays.copyOf(chunk, chunkSize));
+            if (listener != null) {
+                listener.onProgress(importedPositions);
+            }
+        }
+    }
+
+    /**
+     * @param reader     The JsonReader on the object of the position
+     * @param dateFormat The DateFormat for the dates
+     * @return The ContentValues of the position
+     * @throws IOException In case of error reading the position
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ContentValues readPosition(final JsonReader reader, final SimpleDateFormat dateFormat)
+            throws IOException {
+        final ContentValues positionValues = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (FenceDB.FencePosition.ACTIVITY.equals(name)) {
+                positionValues.put(FenceDB.FencePosition.ACTIVITY, reader.nextInt());
+            } else if (LATITUDE.equals(name)) {
+                positionValues.put(FenceDB.FencePosition.LATITUDE_E7, CoordinateUtil.toE7(reader.nextDouble()));
+            } else if (LONGITUDE.equals(name)) {
+                positionValues.put(FenceDB.FencePosition.LONGITUDE_E7, CoordinateUtil.toE7(reader.nextDouble()));
+            } else if (FenceDB.FencePosition.DISTANCE.equals(name)) {
+                positionValues.put(FenceDB.FencePosition.DISTANCE, reader.nextDouble());
+            } else if (FenceDB.FencePosition.POSITION_TIME.equals(name)) {
+                positionValues.put(FenceDB.FencePosition.POSITION_TIME, parseDate(dateFormat, reader.nextString()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return positionValues;
+    }
+
+    /**
+     * @param dateFormat The DateFormat to use
+     * @param date       The date as String
+     * @return The date in milliseconds
+     * @throws IOException If the date is not valid
+     */
+    private static long parseDate(final SimpleDateFormat dateFormat, final String date) throws IOException {
+        try {
+            return dateFormat.parse(date).getTime();
+        } catch (ParseException pe) {
+            throw new IOException("Invalid date " + date);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.util.Xml;
+
+import com.google.android.gms.location.DetectedActivity;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.util.ActivityUtil;
+import uk.co.massimocarli.friendfence.util.IOUtils;
+
+/**
+ * This writes a session as KML. The path is split into a LineString for every sequence of
+ * positions with the same activity, with the color of the activity on the map. The positions
+ * are written one at a time while they're read from the Cursor so the memory doesn't depend on
+ * the number of positions.
+ */
+public final class SessionKml {
+
+    /**
+     * The namespace of KML 2.2
+     */
+    private static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+
+    /**
+     * The prefix of the id of the Style of an activity
+     */
+    private static final String STYLE_PREFIX = "activity_";
+
+    /**
+     * The width of the lines of the path
+     */
+    private static final String LINE_WIDTH = "4";
+
+    /**
+     * The activity types we have a Style for
+     */
+    private static final int[] ACTIVITY_TYPES = {
+            DetectedActivity.IN_VEHICLE,
+            DetectedActivity.ON_BICYCLE,
+            DetectedActivity.ON_FOOT,
+            DetectedActivity.STILL,
+            DetectedActivity.UNKNOWN,
+            DetectedActivity.TILTING,
+            DetectedActivity.WALKING,
+            DetectedActivity.RUNNING
+    };
+
+    /**
+     * The private constructor
+     */
+    private SessionKml() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * Write the session and its positions as KML. The stream is not closed
+     *
+     * @param sessionCursor  The Cursor on the row of the session
+     * @param positionCursor The Cursor on the positions of the session in time order
+     * @param out            The OutputStream to write into
+     * @throws IOException In case of error writing the stream
+     */
+    static void write(final FenceCursorFactory.FenceSessionCursorData sessionCursor,
+                      final FenceCursorFactory.FencePositionCursorData positionCursor,
+                      final OutputStream out) throws IOException {
+        final int altitudeIndex = positionCursor.getColumnIndex(FenceDB.FencePosition.ALTITUDE);
+        final XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, IOUtils.DEFAULT_ENCODING);
+        serializer.startDocument(IOUtils.DEFAULT_ENCODING, null);
+        serializer.setPrefix("", KML_NAMESPACE);
+        serializer.startTag(KML_NAMESPACE, "kml");
+        serializer.startTag(KML_NAMESPACE, "Document");
+        final String owner = sessionCursor.getOwner();
+        if (owner != null) {
+            writeText(serializer, "name", owner);
+        }
+        for (int activityType : ACTIVITY_TYPES) {
+            writeStyle(serializer, activityType);
+        }
+        int lastActivityType = -1;
+        String previous = null;
+        while (positionCursor.moveToNext()) {
+            final int activityType = positionCursor.getActivityType();
+            if (activityType != lastActivityType) {
+                // We close the segment of the previous activity and start a new one
+                if (previous != null) {
+                    endSegment(serializer);
+                }
+                startSegment(serializer, activityType);
+                lastActivityType = activityType;
+                if (previous != null) {
+                    // The new segment starts where the previous ends like on the map
+                    serializer.text(previous);
+                }
+            }
+            final double altitude = altitudeIndex < 0 ? 0.0 : positionCursor.getDouble(altitudeIndex);
+            final String coordinates = positionCursor.getLongitude() + "," + positionCursor.getLatitude()
+                    + "," + altitude + " ";
+            serializer.text(coordinates);
+            previous = coordinates;
+        }
+        if (previous != null) {
+            endSegment(serializer);
+        }
+        serializer.endTag(KML_NAMESPACE, "Document");
+        serializer.endTag(KML_NAMESPACE, "kml");
+        serializer.endDocument();
+        serializer.flush();
+    }
+
+    /**
+     * Write the Style of the line of the given activity
+     *
+     * @param serializer   The XmlSerializer
+     * @param activityType The activity type
+     * @throws IOException In case of error writing the stream
+     */
+    private static void writeStyle(final XmlSerializer serializer, final int activityType) throws IOException {
+        serializer.startTag(KML_NAMESPACE, "Style");
+        serializer.attribute(null, "id", STYLE_PREFIX + activityType);
+        serializer.startTag(KML_NAMESPACE, "LineStyle");
+        writeText(serializer, "color", toKmlColor(ActivityUtil.getActivityColor(activityType)));
+        writeText(serializer, "width", LINE_WIDTH);
+        serializer.endTag(KML_NAMESPACE, "LineStyle");
+        serializer.endTag(KML_NAMESPACE, "Style");
+    }
+
+    /**
+     * Start the Placemark of a sequence of positions with the same activity
+     *
+     * @param serializer   The XmlSerializer
+     * @param activityType The activity type of the positions
+     * @throws IOException In case of error writing the stream
+     */
+    private static void startSegment(final XmlSerializer serializer, final int activityType) throws IOException {
+        serializer.startTag(KML_NAMESPACE, "Placemark");
+        writeText(serializer, "styleUrl", "#" + STYLE_PREFIX + activityType);
+        serializer.startTag(KML_NAMESPACE, "LineString");
+        writeText(serializer, "tessellate", "1");
+        serializer.startTag(KML_NAMESPACE, "coordinates");
+    }
+
+    /**
+     * End the Placemark of a sequence of positions with the same activity
+     *
+     * @param serializer The XmlSerializer
+     * @throws IOException In case of error writing the stream
+     */
+    private static void endSegment(final XmlSerializer serializer) throws IOException {
+        serializer.endTag(KML_NAMESPACE, "coordinates");
+        serializer.endTag(KML_NAMESPACE, "LineString");
+        serializer.endTag(KML_NAMESPACE, "Placemark");
+    }
+
+    /**
+     * KML uses the order alpha, blue, green and red for the colors
+     *
+     * @param color The color as ARGB
+     * @return The color for KML
+     */
+    private static String toKmlColor(final int color) {
+        return String.format(Locale.US, "%02x%02x%02x%02x", (color >>> 24) & 0xff, color & 0xff,
+                (color >> 8) & 0xff, (color >> 16) & 0xff);
+    }
+
+    /**
+     * Write an element with only text
+     *
+     * @param serializer The XmlSerializer
+     * @param name       The name of the element
+     * @param text       The text of the element
+     * @throws IOException In case of error writing the stream
+     */
+    private static void writeText(final XmlSerializer serializer, final String name, final String text)
+            throws IOException {
+        serializer.startTag(KML_NAMESPACE, name);
+        serializer.text(text);
+        serializer.endTag(KML_NAMESPACE, name);
+    }
+}
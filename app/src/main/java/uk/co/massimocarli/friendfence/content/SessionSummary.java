@@ -0,0 +1,312 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
+
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * This is the object that maintains the FenceSessionSummary and the FenceActivitySummary of a
+ * session. The summary is read once, updated in memory with the new positions and written
+ * back so the cost doesn't depend on the number of positions already into the session. Positions
+ * are expected in order of time. If they're not, the summary has to be rebuilt.
+ */
+final class SessionSummary {
+
+    /**
+     * The query for the positions of a session when we rebuild the summary
+     */
+    private static final String POSITIONS_SQL = "SELECT " + FenceDB.FencePosition.POSITION_TIME
+            + ", " + FenceDB.FencePosition.LATITUDE_E7 + ", " + FenceDB.FencePosition.LONGITUDE_E7
+            + ", " + FenceDB.FencePosition.DISTANCE + ", " + FenceDB.FencePosition.ACTIVITY
+            + " FROM " + FenceDB.FencePosition.TABLE_NAME + " WHERE " + FenceDB.FencePosition.SESSION_ID
+            + " = ? ORDER BY " + FenceDB.FencePosition.POSITION_TIME;
+
+    /**
+     * The where clause for the rows of a session
+     */
+    private static final String SESSION_WHERE = FenceDB.FenceSessionSummary.SESSION_ID + " = ?";
+
+    /**
+     * The distance and duration for an activity type
+     */
+    private static final class ActivityTotal {
+
+        /**
+         * The distance in meters
+         */
+        private double mDistance;
+
+        /**
+         * The duration in milliseconds
+         */
+        private long mDuration;
+
+        /**
+         * True if it has to be written
+         */
+        private boolean mChanged;
+    }
+
+    /**
+     * The session of the summary
+     */
+    private final long mSessionId;
+
+    /**
+     * The number of positions
+     */
+    private int mPositionCount;
+
+    /**
+     * The time of the first position
+     */
+    private long mFirstPositionTime;
+
+    /**
+     * The time of the last position
+     */
+    private long mLastPositionTime;
+
+    /**
+     * The distance of the last position
+     */
+    private double mLastDistance;
+
+    /**
+     * The min latitude
+     */
+    private double mMinLatitude;
+
+    /**
+     * The max latitude
+     */
+    private double mMaxLatitude;
+
+    /**
+     * The min longitude
+     */
+    private double mMinLongitude;
+
+    /**
+     * The max longitude
+     */
+    private double mMaxLongitude;
+
+    /**
+     * The max speed in meters per second
+     */
+    private double mMaxSpeed;
+
+    /**
+     * The totals for the activity types
+     */
+    private final SparseArray<ActivityTotal> mActivityTotals = new SparseArray<ActivityTotal>();
+
+    /**
+     * True if a position was older than the last one so the summary is not valid
+     */
+    private boolean mOutOfOrder;
+
+    /**
+     * Creates an empty summary for the given session
+     *
+     * @param sessionId The session
+     */
+    private SessionSummary(final long sessionId) {
+        mSessionId = sessionId;
+    }
+
+    /**
+     * Read the summary of the given session
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session
+     * @return The summary of the session which is empty if not available
+     */
+    static SessionSummary load(final SQLiteDatabase db, final long sessionId) {
+        final SessionSummary summary = new SessionSummary(sessionId);
+        final String[] args = new String[]{String.valueOf(sessionId)};
+        final Cursor summaryCursor = db.query(FenceDB.FenceSessionSummary.TABLE_NAME, null,
+                SESSION_WHERE, args, null, null, null);
+        try {
+            if (summaryCursor.moveToFirst()) {
+                summary.mPositionCount = summaryCursor.getInt(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.POSITION_COUNT));
+                summary.mFirstPositionTime = summaryCursor.getLong(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.FIRST_POSITION_TIME));
+                summary.mLastPositionTime = summaryCursor.getLong(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.LAST_POSITION_TIME));
+                summary.mLastDistance = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.LAST_DISTANCE));
+                summary.mMinLatitude = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.MIN_LATITUDE));
+                summary.mMaxLatitude = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.MAX_LATITUDE));
+                summary.mMinLongitude = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.MIN_LONGITUDE));
+                summary.mMaxLongitude = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.MAX_LONGITUDE));
+                summary.mMaxSpeed = summaryCursor.getDouble(summaryCursor
+                        .getColumnIndex(FenceDB.FenceSessionSummary.MAX_SPEED));
+            }
+        } finally {
+            summaryCursor.close();
+        }
+        final Cursor activityCursor = db.query(FenceDB.FenceActivitySummary.TABLE_NAME, null,
+                SESSION_WHERE, args, null, null, null);
+        try {
+            final int activityIndex = activityCursor.getColumnIndex(FenceDB.FenceActivitySummary.ACTIVITY);
+            final int distanceIndex = activityCursor.getColumnIndex(FenceDB.FenceActivitySummary.DISTANCE);
+            final int durationIndex = activityCursor.getColumnIndex(FenceDB.FenceActivitySummary.DURATION);
+            while (activityCursor.moveToNext()) {
+                final ActivityTotal activityTotal = new ActivityTotal();
+                activityTotal.mDistance = activityCursor.getDouble(distanceIndex);
+                activityTotal.mDuration = activityCursor.getLong(durationIndex);
+                summary.mActivityTotals.put(activityCursor.getInt(activityIndex), activityTotal);
+            }
+        } finally {
+            activityCursor.close();
+        }
+        return summary;
+    }
+
+    /**
+     * Calculates the summary of the given session from all its positions and saves it. We use
+     * this when positions are changed or deleted or when they're not added in order of time
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session
+     */
+    static void rebuild(final SQLiteDatabase db, final long sessionId) {
+        final SessionSummary summary = new SessionSummary(sessionId);
+        final String[] args = new String[]{String.valueOf(sessionId)};
+        final Cursor positionCursor = db.rawQuery(POSITIONS_SQL, args);
+        try {
+            while (positionCursor.moveToNext()) {
+                summary.add(positionCursor.getLong(0), CoordinateUtil.fromE7(positionCursor.getInt(1)),
+                        CoordinateUtil.fromE7(positionCursor.getInt(2)), positionCursor.getDouble(3),
+                        positionCursor.getInt(4));
+            }
+        } finally {
+            positionCursor.close();
+        }
+        // The old activities could be not present anymore
+        db.delete(FenceDB.FenceActivitySummary.TABLE_NAME, SESSION_WHERE, args);
+        if (summary.mPositionCount == 0) {
+            db.delete(FenceDB.FenceSessionSummary.TABLE_NAME, SESSION_WHERE, args);
+        } else {
+            summary.save(db);
+        }
+    }
+
+    /**
+     * Calculates the summary of all the sessions. We use this when the tables are created
+     * for existing data
+     *
+     * @param db The SQLiteDatabase to use
+     */
+    static void rebuildAll(final SQLiteDatabase db) {
+        final Cursor sessionCursor = db.rawQuery("SELECT " + FenceDB.FenceSession._ID + " FROM "
+                + FenceDB.FenceSession.TABLE_NAME, null);
+        try {
+            while (sessionCursor.moveToNext()) {
+                rebuild(db, sessionCursor.getLong(0));
+            }
+        } finally {
+            sessionCursor.close();
+        }
+    }
+
+    /**
+     * Add a position to the summary. The distance of the segment from the previous position
+     * and its duration are assigned to the activity of this position
+     *
+     * @param positionTime The time of the position
+     * @param latitude     The latitude
+     * @param longitude    The longitude
+     * @param distance     The distance of the session until this position
+     * @param activity     The activity type
+     */
+    void add(final long positionTime, final double latitude, final double longitude,
+             final double distance, final int activity) {
+        if (mPositionCount == 0) {
+            mFirstPositionTime = positionTime;
+            mMinLatitude = mMaxLatitude = latitude;
+            mMinLongitude = mMaxLongitude = longitude;
+        } else {
+            mMinLatitude = Math.min(mMinLatitude, latitude);
+            mMaxLatitude = Math.max(mMaxLatitude, latitude);
+            mMinLongitude = Math.min(mMinLongitude, longitude);
+            mMaxLongitude = Math.max(mMaxLongitude, longitude);
+            if (positionTime < mLastPositionTime) {
+                // We cannot calculate the segment so the summary has to be rebuilt
+                mOutOfOrder = true;
+            } else {
+                final long duration = positionTime - mLastPositionTime;
+                final double segmentDistance = Math.max(0.0, distance - mLastDistance);
+                if (duration > 0) {
+                    mMaxSpeed = Math.max(mMaxSpeed, segmentDistance * 1000.0 / duration);
+                }
+                ActivityTotal activityTotal = mActivityTotals.get(activity);
+                if (activityTotal == null) {
+                    activityTotal = new ActivityTotal();
+                    mActivityTotals.put(activity, activityTotal);
+                }
+                activityTotal.mDistance += segmentDistance;
+                activityTotal.mDuration += duration;
+                activityTotal.mChanged = true;
+            }
+        }
+        if (mPositionCount == 0 || positionTime >= mLastPositionTime) {
+            mLastPositionTime = positionTime;
+            mLastDistance = distance;
+        }
+        mPositionCount++;
+    }
+
+    /**
+     * @return True if some position was not in order of time and the summary has to be rebuilt
+     */
+    boolean isOutOfOrder() {
+        return mOutOfOrder;
+    }
+
+    /**
+     * Write the summary and the changed activities
+     *
+     * @param db The SQLiteDatabase to use
+     */
+    void save(final SQLiteDatabase db) {
+        final ContentValues summaryValues = new ContentValues();
+        summaryValues.put(FenceDB.FenceSessionSummary.SESSION_ID, mSessionId);
+        summaryValues.put(FenceDB.FenceSessionSummary.POSITION_COUNT, mPositionCount);
+        summaryValues.put(FenceDB.FenceSessionSummary.FIRST_POSITION_TIME, mFirstPositionTime);
+        summaryValues.put(FenceDB.FenceSessionSummary.LAST_POSITION_TIME, mLastPositionTime);
+        summaryValues.put(FenceDB.FenceSessionSummary.LAST_DISTANCE, mLastDistance);
+        summaryValues.put(FenceDB.FenceSessionSummary.MIN_LATITUDE, mMinLatitude);
+        summaryValues.put(FenceDB.FenceSessionSummary.MAX_LATITUDE, mMaxLatitude);
+        summaryValues.put(FenceDB.FenceSessionSummary.MIN_LONGITUDE, mMinLongitude);
+        summaryValues.put(FenceDB.FenceSessionSummary.MAX_LONGITUDE, mMaxLongitude);
+        summaryValues.put(FenceDB.FenceSessionSummary.MAX_SPEED, mMaxSpeed);
+        db.insertWithOnConflict(FenceDB.FenceSessionSummary.TABLE_NAME, null, summaryValues,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        final int activityNumber = mActivityTotals.size();
+        for (int i = 0; i < activityNumber; i++) {
+            final ActivityTotal activityTotal = mActivityTotals.valueAt(i);
+            if (!activityTotal.mChanged) {
+                continue;
+            }
+            final ContentValues activityValues = new ContentValues();
+            activityValues.put(FenceDB.FenceActivitySummary.SESSION_ID, mSessionId);
+            activityValues.put(FenceDB.FenceActivitySummary.ACTIVITY, mActivityTotals.keyAt(i));
+            activityValues.put(FenceDB.FenceActivitySummary.DISTANCE, activityTotal.mDistance);
+            activityValues.put(FenceDB.FenceActivitySummary.DURATION, activityTotal.mDuration);
+            db.insertWithOnConflict(FenceDB.FenceActivitySummary.TABLE_NAME, null, activityValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            activityTotal.mChanged = false;
+        }
+    }
+}
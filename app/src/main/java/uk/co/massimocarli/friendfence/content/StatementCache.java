@@ -0,0 +1,116 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.annotation.TargetApi;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the cache of the compiled SQLiteStatement for the deletes of the FenceContentProvider.
+ * We keep at most one statement for every type of Uri so the cache cannot grow with the
+ * selections of the callers. The queries don't need it because the SQL for a type of Uri is
+ * always the same and SQLite already reuses its prepared statement. It counts how many times a
+ * statement is reused and how many times it has to be compiled.
+ */
+final class StatementCache {
+
+    /**
+     * The compiled statements for every type of Uri
+     */
+    private final SparseArray<SQLiteStatement> mStatements = new SparseArray<SQLiteStatement>();
+
+    /**
+     * The SQL of the compiled statements for every type of Uri
+     */
+    private final SparseArray<String> mStatementSql = new SparseArray<String>();
+
+    /**
+     * The number of times a compiled statement was reused
+     */
+    private final AtomicLong mReuseCount = new AtomicLong();
+
+    /**
+     * The number of times a statement was compiled
+     */
+    private final AtomicLong mCompileCount = new AtomicLong();
+
+    /**
+     * Execute a delete using the compiled statement for the given type of Uri. The statement is
+     * compiled again only if the SQL for the Uri is different from the previous one. This happens
+     * for instance with the paging parameters of the positions
+     *
+     * @param db           The SQLiteDatabase to use
+     * @param uriMatch     The type of the Uri
+     * @param uriSelection The UriSelection for the Uri
+     * @return The number of deleted rows
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    int executeDelete(final SQLiteDatabase db, final int uriMatch, final UriSelection uriSelection) {
+        final StringBuilder sqlBuilder = new StringBuilder("DELETE FROM ").append(uriSelection.getTable());
+        if (!TextUtils.isEmpty(uriSelection.getWhere())) {
+            sqlBuilder.append(" WHERE ").append(uriSelection.getWhere());
+        }
+        final String sql = sqlBuilder.toString();
+        // Deletes are serialized by SQLite anyway so we keep the lock during the execution
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(uriMatch);
+            if (statement != null && sql.equals(mStatementSql.get(uriMatch))) {
+                mReuseCount.incrementAndGet();
+            } else {
+                mCompileCount.incrementAndGet();
+                if (statement != null) {
+                    // We replace the statement of the same type of Uri
+                    statement.close();
+                }
+                statement = db.compileStatement(sql);
+                mStatements.put(uriMatch, statement);
+                mStatementSql.put(uriMatch, sql);
+            }
+            statement.clearBindings();
+            if (uriSelection.getArgs() != null) {
+                statement.bindAllArgsAsStrings(uriSelection.getArgs());
+            }
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Close all the compiled statements
+     */
+    void close() {
+        synchronized (mStatements) {
+            for (int i = 0; i < mStatements.size(); i++) {
+                mStatements.valueAt(i).close();
+            }
+            mStatements.clear();
+            mStatementSql.clear();
+        }
+    }
+
+    /**
+     * @return The number of times a compiled statement was reused
+     */
+    long getReuseCount() {
+        return mReuseCount.get();
+    }
+
+    /**
+     * @return The number of times a statement was compiled
+     */
+    long getCompileCount() {
+        return mCompileCount.get();
+    }
+
+    /**
+     * @return The rate of the executions with a reused statement between 0 and 1
+     */
+    float getReuseRate() {
+        final long reuseCount = mReuseCount.get();
+        final long total = reuseCount + mCompileCount.get();
+        return total > 0 ? (float) reuseCount / total : 0.0f;
+    }
+}
@@ -0,0 +1,812 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import uk.co.massimocarli.friendfence.content.cursor.AbstractPositionCursor;
+import uk.co.massimocarli.friendfence.content.cursor.ArchivedPositionCursor;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionMergeCursor;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * This is the object that moves the positions of a closed session into the FenceTrackArchive
+ * and reads them back. The positions are in order of time and every value is written as the
+ * difference from the one of the previous position, zigzag encoded so small negative values
+ * are small numbers too, as a varint. Coordinates are E7 so they're exact, the altitude is
+ * kept in decimeters and the distance in centimeters. Every position starts with the NULL_*
+ * flags of its null values, which are not written. The whole track of a session is read
+ * with a TrackCursor which decodes one position at a time so its memory doesn't depend on the
+ * number of positions. The bounding box of every archived session is kept into the spatial
+ * index of the archive so the bounding box Uris find its positions.
+ */
+final class TrackArchive {
+
+    /**
+     * The version of the format of the blob
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * The first version of the format. It has no null flags but we still read it
+     */
+    private static final int FIRST_FORMAT_VERSION = 1;
+
+    /**
+     * The factor for the altitude in decimeters
+     */
+    private static final double ALTITUDE_SCALE = 10.0;
+
+    /**
+     * The factor for the distance in centimeters
+     */
+    private static final double DISTANCE_SCALE = 100.0;
+
+    /**
+     * The where clause for the rows of a session
+     */
+    private static final String SESSION_WHERE = FenceDB.FenceTrackArchive.SESSION_ID + " = ?";
+
+    /**
+     * The query for the positions of a session to archive
+     */
+    private static final String POSITIONS_SQL = "SELECT " + FenceDB.FencePosition._ID
+            + ", " + FenceDB.FencePosition.POSITION_TIME + ", " + FenceDB.FencePosition.LATITUDE_E7
+            + ", " + FenceDB.FencePosition.LONGITUDE_E7 + ", " + FenceDB.FencePosition.ALTITUDE
+            + ", " + FenceDB.FencePosition.DISTANCE + ", " + FenceDB.FencePosition.ACTIVITY
+            + " FROM " + FenceDB.FencePosition.TABLE_NAME + " WHERE " + FenceDB.FencePosition.SESSION_ID
+            + " = ? ORDER BY " + FenceDB.FencePosition.POSITION_TIME + ", " + FenceDB.FencePosition._ID;
+
+    /**
+     * The insert of the bounding box of an archived session from its positions into the table
+     */
+    private static final String INDEX_TRACK_SQL = "INSERT INTO " + FenceDB.FenceTrackArchive.SPATIAL_INDEX_TABLE_NAME
+            + " (id, min_latitude, max_latitude, min_longitude, max_longitude) SELECT "
+            + FenceDB.FencePosition.SESSION_ID + ", MIN(" + FenceDB.FencePosition.LATITUDE_E7 + ") / 10000000.0, MAX("
+            + FenceDB.FencePosition.LATITUDE_E7 + ") / 10000000.0, MIN(" + FenceDB.FencePosition.LONGITUDE_E7
+            + ") / 10000000.0, MAX(" + FenceDB.FencePosition.LONGITUDE_E7 + ") / 10000000.0 FROM "
+            + FenceDB.FencePosition.TABLE_NAME + " WHERE " + FenceDB.FencePosition.SESSION_ID + " = ? AND "
+            + FenceDB.FencePosition.LATITUDE_E7 + " IS NOT NULL AND " + FenceDB.FencePosition.LONGITUDE_E7
+            + " IS NOT NULL GROUP BY " + FenceDB.FencePosition.SESSION_ID;
+
+    /**
+     * The archived sessions with a bounding box that intersects the given range
+     */
+    private static final String INTERSECTING_SESSIONS_SQL = "SELECT id FROM "
+            + FenceDB.FenceTrackArchive.SPATIAL_INDEX_TABLE_NAME + " WHERE max_latitude >= ? AND min_latitude <= ?"
+            + " AND max_longitude >= ? AND min_longitude <= ?";
+
+    /**
+     * The max longitude for the two ranges of a bounding box that crosses the 180th meridian
+     */
+    private static final double MAX_LONGITUDE = 180.0;
+
+    /**
+     * The insert of a position we restore from the archive. We keep the original id
+     */
+    private static final String RESTORE_POSITION_SQL = "INSERT INTO " + FenceDB.FencePosition.TABLE_NAME
+            + " (" + FenceDB.FencePosition._ID + ", " + FenceDB.FencePosition.SESSION_ID
+            + ", " + FenceDB.FencePosition.POSITION_TIME + ", " + FenceDB.FencePosition.LATITUDE_E7
+            + ", " + FenceDB.FencePosition.LONGITUDE_E7 + ", " + FenceDB.FencePosition.ALTITUDE
+            + ", " + FenceDB.FencePosition.DISTANCE + ", " + FenceDB.FencePosition.ACTIVITY
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * The decoded positions of an archive
+     */
+    private static final class Positions {
+
+        /**
+         * The number of positions
+         */
+        private final int mCount;
+
+        /**
+         * The ids
+         */
+        private final long[] mIds;
+
+        /**
+         * The times
+         */
+        private final long[] mTimes;
+
+        /**
+         * The latitudes in E7
+         */
+        private final int[] mLatitudesE7;
+
+        /**
+         * The longitudes in E7
+         */
+        private final int[] mLongitudesE7;
+
+        /**
+         * The altitudes in meters
+         */
+        private final double[] mAltitudes;
+
+        /**
+         * The distances in meters
+         */
+        private final double[] mDistances;
+
+        /**
+         * The activity types
+         */
+        private final int[] mActivityTypes;
+
+        /**
+         * The NULL_* flags
+         */
+        private final int[] mNullFlags;
+
+        private Positions(final int count) {
+            mCount = count;
+            mIds = new long[count];
+            mTimes = new long[count];
+            mLatitudesE7 = new int[count];
+            mLongitudesE7 = new int[count];
+            mAltitudes = new double[count];
+            mDistances = new double[count];
+            mActivityTypes = new int[count];
+            mNullFlags = new int[count];
+        }
+    }
+
+    /**
+     * The Cursor on all the positions of an archived session in order of time. It decodes the
+     * positions while it moves forward and it starts again from the first one when it moves back
+     */
+    private static final class TrackCursor extends AbstractPositionCursor {
+
+        /**
+         * The encoded positions
+         */
+        private final byte[] mTrack;
+
+        /**
+         * The number of positions
+         */
+        private final int mCount;
+
+        /**
+         * The offset of the first position into the track
+         */
+        private final int mStart;
+
+        /**
+         * True if the positions start with their null flags
+         */
+        private final boolean mHasNullFlags;
+
+        /**
+         * The offset of the next position to decode
+         */
+        private final int[] mOffset = new int[1];
+
+        /**
+         * The index of the last decoded position
+         */
+        private int mDecodedPosition;
+
+        /**
+         * The id of the last decoded position
+         */
+        private long mLastId;
+
+        /**
+         * The time of the last decoded position
+         */
+        private long mLastTime;
+
+        /**
+         * The latitude in E7 of the last decoded position
+         */
+        private long mLastLatitude;
+
+        /**
+         * The longitude in E7 of the last decoded position
+         */
+        private long mLastLongitude;
+
+        /**
+         * The altitude in decimeters of the last decoded position
+         */
+        private long mLastAltitude;
+
+        /**
+         * The distance in centimeters of the last decoded position
+         */
+        private long mLastDistance;
+
+        /**
+         * The activity type of the last decoded position
+         */
+        private long mLastActivity;
+
+        /**
+         * The null flags of the last decoded position
+         */
+        private int mLastNullFlags;
+
+        private TrackCursor(final String[] projection, final long sessionId, final byte[] track) {
+            super(projection, sessionId);
+            checkVersion(track);
+            mTrack = track;
+            mHasNullFlags = hasNullFlags(track);
+            mOffset[0] = 1;
+            mCount = (int) VarInt.readVarLong(track, mOffset);
+            mStart = mOffset[0];
+            rewind();
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            if (newPosition < mDecodedPosition) {
+                rewind();
+            }
+            while (mDecodedPosition < newPosition) {
+                final int nullFlags = mHasNullFlags ? (int) VarInt.readVarLong(mTrack, mOffset) : 0;
+                mLastId += VarInt.unZigZag(VarInt.readVarLong(mTrack, mOffset));
+                mLastTime += VarInt.unZigZag(VarInt.readVarLong(mTrack, mOffset));
+                mLastLatitude += readDelta(mTrack, mOffset, nullFlags, NULL_LATITUDE);
+                mLastLongitude += readDelta(mTrack, mOffset, nullFlags, NULL_LONGITUDE);
+                mLastAltitude += readDelta(mTrack, mOffset, nullFlags, NULL_ALTITUDE);
+                mLastDistance += readDelta(mTrack, mOffset, nullFlags, NULL_DISTANCE);
+                mLastActivity += readDelta(mTrack, mOffset, nullFlags, NULL_ACTIVITY);
+                mLastNullFlags = nullFlags;
+                mDecodedPosition++;
+            }
+            mId = mLastId;
+            mPositionTime = mLastTime;
+            mNullFlags = mLastNullFlags;
+            mLatitudeE7 = (int) valueOf(mLastLatitude, mNullFlags, NULL_LATITUDE);
+            mLongitudeE7 = (int) valueOf(mLastLongitude, mNullFlags, NULL_LONGITUDE);
+            mAltitude = valueOf(mLastAltitude, mNullFlags, NULL_ALTITUDE) / ALTITUDE_SCALE;
+            mDistance = valueOf(mLastDistance, mNullFlags, NULL_DISTANCE) / DISTANCE_SCALE;
+            mActivityType = (int) valueOf(mLastActivity, mNullFlags, NULL_ACTIVITY);
+            return true;
+        }
+
+        /**
+         * We start again from the first position
+         */
+        private void rewind() {
+            mOffset[0] = mStart;
+            mDecodedPosition = -1;
+            mLastId = 0L;
+            mLastTime = 0L;
+            mLastLatitude = 0L;
+            mLastLongitude = 0L;
+            mLastAltitude = 0L;
+            mLastDistance = 0L;
+            mLastActivity = 0L;
+            mLastNullFlags = 0;
+        }
+    }
+
+    /**
+     * Private constructor
+     */
+    private TrackArchive() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * Move the positions of the given session into the archive. If the session was already
+     * archived the new positions are merged with the archived ones. The summary of the session
+     * doesn't change because the positions are the same. It must be called into a transaction
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session to archive
+     * @return The Bundle with the number of archived positions and the size of the archive
+     */
+    static Bundle archive(final SQLiteDatabase db, final long sessionId) {
+        // Positions added after a previous archive are merged with it
+        restore(db, sessionId);
+        final String[] args = new String[]{String.valueOf(sessionId)};
+        final Cursor positionCursor = db.rawQuery(POSITIONS_SQL, args);
+        final int positionCount;
+        final byte[] track;
+        try {
+            positionCount = positionCursor.getCount();
+            track = positionCount > 0 ? encode(positionCursor) : null;
+        } finally {
+            positionCursor.close();
+        }
+        if (track != null) {
+            final ContentValues archiveValues = new ContentValues();
+            archiveValues.put(FenceDB.FenceTrackArchive.SESSION_ID, sessionId);
+            archiveValues.put(FenceDB.FenceTrackArchive.POSITION_COUNT, positionCount);
+            archiveValues.put(FenceDB.FenceTrackArchive.TRACK, track);
+            db.insertWithOnConflict(FenceDB.FenceTrackArchive.TABLE_NAME, null, archiveValues,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            // The bounding box of the session replaces its positions into the spatial index
+            db.delete(FenceDB.FenceTrackArchive.SPATIAL_INDEX_TABLE_NAME, "id = ?", args);
+            db.execSQL(INDEX_TRACK_SQL, args);
+            // We delete the rows directly so the summary is not calculated again
+            db.delete(FenceDB.FencePosition.TABLE_NAME, FenceDB.FencePosition.SESSION_ID + " = ?", args);
+        }
+        final Bundle result = new Bundle();
+        result.putInt(FenceDB.EXTRA_ARCHIVED_POSITION_COUNT, positionCount);
+        result.putInt(FenceDB.EXTRA_ARCHIVE_SIZE, track == null ? 0 : track.length);
+        return result;
+    }
+
+    /**
+     * Move the positions of the archive of the given session back into the FencePosition table.
+     * We use this before any change to the positions of an archived session. It must be called
+     * into a transaction
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session
+     * @return True if the session was archived
+     */
+    static boolean restore(final SQLiteDatabase db, final long sessionId) {
+        final Positions positions = load(db, sessionId);
+        if (positions == null) {
+            return false;
+        }
+        final SQLiteStatement insertStatement = db.compileStatement(RESTORE_POSITION_SQL);
+        try {
+            for (int i = 0; i < positions.mCount; i++) {
+                final int nullFlags = positions.mNullFlags[i];
+                insertStatement.bindLong(1, positions.mIds[i]);
+                insertStatement.bindLong(2, sessionId);
+                insertStatement.bindLong(3, positions.mTimes[i]);
+                bindLong(insertStatement, 4, positions.mLatitudesE7[i], nullFlags,
+                        AbstractPositionCursor.NULL_LATITUDE);
+                bindLong(insertStatement, 5, positions.mLongitudesE7[i], nullFlags,
+                        AbstractPositionCursor.NULL_LONGITUDE);
+                bindDouble(insertStatement, 6, positions.mAltitudes[i], nullFlags,
+                        AbstractPositionCursor.NULL_ALTITUDE);
+                bindDouble(insertStatement, 7, positions.mDistances[i], nullFlags,
+                        AbstractPositionCursor.NULL_DISTANCE);
+                bindLong(insertStatement, 8, positions.mActivityTypes[i], nullFlags,
+                        AbstractPositionCursor.NULL_ACTIVITY);
+                insertStatement.executeInsert();
+            }
+        } finally {
+            insertStatement.close();
+        }
+        // The trigger removes the session from the spatial index of the archive
+        db.delete(FenceDB.FenceTrackArchive.TABLE_NAME, SESSION_WHERE, new String[]{String.valueOf(sessionId)});
+        return true;
+    }
+
+    /**
+     * Return all the positions of an archived session in order of time. They are decoded while
+     * the Cursor moves so we use this for the exports of long sessions
+     *
+     * @param db         The SQLiteDatabase to use
+     * @param sessionId  The session
+     * @param projection The columns to return
+     * @return The Cursor with the positions or null if the session is not archived
+     */
+    static Cursor openTrack(final SQLiteDatabase db, final long sessionId, final String[] projection) {
+        final byte[] track = loadTrack(db, sessionId);
+        return track == null ? null : new TrackCursor(projection, sessionId, track);
+    }
+
+    /**
+     * Return the positions of an archived session for the given Uri of the positions. We
+     * manage the same parameters of the FencePosition Uris but not a selection of the caller
+     *
+     * @param db         The SQLiteDatabase to use
+     * @param uriMatch   The type of the Uri
+     * @param uri        The Uri
+     * @param projection The columns to return
+     * @param selection  The selection of the caller
+     * @param sortOrder  The order of the caller
+     * @return The Cursor with the positions or null if the session is not archived
+     */
+    static Cursor query(final SQLiteDatabase db, final int uriMatch, final Uri uri, final String[] projection,
+                        final String selection, final String sortOrder) {
+        final long sessionId = Long.parseLong(uri.getPathSegments().get(1));
+        final byte[] track = loadTrack(db, sessionId);
+        if (track == null) {
+            return null;
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            throw new IllegalArgumentException("A selection is not supported for the archived session " + sessionId);
+        }
+        if (uriMatch == FenceContentProvider.POSITION_DIR_INDICATOR && uri.getQuery() == null
+                && (TextUtils.isEmpty(sortOrder) || !sortOrder.toUpperCase(Locale.US).contains("DESC"))) {
+            // All the positions in order of time so we don't need to decode them all
+            return new TrackCursor(projection, sessionId, track);
+        }
+        final Positions positions = decode(track);
+        // The constraints from the Uri
+        long afterTime = Long.MIN_VALUE;
+        long afterId = Long.MAX_VALUE;
+        long beforeTime = Long.MAX_VALUE;
+        long beforeId = Long.MIN_VALUE;
+        int limit = Integer.MAX_VALUE;
+        long positionId = -1L;
+        int minLatitude = Integer.MIN_VALUE;
+        int maxLatitude = Integer.MAX_VALUE;
+        int minLongitude = Integer.MIN_VALUE;
+        int maxLongitude = Integer.MAX_VALUE;
+        boolean descending = false;
+        // The positions without coordinates are never into a bounding box as into the R*Tree
+        int coordinateNullFlags = 0;
+        if (uriMatch == FenceContentProvider.POSITION_ITEM_INDICATOR) {
+            positionId = Long.parseLong(uri.getPathSegments().get(3));
+        } else if (uriMatch == FenceContentProvider.POSITION_BOUNDING_BOX_INDICATOR) {
+            minLatitude = CoordinateUtil.toE7(Double.parseDouble(uri.getQueryParameter(FenceDB.MIN_LATITUDE_PARAM)));
+            maxLatitude = CoordinateUtil.toE7(Double.parseDouble(uri.getQueryParameter(FenceDB.MAX_LATITUDE_PARAM)));
+            minLongitude = CoordinateUtil.toE7(Double.parseDouble(uri.getQueryParameter(FenceDB.MIN_LONGITUDE_PARAM)));
+            maxLongitude = CoordinateUtil.toE7(Double.parseDouble(uri.getQueryParameter(FenceDB.MAX_LONGITUDE_PARAM)));
+            coordinateNullFlags = AbstractPositionCursor.NULL_LATITUDE | AbstractPositionCursor.NULL_LONGITUDE;
+        } else {
+            final String afterParam = uri.getQueryParameter(FenceDB.FencePosition.AFTER_TIME_PARAM);
+            final String beforeParam = uri.getQueryParameter(FenceDB.FencePosition.BEFORE_TIME_PARAM);
+            final String limitParam = uri.getQueryParameter(FenceDB.FencePosition.LIMIT_PARAM);
+            final String afterIdParam = uri.getQueryParameter(FenceDB.FencePosition.AFTER_ID_PARAM);
+            final String beforeIdParam = uri.getQueryParameter(FenceDB.FencePosition.BEFORE_ID_PARAM);
+            if (afterParam != null) {
+                afterTime = Long.parseLong(afterParam);
+            }
+            if (afterIdParam != null) {
+                afterId = Long.parseLong(afterIdParam);
+            }
+            if (beforeParam != null) {
+                beforeTime = Long.parseLong(beforeParam);
+            }
+            if (beforeIdParam != null) {
+                beforeId = Long.parseLong(beforeIdParam);
+            }
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam);
+            }
+            // The same default order of the UriSelection for the pages
+            descending = beforeParam != null && afterParam == null;
+        }
+        if (!TextUtils.isEmpty(sortOrder)) {
+            // The archived positions can only be sorted by time
+            descending = sortOrder.toUpperCase(Locale.US).contains("DESC");
+        }
+        final int[] selectedRows = new int[positions.mCount];
+        int selectedCount = 0;
+        for (int i = 0; i < positions.mCount && selectedCount < limit; i++) {
+            final int row = descending ? positions.mCount - 1 - i : i;
+            // The key is the time and then the id as for the positions into the table
+            final long time = positions.mTimes[row];
+            if (time < afterTime || (time == afterTime && positions.mIds[row] <= afterId)
+                    || time > beforeTime || (time == beforeTime && positions.mIds[row] >= beforeId)) {
+                continue;
+            }
+            if (positionId >= 0 && positions.mIds[row] != positionId) {
+                continue;
+            }
+            if ((positions.mNullFlags[row] & coordinateNullFlags) != 0) {
+                continue;
+            }
+            if (positions.mLatitudesE7[row] < minLatitude || positions.mLatitudesE7[row] > maxLatitude
+                    || !isInLongitudeRange(positions.mLongitudesE7[row], minLongitude, maxLongitude)) {
+                continue;
+            }
+            selectedRows[selectedCount++] = row;
+        }
+        final int[] rows = new int[selectedCount];
+        System.arraycopy(selectedRows, 0, rows, 0, selectedCount);
+        return new ArchivedPositionCursor(projection, sessionId, positions.mIds, positions.mTimes,
+                positions.mLatitudesE7, positions.mLongitudesE7, positions.mAltitudes, positions.mDistances,
+                positions.mActivityTypes, positions.mNullFlags, rows);
+    }
+
+    /**
+     * Return the positions of the archived sessions into the bounding box of the given Uri of
+     * the positions of all the sessions. We decode only the sessions with a bounding box into
+     * the spatial index of the archive that intersects the one of the Uri
+     *
+     * @param db         The SQLiteDatabase to use
+     * @param uri        The Uri of the bounding box of all the positions
+     * @param projection The columns to return
+     * @param selection  The selection of the caller
+     * @param sortOrder  The order of the caller
+     * @return The Cursor with the archived positions into the bounding box or null if no
+     * archived session intersects it
+     */
+    static Cursor queryBoundingBox(final SQLiteDatabase db, final Uri uri, final String[] projection,
+                                   final String selection, final String sortOrder) {
+        final double minLatitude = Double.parseDouble(uri.getQueryParameter(FenceDB.MIN_LATITUDE_PARAM));
+        final double maxLatitude = Double.parseDouble(uri.getQueryParameter(FenceDB.MAX_LATITUDE_PARAM));
+        final double minLongitude = Double.parseDouble(uri.getQueryParameter(FenceDB.MIN_LONGITUDE_PARAM));
+        final double maxLongitude = Double.parseDouble(uri.getQueryParameter(FenceDB.MAX_LONGITUDE_PARAM));
+        final String[] sessionArgs;
+        final String sessionSql;
+        if (minLongitude <= maxLongitude) {
+            sessionSql = INTERSECTING_SESSIONS_SQL;
+            sessionArgs = new String[]{String.valueOf(minLatitude), String.valueOf(maxLatitude),
+                    String.valueOf(minLongitude), String.valueOf(maxLongitude)};
+        } else {
+            // The box crosses the 180th meridian so we look for the two ranges of longitudes
+            sessionSql = INTERSECTING_SESSIONS_SQL + " UNION " + INTERSECTING_SESSIONS_SQL;
+            sessionArgs = new String[]{String.valueOf(minLatitude), String.valueOf(maxLatitude),
+                    String.valueOf(minLongitude), String.valueOf(MAX_LONGITUDE), String.valueOf(minLatitude),
+                    String.valueOf(maxLatitude), String.valueOf(-MAX_LONGITUDE), String.valueOf(maxLongitude)};
+        }
+        final List<Cursor> sessionCursors = new ArrayList<Cursor>();
+        final Cursor sessionCursor = db.rawQuery(sessionSql, sessionArgs);
+        try {
+            while (sessionCursor.moveToNext()) {
+                final Uri sessionUri = FenceDB.FencePosition.getBoundingBoxUriForSession(sessionCursor.getLong(0),
+                        minLatitude, minLongitude, maxLatitude, maxLongitude);
+                final Cursor positionCursor = query(db, FenceContentProvider.POSITION_BOUNDING_BOX_INDICATOR,
+                        sessionUri, projection, selection, sortOrder);
+                if (positionCursor == null) {
+                    continue;
+                }
+                if (positionCursor.getCount() == 0) {
+                    positionCursor.close();
+                } else {
+                    sessionCursors.add(positionCursor);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (Cursor cursor : sessionCursors) {
+                cursor.close();
+            }
+            throw e;
+        } finally {
+            sessionCursor.close();
+        }
+        if (sessionCursors.isEmpty()) {
+            return null;
+        }
+        return sessionCursors.size() == 1 ? sessionCursors.get(0)
+                : new FencePositionMergeCursor(sessionCursors.toArray(new Cursor[sessionCursors.size()]));
+    }
+
+    /**
+     * @param longitude    The longitude in E7
+     * @param minLongitude The min longitude of the box in E7
+     * @param maxLongitude The max longitude of the box in E7
+     * @return True if the longitude is into the box. If the min longitude is bigger than the max
+     * the box crosses the 180th meridian
+     */
+    private static boolean isInLongitudeRange(final int longitude, final int minLongitude, final int maxLongitude) {
+        if (minLongitude <= maxLongitude) {
+            return longitude >= minLongitude && longitude <= maxLongitude;
+        }
+        return longitude >= minLongitude || longitude <= maxLongitude;
+    }
+
+    /**
+     * Read and decode the archive of the given session
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session
+     * @return The positions or null if the session is not archived
+     */
+    private static Positions load(final SQLiteDatabase db, final long sessionId) {
+        final byte[] track = loadTrack(db, sessionId);
+        return track == null ? null : decode(track);
+    }
+
+    /**
+     * Read the encoded archive of the given session
+     *
+     * @param db        The SQLiteDatabase to use
+     * @param sessionId The session
+     * @return The encoded positions or null if the session is not archived
+     */
+    private static byte[] loadTrack(final SQLiteDatabase db, final long sessionId) {
+        final Cursor archiveCursor = db.query(FenceDB.FenceTrackArchive.TABLE_NAME,
+                new String[]{FenceDB.FenceTrackArchive.TRACK}, SESSION_WHERE,
+                new String[]{String.valueOf(sessionId)}, null, null, null);
+        try {
+            return archiveCursor.moveToFirst() ? archiveCursor.getBlob(0) : null;
+        } finally {
+            archiveCursor.close();
+        }
+    }
+
+    /**
+     * Encode the positions of the given Cursor. The columns are the ones of POSITIONS_SQL
+     *
+     * @param positionCursor The Cursor with the positions in order of time
+     * @return The encoded positions
+     */
+    static byte[] encode(final Cursor positionCursor) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(positionCursor.getCount() * 8);
+        output.write(FORMAT_VERSION);
+        VarInt.writeVarLong(output, positionCursor.getCount());
+        long lastId = 0L;
+        long lastTime = 0L;
+        long lastLatitude = 0L;
+        long lastLongitude = 0L;
+        long lastAltitude = 0L;
+        long lastDistance = 0L;
+        long lastActivity = 0L;
+        while (positionCursor.moveToNext()) {
+            final int nullFlags = readNullFlags(positionCursor);
+            final long id = positionCursor.getLong(0);
+            final long time = positionCursor.getLong(1);
+            VarInt.writeVarLong(output, nullFlags);
+            VarInt.writeVarLong(output, VarInt.zigZag(id - lastId));
+            VarInt.writeVarLong(output, VarInt.zigZag(time - lastTime));
+            lastId = id;
+            lastTime = time;
+            // The null values are not written and don't change the previous value
+            if ((nullFlags & AbstractPositionCursor.NULL_LATITUDE) == 0) {
+                final long latitude = positionCursor.getInt(2);
+                VarInt.writeVarLong(output, VarInt.zigZag(latitude - lastLatitude));
+                lastLatitude = latitude;
+            }
+            if ((nullFlags & AbstractPositionCursor.NULL_LONGITUDE) == 0) {
+                final long longitude = positionCursor.getInt(3);
+                VarInt.writeVarLong(output, VarInt.zigZag(longitude - lastLongitude));
+                lastLongitude = longitude;
+            }
+            if ((nullFlags & AbstractPositionCursor.NULL_ALTITUDE) == 0) {
+                final long altitude = Math.round(positionCursor.getDouble(4) * ALTITUDE_SCALE);
+                VarInt.writeVarLong(output, VarInt.zigZag(altitude - lastAltitude));
+                lastAltitude = altitude;
+            }
+            if ((nullFlags & AbstractPositionCursor.NULL_DISTANCE) == 0) {
+                final long distance = Math.round(positionCursor.getDouble(5) * DISTANCE_SCALE);
+                VarInt.writeVarLong(output, VarInt.zigZag(distance - lastDistance));
+                lastDistance = distance;
+            }
+            if ((nullFlags & AbstractPositionCursor.NULL_ACTIVITY) == 0) {
+                final long activity = positionCursor.getInt(6);
+                VarInt.writeVarLong(output, VarInt.zigZag(activity - lastActivity));
+                lastActivity = activity;
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @param positionCursor The Cursor with the columns of POSITIONS_SQL
+     * @return The NULL_* flags of the null values of the current position
+     */
+    private static int readNullFlags(final Cursor positionCursor) {
+        int nullFlags = 0;
+        if (positionCursor.isNull(2)) {
+            nullFlags |= AbstractPositionCursor.NULL_LATITUDE;
+        }
+        if (positionCursor.isNull(3)) {
+            nullFlags |= AbstractPositionCursor.NULL_LONGITUDE;
+        }
+        if (positionCursor.isNull(4)) {
+            nullFlags |= AbstractPositionCursor.NULL_ALTITUDE;
+        }
+        if (positionCursor.isNull(5)) {
+            nullFlags |= AbstractPositionCursor.NULL_DISTANCE;
+        }
+        if (positionCursor.isNull(6)) {
+            nullFlags |= AbstractPositionCursor.NULL_ACTIVITY;
+        }
+        return nullFlags;
+    }
+
+    /**
+     * Decode the given archive
+     *
+     * @param track The encoded positions
+     * @return The decoded positions
+     */
+    private static Positions decode(final byte[] track) {
+        checkVersion(track);
+        final int[] offset = new int[]{1};
+        final Positions positions = new Positions((int) VarInt.readVarLong(track, offset));
+        final boolean hasNullFlags = hasNullFlags(track);
+        long id = 0L;
+        long time = 0L;
+        long latitude = 0L;
+        long longitude = 0L;
+        long altitude = 0L;
+        long distance = 0L;
+        long activity = 0L;
+        for (int i = 0; i < positions.mCount; i++) {
+            final int nullFlags = hasNullFlags ? (int) VarInt.readVarLong(track, offset) : 0;
+            id += VarInt.unZigZag(VarInt.readVarLong(track, offset));
+            time += VarInt.unZigZag(VarInt.readVarLong(track, offset));
+            latitude += readDelta(track, offset, nullFlags, AbstractPositionCursor.NULL_LATITUDE);
+            longitude += readDelta(track, offset, nullFlags, AbstractPositionCursor.NULL_LONGITUDE);
+            altitude += readDelta(track, offset, nullFlags, AbstractPositionCursor.NULL_ALTITUDE);
+            distance += readDelta(track, offset, nullFlags, AbstractPositionCursor.NULL_DISTANCE);
+            activity += readDelta(track, offset, nullFlags, AbstractPositionCursor.NULL_ACTIVITY);
+            positions.mIds[i] = id;
+            positions.mTimes[i] = time;
+            positions.mLatitudesE7[i] = (int) valueOf(latitude, nullFlags, AbstractPositionCursor.NULL_LATITUDE);
+            positions.mLongitudesE7[i] = (int) valueOf(longitude, nullFlags, AbstractPositionCursor.NULL_LONGITUDE);
+            positions.mAltitudes[i] = valueOf(altitude, nullFlags, AbstractPositionCursor.NULL_ALTITUDE)
+                    / ALTITUDE_SCALE;
+            positions.mDistances[i] = valueOf(distance, nullFlags, AbstractPositionCursor.NULL_DISTANCE)
+                    / DISTANCE_SCALE;
+            positions.mActivityTypes[i] = (int) valueOf(activity, nullFlags, AbstractPositionCursor.NULL_ACTIVITY);
+            positions.mNullFlags[i] = nullFlags;
+        }
+        return positions;
+    }
+
+    /**
+     * @param track     The encoded positions
+     * @param offset    The offset of the next value into the track. It's moved after the value
+     * @param nullFlags The NULL_* flags of the position
+     * @param nullFlag  The NULL_* flag of the value
+     * @return The difference from the previous value or 0 if the value is null so not written
+     */
+    private static long readDelta(final byte[] track, final int[] offset, final int nullFlags, final int nullFlag) {
+        return (nullFlags & nullFlag) != 0 ? 0L : VarInt.unZigZag(VarInt.readVarLong(track, offset));
+    }
+
+    /**
+     * @param value     The last value that is not null
+     * @param nullFlags The NULL_* flags of the position
+     * @param nullFlag  The NULL_* flag of the value
+     * @return The value for the position, 0 if it is null
+     */
+    private static long valueOf(final long value, final int nullFlags, final int nullFlag) {
+        return (nullFlags & nullFlag) != 0 ? 0L : value;
+    }
+
+    /**
+     * @param statement The statement to bind
+     * @param index     The index of the parameter
+     * @param value     The value
+     * @param nullFlags The NULL_* flags of the position
+     * @param nullFlag  The NULL_* flag of the value
+     */
+    private static void bindLong(final SQLiteStatement statement, final int index, final long value,
+                                 final int nullFlags, final int nullFlag) {
+        if ((nullFlags & nullFlag) != 0) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    /**
+     * @param statement The statement to bind
+     * @param index     The index of the parameter
+     * @param value     The value
+     * @param nullFlags The NULL_* flags of the position
+     * @param nullFlag  The NULL_* flag of the value
+     */
+    private static void bindDouble(final SQLiteStatement statement, final int index, final double value,
+                                   final int nullFlags, final int nullFlag) {
+        if ((nullFlags & nullFlag) != 0) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    /**
+     * @param track The encoded positions
+     * @return True if every position starts with its null flags
+     */
+    private static boolean hasNullFlags(final byte[] track) {
+        return track[0] != FIRST_FORMAT_VERSION;
+    }
+
+    /**
+     * @param track The encoded positions
+     * @throws IllegalStateException If the format of the track is not supported
+     */
+    private static void checkVersion(final byte[] track) {
+        if (track.length == 0 || (track[0] != FORMAT_VERSION && track[0] != FIRST_FORMAT_VERSION)) {
+            throw new IllegalStateException("Unsupported archive format " + (track.length == 0 ? -1 : track[0]));
+        }
+    }
+}
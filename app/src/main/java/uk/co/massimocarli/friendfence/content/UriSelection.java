@@ -0,0 +1,399 @@
+package uk.co.massimocarli.friendfence.content;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.List;
+
+/**
+ * This is the object that translates a Uri of the FenceContentProvider into the table and the
+ * where clause to use. The ids into the Uri path are never concatenated into the SQL but they
+ * are bound as arguments before the ones of the caller. In this way the SQL for a given type of
+ * Uri is always the same and SQLite can reuse the related prepared statement.
+ */
+final class UriSelection {
+
+    /**
+     * The tables for the queries of the sessions. We add the summary so the session list
+     * doesn't need to read the positions
+     */
+    private static final String SESSION_WITH_SUMMARY_TABLES = FenceDB.FenceSession.TABLE_NAME
+            + " LEFT OUTER JOIN " + FenceDB.FenceSessionSummary.TABLE_NAME + " ON ("
+            + FenceDB.FenceSession.TABLE_NAME + "." + FenceDB.FenceSession._ID + " = "
+            + FenceDB.FenceSessionSummary.TABLE_NAME + "." + FenceDB.FenceSessionSummary.SESSION_ID + ")";
+
+    /**
+     * The max longitude of a bounding box
+     */
+    private static final double MAX_LONGITUDE = 180.0;
+
+    /**
+     * The table to use
+     */
+    private final String mTable;
+
+    /**
+     * The where clause with the constraints from the Uri and the caller
+     */
+    private final String mWhere;
+
+    /**
+     * The arguments for the where clause
+     */
+    private final String[] mArgs;
+
+    /**
+     * The limit for the number of rows or null
+     */
+    private final String mLimit;
+
+    /**
+     * The order to use if the caller doesn't provide one or null
+     */
+    private final String mDefaultSortOrder;
+
+    /**
+     * Creates an UriSelection
+     *
+     * @param table The table to use
+     * @param where The where clause
+     * @param args  The arguments
+     */
+    private UriSelection(final String table, final String where, final String[] args) {
+        this(table, where, args, null, null);
+    }
+
+    /**
+     * Creates an UriSelection with a limit and a default order
+     *
+     * @param table            The table to use
+     * @param where            The where clause
+     * @param args             The arguments
+     * @param limit            The limit or null
+     * @param defaultSortOrder The default order or null
+     */
+    private UriSelection(final String table, final String where, final String[] args,
+                         final String limit, final String defaultSortOrder) {
+        mTable = table;
+        mWhere = where;
+        mArgs = args;
+        mLimit = limit;
+        mDefaultSortOrder = defaultSortOrder;
+    }
+
+    /**
+     * Static Factory Method for the UriSelection
+     *
+     * @param uriMatch      The type of the Uri from the UriMatcher
+     * @param uri           The Uri
+     * @param selection     The selection of the caller
+     * @param selectionArgs The args of the caller
+     * @return The UriSelection or null if the type of the Uri is not supported
+     */
+    static UriSelection create(final int uriMatch, final Uri uri, final String selection,
+                               final String[] selectionArgs) {
+        final List<String> pathSegments = uri.getPathSegments();
+        switch (uriMatch) {
+            case FenceContentProvider.SESSION_DIR_INDICATOR:
+                return new UriSelection(FenceDB.FenceSession.TABLE_NAME, selection, selectionArgs);
+            case FenceContentProvider.SESSION_ITEM_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>
+                return new UriSelection(FenceDB.FenceSession.TABLE_NAME,
+                        where(selection, FenceDB.FenceSession._ID),
+                        args(selectionArgs, pathSegments.get(1)));
+            case FenceContentProvider.POSITION_DIR_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>/position
+                return createPositionPage(uri, selection, selectionArgs, pathSegments.get(1));
+            case FenceContentProvider.POSITION_ITEM_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>/position/<positionId>
+                return new UriSelection(FenceDB.FencePosition.TABLE_NAME,
+                        where(selection, FenceDB.FencePosition.SESSION_ID, FenceDB.FencePosition._ID),
+                        args(selectionArgs, pathSegments.get(1), pathSegments.get(3)));
+            case FenceContentProvider.SUMMARY_ITEM_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>/summary
+                return new UriSelection(FenceDB.FenceSessionSummary.TABLE_NAME,
+                        where(selection, FenceDB.FenceSessionSummary.SESSION_ID),
+                        args(selectionArgs, pathSegments.get(1)));
+            case FenceContentProvider.ACTIVITY_SUMMARY_DIR_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>/summary/activity
+                return new UriSelection(FenceDB.FenceActivitySummary.TABLE_NAME,
+                        where(selection, FenceDB.FenceActivitySummary.SESSION_ID),
+                        args(selectionArgs, pathSegments.get(1)));
+            case FenceContentProvider.POSITION_BOUNDING_BOX_INDICATOR:
+                // The Uri is of the type AUTHORITY/session/<sessionId>/position/bbox
+                return createBoundingBox(uri, FenceDB.FencePosition.TABLE_NAME,
+                        FenceDB.FencePosition.SPATIAL_INDEX_TABLE_NAME,
+                        FenceDB.FencePosition.SESSION_ID + " = ?", pathSegments.get(1), selection, selectionArgs);
+            case FenceContentProvider.ALL_POSITION_BOUNDING_BOX_INDICATOR:
+                // The Uri is of the type AUTHORITY/position/bbox
+                return createBoundingBox(uri, FenceDB.FencePosition.TABLE_NAME,
+                        FenceDB.FencePosition.SPATIAL_INDEX_TABLE_NAME, null, null, selection, selectionArgs);
+            case FenceContentProvider.GEOFENCE_DIR_INDICATOR:
+                return new UriSelection(FenceDB.Geofence.TABLE_NAME, selection, selectionArgs);
+            case FenceContentProvider.GEOFENCE_BOUNDING_BOX_INDICATOR:
+                // The Uri is of the type AUTHORITY/geofence/bbox
+                return createBoundingBox(uri, FenceDB.Geofence.TABLE_NAME,
+                        FenceDB.Geofence.SPATIAL_INDEX_TABLE_NAME, null, null, selection, selectionArgs);
+            case FenceContentProvider.GEOFENCE_ITEM_INDICATOR:
+                // The Uri is of the type AUTHORITY/geofence/<fenceId>
+                return new UriSelection(FenceDB.Geofence.TABLE_NAME,
+                        where(selection, FenceDB.Geofence._ID),
+                        args(selectionArgs, pathSegments.get(1)));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates the UriSelection for the positions of a session managing the parameters for the
+     * keyset paging. With after_time we return the positions after the given time in ascending
+     * order and with before_time the ones before the given time in descending order. The key is
+     * the time together with the id of the position so with after_id and before_id the next page
+     * starts exactly after the last row of the previous one, also if other rows have its same
+     * time. SQLite can use the (session_id, position_time) index for this
+     *
+     * @param uri           The Uri
+     * @param selection     The selection of the caller
+     * @param selectionArgs The args of the caller
+     * @param sessionId     The sessionId from the Uri
+     * @return The UriSelection for the positions
+     */
+    private static UriSelection createPositionPage(final Uri uri, final String selection,
+                                                   final String[] selectionArgs, final String sessionId) {
+        final String afterTime = uri.getQueryParameter(FenceDB.FencePosition.AFTER_TIME_PARAM);
+        final String beforeTime = uri.getQueryParameter(FenceDB.FencePosition.BEFORE_TIME_PARAM);
+        final String limit = uri.getQueryParameter(FenceDB.FencePosition.LIMIT_PARAM);
+        final StringBuilder pageSelection = new StringBuilder();
+        String[] pageArgs = new String[]{sessionId};
+        if (afterTime != null) {
+            pageArgs = appendKey(pageSelection, pageArgs, " > ?", afterTime,
+                    uri.getQueryParameter(FenceDB.FencePosition.AFTER_ID_PARAM));
+        }
+        if (beforeTime != null) {
+            if (pageSelection.length() > 0) {
+                pageSelection.append(" AND ");
+            }
+            pageArgs = appendKey(pageSelection, pageArgs, " < ?", beforeTime,
+                    uri.getQueryParameter(FenceDB.FencePosition.BEFORE_ID_PARAM));
+        }
+        final StringBuilder where = new StringBuilder("( ").append(FenceDB.FencePosition.SESSION_ID)
+                .append(" = ? )");
+        if (pageSelection.length() > 0) {
+            where.append(" AND ( ").append(pageSelection).append(" )");
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND ( ").append(selection).append(" )");
+        }
+        final String defaultSortOrder;
+        if (beforeTime != null && afterTime == null) {
+            defaultSortOrder = FenceDB.FencePosition.POSITION_TIME + " DESC, " + FenceDB.FencePosition._ID + " DESC";
+        } else if (afterTime != null || limit != null) {
+            defaultSortOrder = FenceDB.FencePosition.POSITION_TIME + " ASC, " + FenceDB.FencePosition._ID + " ASC";
+        } else {
+            defaultSortOrder = null;
+        }
+        return new UriSelection(FenceDB.FencePosition.TABLE_NAME, where.toString(),
+                args(selectionArgs, pageArgs), limit == null ? null : String.valueOf(parseLong(limit)),
+                defaultSortOrder);
+    }
+
+    /**
+     * Add the constraint for one side of the keyset of the positions. Without the id we only
+     * compare the time
+     *
+     * @param pageSelection The selection of the page
+     * @param pageArgs      The arguments of the page
+     * @param comparison    The comparison with its parameter
+     * @param time          The time of the key
+     * @param id            The id of the key or null
+     * @return The arguments of the page with the ones for the key
+     */
+    private static String[] appendKey(final StringBuilder pageSelection, final String[] pageArgs,
+                                      final String comparison, final String time, final String id) {
+        final String timeArg = String.valueOf(parseLong(time));
+        if (id == null) {
+            pageSelection.append(FenceDB.FencePosition.POSITION_TIME).append(comparison);
+            return append(pageArgs, timeArg);
+        }
+        pageSelection.append("( ").append(FenceDB.FencePosition.POSITION_TIME).append(comparison)
+                .append(" OR ( ").append(FenceDB.FencePosition.POSITION_TIME).append(" = ? AND ")
+                .append(FenceDB.FencePosition._ID).append(comparison).append(" ) )");
+        return append(append(append(pageArgs, timeArg), timeArg), String.valueOf(parseLong(id)));
+    }
+
+    /**
+     * Creates the UriSelection for the items into the bounding box of the Uri. The ids of the
+     * items are read from the R*Tree table so we don't scan the table of the items
+     *
+     * @param uri           The Uri with the bounding box
+     * @param table         The table of the items
+     * @param spatialTable  The R*Tree table for the items
+     * @param pathWhere     The constraint from the path of the Uri or null
+     * @param pathArg       The argument for the constraint from the path or null
+     * @param selection     The selection of the caller
+     * @param selectionArgs The args of the caller
+     * @return The UriSelection for the items into the bounding box
+     */
+    private static UriSelection createBoundingBox(final Uri uri, final String table, final String spatialTable,
+                                                  final String pathWhere, final String pathArg,
+                                                  final String selection, final String[] selectionArgs) {
+        // We only keep points into the R*Tree so the bounding box has to contain them
+        final String minLatitude = String.valueOf(parseDouble(uri, FenceDB.MIN_LATITUDE_PARAM));
+        final String maxLatitude = String.valueOf(parseDouble(uri, FenceDB.MAX_LATITUDE_PARAM));
+        final double minLongitude = parseDouble(uri, FenceDB.MIN_LONGITUDE_PARAM);
+        final double maxLongitude = parseDouble(uri, FenceDB.MAX_LONGITUDE_PARAM);
+        final String rangeSql = "SELECT id FROM " + spatialTable + " WHERE min_latitude >= ? AND max_latitude <= ?"
+                + " AND min_longitude >= ? AND max_longitude <= ?";
+        final StringBuilder where = new StringBuilder("( ").append(BaseColumns._ID).append(" IN (").append(rangeSql);
+        String[] boundingBoxArgs;
+        if (minLongitude <= maxLongitude) {
+            boundingBoxArgs = new String[]{minLatitude, maxLatitude, String.valueOf(minLongitude),
+                    String.valueOf(maxLongitude)};
+        } else {
+            // The box crosses the 180th meridian so we look for the two ranges of longitudes
+            where.append(" UNION ALL ").append(rangeSql);
+            boundingBoxArgs = new String[]{minLatitude, maxLatitude, String.valueOf(minLongitude),
+                    String.valueOf(MAX_LONGITUDE), minLatitude, maxLatitude, String.valueOf(-MAX_LONGITUDE),
+                    String.valueOf(maxLongitude)};
+        }
+        where.append(") )");
+        if (pathWhere != null) {
+            where.append(" AND ( ").append(pathWhere).append(" )");
+            boundingBoxArgs = append(boundingBoxArgs, pathArg);
+        }
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND ( ").append(selection).append(" )");
+        }
+        return new UriSelection(table, where.toString(), args(selectionArgs, boundingBoxArgs));
+    }
+
+    /**
+     * Parse a mandatory numeric parameter of the Uri
+     *
+     * @param uri  The Uri
+     * @param name The name of the parameter
+     * @return The value as double
+     */
+    private static double parseDouble(final Uri uri, final String name) {
+        final String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("The parameter " + name + " is missing in " + uri);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The parameter " + name + " is not a number", e);
+        }
+    }
+
+    /**
+     * Parse a numeric parameter of the Uri
+     *
+     * @param value The value to parse
+     * @return The value as long
+     */
+    private static long parseLong(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The parameter " + value + " is not a number", e);
+        }
+    }
+
+    /**
+     * @param array The array
+     * @param value The value to add
+     * @return A new array with the value at the end
+     */
+    private static String[] append(final String[] array, final String value) {
+        final String[] newArray = new String[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = value;
+        return newArray;
+    }
+
+    /**
+     * Creates the where clause with a parameter for every column followed by the selection
+     * of the caller
+     *
+     * @param selection The selection of the caller
+     * @param columns   The columns from the Uri
+     * @return The where clause
+     */
+    private static String where(final String selection, final String... columns) {
+        final StringBuilder where = new StringBuilder("( ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                where.append(" AND ");
+            }
+            where.append(columns[i]).append(" = ?");
+        }
+        where.append(" )");
+        if (!TextUtils.isEmpty(selection)) {
+            where.append(" AND ( ").append(selection).append(" )");
+        }
+        return where.toString();
+    }
+
+    /**
+     * Merges the values from the Uri with the ones of the caller. The ones from the Uri are
+     * the first because the related parameters are the first into the where clause
+     *
+     * @param selectionArgs The args of the caller
+     * @param pathArgs      The values from the Uri
+     * @return The args to bind
+     */
+    private static String[] args(final String[] selectionArgs, final String... pathArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return pathArgs;
+        }
+        final String[] args = new String[pathArgs.length + selectionArgs.length];
+        System.arraycopy(pathArgs, 0, args, 0, pathArgs.length);
+        System.arraycopy(selectionArgs, 0, args, pathArgs.length, selectionArgs.length);
+        return args;
+    }
+
+    /**
+     * @return The table to use
+     */
+    String getTable() {
+        return mTable;
+    }
+
+    /**
+     * @return The tables to use for the queries
+     */
+    String getQueryTables() {
+        return FenceDB.FenceSession.TABLE_NAME.equals(mTable) ? SESSION_WITH_SUMMARY_TABLES : mTable;
+    }
+
+    /**
+     * @return The where clause
+     */
+    String getWhere() {
+        return mWhere;
+    }
+
+    /**
+     * @return The arguments for the where clause
+     */
+    String[] getArgs() {
+        return mArgs;
+    }
+
+    /**
+     * @return The limit for the number of rows or null
+     */
+    String getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @param sortOrder The order of the caller
+     * @return The order of the caller if any or the default one for the Uri
+     */
+    String getSortOrder(final String sortOrder) {
+        return TextUtils.isEmpty(sortOrder) ? mDefaultSortOrder : sortOrder;
+    }
+}
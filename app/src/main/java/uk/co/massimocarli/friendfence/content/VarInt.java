@@ -0,0 +1,111 @@
+package uk.co.massimocarli.friendfence.content;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This is the utility class for the varint encoding we use into the TrackArchive and into the
+ * binary export of the sessions. A value uses 7 bits for every byte and the highest bit says if
+ * other bytes follow. Signed values are zigzag encoded first so small negative values are small
+ * numbers too.
+ */
+final class VarInt {
+
+    /**
+     * Private constructor
+     */
+    private VarInt() {
+        throw new AssertionError("Never instantiate me! I'm an utility class!");
+    }
+
+    /**
+     * @param value A signed value
+     * @return The value with the sign into the lowest bit
+     */
+    static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @param value A zigzag encoded value
+     * @return The signed value
+     */
+    static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1L);
+    }
+
+    /**
+     * Write the value as a varint
+     *
+     * @param out   The stream to write into
+     * @param value The value to write
+     * @throws IOException In case of error writing the stream
+     */
+    static void writeVarLong(final OutputStream out, final long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0L) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    /**
+     * Write the value as a varint into memory
+     *
+     * @param output The output
+     * @param value  The value to write
+     */
+    static void writeVarLong(final ByteArrayOutputStream output, final long value) {
+        try {
+            writeVarLong((OutputStream) output, value);
+        } catch (IOException ioe) {
+            // A ByteArrayOutputStream never throws it
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    /**
+     * @param in The stream to read from
+     * @return The value written with writeVarLong()
+     * @throws IOException In case of error reading the stream or if it ends into the value
+     */
+    static long readVarLong(final InputStream in) throws IOException {
+        long value = 0L;
+        int shift = 0;
+        int current;
+        do {
+            current = in.read();
+            if (current < 0) {
+                throw new EOFException("Truncated varint");
+            }
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Read a value written with writeVarLong()
+     *
+     * @param input  The bytes to read
+     * @param offset The position where to read which is updated after the value
+     * @return The value
+     */
+    static long readVarLong(final byte[] input, final int[] offset) {
+        long value = 0L;
+        int shift = 0;
+        int position = offset[0];
+        byte current;
+        do {
+            current = input[position++];
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        offset[0] = position;
+        return value;
+    }
+}
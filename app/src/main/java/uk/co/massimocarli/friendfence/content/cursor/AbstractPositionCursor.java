@@ -0,0 +1,342 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.os.Build;
+
+import java.util.Date;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * This is the base class of the Cursors for the positions which are not read from the
+ * FencePosition table but have its same columns. The subclasses put the values of the current
+ * row into the protected fields when the Cursor is moved. The columns that are null for the
+ * current row are the NULL_* flags into mNullFlags.
+ */
+public abstract class AbstractPositionCursor extends AbstractCursor
+        implements FenceCursorFactory.FencePositionCursorData {
+
+    /**
+     * The flag for a null latitude
+     */
+    public static final int NULL_LATITUDE = 1;
+
+    /**
+     * The flag for a null longitude
+     */
+    public static final int NULL_LONGITUDE = 1 << 1;
+
+    /**
+     * The flag for a null altitude
+     */
+    public static final int NULL_ALTITUDE = 1 << 2;
+
+    /**
+     * The flag for a null distance
+     */
+    public static final int NULL_DISTANCE = 1 << 3;
+
+    /**
+     * The flag for a null activity
+     */
+    public static final int NULL_ACTIVITY = 1 << 4;
+
+    /**
+     * All the columns of the positions
+     */
+    private static final String[] ALL_COLUMNS = {FenceDB.FencePosition._ID, FenceDB.FencePosition.SESSION_ID,
+            FenceDB.FencePosition.POSITION_TIME, FenceDB.FencePosition.LATITUDE_E7,
+            FenceDB.FencePosition.LONGITUDE_E7, FenceDB.FencePosition.ALTITUDE,
+            FenceDB.FencePosition.DISTANCE, FenceDB.FencePosition.ACTIVITY};
+
+    /**
+     * The index of the id into ALL_COLUMNS
+     */
+    private static final int ID_COLUMN = 0;
+
+    /**
+     * The index of the session id into ALL_COLUMNS
+     */
+    private static final int SESSION_ID_COLUMN = 1;
+
+    /**
+     * The index of the position time into ALL_COLUMNS
+     */
+    private static final int POSITION_TIME_COLUMN = 2;
+
+    /**
+     * The index of the latitude into ALL_COLUMNS
+     */
+    private static final int LATITUDE_COLUMN = 3;
+
+    /**
+     * The index of the longitude into ALL_COLUMNS
+     */
+    private static final int LONGITUDE_COLUMN = 4;
+
+    /**
+     * The index of the altitude into ALL_COLUMNS
+     */
+    private static final int ALTITUDE_COLUMN = 5;
+
+    /**
+     * The index of the distance into ALL_COLUMNS
+     */
+    private static final int DISTANCE_COLUMN = 6;
+
+    /**
+     * The index of the activity into ALL_COLUMNS
+     */
+    private static final int ACTIVITY_COLUMN = 7;
+
+    /**
+     * The names of the columns of the Cursor
+     */
+    private final String[] mColumnNames;
+
+    /**
+     * The index into ALL_COLUMNS for every column of the Cursor
+     */
+    private final int[] mColumns;
+
+    /**
+     * The session of the positions
+     */
+    private final long mSessionId;
+
+    /**
+     * The id of the current position
+     */
+    protected long mId;
+
+    /**
+     * The time of the current position
+     */
+    protected long mPositionTime;
+
+    /**
+     * The latitude in E7 of the current position
+     */
+    protected int mLatitudeE7;
+
+    /**
+     * The longitude in E7 of the current position
+     */
+    protected int mLongitudeE7;
+
+    /**
+     * The altitude in meters of the current position
+     */
+    protected double mAltitude;
+
+    /**
+     * The distance in meters of the current position
+     */
+    protected double mDistance;
+
+    /**
+     * The activity type of the current position
+     */
+    protected int mActivityType;
+
+    /**
+     * The NULL_* flags of the null columns of the current position
+     */
+    protected int mNullFlags;
+
+    /**
+     * Creates an AbstractPositionCursor
+     *
+     * @param projection The columns to return or null for all of them
+     * @param sessionId  The session of the positions
+     */
+    protected AbstractPositionCursor(final String[] projection, final long sessionId) {
+        mColumnNames = projection == null ? ALL_COLUMNS : projection;
+        mColumns = new int[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumns[i] = columnOf(mColumnNames[i]);
+        }
+        mSessionId = sessionId;
+    }
+
+    /**
+     * @param columnName The name of a column
+     * @return The index of the column into ALL_COLUMNS
+     */
+    private static int columnOf(final String columnName) {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            if (ALL_COLUMNS[i].equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The column " + columnName + " is not available for an archived session");
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        switch (mColumns[column]) {
+            case ALTITUDE_COLUMN:
+            case DISTANCE_COLUMN:
+                return String.valueOf(getDouble(column));
+            default:
+                return String.valueOf(getLong(column));
+        }
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (mColumns[column]) {
+            case ID_COLUMN:
+                return mId;
+            case SESSION_ID_COLUMN:
+                return mSessionId;
+            case POSITION_TIME_COLUMN:
+                return mPositionTime;
+            case LATITUDE_COLUMN:
+                return mLatitudeE7;
+            case LONGITUDE_COLUMN:
+                return mLongitudeE7;
+            case ALTITUDE_COLUMN:
+                return (long) mAltitude;
+            case DISTANCE_COLUMN:
+                return (long) mDistance;
+            case ACTIVITY_COLUMN:
+            default:
+                return mActivityType;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        switch (mColumns[column]) {
+            case ALTITUDE_COLUMN:
+                return mAltitude;
+            case DISTANCE_COLUMN:
+                return mDistance;
+            default:
+                return getLong(column);
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return (mNullFlags & nullFlagOf(mColumns[column])) != 0;
+    }
+
+    /**
+     * @param column The index of a column into ALL_COLUMNS
+     * @return The NULL_* flag of the column or 0 if it's never null
+     */
+    private static int nullFlagOf(final int column) {
+        switch (column) {
+            case LATITUDE_COLUMN:
+                return NULL_LATITUDE;
+            case LONGITUDE_COLUMN:
+                return NULL_LONGITUDE;
+            case ALTITUDE_COLUMN:
+                return NULL_ALTITUDE;
+            case DISTANCE_COLUMN:
+                return NULL_DISTANCE;
+            case ACTIVITY_COLUMN:
+                return NULL_ACTIVITY;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public int getType(int column) {
+        if (isNull(column)) {
+            return FIELD_TYPE_NULL;
+        }
+        switch (mColumns[column]) {
+            case ALTITUDE_COLUMN:
+            case DISTANCE_COLUMN:
+                return FIELD_TYPE_FLOAT;
+            default:
+                return FIELD_TYPE_INTEGER;
+        }
+    }
+
+    @Override
+    public Date getPositionTime() {
+        return new Date(mPositionTime);
+    }
+
+    @Override
+    public long getPositionTimeMillis() {
+        return mPositionTime;
+    }
+
+    @Override
+    public long getId() {
+        return mId;
+    }
+
+    @Override
+    public double getLatitude() {
+        return CoordinateUtil.fromE7(mLatitudeE7);
+    }
+
+    @Override
+    public double getLongitude() {
+        return CoordinateUtil.fromE7(mLongitudeE7);
+    }
+
+    @Override
+    public float getDistance() {
+        return (float) mDistance;
+    }
+
+    @Override
+    public int getActivityType() {
+        return mActivityType;
+    }
+
+    @Override
+    public int getLatitudeE7() {
+        return mLatitudeE7;
+    }
+
+    @Override
+    public int getLongitudeE7() {
+        return mLongitudeE7;
+    }
+
+    @Override
+    public FencePositionRow readRow(FencePositionRow row) {
+        row.mId = mId;
+        row.mPositionTime = mPositionTime;
+        row.mLatitudeE7 = mLatitudeE7;
+        row.mLongitudeE7 = mLongitudeE7;
+        row.mDistance = (float) mDistance;
+        row.mActivityType = mActivityType;
+        return row;
+    }
+}
@@ -0,0 +1,104 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+/**
+ * This is the Cursor for the positions of an archived session. The positions are decoded from
+ * the FenceTrackArchive into arrays and the Cursor shows the rows at the given indexes with the
+ * same columns of the FencePosition table.
+ */
+public class ArchivedPositionCursor extends AbstractPositionCursor {
+
+    /**
+     * The ids of the positions
+     */
+    private final long[] mIds;
+
+    /**
+     * The times of the positions
+     */
+    private final long[] mTimes;
+
+    /**
+     * The latitudes in E7
+     */
+    private final int[] mLatitudesE7;
+
+    /**
+     * The longitudes in E7
+     */
+    private final int[] mLongitudesE7;
+
+    /**
+     * The altitudes in meters
+     */
+    private final double[] mAltitudes;
+
+    /**
+     * The distances in meters
+     */
+    private final double[] mDistances;
+
+    /**
+     * The activity types
+     */
+    private final int[] mActivityTypes;
+
+    /**
+     * The NULL_* flags of the positions
+     */
+    private final int[] mNullFlagValues;
+
+    /**
+     * The index into the arrays for every row of the Cursor
+     */
+    private final int[] mRows;
+
+    /**
+     * Creates an ArchivedPositionCursor
+     *
+     * @param projection    The columns to return or null for all of them
+     * @param sessionId     The session of the positions
+     * @param ids           The ids of the positions
+     * @param times         The times of the positions
+     * @param latitudesE7   The latitudes in E7
+     * @param longitudesE7  The longitudes in E7
+     * @param altitudes     The altitudes in meters
+     * @param distances     The distances in meters
+     * @param activityTypes The activity types
+     * @param nullFlags     The NULL_* flags of the positions
+     * @param rows          The index into the arrays for every row of the Cursor
+     */
+    public ArchivedPositionCursor(final String[] projection, final long sessionId, final long[] ids,
+                                  final long[] times, final int[] latitudesE7, final int[] longitudesE7,
+                                  final double[] altitudes, final double[] distances,
+                                  final int[] activityTypes, final int[] nullFlags, final int[] rows) {
+        super(projection, sessionId);
+        mIds = ids;
+        mTimes = times;
+        mLatitudesE7 = latitudesE7;
+        mLongitudesE7 = longitudesE7;
+        mAltitudes = altitudes;
+        mDistances = distances;
+        mActivityTypes = activityTypes;
+        mNullFlagValues = nullFlags;
+        mRows = rows;
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.length;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        final int row = mRows[newPosition];
+        mId = mIds[row];
+        mPositionTime = mTimes[row];
+        mLatitudeE7 = mLatitudesE7[row];
+        mLongitudeE7 = mLongitudesE7[row];
+        mAltitude = mAltitudes[row];
+        mDistance = mDistances[row];
+        mActivityType = mActivityTypes[row];
+        mNullFlags = mNullFlagValues[row];
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+
+/**
+ * This is an immutable copy of the rows of a Cursor. The same snapshot can be shared between
+ * many Cursors we create with newCursor() so we use it to cache the results of the queries.
+ */
+public final class CursorSnapshot {
+
+    /**
+     * The names of the columns
+     */
+    private final String[] mColumnNames;
+
+    /**
+     * The values of all the rows one after the other
+     */
+    private final Object[] mValues;
+
+    /**
+     * The number of rows
+     */
+    private final int mCount;
+
+    /**
+     * The table of the rows which is used to create the Cursor of the right type
+     */
+    private final String mTable;
+
+    private CursorSnapshot(final String table, final String[] columnNames, final Object[] values, final int count) {
+        mTable = table;
+        mColumnNames = columnNames;
+        mValues = values;
+        mCount = count;
+    }
+
+    /**
+     * Copy all the rows of the given Cursor. The Cursor is not closed
+     *
+     * @param table  The table of the rows
+     * @param cursor The Cursor to copy
+     * @return The CursorSnapshot with the rows of the Cursor
+     */
+    public static CursorSnapshot create(final String table, final Cursor cursor) {
+        final String[] columnNames = cursor.getColumnNames();
+        final int columnCount = columnNames.length;
+        final int count = cursor.getCount();
+        final Object[] values = new Object[count * columnCount];
+        int index = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < columnCount; column++) {
+                values[index++] = readValue(cursor, column);
+            }
+        }
+        cursor.moveToPosition(-1);
+        return new CursorSnapshot(table, columnNames, values, count);
+    }
+
+    /**
+     * @param cursor The Cursor on the row to read
+     * @param column The column to read
+     * @return The value as Long, Double, String, byte[] or null
+     */
+    private static Object readValue(final Cursor cursor, final int column) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // We don't know the type so we keep the String and convert it when read
+            return cursor.isNull(column) ? null : cursor.getString(column);
+        }
+        return readTypedValue(cursor, column);
+    }
+
+    /**
+     * @param cursor The Cursor on the row to read
+     * @param column The column to read
+     * @return The value with the type of the column
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Object readTypedValue(final Cursor cursor, final int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The number of values into the snapshot
+     */
+    public int getSize() {
+        return mValues.length;
+    }
+
+    /**
+     * Creates a new Cursor on the rows of this snapshot. It's the same type of the Cursor the
+     * FenceCursorFactory creates for the table
+     *
+     * @return The Cursor on the rows
+     */
+    public Cursor newCursor() {
+        return FenceCursorFactory.newSnapshotCursor(mTable, this);
+    }
+
+    /**
+     * The Cursor on the rows of a CursorSnapshot
+     */
+    static class SnapshotCursor extends AbstractCursor {
+
+        /**
+         * The snapshot with the rows
+         */
+        private final CursorSnapshot mSnapshot;
+
+        SnapshotCursor(final CursorSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        /**
+         * @param column The column
+         * @return The value of the column for the current row
+         */
+        private Object getValue(final int column) {
+            return mSnapshot.mValues[getPosition() * mSnapshot.mColumnNames.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.mColumnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            final Object value = getValue(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            final Object value = getValue(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0L : (long) Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            final Object value = getValue(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0.0 : Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            final Object value = getValue(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getValue(column) == null;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public int getType(int column) {
+            final Object value = getValue(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.util.Date;
 
 import uk.co.massimocarli.friendfence.content.FenceDB;
 import uk.co.massimocarli.friendfence.geofence.GeofenceData;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
 
 /**
  * Created by Massimo Carli on 13/06/14.
@@ -24,15 +25,27 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
     public static interface FenceSessionCursorData extends Cursor {
 
         /**
-         * @return The session StartDate
+         * @return The session StartDate. This creates a new Date so use getStartDateMillis()
+         * when reading many rows
          */
         Date getStartDate();
 
         /**
-         * @return The session EndDate
+         * @return The session EndDate. This creates a new Date so use getEndDateMillis()
+         * when reading many rows
          */
         Date getEndDate();
 
+        /**
+         * @return The session StartDate in milliseconds
+         */
+        long getStartDateMillis();
+
+        /**
+         * @return The session EndDate in milliseconds or 0 if the session is not ended
+         */
+        long getEndDateMillis();
+
         /**
          * @return The id of this session
          */
@@ -48,6 +61,19 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
          */
         float getTotalDistance();
 
+        /**
+         * @return The number of positions from the summary of the session
+         */
+        int getPositionCount();
+
+        /**
+         * Read the current row into the given holder
+         *
+         * @param row The FenceSessionRow to fill
+         * @return The same FenceSessionRow
+         */
+        FenceSessionRow readRow(FenceSessionRow row);
+
     }
 
     /**
@@ -56,24 +82,30 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
     public static interface FencePositionCursorData extends Cursor {
 
         /**
-         * @return The start date
+         * @return The start date. This creates a new Date so use getPositionTimeMillis()
+         * when reading many rows
          */
         Date getPositionTime();
 
+        /**
+         * @return The time of the position in milliseconds
+         */
+        long getPositionTimeMillis();
+
         /**
          * @return The id of this position
          */
         long getId();
 
         /**
-         * @return The latitude
+         * @return The latitude in degrees
          */
-        float getLatitude();
+        double getLatitude();
 
         /**
-         * @return The longitude
+         * @return The longitude in degrees
          */
-        float getLongitude();
+        double getLongitude();
 
         /**
          * @return The distance in meters
@@ -85,6 +117,24 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
          */
         int getActivityType();
 
+        /**
+         * @return The latitude in E7
+         */
+        int getLatitudeE7();
+
+        /**
+         * @return The longitude in E7
+         */
+        int getLongitudeE7();
+
+        /**
+         * Read the current row into the given holder
+         *
+         * @param row The FencePositionRow to fill
+         * @return The same FencePositionRow
+         */
+        FencePositionRow readRow(FencePositionRow row);
+
     }
 
     /**
@@ -127,6 +177,26 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public float getTotalDistance() {
             return mCursorDelegate.getTotalDistance();
         }
+
+        @Override
+        public int getPositionCount() {
+            return mCursorDelegate.getPositionCount();
+        }
+
+        @Override
+        public long getStartDateMillis() {
+            return mCursorDelegate.getStartDateMillis();
+        }
+
+        @Override
+        public long getEndDateMillis() {
+            return mCursorDelegate.getEndDateMillis();
+        }
+
+        @Override
+        public FenceSessionRow readRow(FenceSessionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
     }
 
     /**
@@ -166,6 +236,26 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public float getTotalDistance() {
             return mCursorDelegate.getTotalDistance();
         }
+
+        @Override
+        public int getPositionCount() {
+            return mCursorDelegate.getPositionCount();
+        }
+
+        @Override
+        public long getStartDateMillis() {
+            return mCursorDelegate.getStartDateMillis();
+        }
+
+        @Override
+        public long getEndDateMillis() {
+            return mCursorDelegate.getEndDateMillis();
+        }
+
+        @Override
+        public FenceSessionRow readRow(FenceSessionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
     }
 
     /**
@@ -204,6 +294,11 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
          */
         private final int mTotalDistanceIndex;
 
+        /**
+         * The index of the position count of the summary
+         */
+        private final int mPositionCountIndex;
+
         /**
          * Create a SessionCursorDelegate for cursor
          *
@@ -216,6 +311,7 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
             mEndDateIndex = cursor.getColumnIndex(FenceDB.FenceSession.END_DATE);
             mOwnerIndex = cursor.getColumnIndex(FenceDB.FenceSession.SESSION_OWNER);
             mTotalDistanceIndex = cursor.getColumnIndex(FenceDB.FenceSession.TOTAL_DISTANCE);
+            mPositionCountIndex = cursor.getColumnIndex(FenceDB.FenceSessionSummary.POSITION_COUNT);
         }
 
         /**
@@ -229,26 +325,35 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
          * @return The start date
          */
         private Date getStartDate() {
-            final long startDate = mCursor.getLong(mStartDateIndex);
-            final Date date = new Date();
-            date.setTime(startDate);
-            return date;
+            return new Date(getStartDateMillis());
         }
 
         /**
          * @return The start date
          */
         private Date getEndDate() {
-            final long startDate = mCursor.getLong(mEndDateIndex);
-            if (startDate > 0) {
-                final Date date = new Date();
-                date.setTime(startDate);
-                return date;
+            final long endDate = getEndDateMillis();
+            if (endDate > 0) {
+                return new Date(endDate);
             } else {
                 return null;
             }
         }
 
+        /**
+         * @return The start date in milliseconds
+         */
+        private long getStartDateMillis() {
+            return mCursor.getLong(mStartDateIndex);
+        }
+
+        /**
+         * @return The end date in milliseconds or 0 if not available
+         */
+        private long getEndDateMillis() {
+            return mCursor.getLong(mEndDateIndex);
+        }
+
         /**
          * @return The Owner of the session
          */
@@ -262,6 +367,29 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public float getTotalDistance() {
             return mCursor.getFloat(mTotalDistanceIndex);
         }
+
+        /**
+         * @return The number of positions or 0 if the session has no summary
+         */
+        public int getPositionCount() {
+            return mPositionCountIndex < 0 ? 0 : mCursor.getInt(mPositionCountIndex);
+        }
+
+        /**
+         * Read the current row into the given holder
+         *
+         * @param row The holder to fill
+         * @return The same holder
+         */
+        private FenceSessionRow readRow(final FenceSessionRow row) {
+            row.mId = getId();
+            row.mOwner = getOwner();
+            row.mStartDate = getStartDateMillis();
+            row.mEndDate = getEndDateMillis();
+            row.mTotalDistance = getTotalDistance();
+            row.mPositionCount = getPositionCount();
+            return row;
+        }
     }
 
     /**
@@ -291,12 +419,12 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         }
 
         @Override
-        public float getLatitude() {
+        public double getLatitude() {
             return mCursorDelegate.getLatitude();
         }
 
         @Override
-        public float getLongitude() {
+        public double getLongitude() {
             return mCursorDelegate.getLongitude();
         }
 
@@ -309,6 +437,26 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public int getActivityType() {
             return mCursorDelegate.getActivityType();
         }
+
+        @Override
+        public long getPositionTimeMillis() {
+            return mCursorDelegate.getPositionTimeMillis();
+        }
+
+        @Override
+        public int getLatitudeE7() {
+            return mCursorDelegate.getLatitudeE7();
+        }
+
+        @Override
+        public int getLongitudeE7() {
+            return mCursorDelegate.getLongitudeE7();
+        }
+
+        @Override
+        public FencePositionRow readRow(FencePositionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
     }
 
     private static class HoneyFencePositionCursor extends SQLiteCursor implements FencePositionCursorData {
@@ -335,12 +483,12 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         }
 
         @Override
-        public float getLatitude() {
+        public double getLatitude() {
             return mCursorDelegate.getLatitude();
         }
 
         @Override
-        public float getLongitude() {
+        public double getLongitude() {
             return mCursorDelegate.getLongitude();
         }
 
@@ -353,6 +501,26 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public int getActivityType() {
             return mCursorDelegate.getActivityType();
         }
+
+        @Override
+        public long getPositionTimeMillis() {
+            return mCursorDelegate.getPositionTimeMillis();
+        }
+
+        @Override
+        public int getLatitudeE7() {
+            return mCursorDelegate.getLatitudeE7();
+        }
+
+        @Override
+        public int getLongitudeE7() {
+            return mCursorDelegate.getLongitudeE7();
+        }
+
+        @Override
+        public FencePositionRow readRow(FencePositionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
     }
 
     @Override
@@ -375,7 +543,191 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
                 return new HoneyGeofenceCursor(db, masterQuery, editTable, query);
             }
         }
-        return null;
+        // For all the other queries (e.g. PRAGMA) we return a normal SQLiteCursor
+        return newDefaultCursor(db, masterQuery, editTable, query);
+    }
+
+    /**
+     * Creates the default SQLiteCursor for the queries that are not related to our tables
+     */
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Cursor newDefaultCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return new SQLiteCursor(masterQuery, editTable, query);
+        } else {
+            return new SQLiteCursor(db, masterQuery, editTable, query);
+        }
+    }
+
+    /**
+     * Creates the Cursor on the rows of a CursorSnapshot. The type is the same we use for the
+     * rows of the given table
+     *
+     * @param table    The table of the rows
+     * @param snapshot The CursorSnapshot with the rows
+     * @return The Cursor on the rows of the snapshot
+     */
+    static Cursor newSnapshotCursor(final String table, final CursorSnapshot snapshot) {
+        if (FenceDB.FenceSession.TABLE_NAME.equals(table)) {
+            return new SnapshotSessionCursor(snapshot);
+        } else if (FenceDB.FencePosition.TABLE_NAME.equals(table)) {
+            return new SnapshotPositionCursor(snapshot);
+        } else if (FenceDB.Geofence.TABLE_NAME.equals(table)) {
+            return new SnapshotGeofenceCursor(snapshot);
+        }
+        return new CursorSnapshot.SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Implementation of the FenceSessionCursorData on the rows of a CursorSnapshot
+     */
+    private static class SnapshotSessionCursor extends CursorSnapshot.SnapshotCursor
+            implements FenceSessionCursorData {
+
+        /**
+         * The SessionCursorDelegate we use for all the fields we need
+         */
+        private final SessionCursorDelegate mCursorDelegate;
+
+        private SnapshotSessionCursor(final CursorSnapshot snapshot) {
+            super(snapshot);
+            mCursorDelegate = new SessionCursorDelegate(this);
+        }
+
+        @Override
+        public Date getStartDate() {
+            return mCursorDelegate.getStartDate();
+        }
+
+        @Override
+        public Date getEndDate() {
+            return mCursorDelegate.getEndDate();
+        }
+
+        @Override
+        public long getId() {
+            return mCursorDelegate.getId();
+        }
+
+        @Override
+        public String getOwner() {
+            return mCursorDelegate.getOwner();
+        }
+
+        @Override
+        public float getTotalDistance() {
+            return mCursorDelegate.getTotalDistance();
+        }
+
+        @Override
+        public int getPositionCount() {
+            return mCursorDelegate.getPositionCount();
+        }
+
+        @Override
+        public long getStartDateMillis() {
+            return mCursorDelegate.getStartDateMillis();
+        }
+
+        @Override
+        public long getEndDateMillis() {
+            return mCursorDelegate.getEndDateMillis();
+        }
+
+        @Override
+        public FenceSessionRow readRow(FenceSessionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
+    }
+
+    /**
+     * Implementation of the FencePositionCursorData on the rows of a CursorSnapshot
+     */
+    private static class SnapshotPositionCursor extends CursorSnapshot.SnapshotCursor
+            implements FencePositionCursorData {
+
+        /**
+         * The PositionCursorDelegate we use for all the fields we need
+         */
+        private final PositionCursorDelegate mCursorDelegate;
+
+        private SnapshotPositionCursor(final CursorSnapshot snapshot) {
+            super(snapshot);
+            mCursorDelegate = new PositionCursorDelegate(this);
+        }
+
+        @Override
+        public Date getPositionTime() {
+            return mCursorDelegate.getPositionTime();
+        }
+
+        @Override
+        public long getId() {
+            return mCursorDelegate.getId();
+        }
+
+        @Override
+        public double getLatitude() {
+            return mCursorDelegate.getLatitude();
+        }
+
+        @Override
+        public double getLongitude() {
+            return mCursorDelegate.getLongitude();
+        }
+
+        @Override
+        public float getDistance() {
+            return mCursorDelegate.getDistance();
+        }
+
+        @Override
+        public int getActivityType() {
+            return mCursorDelegate.getActivityType();
+        }
+
+        @Override
+        public long getPositionTimeMillis() {
+            return mCursorDelegate.getPositionTimeMillis();
+        }
+
+        @Override
+        public int getLatitudeE7() {
+            return mCursorDelegate.getLatitudeE7();
+        }
+
+        @Override
+        public int getLongitudeE7() {
+            return mCursorDelegate.getLongitudeE7();
+        }
+
+        @Override
+        public FencePositionRow readRow(FencePositionRow row) {
+            return mCursorDelegate.readRow(row);
+        }
+    }
+
+    /**
+     * Implementation of the GeofenceCursorData on the rows of a CursorSnapshot
+     */
+    private static class SnapshotGeofenceCursor extends CursorSnapshot.SnapshotCursor
+            implements GeofenceCursorData {
+
+        /**
+         * The GeofenceCursorDelegate we use for all the fields we need
+         */
+        private final GeofenceCursorDelegate mCursorDelegate;
+
+        private SnapshotGeofenceCursor(final CursorSnapshot snapshot) {
+            super(snapshot);
+            mCursorDelegate = new GeofenceCursorDelegate(this);
+        }
+
+        @Override
+        public GeofenceData getGeofence() {
+            return mCursorDelegate.getGeofence();
+        }
     }
 
     /**
@@ -428,8 +780,8 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
             mCursor = cursor;
             mPositionTimeIndex = cursor.getColumnIndex(FenceDB.FencePosition.POSITION_TIME);
             mIdIndex = cursor.getColumnIndex(FenceDB.FencePosition._ID);
-            mLatitudeIndex = cursor.getColumnIndex(FenceDB.FencePosition.LATITUDE);
-            mLongitudeIndex = cursor.getColumnIndex(FenceDB.FencePosition.LONGITUDE);
+            mLatitudeIndex = cursor.getColumnIndex(FenceDB.FencePosition.LATITUDE_E7);
+            mLongitudeIndex = cursor.getColumnIndex(FenceDB.FencePosition.LONGITUDE_E7);
             mDistanceIndex = cursor.getColumnIndex(FenceDB.FencePosition.DISTANCE);
             mActivityIndex = cursor.getColumnIndex(FenceDB.FencePosition.ACTIVITY);
         }
@@ -445,24 +797,42 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
          * @return The start date
          */
         private Date getPositionTime() {
-            final long startDate = mCursor.getLong(mPositionTimeIndex);
-            final Date date = new Date();
-            date.setTime(startDate);
-            return date;
+            return new Date(getPositionTimeMillis());
+        }
+
+        /**
+         * @return The time of the position in milliseconds
+         */
+        private long getPositionTimeMillis() {
+            return mCursor.getLong(mPositionTimeIndex);
+        }
+
+        /**
+         * @return The latitude in E7
+         */
+        private int getLatitudeE7() {
+            return mCursor.getInt(mLatitudeIndex);
+        }
+
+        /**
+         * @return The longitude in E7
+         */
+        private int getLongitudeE7() {
+            return mCursor.getInt(mLongitudeIndex);
         }
 
         /**
          * @return The latitude
          */
-        private float getLatitude() {
-            return mCursor.getFloat(mLatitudeIndex);
+        private double getLatitude() {
+            return CoordinateUtil.fromE7(getLatitudeE7());
         }
 
         /**
          * @return The longitude
          */
-        private float getLongitude() {
-            return mCursor.getFloat(mLongitudeIndex);
+        private double getLongitude() {
+            return CoordinateUtil.fromE7(getLongitudeE7());
         }
 
         /**
@@ -478,6 +848,22 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         private int getActivityType() {
             return mCursor.getInt(mActivityIndex);
         }
+
+        /**
+         * Read the current row into the given holder
+         *
+         * @param row The holder to fill
+         * @return The same holder
+         */
+        private FencePositionRow readRow(final FencePositionRow row) {
+            row.mId = getId();
+            row.mPositionTime = getPositionTimeMillis();
+            row.mLatitudeE7 = getLatitudeE7();
+            row.mLongitudeE7 = getLongitudeE7();
+            row.mDistance = getDistance();
+            row.mActivityType = getActivityType();
+            return row;
+        }
     }
 
     /**
@@ -588,8 +974,8 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         private GeofenceCursorDelegate(final Cursor cursor) {
             mCursor = cursor;
             mIdIndex = cursor.getColumnIndex(FenceDB.Geofence.FENCE_ID);
-            mLatitudeIndex = cursor.getColumnIndex(FenceDB.Geofence.LATITUDE);
-            mLongitudeIndex = cursor.getColumnIndex(FenceDB.Geofence.LONGITUDE);
+            mLatitudeIndex = cursor.getColumnIndex(FenceDB.Geofence.LATITUDE_E7);
+            mLongitudeIndex = cursor.getColumnIndex(FenceDB.Geofence.LONGITUDE_E7);
             mRadiusIndex = cursor.getColumnIndex(FenceDB.Geofence.RADIUS);
             mDurationIndex = cursor.getColumnIndex(FenceDB.Geofence.DURATION);
             mTransitionTypeIndex = cursor.getColumnIndex(FenceDB.Geofence.TRANSITION_TYPE);
@@ -598,8 +984,8 @@ public class FenceCursorFactory implements SQLiteDatabase.CursorFactory {
         public GeofenceData getGeofence() {
             // We create the GeofenceData
             return GeofenceData.create(mCursor.getString(mIdIndex),
-                    mCursor.getFloat(mLatitudeIndex),
-                    mCursor.getFloat(mLongitudeIndex))
+                    CoordinateUtil.fromE7(mCursor.getInt(mLatitudeIndex)),
+                    CoordinateUtil.fromE7(mCursor.getInt(mLongitudeIndex)))
                     .withExpirationDuration(mCursor.getLong(mDurationIndex))
                     .withTransitionType(mCursor.getInt(mTransitionTypeIndex));
         }
@@ -0,0 +1,113 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+import java.util.Date;
+
+/**
+ * This is a MergeCursor for the pages of positions of a session. It gives access to the
+ * positions of all the pages as FencePositionCursorData delegating to the page of the
+ * current row.
+ */
+public class FencePositionMergeCursor extends MergeCursor implements FenceCursorFactory.FencePositionCursorData {
+
+    /**
+     * The Cursors for the pages
+     */
+    private final Cursor[] mPages;
+
+    /**
+     * The pages as FencePositionCursorData
+     */
+    private final FenceCursorFactory.FencePositionCursorData[] mPagesData;
+
+    /**
+     * The page of the current position
+     */
+    private FenceCursorFactory.FencePositionCursorData mCurrentPage;
+
+    /**
+     * Creates a FencePositionMergeCursor for the given pages
+     *
+     * @param pages The Cursors of the pages in the order to show
+     */
+    public FencePositionMergeCursor(final Cursor[] pages) {
+        super(pages);
+        mPages = pages;
+        mPagesData = new FenceCursorFactory.FencePositionCursorData[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            mPagesData[i] = CursorResolver.CURSOR_RESOLVER.extractPositionCursor(pages[i]);
+        }
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        final boolean moved = super.onMove(oldPosition, newPosition);
+        // We look for the page of the new position as the MergeCursor does
+        mCurrentPage = null;
+        int pageStart = 0;
+        for (int i = 0; i < mPages.length; i++) {
+            if (mPages[i] == null) {
+                continue;
+            }
+            final int pageCount = mPages[i].getCount();
+            if (newPosition < pageStart + pageCount) {
+                mCurrentPage = mPagesData[i];
+                break;
+            }
+            pageStart += pageCount;
+        }
+        return moved;
+    }
+
+    @Override
+    public Date getPositionTime() {
+        return mCurrentPage.getPositionTime();
+    }
+
+    @Override
+    public long getId() {
+        return mCurrentPage.getId();
+    }
+
+    @Override
+    public double getLatitude() {
+        return mCurrentPage.getLatitude();
+    }
+
+    @Override
+    public double getLongitude() {
+        return mCurrentPage.getLongitude();
+    }
+
+    @Override
+    public float getDistance() {
+        return mCurrentPage.getDistance();
+    }
+
+    @Override
+    public int getActivityType() {
+        return mCurrentPage.getActivityType();
+    }
+
+    @Override
+    public long getPositionTimeMillis() {
+        return mCurrentPage.getPositionTimeMillis();
+    }
+
+    @Override
+    public int getLatitudeE7() {
+        return mCurrentPage.getLatitudeE7();
+    }
+
+    @Override
+    public int getLongitudeE7() {
+        return mCurrentPage.getLongitudeE7();
+    }
+
+    @Override
+    public FencePositionRow readRow(FencePositionRow row) {
+        return mCurrentPage.readRow(row);
+    }
+}
@@ -0,0 +1,97 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+
+/**
+ * This is a mutable holder for the data of a position. It is filled by
+ * FencePositionCursorData.readRow() so the same instance can be used for all the rows of a
+ * Cursor without any allocation
+ */
+public final class FencePositionRow {
+
+    /**
+     * The id of the position
+     */
+    long mId;
+
+    /**
+     * The time of the position in milliseconds
+     */
+    long mPositionTime;
+
+    /**
+     * The latitude in E7
+     */
+    int mLatitudeE7;
+
+    /**
+     * The longitude in E7
+     */
+    int mLongitudeE7;
+
+    /**
+     * The distance in meters
+     */
+    float mDistance;
+
+    /**
+     * The value for the Activity type
+     */
+    int mActivityType;
+
+    /**
+     * @return The id of the position
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return The time of the position in milliseconds
+     */
+    public long getPositionTimeMillis() {
+        return mPositionTime;
+    }
+
+    /**
+     * @return The latitude in E7
+     */
+    public int getLatitudeE7() {
+        return mLatitudeE7;
+    }
+
+    /**
+     * @return The longitude in E7
+     */
+    public int getLongitudeE7() {
+        return mLongitudeE7;
+    }
+
+    /**
+     * @return The latitude in degrees
+     */
+    public double getLatitude() {
+        return CoordinateUtil.fromE7(mLatitudeE7);
+    }
+
+    /**
+     * @return The longitude in degrees
+     */
+    public double getLongitude() {
+        return CoordinateUtil.fromE7(mLongitudeE7);
+    }
+
+    /**
+     * @return The distance in meters
+     */
+    public float getDistance() {
+        return mDistance;
+    }
+
+    /**
+     * @return The value for the Activity type
+     */
+    public int getActivityType() {
+        return mActivityType;
+    }
+}
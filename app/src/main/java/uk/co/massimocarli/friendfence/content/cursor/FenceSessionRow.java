@@ -0,0 +1,80 @@
+package uk.co.massimocarli.friendfence.content.cursor;
+
+/**
+ * This is a mutable holder for the data of a session. It is filled by
+ * FenceSessionCursorData.readRow() so the same instance can be used for all the rows of a Cursor
+ */
+public final class FenceSessionRow {
+
+    /**
+     * The id of the session
+     */
+    long mId;
+
+    /**
+     * The Owner
+     */
+    String mOwner;
+
+    /**
+     * The start date in milliseconds
+     */
+    long mStartDate;
+
+    /**
+     * The end date in milliseconds or 0 if the session is not ended
+     */
+    long mEndDate;
+
+    /**
+     * The total distance in meters
+     */
+    float mTotalDistance;
+
+    /**
+     * The number of positions from the summary of the session
+     */
+    int mPositionCount;
+
+    /**
+     * @return The id of the session
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return The Owner
+     */
+    public String getOwner() {
+        return mOwner;
+    }
+
+    /**
+     * @return The start date in milliseconds
+     */
+    public long getStartDateMillis() {
+        return mStartDate;
+    }
+
+    /**
+     * @return The end date in milliseconds or 0 if the session is not ended
+     */
+    public long getEndDateMillis() {
+        return mEndDate;
+    }
+
+    /**
+     * @return The total distance in meters
+     */
+    public float getTotalDistance() {
+        return mTotalDistance;
+    }
+
+    /**
+     * @return The number of positions from the summary of the session
+     */
+    public int getPositionCount() {
+        return mPositionCount;
+    }
+}
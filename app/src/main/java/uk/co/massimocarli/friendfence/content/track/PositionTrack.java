@@ -0,0 +1,273 @@
+package uk.co.massimocarli.friendfence.content.track;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionRow;
+import uk.co.massimocarli.friendfence.util.MapUtil;
+
+/**
+ * This is an immutable snapshot of the positions of a session in order of time. The data are
+ * kept into parallel arrays of primitives so the whole session can be processed without
+ * creating an object for every position. A sub track shares the arrays of the track it comes
+ * from.
+ */
+public final class PositionTrack {
+
+    /**
+     * The session of the positions
+     */
+    private final long mSessionId;
+
+    /**
+     * The times of the positions in milliseconds
+     */
+    private final long[] mTimes;
+
+    /**
+     * The latitudes
+     */
+    private final double[] mLatitudes;
+
+    /**
+     * The longitudes
+     */
+    private final double[] mLongitudes;
+
+    /**
+     * The distances of the session until every position
+     */
+    private final double[] mDistances;
+
+    /**
+     * The activity types
+     */
+    private final int[] mActivityTypes;
+
+    /**
+     * The index of the first position of this track into the arrays
+     */
+    private final int mOffset;
+
+    /**
+     * The number of positions of this track
+     */
+    private final int mSize;
+
+    /**
+     * The bounding box calculated the first time it's requested
+     */
+    private double[] mBounds;
+
+    /**
+     * Creates a PositionTrack for the given arrays
+     */
+    private PositionTrack(final long sessionId, final long[] times, final double[] latitudes,
+                          final double[] longitudes, final double[] distances, final int[] activityTypes,
+                          final int offset, final int size) {
+        mSessionId = sessionId;
+        mTimes = times;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mDistances = distances;
+        mActivityTypes = activityTypes;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    /**
+     * Read all the positions of the given session. This accesses the DB so it must not be
+     * called into the UI Thread
+     *
+     * @param contentResolver The ContentResolver to use
+     * @param sessionId       The session
+     * @return The PositionTrack for the session
+     */
+    public static PositionTrack load(final ContentResolver contentResolver, final long sessionId) {
+        final Cursor cursor = contentResolver.query(FenceDB.FencePosition.getPositionUriForSession(sessionId),
+                null, null, null,
+                FenceDB.FencePosition.POSITION_TIME + " ASC, " + FenceDB.FencePosition._ID + " ASC");
+        if (cursor == null) {
+            return new PositionTrack(sessionId, new long[0], new double[0], new double[0],
+                    new double[0], new int[0], 0, 0);
+        }
+        try {
+            final FenceCursorFactory.FencePositionCursorData cursorData =
+                    CursorResolver.CURSOR_RESOLVER.extractPositionCursor(cursor);
+            final int size = cursor.getCount();
+            final long[] times = new long[size];
+            final double[] latitudes = new double[size];
+            final double[] longitudes = new double[size];
+            final double[] distances = new double[size];
+            final int[] activityTypes = new int[size];
+            final FencePositionRow positionRow = new FencePositionRow();
+            int index = 0;
+            while (index < size && cursorData.moveToNext()) {
+                cursorData.readRow(positionRow);
+                times[index] = positionRow.getPositionTimeMillis();
+                latitudes[index] = positionRow.getLatitude();
+                longitudes[index] = positionRow.getLongitude();
+                distances[index] = positionRow.getDistance();
+                activityTypes[index] = positionRow.getActivityType();
+                index++;
+            }
+            return new PositionTrack(sessionId, times, latitudes, longitudes, distances,
+                    activityTypes, 0, index);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The session of the positions
+     */
+    public long getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * @return The number of positions
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return True if the track has no positions
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The time of the position in milliseconds
+     */
+    public long getTime(final int index) {
+        return mTimes[checkIndex(index)];
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The latitude of the position
+     */
+    public double getLatitude(final int index) {
+        return mLatitudes[checkIndex(index)];
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The longitude of the position
+     */
+    public double getLongitude(final int index) {
+        return mLongitudes[checkIndex(index)];
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The distance of the session until the position in meters
+     */
+    public double getDistance(final int index) {
+        return mDistances[checkIndex(index)];
+    }
+
+    /**
+     * @param index The index of the position
+     * @return The activity type of the position
+     */
+    public int getActivityType(final int index) {
+        return mActivityTypes[checkIndex(index)];
+    }
+
+    /**
+     * Return the index of the first position whose time is equal or after the given one
+     *
+     * @param time The time in milliseconds
+     * @return The index of the position or size() if all the positions are before the given time
+     */
+    public int indexOfTime(final long time) {
+        int low = mOffset;
+        int high = mOffset + mSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low - mOffset;
+    }
+
+    /**
+     * Return a view of a range of the positions which shares the data with this track
+     *
+     * @param fromIndex The index of the first position (inclusive)
+     * @param toIndex   The index of the last position (exclusive)
+     * @return The PositionTrack for the range
+     */
+    public PositionTrack subTrack(final int fromIndex, final int toIndex) {
+        if (fromIndex < 0 || toIndex > mSize || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Invalid range [" + fromIndex + ", " + toIndex
+                    + ") for size " + mSize);
+        }
+        return new PositionTrack(mSessionId, mTimes, mLatitudes, mLongitudes, mDistances,
+                mActivityTypes, mOffset + fromIndex, toIndex - fromIndex);
+    }
+
+    /**
+     * Return a view of the positions between the given times
+     *
+     * @param fromTime The min time (inclusive)
+     * @param toTime   The max time (exclusive)
+     * @return The PositionTrack for the positions in the given interval
+     */
+    public PositionTrack subTrackByTime(final long fromTime, final long toTime) {
+        final int fromIndex = indexOfTime(fromTime);
+        return subTrack(fromIndex, Math.max(fromIndex, indexOfTime(toTime)));
+    }
+
+    /**
+     * Return the bounding box of the positions with the indexes of MapUtil
+     *
+     * @return The bounding box as min latitude, min longitude, max latitude and max longitude
+     * or null if the track is empty
+     */
+    public synchronized double[] getBounds() {
+        if (mSize == 0) {
+            return null;
+        }
+        if (mBounds == null) {
+            final double[] bounds = new double[4];
+            bounds[MapUtil.MIN_LATITUDE] = bounds[MapUtil.MAX_LATITUDE] = mLatitudes[mOffset];
+            bounds[MapUtil.MIN_LONGITUDE] = bounds[MapUtil.MAX_LONGITUDE] = mLongitudes[mOffset];
+            final int end = mOffset + mSize;
+            for (int i = mOffset + 1; i < end; i++) {
+                bounds[MapUtil.MIN_LATITUDE] = Math.min(bounds[MapUtil.MIN_LATITUDE], mLatitudes[i]);
+                bounds[MapUtil.MAX_LATITUDE] = Math.max(bounds[MapUtil.MAX_LATITUDE], mLatitudes[i]);
+                bounds[MapUtil.MIN_LONGITUDE] = Math.min(bounds[MapUtil.MIN_LONGITUDE], mLongitudes[i]);
+                bounds[MapUtil.MAX_LONGITUDE] = Math.max(bounds[MapUtil.MAX_LONGITUDE], mLongitudes[i]);
+            }
+            mBounds = bounds;
+        }
+        return Arrays.copyOf(mBounds, mBounds.length);
+    }
+
+    /**
+     * Check the index and return the related index into the arrays
+     *
+     * @param index The index of the position into this track
+     * @return The index into the arrays
+     */
+    private int checkIndex(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid index " + index + " for size " + mSize);
+        }
+        return mOffset + index;
+    }
+}
@@ -0,0 +1,154 @@
+package uk.co.massimocarli.friendfence.content.track;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.List;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * This is the LRU cache of the PositionTrack of the sessions. The size of the cache is the
+ * number of positions. A track is removed when the positions of its session change.
+ */
+public final class PositionTrackCache {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = PositionTrackCache.class.getName();
+
+    /**
+     * The max number of positions we keep into the cache
+     */
+    private static final int MAX_CACHED_POSITIONS = 100000;
+
+    /**
+     * The SingletonInstance
+     */
+    private static PositionTrackCache sInstance;
+
+    /**
+     * The ApplicationContext
+     */
+    private final Context mContext;
+
+    /**
+     * The tracks for the session ids
+     */
+    private final LruCache<Long, PositionTrack> mTracks = new LruCache<Long, PositionTrack>(MAX_CACHED_POSITIONS) {
+        @Override
+        protected int sizeOf(Long key, PositionTrack value) {
+            // An empty track still takes a place
+            return Math.max(1, value.size());
+        }
+    };
+
+    /**
+     * The number of invalidations. A track loaded during an invalidation is not cached
+     */
+    private int mGeneration;
+
+    /**
+     * Creates the PositionTrackCache observing the changes of the positions
+     *
+     * @param context The Context
+     */
+    private PositionTrackCache(final Context context) {
+        mContext = context.getApplicationContext();
+        mContext.getContentResolver().registerContentObserver(FenceDB.FencePosition.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        // We don't know the session so we remove all the tracks
+                        invalidateAll();
+                    }
+
+                    @Override
+                    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+                    public void onChange(boolean selfChange, Uri uri) {
+                        invalidate(uri);
+                    }
+                });
+    }
+
+    /**
+     * Static Factory method for the PositionTrackCache
+     *
+     * @param context The Context
+     * @return The PositionTrackCache Singleton Instance
+     */
+    public synchronized static PositionTrackCache get(final Context context) {
+        if (sInstance == null) {
+            sInstance = new PositionTrackCache(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Return the PositionTrack of the given session reading it from the DB if not cached. This
+     * could access the DB so it must not be called into the UI Thread
+     *
+     * @param sessionId The session
+     * @return The PositionTrack of the session
+     */
+    public PositionTrack getTrack(final long sessionId) {
+        final PositionTrack cachedTrack = mTracks.get(sessionId);
+        if (cachedTrack != null) {
+            return cachedTrack;
+        }
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        final PositionTrack track = PositionTrack.load(mContext.getContentResolver(), sessionId);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mTracks.put(sessionId, track);
+            }
+        }
+        return track;
+    }
+
+    /**
+     * Remove the track of the given session
+     *
+     * @param sessionId The session
+     */
+    public synchronized void invalidate(final long sessionId) {
+        mGeneration++;
+        mTracks.remove(sessionId);
+    }
+
+    /**
+     * Remove all the tracks
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mTracks.evictAll();
+    }
+
+    /**
+     * Remove the tracks related to the given changed Uri
+     *
+     * @param uri The Uri of the change
+     */
+    private void invalidate(final Uri uri) {
+        final List<String> pathSegments = uri == null ? null : uri.getPathSegments();
+        if (pathSegments != null && pathSegments.size() >= 2
+                && FenceDB.FencePosition.PATH.equals(pathSegments.get(0))) {
+            try {
+                invalidate(Long.parseLong(pathSegments.get(1)));
+                return;
+            } catch (NumberFormatException nfe) {
+                Log.w(TAG_LOG, "Invalid session in " + uri);
+            }
+        }
+        invalidateAll();
+    }
+}
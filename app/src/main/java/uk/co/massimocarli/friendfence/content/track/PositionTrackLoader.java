@@ -0,0 +1,105 @@
+package uk.co.massimocarli.friendfence.content.track;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.support.v4.content.AsyncTaskLoader;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * This is the Loader for the PositionTrack of a session. The track comes from the
+ * PositionTrackCache and it's loaded again when the positions of the session change
+ */
+public class PositionTrackLoader extends AsyncTaskLoader<PositionTrack> {
+
+    /**
+     * The session of the track
+     */
+    private final long mSessionId;
+
+    /**
+     * The observer for the positions of the session. We remove the old track from the cache
+     * before the new load so we don't get it back
+     */
+    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            PositionTrackCache.get(getContext()).invalidate(mSessionId);
+            onContentChanged();
+        }
+    };
+
+    /**
+     * True if the observer is registered
+     */
+    private boolean mObserverRegistered;
+
+    /**
+     * The last loaded track
+     */
+    private PositionTrack mTrack;
+
+    /**
+     * Creates a PositionTrackLoader for the given session
+     *
+     * @param context   The Context
+     * @param sessionId The session
+     */
+    public PositionTrackLoader(final Context context, final long sessionId) {
+        super(context);
+        mSessionId = sessionId;
+    }
+
+    @Override
+    public PositionTrack loadInBackground() {
+        return PositionTrackCache.get(getContext()).getTrack(mSessionId);
+    }
+
+    @Override
+    public void deliverResult(PositionTrack track) {
+        if (isReset()) {
+            return;
+        }
+        mTrack = track;
+        if (isStarted()) {
+            super.deliverResult(track);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    FenceDB.FencePosition.getChangeUri(mSessionId), true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mTrack != null) {
+            deliverResult(mTrack);
+        }
+        if (takeContentChanged() || mTrack == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mTrack = null;
+    }
+}
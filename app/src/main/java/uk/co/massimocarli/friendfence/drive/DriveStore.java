@@ -0,0 +1,117 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * The abstraction of the files of the synchronized sessions on Drive. Every file has the hash
+ * of the session it contains. The methods block so they must not be called into the UI Thread.
+ */
+public interface DriveStore {
+
+    /**
+     * The object that writes the content of a file
+     */
+    interface ContentWriter {
+
+        /**
+         * @param out The OutputStream to write into. It must not be closed
+         * @throws IOException In case of error writing the content
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * The object that reads the content of a file
+     */
+    interface ContentReader {
+
+        /**
+         * @param in The InputStream with the content. It must not be closed
+         * @return The result of the read
+         * @throws Exception In case of error reading the content
+         */
+        long read(InputStream in) throws Exception;
+    }
+
+    /**
+     * The description of a file of the store
+     */
+    final class RemoteFile {
+
+        /**
+         * The id of the file
+         */
+        private final String mFileId;
+
+        /**
+         * The hash of the session into the file
+         */
+        private final String mHash;
+
+        /**
+         * Creates a RemoteFile
+         *
+         * @param fileId The id of the file
+         * @param hash   The hash of the session into the file
+         */
+        public RemoteFile(final String fileId, final String hash) {
+            mFileId = fileId;
+            mHash = hash;
+        }
+
+        /**
+         * @return The id of the file
+         */
+        public String getFileId() {
+            return mFileId;
+        }
+
+        /**
+         * @return The hash of the session into the file
+         */
+        public String getHash() {
+            return mHash;
+        }
+    }
+
+    /**
+     * @return The files of the synchronized sessions
+     * @throws IOException In case of error reading the list
+     */
+    List<RemoteFile> list() throws IOException;
+
+    /**
+     * Creates a new file
+     *
+     * @param title  The title of the file
+     * @param hash   The hash of the session into the file
+     * @param writer The ContentWriter of the content
+     * @return The id of the new file
+     * @throws IOException In case of error creating the file
+     */
+    String create(String title, String hash, ContentWriter writer) throws IOException;
+
+    /**
+     * Replaces the content of a file
+     *
+     * @param fileId The id of the file
+     * @param title  The new title of the file
+     * @param hash   The hash of the session into the file
+     * @param writer The ContentWriter of the content
+     * @throws IOException In case of error updating the file
+     */
+    void update(String fileId, String title, String hash, ContentWriter writer) throws IOException;
+
+    /**
+     * Reads the content of a file
+     *
+     * @param fileId The id of the file
+     * @param reader The ContentReader of the content
+     * @return The result of the ContentReader
+     * @throws Exception In case of error reading the file
+     */
+    long read(String fileId, ContentReader reader) throws Exception;
+}
@@ -0,0 +1,430 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
+import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.util.IOUtils;
+
+/**
+ * This synchronizes the closed sessions with a DriveStore using the SyncManifest. A session is
+ * uploaded only if its hash is not already into the store and the hash is calculated again only
+ * if the session has changed since the last sync. The files with a hash that is not into the
+ * manifest are imported and an imported session with the hash of another session is deleted.
+ * It accesses the DB and the store so it must not be used into the UI Thread.
+ */
+public final class DriveSync {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = DriveSync.class.getName();
+
+    /**
+     * The prefix of the title of the synchronized files
+     */
+    static final String SYNC_TITLE_PREFIX = "FenceSync-";
+
+    /**
+     * The extension of the title of the synchronized files
+     */
+    private static final String SYNC_TITLE_EXTENSION = ".ffsb";
+
+    /**
+     * The algorithm of the hash of a session
+     */
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /**
+     * The ApplicationContext
+     */
+    private final Context mContext;
+
+    /**
+     * The DriveStore with the synchronized files
+     */
+    private final DriveStore mDriveStore;
+
+    /**
+     * The local SyncManifest
+     */
+    private final SyncManifest mManifest;
+
+    /**
+     * The result of a synchronization
+     */
+    public static final class SyncResult {
+
+        /**
+         * The number of uploaded sessions
+         */
+        private int mUploadedCount;
+
+        /**
+         * The number of sessions already into the store
+         */
+        private int mSkippedCount;
+
+        /**
+         * The number of imported sessions
+         */
+        private int mDownloadedCount;
+
+        /**
+         * The number of imported sessions deleted because already present
+         */
+        private int mDuplicateCount;
+
+        /**
+         * @return The number of uploaded sessions
+         */
+        public int getUploadedCount() {
+            return mUploadedCount;
+        }
+
+        /**
+         * @return The number of sessions already into the store
+         */
+        public int getSkippedCount() {
+            return mSkippedCount;
+        }
+
+        /**
+         * @return The number of imported sessions
+         */
+        public int getDownloadedCount() {
+            return mDownloadedCount;
+        }
+
+        /**
+         * @return The number of imported sessions deleted because already present
+         */
+        public int getDuplicateCount() {
+            return mDuplicateCount;
+        }
+
+        @Override
+        public String toString() {
+            return "uploaded " + mUploadedCount + ", skipped " + mSkippedCount + ", downloaded "
+                    + mDownloadedCount + ", duplicates " + mDuplicateCount;
+        }
+    }
+
+    /**
+     * Creates a DriveSync
+     *
+     * @param context    The Context
+     * @param driveStore The DriveStore with the synchronized files
+     * @param manifest   The local SyncManifest
+     */
+    public DriveSync(final Context context, final DriveStore driveStore, final SyncManifest manifest) {
+        mContext = context.getApplicationContext();
+        mDriveStore = driveStore;
+        mManifest = manifest;
+    }
+
+    /**
+     * Uploads the changed sessions and imports the new files of the store
+     *
+     * @return The SyncResult
+     * @throws Exception In case of error accessing the DB or the store
+     */
+    public SyncResult sync() throws Exception {
+        final SyncResult syncResult = new SyncResult();
+        // We keep the files by id so the file of a changed session is replaced with its new hash
+        final Map<String, DriveStore.RemoteFile> remoteById = new HashMap<String, DriveStore.RemoteFile>();
+        final Map<String, DriveStore.RemoteFile> remoteByHash = new HashMap<String, DriveStore.RemoteFile>();
+        for (DriveStore.RemoteFile remoteFile : mDriveStore.list()) {
+            remoteById.put(remoteFile.getFileId(), remoteFile);
+            remoteByHash.put(remoteFile.getHash(), remoteFile);
+        }
+        // We upload the local sessions that are not into the store
+        final List<SyncManifest.Entry> localEntries = refreshManifest();
+        for (SyncManifest.Entry localEntry : localEntries) {
+            final String hash = localEntry.getHash();
+            final DriveStore.RemoteFile remoteFile = remoteByHash.get(hash);
+            final String fileId;
+            if (remoteFile != null) {
+                syncResult.mSkippedCount++;
+                fileId = remoteFile.getFileId();
+            } else if (localEntry.getFileId() != null && remoteById.containsKey(localEntry.getFileId())) {
+                // The session has changed so we replace the content of its file
+                fileId = localEntry.getFileId();
+                mDriveStore.update(fileId, getTitle(hash), hash, createWriter(localEntry.getSessionId()));
+                final DriveStore.RemoteFile oldFile = remoteById.get(fileId);
+                if (remoteByHash.get(oldFile.getHash()) == oldFile) {
+                    remoteByHash.remove(oldFile.getHash());
+                }
+                syncResult.mUploadedCount++;
+            } else {
+                fileId = mDriveStore.create(getTitle(hash), hash, createWriter(localEntry.getSessionId()));
+                syncResult.mUploadedCount++;
+            }
+            final DriveStore.RemoteFile syncedFile = new DriveStore.RemoteFile(fileId, hash);
+            remoteById.put(fileId, syncedFile);
+            remoteByHash.put(hash, syncedFile);
+            mManifest.put(new SyncManifest.Entry(localEntry.getSessionId(), localEntry.getLastModified(),
+                    localEntry.getPositionCount(), hash, fileId));
+        }
+        // We import the files with a hash we don't know. The local sessions are read only once
+        // and every imported session is added to them
+        final Map<String, Long> localByHash = indexByHash(localEntries, -1);
+        final Set<String> knownHashes = new HashSet<String>();
+        for (SyncManifest.Entry entry : mManifest.getAll()) {
+            knownHashes.add(entry.getHash());
+        }
+        for (DriveStore.RemoteFile remoteFile : remoteById.values()) {
+            if (knownHashes.contains(remoteFile.getHash())) {
+                continue;
+            }
+            final long sessionId = mDriveStore.read(remoteFile.getFileId(), new DriveStore.ContentReader() {
+                @Override
+                public long read(InputStream in) throws Exception {
+                    return FenceDriveUtil.importFenceSession(mContext, in, null);
+                }
+            });
+            if (deduplicate(sessionId, remoteFile.getFileId(), localByHash) == sessionId) {
+                syncResult.mDownloadedCount++;
+            } else {
+                syncResult.mDuplicateCount++;
+            }
+            knownHashes.add(remoteFile.getHash());
+        }
+        Log.d(TAG_LOG, "Sync completed: " + syncResult);
+        return syncResult;
+    }
+
+    /**
+     * Checks if a session just imported has the content of another session. In this case the
+     * imported session is deleted
+     *
+     * @param sessionId The id of the imported session
+     * @return The id of the session with the content of the imported one
+     * @throws IOException In case of error reading the sessions
+     */
+    public long deduplicate(final long sessionId) throws IOException {
+        return deduplicate(sessionId, null, indexByHash(refreshManifest(), sessionId));
+    }
+
+    /**
+     * @param sessionId   The id of the imported session
+     * @param fileId      The id of the file of the session or null
+     * @param localByHash The ids of the other local sessions by hash. The imported session is
+     *                    added if it's not a copy
+     * @return The id of the session with the content of the imported one
+     * @throws IOException In case of error reading the sessions
+     */
+    private long deduplicate(final long sessionId, final String fileId, final Map<String, Long> localByHash)
+            throws IOException {
+        final String hash = computeHash(mContext.getContentResolver(), sessionId);
+        final Long copiedSessionId = localByHash.get(hash);
+        if (copiedSessionId != null && copiedSessionId != sessionId) {
+            Log.d(TAG_LOG, "Session " + sessionId + " is a copy of " + copiedSessionId);
+            mContext.getContentResolver().delete(getSessionUri(sessionId), null, null);
+            mManifest.remove(sessionId);
+            return copiedSessionId;
+        }
+        final long[] signature = readSignature(mContext.getContentResolver(), sessionId);
+        mManifest.put(new SyncManifest.Entry(sessionId, signature[0], (int) signature[1], hash, fileId));
+        localByHash.put(hash, sessionId);
+        return sessionId;
+    }
+
+    /**
+     * @param entries          The entries of the local sessions
+     * @param excludeSessionId The id of the session to leave out
+     * @return The ids of the local sessions by hash
+     */
+    private static Map<String, Long> indexByHash(final List<SyncManifest.Entry> entries,
+                                                 final long excludeSessionId) {
+        final Map<String, Long> localByHash = new HashMap<String, Long>(entries.size() * 2);
+        for (SyncManifest.Entry entry : entries) {
+            if (entry.getSessionId() != excludeSessionId) {
+                localByHash.put(entry.getHash(), entry.getSessionId());
+            }
+        }
+        return localByHash;
+    }
+
+    /**
+     * Updates the entries of the closed local sessions. The hash is calculated again only for
+     * the sessions that have changed since the previous entry
+     *
+     * @return The entries of the closed local sessions
+     * @throws IOException In case of error reading the sessions
+     */
+    private List<SyncManifest.Entry> refreshManifest() throws IOException {
+        final ContentResolver contentResolver = mContext.getContentResolver();
+        final List<Long> sessionIds = new ArrayList<Long>();
+        final Cursor sessionCursor = contentResolver.query(FenceDB.FenceSession.CONTENT_URI, null,
+                FenceDB.FenceSession.END_DATE + " IS NOT NULL", null, null);
+        try {
+            final FenceCursorFactory.FenceSessionCursorData sessionData =
+                    CursorResolver.CURSOR_RESOLVER.extractSessionCursor(sessionCursor);
+            while (sessionData.moveToNext()) {
+                sessionIds.add(sessionData.getId());
+            }
+        } finally {
+            sessionCursor.close();
+        }
+        final List<SyncManifest.Entry> entries = new ArrayList<SyncManifest.Entry>(sessionIds.size());
+        for (long sessionId : sessionIds) {
+            final long[] signature = readSignature(contentResolver, sessionId);
+            SyncManifest.Entry entry = mManifest.get(sessionId);
+            if (entry == null || entry.getLastModified() != signature[0]
+                    || entry.getPositionCount() != signature[1]) {
+                entry = new SyncManifest.Entry(sessionId, signature[0], (int) signature[1],
+                        computeHash(contentResolver, sessionId), entry != null ? entry.getFileId() : null);
+                mManifest.put(entry);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the values that change when a session is modified
+     *
+     * @param contentResolver The ContentResolver
+     * @param sessionId       The id of the session
+     * @return The last time the session has been modified and the number of its positions
+     */
+    private static long[] readSignature(final ContentResolver contentResolver, final long sessionId) {
+        final long[] signature = new long[2];
+        final Cursor sessionCursor = contentResolver.query(getSessionUri(sessionId), null, null, null, null);
+        try {
+            final FenceCursorFactory.FenceSessionCursorData sessionData =
+                    CursorResolver.CURSOR_RESOLVER.extractSessionCursor(sessionCursor);
+            if (sessionData.moveToNext()) {
+                signature[0] = Math.max(sessionData.getStartDateMillis(), sessionData.getEndDateMillis());
+            }
+        } finally {
+            sessionCursor.close();
+        }
+        final Cursor summaryCursor = contentResolver.query(
+                FenceDB.FenceSessionSummary.getSummaryUri(sessionId), null, null, null, null);
+        try {
+            if (summaryCursor.moveToFirst()) {
+                signature[0] = Math.max(signature[0], summaryCursor.getLong(
+                        summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.LAST_POSITION_TIME)));
+                signature[1] = summaryCursor.getInt(
+                        summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.POSITION_COUNT));
+            }
+        } finally {
+            summaryCursor.close();
+        }
+        return signature;
+    }
+
+    /**
+     * Calculates the hash of the content of a session. It uses only the values that every
+     * export format keeps so the same session has the same hash after an import
+     *
+     * @param contentResolver The ContentResolver
+     * @param sessionId       The id of the session
+     * @return The hash of the session as hexadecimal
+     * @throws IOException In case of error reading the session
+     */
+    static String computeHash(final ContentResolver contentResolver, final long sessionId) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Hash not available", e);
+        }
+        final byte[] buffer = new byte[8];
+        final Cursor sessionCursor = contentResolver.query(getSessionUri(sessionId), null, null, null, null);
+        try {
+            final FenceCursorFactory.FenceSessionCursorData sessionData =
+                    CursorResolver.CURSOR_RESOLVER.extractSessionCursor(sessionCursor);
+            if (!sessionData.moveToNext()) {
+                throw new IOException("Session " + sessionId + " not found");
+            }
+            final String owner = sessionData.getOwner();
+            if (owner != null) {
+                digest.update(owner.getBytes(IOUtils.DEFAULT_ENCODING));
+            }
+            updateLong(digest, buffer, sessionData.getStartDateMillis());
+            updateLong(digest, buffer, sessionData.getEndDateMillis());
+        } finally {
+            sessionCursor.close();
+        }
+        final Cursor positionCursor = contentResolver.query(FenceDB.FencePosition.getPositionUriForSession(sessionId),
+                null, null, null, FenceDB.FencePosition.POSITION_TIME + " ASC");
+        try {
+            final FenceCursorFactory.FencePositionCursorData positionData =
+                    CursorResolver.CURSOR_RESOLVER.extractPositionCursor(positionCursor);
+            while (positionData.moveToNext()) {
+                updateLong(digest, buffer, positionData.getPositionTimeMillis());
+                updateLong(digest, buffer, ((long) positionData.getLatitudeE7() << 32)
+                        | (positionData.getLongitudeE7() & 0xffffffffL));
+                digest.update((byte) positionData.getActivityType());
+            }
+        } finally {
+            positionCursor.close();
+        }
+        final StringBuilder hash = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hash.append(Character.forDigit((value >> 4) & 0xf, 16)).append(Character.forDigit(value & 0xf, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @param digest The MessageDigest to update
+     * @param buffer The buffer of 8 bytes to use
+     * @param value  The value to add to the digest
+     */
+    private static void updateLong(final MessageDigest digest, final byte[] buffer, final long value) {
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        digest.update(buffer);
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @return The ContentWriter of the binary export of the session
+     */
+    private DriveStore.ContentWriter createWriter(final long sessionId) {
+        return new DriveStore.ContentWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                FenceDriveUtil.writeFenceSession(mContext, sessionId, FenceDB.BINARY_FORMAT, out);
+            }
+        };
+    }
+
+    /**
+     * @param hash The hash of the session
+     * @return The title of the file of the session
+     */
+    private static String getTitle(final String hash) {
+        return SYNC_TITLE_PREFIX + hash + SYNC_TITLE_EXTENSION;
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @return The Uri of the session
+     */
+    private static Uri getSessionUri(final long sessionId) {
+        return Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(sessionId));
+    }
+}
@@ -1,23 +1,34 @@
 package uk.co.massimocarli.friendfence.drive;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
 
+import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.SessionBinary;
+import uk.co.massimocarli.friendfence.content.SessionJson;
 import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.track.PositionTrack;
+import uk.co.massimocarli.friendfence.content.track.PositionTrackCache;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
+import uk.co.massimocarli.friendfence.util.IOUtils;
 
 /**
  * Created by Massimo Carli on 28/09/14.
@@ -27,14 +38,27 @@ public final class FenceDriveUtil {
     /**
      * The Pattern we use for the date and time
      */
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.UK);
+    private static final SimpleDateFormat DATE_FORMAT = SessionJson.newDateFormat();
+
+    /**
+     * The key of the format of the export into the SharedPreferences
+     */
+    private static final String EXPORT_FORMAT_PREFS_KEY = "export_format";
+
+    /**
+     * The format of the export if not selected into the settings
+     */
+    private static final String DEFAULT_EXPORT_FORMAT = Conf.BINARY_SESSION_EXPORT
+            ? FenceDB.BINARY_FORMAT : FenceDB.JSON_FORMAT;
 
     /**
      * We define the constants for the Json fields that are not equals to the related
      * columns on the DB
      */
     private static interface JsonProperties {
-        String POSITIONS = "positions";
+        String POSITIONS = SessionJson.POSITIONS;
+        String LATITUDE = SessionJson.LATITUDE;
+        String LONGITUDE = SessionJson.LONGITUDE;
     }
 
     /**
@@ -44,9 +68,103 @@ public final class FenceDriveUtil {
         throw new AssertionError("Never instantiate me! I'm an utility class!");
     }
 
+    /**
+     * This utility method writes the given session into the given stream in the given format.
+     * It accesses the DB so it must not be called into the UI Thread
+     *
+     * @param context   The Context
+     * @param sessionId The id of the FenceSession
+     * @param format    The format of the export
+     * @param out       The OutputStream to write into. It's not closed
+     * @throws IOException In case of error reading the session or writing the stream
+     */
+    public static void writeFenceSession(final Context context, final long sessionId, final String format,
+                                         final OutputStream out) throws IOException {
+        final Uri exportUri;
+        if (FenceDB.JSON_FORMAT.equals(format)) {
+            writeFenceSessionJson(context, sessionId, out);
+            return;
+        } else if (FenceDB.BINARY_FORMAT.equals(format)) {
+            exportUri = FenceDB.FenceSession.getBinaryExportUri(sessionId, true);
+        } else {
+            exportUri = FenceDB.FenceSession.getExportUri(sessionId, format);
+        }
+        final InputStream in = context.getContentResolver().openInputStream(exportUri);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param context The Context
+     * @return The format of the export of the sessions selected into the settings
+     */
+    public static String getExportFormat(final Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(EXPORT_FORMAT_PREFS_KEY, DEFAULT_EXPORT_FORMAT);
+    }
+
+    /**
+     * @param format The format of the export
+     * @return The MimeType of the files written by writeFenceSession() in the given format
+     */
+    public static String getExportMimeType(final String format) {
+        if (FenceDB.BINARY_FORMAT.equals(format)) {
+            return FenceDB.BINARY_MIME_TYPE;
+        } else if (FenceDB.GPX_FORMAT.equals(format)) {
+            return FenceDB.GPX_MIME_TYPE;
+        } else if (FenceDB.KML_FORMAT.equals(format)) {
+            return FenceDB.KML_MIME_TYPE;
+        }
+        return FenceDB.JSON_MIME_TYPE;
+    }
+
+    /**
+     * The GPX and KML files are opened by other apps so they have the extension of the format
+     *
+     * @param sessionName The name of the session
+     * @param format      The format of the export
+     * @return The title of the file of the exported session
+     */
+    public static String getExportTitle(final String sessionName, final String format) {
+        if (FenceDB.GPX_FORMAT.equals(format) || FenceDB.KML_FORMAT.equals(format)) {
+            return sessionName + "." + format;
+        }
+        return sessionName;
+    }
+
+    /**
+     * This utility method writes the Json of the given session into the given stream. The
+     * positions are streamed from the ContentProvider so the memory doesn't depend on the
+     * length of the session. It accesses the DB so it must not be called into the UI Thread
+     *
+     * @param context   The Context
+     * @param sessionId The id of the FenceSession
+     * @param out       The OutputStream to write into. It's not closed
+     * @throws IOException In case of error reading the session or writing the stream
+     */
+    public static void writeFenceSessionJson(final Context context, final long sessionId,
+                                             final OutputStream out) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The ContentProvider cannot stream the Json so we create it in memory
+            out.write(fenceSessionAsJson(context, sessionId).getBytes(IOUtils.DEFAULT_ENCODING));
+            return;
+        }
+        final InputStream in = context.getContentResolver()
+                .openInputStream(FenceDB.FenceSession.getExportUri(sessionId, FenceDB.JSON_FORMAT));
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * This utility method access the DB for the given session and create a Json file for the
-     * related information
+     * related information. The whole session is into memory so we use it only on the versions
+     * before HONEYCOMB
      *
      * @param context   The Context
      * @param sessionId The id of the FenceSession
@@ -73,23 +191,23 @@ public final class FenceDriveUtil {
                 // Now we have to save the data for the positions
                 final JSONArray positions = new JSONArray();
                 returnJson.put(JsonProperties.POSITIONS, positions);
-                final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
-                final Cursor posCursor = context.getContentResolver().query(positionUri, null, null, null, null);
-                final FenceCursorFactory.FencePositionCursorData positionCursor =
-                        CursorResolver.CURSOR_RESOLVER.extractPositionCursor(posCursor);
-                while (positionCursor.moveToNext()) {
+                final PositionTrack positionTrack = PositionTrackCache.get(context).getTrack(sessionId);
+                // We reuse the same Date for all the positions
+                final Date positionTime = new Date();
+                final int positionNumber = positionTrack.size();
+                for (int i = 0; i < positionNumber; i++) {
+                    positionTime.setTime(positionTrack.getTime(i));
                     // We create the object for the position
                     final JSONObject posObj = new JSONObject();
                     // We fill the data
-                    posObj.put(FenceDB.FencePosition.ACTIVITY, positionCursor.getActivityType());
-                    posObj.put(FenceDB.FencePosition.LATITUDE, positionCursor.getLatitude());
-                    posObj.put(FenceDB.FencePosition.LONGITUDE, positionCursor.getLongitude());
-                    posObj.put(FenceDB.FencePosition.DISTANCE, positionCursor.getDistance());
-                    posObj.put(FenceDB.FencePosition.POSITION_TIME, DATE_FORMAT.format(positionCursor.getPositionTime()));
+                    posObj.put(FenceDB.FencePosition.ACTIVITY, positionTrack.getActivityType(i));
+                    posObj.put(JsonProperties.LATITUDE, positionTrack.getLatitude(i));
+                    posObj.put(JsonProperties.LONGITUDE, positionTrack.getLongitude(i));
+                    posObj.put(FenceDB.FencePosition.DISTANCE, positionTrack.getDistance(i));
+                    posObj.put(FenceDB.FencePosition.POSITION_TIME, DATE_FORMAT.format(positionTime));
                     // We add the object to the array
                     positions.put(posObj);
                 }
-                posCursor.close();
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -123,12 +241,48 @@ public final class FenceDriveUtil {
 
 
     /**
-     * This method reads the data and import that into the DB
+     * This method reads a session from the given stream and imports it into the DB. The format
+     * is Json or binary, recognized from the first bytes. The positions are inserted in groups
+     * while they're read so the memory doesn't depend on the size of the file. It accesses the
+     * DB so it must not be called into the UI Thread
+     *
+     * @param context  The Context
+     * @param in       The InputStream with the session. It's not closed
+     * @param listener The ImportListener notified with the number of imported positions or null
+     * @return The id of the new session
+     */
+    public static long importFenceSession(final Context context, final InputStream in,
+                                          final SessionJson.ImportListener listener) throws Exception {
+        final InputStream bufferedIn = new BufferedInputStream(in);
+        // We read the magic bytes and then we go back to the beginning of the stream
+        final byte[] header = new byte[SessionBinary.getMagicLength()];
+        bufferedIn.mark(header.length);
+        int headerLength = 0;
+        int read;
+        while (headerLength < header.length
+                && (read = bufferedIn.read(header, headerLength, header.length - headerLength)) > 0) {
+            headerLength += read;
+        }
+        bufferedIn.reset();
+        if (SessionBinary.isBinary(header, headerLength)) {
+            return SessionBinary.read(context.getContentResolver(), bufferedIn, listener);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // The JsonReader is not available so we read the whole Json in memory
+            return importFenceSessionJson(context, IOUtils.toString(bufferedIn));
+        }
+        return SessionJson.read(context.getContentResolver(), bufferedIn, listener);
+    }
+
+    /**
+     * This method reads the data and import that into the DB. The whole Json is into memory so
+     * we use it only on the versions before HONEYCOMB
      *
      * @param context  The Context
      * @param jsonData The Json data for the FenceSession
+     * @return The id of the new session
      */
-    public static void importFenceSessionJson(final Context context, final String jsonData) throws Exception {
+    public static long importFenceSessionJson(final Context context, final String jsonData) throws Exception {
         final JSONObject jsonObject = new JSONObject(jsonData);
         // We create the Session Object
         final ContentValues sessionData = new ContentValues();
@@ -147,32 +301,29 @@ public final class FenceDriveUtil {
         if (positions != null) {
             final Uri uriForPositions = FenceDB.FencePosition.getPositionUriForSession(newSessionId);
             final int positionNumber = positions.length();
-            final ArrayList<ContentProviderOperation> insertOps = new ArrayList<ContentProviderOperation>(positionNumber);
+            final ArrayList<ContentValues> positionValuesList = new ArrayList<ContentValues>(positionNumber);
             for (int i = 0; i < positions.length(); i++) {
                 final JSONObject position = positions.optJSONObject(i);
                 if (position != null) {
                     // We create the ContentValues
                     final ContentValues positionValues = new ContentValues();
-                    positionValues.put(FenceDB.FencePosition.SESSION_ID, newSessionId);
                     positionValues.put(FenceDB.FencePosition.ACTIVITY, position.optInt(FenceDB.FencePosition.ACTIVITY));
-                    positionValues.put(FenceDB.FencePosition.LATITUDE, position.optDouble(FenceDB.FencePosition.LATITUDE));
-                    positionValues.put(FenceDB.FencePosition.LONGITUDE, position.optDouble(FenceDB.FencePosition.LONGITUDE));
+                    positionValues.put(FenceDB.FencePosition.LATITUDE_E7,
+                            CoordinateUtil.toE7(position.optDouble(JsonProperties.LATITUDE)));
+                    positionValues.put(FenceDB.FencePosition.LONGITUDE_E7,
+                            CoordinateUtil.toE7(position.optDouble(JsonProperties.LONGITUDE)));
                     positionValues.put(FenceDB.FencePosition.DISTANCE, position.optDouble(FenceDB.FencePosition.DISTANCE));
                     positionValues.put(FenceDB.FencePosition.POSITION_TIME,
                             DATE_FORMAT.parse(position.optString(FenceDB.FencePosition.POSITION_TIME)).getTime());
-                    // We create the Insert operations
-                    final ContentProviderOperation insertOp = ContentProviderOperation.newInsert(uriForPositions)
-                            .withValues(positionValues)
-                            .build();
-                    // We add the operations to the list
-                    insertOps.add(insertOp);
+                    // We add the values to the list
+                    positionValuesList.add(positionValues);
                 }
             }
-            // We execute the batch
-            context.getContentResolver().applyBatch(FenceDB.AUTHORITY, insertOps);
+            // We insert all the positions in a single transaction
+            final ContentValues[] positionValuesArray = new ContentValues[positionValuesList.size()];
+            context.getContentResolver().bulkInsert(uriForPositions, positionValuesList.toArray(positionValuesArray));
         }
-
-
+        return newSessionId;
     }
 
 }
@@ -0,0 +1,142 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.drive.Drive;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+import com.google.android.gms.drive.MetadataChangeSet;
+import com.google.android.gms.drive.query.Filters;
+import com.google.android.gms.drive.query.Query;
+import com.google.android.gms.drive.query.SearchableField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * The DriveStore of the files into the root folder of Google Drive. The hash of the session is
+ * saved as the description of the file. It waits for the results of the GoogleApiClient so it
+ * must not be used into the UI Thread.
+ */
+public final class GoogleDriveStore implements DriveStore {
+
+    /**
+     * The connected GoogleApiClient
+     */
+    private final GoogleApiClient mGoogleApiClient;
+
+    /**
+     * Creates a GoogleDriveStore
+     *
+     * @param googleApiClient The connected GoogleApiClient
+     */
+    public GoogleDriveStore(final GoogleApiClient googleApiClient) {
+        mGoogleApiClient = googleApiClient;
+    }
+
+    @Override
+    public List<RemoteFile> list() throws IOException {
+        final Query query = new Query.Builder()
+                .addFilter(Filters.contains(SearchableField.TITLE, DriveSync.SYNC_TITLE_PREFIX))
+                .addFilter(Filters.eq(SearchableField.TRASHED, false))
+                .addFilter(Filters.eq(SearchableField.MIME_TYPE, FenceDB.BINARY_MIME_TYPE))
+                .build();
+        final DriveApi.MetadataBufferResult result = Drive.DriveApi.query(mGoogleApiClient, query).await();
+        checkStatus(result.getStatus(), "query");
+        final MetadataBuffer metadataBuffer = result.getMetadataBuffer();
+        try {
+            final List<RemoteFile> remoteFiles = new ArrayList<RemoteFile>(metadataBuffer.getCount());
+            for (Metadata metadata : metadataBuffer) {
+                // The files without the hash are not written by the sync
+                if (metadata.getDescription() != null) {
+                    remoteFiles.add(new RemoteFile(metadata.getDriveId().encodeToString(),
+                            metadata.getDescription()));
+                }
+            }
+            return remoteFiles;
+        } finally {
+            metadataBuffer.release();
+        }
+    }
+
+    @Override
+    public String create(final String title, final String hash, final ContentWriter writer) throws IOException {
+        final DriveApi.DriveContentsResult contentsResult = Drive.DriveApi
+                .newDriveContents(mGoogleApiClient).await();
+        checkStatus(contentsResult.getStatus(), "newDriveContents");
+        final DriveContents driveContents = contentsResult.getDriveContents();
+        try {
+            writer.write(driveContents.getOutputStream());
+        } catch (IOException ioe) {
+            driveContents.discard(mGoogleApiClient);
+            throw ioe;
+        }
+        final DriveFolder.DriveFileResult fileResult = Drive.DriveApi.getRootFolder(mGoogleApiClient)
+                .createFile(mGoogleApiClient, createChangeSet(title, hash), driveContents).await();
+        checkStatus(fileResult.getStatus(), "createFile");
+        return fileResult.getDriveFile().getDriveId().encodeToString();
+    }
+
+    @Override
+    public void update(final String fileId, final String title, final String hash,
+                       final ContentWriter writer) throws IOException {
+        final DriveFile driveFile = Drive.DriveApi.getFile(mGoogleApiClient, DriveId.decodeFromString(fileId));
+        final DriveApi.DriveContentsResult contentsResult = driveFile
+                .open(mGoogleApiClient, DriveFile.MODE_WRITE_ONLY, null).await();
+        checkStatus(contentsResult.getStatus(), "open");
+        final DriveContents driveContents = contentsResult.getDriveContents();
+        try {
+            writer.write(driveContents.getOutputStream());
+        } catch (IOException ioe) {
+            driveContents.discard(mGoogleApiClient);
+            throw ioe;
+        }
+        checkStatus(driveContents.commit(mGoogleApiClient, createChangeSet(title, hash)).await(), "commit");
+    }
+
+    @Override
+    public long read(final String fileId, final ContentReader reader) throws Exception {
+        final DriveFile driveFile = Drive.DriveApi.getFile(mGoogleApiClient, DriveId.decodeFromString(fileId));
+        final DriveApi.DriveContentsResult contentsResult = driveFile
+                .open(mGoogleApiClient, DriveFile.MODE_READ_ONLY, null).await();
+        checkStatus(contentsResult.getStatus(), "open");
+        final DriveContents driveContents = contentsResult.getDriveContents();
+        try {
+            return reader.read(driveContents.getInputStream());
+        } finally {
+            driveContents.discard(mGoogleApiClient);
+        }
+    }
+
+    /**
+     * @param title The title of the file
+     * @param hash  The hash of the session into the file
+     * @return The MetadataChangeSet of a file of a session
+     */
+    private static MetadataChangeSet createChangeSet(final String title, final String hash) {
+        return new MetadataChangeSet.Builder()
+                .setMimeType(FenceDB.BINARY_MIME_TYPE)
+                .setTitle(title)
+                .setDescription(hash)
+                .build();
+    }
+
+    /**
+     * @param status    The Status of an operation
+     * @param operation The name of the operation
+     * @throws IOException If the operation failed
+     */
+    private static void checkStatus(final Status status, final String operation) throws IOException {
+        if (!status.isSuccess()) {
+            throw new IOException("Drive " + operation + " failed: " + status.getStatusMessage());
+        }
+    }
+}
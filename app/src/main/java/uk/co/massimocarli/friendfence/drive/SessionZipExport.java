@@ -0,0 +1,325 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.util.IOUtils;
+
+/**
+ * This exports many sessions into a single ZIP stream. The sessions are read from the
+ * ContentProvider and encoded in parallel by a bounded number of Threads. Every Thread streams
+ * its session from the Cursor into a file into the cache directory and the entries are added to
+ * the ZIP in the order they complete. A ZIP stream can only be written one entry at a time so
+ * this is where the parallel work ends. The binary sessions are already compressed by the Thread
+ * that encodes them so they're stored without compressing them again.
+ */
+public final class SessionZipExport {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = SessionZipExport.class.getName();
+
+    /**
+     * The name of the Threads of the export
+     */
+    private static final String THREAD_NAME = "SessionZipExport";
+
+    /**
+     * The prefix of the name of the entries and of the files into the cache
+     */
+    private static final String ENTRY_PREFIX = "session-";
+
+    /**
+     * The extension of the binary format
+     */
+    private static final String BINARY_EXTENSION = "ffsb";
+
+    /**
+     * The MimeType of the ZIP archive
+     */
+    public static final String ZIP_MIME_TYPE = "application/zip";
+
+    /**
+     * The interface of the object notified during the export
+     */
+    public interface ProgressListener {
+
+        /**
+         * Invoked every time a session is added to the archive. It's invoked into the Thread
+         * that writes the archive
+         *
+         * @param exportedSessions The number of sessions into the archive
+         * @param totalSessions    The number of sessions to export
+         * @param exportedBytes    The number of bytes of the sessions into the archive
+         */
+        void onProgress(int exportedSessions, int totalSessions, long exportedBytes);
+    }
+
+    /**
+     * The ApplicationContext
+     */
+    private final Context mContext;
+
+    /**
+     * The max number of sessions encoded at the same time
+     */
+    private final int mThreadCount;
+
+    /**
+     * Creates a SessionZipExport with a Thread for every core
+     *
+     * @param context The Context
+     */
+    public SessionZipExport(final Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a SessionZipExport
+     *
+     * @param context     The Context
+     * @param threadCount The max number of sessions encoded at the same time
+     */
+    public SessionZipExport(final Context context, final int threadCount) {
+        mContext = context.getApplicationContext();
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Writes the given sessions into a ZIP stream. It accesses the DB so it must not be
+     * called into the UI Thread. The stream is not closed
+     *
+     * @param sessionIds The ids of the sessions to export
+     * @param format     The format of the sessions
+     * @param out        The OutputStream to write into
+     * @param listener   The ProgressListener or null
+     * @return The number of bytes of the sessions into the archive
+     * @throws IOException In case of error reading a session or writing the stream
+     */
+    public long export(final long[] sessionIds, final String format, final OutputStream out,
+                       final ProgressListener listener) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mThreadCount, Math.max(1, sessionIds.length)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, THREAD_NAME);
+                    }
+                });
+        final CompletionService<SpooledSession> completionService =
+                new ExecutorCompletionService<SpooledSession>(executor);
+        final List<Future<SpooledSession>> futures = new ArrayList<Future<SpooledSession>>(sessionIds.length);
+        for (final long sessionId : sessionIds) {
+            futures.add(completionService.submit(new Callable<SpooledSession>() {
+                @Override
+                public SpooledSession call() throws Exception {
+                    return spool(sessionId, format);
+                }
+            }));
+        }
+        // The stored entries are the ones already compressed
+        final boolean stored = FenceDB.BINARY_FORMAT.equals(format);
+        final ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(out));
+        long exportedBytes = 0L;
+        try {
+            for (int i = 0; i < sessionIds.length; i++) {
+                final SpooledSession spooledSession = takeNext(completionService);
+                try {
+                    writeEntry(zipOut, spooledSession, format, stored);
+                } finally {
+                    spooledSession.mFile.delete();
+                }
+                exportedBytes += spooledSession.mSize;
+                if (listener != null) {
+                    listener.onProgress(i + 1, sessionIds.length, exportedBytes);
+                }
+            }
+            // We don't close the stream because it would close the output
+            zipOut.finish();
+            zipOut.flush();
+            return exportedBytes;
+        } finally {
+            executor.shutdownNow();
+            deleteSpooledSessions(executor, futures);
+        }
+    }
+
+    /**
+     * Writes a session into a file into the cache directory
+     *
+     * @param sessionId The id of the session
+     * @param format    The format of the session
+     * @return The SpooledSession with the file
+     * @throws IOException In case of error reading the session or writing the file
+     */
+    private SpooledSession spool(final long sessionId, final String format) throws IOException {
+        final File file = File.createTempFile(ENTRY_PREFIX + sessionId, null, mContext.getCacheDir());
+        final CRC32 crc = new CRC32();
+        boolean spooled = false;
+        try {
+            final CheckedOutputStream fileOut = new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)), crc);
+            try {
+                FenceDriveUtil.writeFenceSession(mContext, sessionId, format, fileOut);
+            } finally {
+                fileOut.close();
+            }
+            spooled = true;
+            return new SpooledSession(sessionId, file, file.length(), crc.getValue());
+        } finally {
+            if (!spooled) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Adds a session to the archive
+     *
+     * @param zipOut         The ZipOutputStream
+     * @param spooledSession The SpooledSession to add
+     * @param format         The format of the session
+     * @param stored         True if the entry doesn't have to be compressed
+     * @throws IOException In case of error reading the file or writing the stream
+     */
+    private static void writeEntry(final ZipOutputStream zipOut, final SpooledSession spooledSession,
+                                   final String format, final boolean stored) throws IOException {
+        final ZipEntry entry = new ZipEntry(getEntryName(spooledSession.mSessionId, format));
+        if (stored) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(spooledSession.mSize);
+            entry.setCompressedSize(spooledSession.mSize);
+            entry.setCrc(spooledSession.mCrc);
+        }
+        zipOut.putNextEntry(entry);
+        final InputStream in = new FileInputStream(spooledSession.mFile);
+        try {
+            IOUtils.copy(in, zipOut);
+        } finally {
+            in.close();
+        }
+        zipOut.closeEntry();
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @param format    The format of the session
+     * @return The name of the entry of the session into the archive
+     */
+    private static String getEntryName(final long sessionId, final String format) {
+        final String extension = FenceDB.BINARY_FORMAT.equals(format) ? BINARY_EXTENSION : format;
+        return ENTRY_PREFIX + sessionId + "." + extension;
+    }
+
+    /**
+     * @param completionService The CompletionService of the sessions
+     * @return The next session written into the cache
+     * @throws IOException If the session cannot be written or the Thread is interrupted
+     */
+    private static SpooledSession takeNext(final CompletionService<SpooledSession> completionService)
+            throws IOException {
+        try {
+            return completionService.take().get();
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error exporting a session", cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted");
+        }
+    }
+
+    /**
+     * Deletes the files of the sessions that have not been added to the archive because of
+     * an error
+     *
+     * @param executor The ExecutorService already shut down
+     * @param futures  The Futures of all the sessions
+     */
+    private static void deleteSpooledSessions(final ExecutorService executor,
+                                              final List<Future<SpooledSession>> futures) {
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<SpooledSession> future : futures) {
+            if (!future.isDone() || future.isCancelled()) {
+                continue;
+            }
+            try {
+                // The ones already added have been deleted so this does nothing
+                future.get().mFile.delete();
+            } catch (Exception e) {
+                Log.w(TAG_LOG, "Session not exported", e);
+            }
+        }
+    }
+
+    /**
+     * A session written into a file into the cache directory
+     */
+    private static final class SpooledSession {
+
+        /**
+         * The id of the session
+         */
+        private final long mSessionId;
+
+        /**
+         * The file with the session
+         */
+        private final File mFile;
+
+        /**
+         * The size of the file
+         */
+        private final long mSize;
+
+        /**
+         * The CRC32 of the content of the file
+         */
+        private final long mCrc;
+
+        private SpooledSession(final long sessionId, final File file, final long size, final long crc) {
+            mSessionId = sessionId;
+            mFile = file;
+            mSize = size;
+            mCrc = crc;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uk.co.massimocarli.friendfence.drive;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.massimocarli.friendfence.Conf;
+
+/**
+ * This is the local manifest of the sessions synchronized with Drive. For every session it
+ * keeps the values that tell if it has changed, the hash of its content and the id of its
+ * file on Drive. The entries of the deleted sessions are kept so they're not downloaded again.
+ * It reads the SharedPreferences so it must not be used into the UI Thread.
+ */
+public final class SyncManifest {
+
+    /**
+     * The name for the SharedPrefs of the manifest
+     */
+    private static final String SHARED_NAME = Conf.PKG + ".prefs.DRIVE_SYNC_MANIFEST";
+
+    /**
+     * The separator of the values of an entry
+     */
+    private static final String SEPARATOR = ",";
+
+    /**
+     * The value we save when the session has no file on Drive
+     */
+    private static final String NO_FILE_ID = "";
+
+    /**
+     * The SharedPreferences with the entries
+     */
+    private final SharedPreferences mSharedPreferences;
+
+    /**
+     * The entry of a session into the manifest
+     */
+    public static final class Entry {
+
+        /**
+         * The id of the session
+         */
+        private final long mSessionId;
+
+        /**
+         * The last time the session has been modified
+         */
+        private final long mLastModified;
+
+        /**
+         * The number of positions of the session
+         */
+        private final int mPositionCount;
+
+        /**
+         * The hash of the content of the session
+         */
+        private final String mHash;
+
+        /**
+         * The id of the file on Drive or null if not uploaded
+         */
+        private final String mFileId;
+
+        /**
+         * Creates an Entry
+         *
+         * @param sessionId     The id of the session
+         * @param lastModified  The last time the session has been modified
+         * @param positionCount The number of positions of the session
+         * @param hash          The hash of the content of the session
+         * @param fileId        The id of the file on Drive or null if not uploaded
+         */
+        public Entry(final long sessionId, final long lastModified, final int positionCount,
+                     final String hash, final String fileId) {
+            mSessionId = sessionId;
+            mLastModified = lastModified;
+            mPositionCount = positionCount;
+            mHash = hash;
+            mFileId = fileId;
+        }
+
+        /**
+         * @return The id of the session
+         */
+        public long getSessionId() {
+            return mSessionId;
+        }
+
+        /**
+         * @return The last time the session has been modified
+         */
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return The number of positions of the session
+         */
+        public int getPositionCount() {
+            return mPositionCount;
+        }
+
+        /**
+         * @return The hash of the content of the session
+         */
+        public String getHash() {
+            return mHash;
+        }
+
+        /**
+         * @return The id of the file on Drive or null if not uploaded
+         */
+        public String getFileId() {
+            return mFileId;
+        }
+    }
+
+    /**
+     * Creates the SyncManifest of the app
+     *
+     * @param context The Context
+     */
+    public SyncManifest(final Context context) {
+        this(context, SHARED_NAME);
+    }
+
+    /**
+     * Creates a SyncManifest saved with the given name
+     *
+     * @param context    The Context
+     * @param sharedName The name of the SharedPreferences
+     */
+    SyncManifest(final Context context, final String sharedName) {
+        mSharedPreferences = context.getApplicationContext().getSharedPreferences(sharedName, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @return The entry of the session or null if it's not into the manifest
+     */
+    public Entry get(final long sessionId) {
+        return parse(sessionId, mSharedPreferences.getString(String.valueOf(sessionId), null));
+    }
+
+    /**
+     * @return All the entries of the manifest
+     */
+    public List<Entry> getAll() {
+        final Map<String, ?> values = mSharedPreferences.getAll();
+        final List<Entry> entries = new ArrayList<Entry>(values.size());
+        for (Map.Entry<String, ?> value : values.entrySet()) {
+            final Entry entry = parse(Long.parseLong(value.getKey()), (String) value.getValue());
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Saves the entry of a session replacing the previous one
+     *
+     * @param entry The entry to save
+     */
+    public void put(final Entry entry) {
+        final String value = entry.getLastModified() + SEPARATOR + entry.getPositionCount() + SEPARATOR
+                + entry.getHash() + SEPARATOR + (entry.getFileId() != null ? entry.getFileId() : NO_FILE_ID);
+        mSharedPreferences.edit().putString(String.valueOf(entry.getSessionId()), value).commit();
+    }
+
+    /**
+     * Removes the entry of a session
+     *
+     * @param sessionId The id of the session
+     */
+    public void remove(final long sessionId) {
+        mSharedPreferences.edit().remove(String.valueOf(sessionId)).commit();
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public void clear() {
+        mSharedPreferences.edit().clear().commit();
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @param value     The saved value of the entry
+     * @return The Entry or null if the value is not valid
+     */
+    private static Entry parse(final long sessionId, final String value) {
+        if (value == null) {
+            return null;
+        }
+        final String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length != 4) {
+            return null;
+        }
+        return new Entry(sessionId, Long.parseLong(parts[0]), Integer.parseInt(parts[1]), parts[2],
+                NO_FILE_ID.equals(parts[3]) ? null : parts[3]);
+    }
+}
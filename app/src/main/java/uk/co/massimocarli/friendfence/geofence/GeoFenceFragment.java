@@ -30,6 +30,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -46,6 +47,7 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.Circle;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
 
@@ -56,10 +58,12 @@ import java.util.Set;
 
 import uk.co.massimocarli.friendfence.R;
 import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.FenceRepository;
 import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
 import uk.co.massimocarli.friendfence.service.GeofenceService;
 import uk.co.massimocarli.friendfence.settings.SettingsActivity;
+import uk.co.massimocarli.friendfence.util.MapUtil;
 import uk.co.massimocarli.friendfence.util.UI;
 
 /**
@@ -76,8 +80,8 @@ public class GeoFenceFragment extends Fragment {
     /**
      * The starting fields
      */
-    private static final String[] FROM = {FenceDB.Geofence.FENCE_ID, FenceDB.Geofence.LATITUDE,
-            FenceDB.Geofence.LONGITUDE};
+    private static final String[] FROM = {FenceDB.Geofence.FENCE_ID, FenceDB.Geofence.LATITUDE_E7,
+            FenceDB.Geofence.LONGITUDE_E7};
 
     /**
      * The ids for the view related to the fields
@@ -95,6 +99,16 @@ public class GeoFenceFragment extends Fragment {
      */
     private final static int GEOFENCE_LOADER_ID = 48;
 
+    /**
+     * The argument for the Loader with the Uri of the Geofences to show
+     */
+    private final static String GEOFENCE_URI_ARG = "geofence_uri";
+
+    /**
+     * The margin we add to the visible region of the map when we look for the Geofences
+     */
+    private final static double VISIBLE_REGION_MARGIN = 0.25;
+
     /**
      * The key for the map type in the SharedPreferences
      */
@@ -200,7 +214,9 @@ public class GeoFenceFragment extends Fragment {
     private final LoaderManager.LoaderCallbacks<Cursor> mLoaderCallback = new LoaderManager.LoaderCallbacks<Cursor>() {
         @Override
         public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-            return new CursorLoader(getActivity(), FenceDB.Geofence.CONTENT_URI, null, null, null, null);
+            // We read only the Geofences into the visible region if we know it
+            final Uri geofenceUri = bundle.getParcelable(GEOFENCE_URI_ARG);
+            return new CursorLoader(getActivity(), geofenceUri, null, null, null, null);
         }
 
         @Override
@@ -243,7 +259,26 @@ public class GeoFenceFragment extends Fragment {
     public void onResume() {
         super.onResume();
         // We start the Loader
-        getLoaderManager().restartLoader(GEOFENCE_LOADER_ID, new Bundle(), mLoaderCallback);
+        loadVisibleGeofences();
+    }
+
+    /**
+     * Starts the Loader for the Geofences into the visible region of the map. If the map is
+     * not ready we read all of them
+     */
+    private void loadVisibleGeofences() {
+        final Uri geofenceUri;
+        if (mGoogleMap == null) {
+            geofenceUri = FenceDB.Geofence.CONTENT_URI;
+        } else {
+            final double[] boundingBox = MapUtil.getVisibleBoundingBox(mGoogleMap, VISIBLE_REGION_MARGIN);
+            geofenceUri = FenceDB.Geofence.getBoundingBoxUri(boundingBox[MapUtil.MIN_LATITUDE],
+                    boundingBox[MapUtil.MIN_LONGITUDE], boundingBox[MapUtil.MAX_LATITUDE],
+                    boundingBox[MapUtil.MAX_LONGITUDE]);
+        }
+        final Bundle args = new Bundle();
+        args.putParcelable(GEOFENCE_URI_ARG, geofenceUri);
+        getLoaderManager().restartLoader(GEOFENCE_LOADER_ID, args, mLoaderCallback);
     }
 
     @Override
@@ -292,6 +327,15 @@ public class GeoFenceFragment extends Fragment {
                 updateMapType();
                 // Show the current location
                 showLocationInMap(mCurrentLocation);
+                // When the map moves we show the Geofences into the new visible region
+                mGoogleMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+                    @Override
+                    public void onCameraChange(CameraPosition cameraPosition) {
+                        if (isResumed()) {
+                            loadVisibleGeofences();
+                        }
+                    }
+                });
                 // We register the listener for the long click
                 mGoogleMap.setOnMapLongClickListener(new GoogleMap.OnMapLongClickListener() {
                     @Override
@@ -330,6 +374,13 @@ public class GeoFenceFragment extends Fragment {
                     final LatLng position = new LatLng(geoFenceData.getLatitude(), geoFenceData.getLongitude());
                     final Circle circle = drawCircle(position, geoFenceData.getRadius());
                     mCircles.add(circle);
+                } else if (view.getId() == R.id.geofence_latitude) {
+                    // The coordinates are stored in E7 so we show them in degrees
+                    ((TextView) view).setText(String.valueOf(geoFenceData.getLatitude()));
+                    return true;
+                } else if (view.getId() == R.id.geofence_longitude) {
+                    ((TextView) view).setText(String.valueOf(geoFenceData.getLongitude()));
+                    return true;
                 }
                 return false;
             }
@@ -435,7 +486,7 @@ public class GeoFenceFragment extends Fragment {
                 // We check the status to know if the geofence was successfully added or not
                 if (status.isSuccess()) {
                     // In this case we save the data into the DB
-                    FenceDB.Geofence.save(getActivity(), geoFenceData);
+                    FenceRepository.get(getActivity()).saveGeofence(geoFenceData, null);
                 } else {
                     // In this case it failed so we do nothing
                     Toast.makeText(getActivity(), R.string.geofence_error, Toast.LENGTH_SHORT).show();
@@ -451,33 +502,39 @@ public class GeoFenceFragment extends Fragment {
      */
     private void requestForDelete(final long itemId) {
         // We get the data related to the given Geofence
-        final Uri geofenceUri = Uri.withAppendedPath(FenceDB.Geofence.CONTENT_URI, String.valueOf(itemId));
-        final Cursor cursor = getActivity().getContentResolver().query(geofenceUri, null, null, null, null);
-        final FenceCursorFactory.GeofenceCursorData geoFenceCursor =
-                CursorResolver.CURSOR_RESOLVER.extractGeofenceCursor(cursor);
-        if (geoFenceCursor.moveToNext()) {
-            final GeofenceData geofenceData = geoFenceCursor.getGeofence();
-            final String idToDelete = geofenceData.getRequestId();
-            final ArrayList<String> idsToDelete = new ArrayList<String>(1);
-            idsToDelete.add(idToDelete);
-            final PendingResult<Status> result =
-                    LocationServices.GeofencingApi.removeGeofences(mGoogleApiClient, idsToDelete);
-            result.setResultCallback(new ResultCallback<Status>() {
-                @Override
-                public void onResult(Status status) {
-                    // We check the status to know if the geofence was successfully added or not
-                    if (status.isSuccess()) {
-                        // In this case we delete the data into the DB
-                        getActivity().getContentResolver().delete(geofenceUri, null, null);
-                        Toast.makeText(getActivity(), R.string.geofence_deleted, Toast.LENGTH_SHORT).show();
-                    } else {
-                        // In this case it failed so we do nothing
-                        Toast.makeText(getActivity(), R.string.geofence_error, Toast.LENGTH_SHORT).show();
-                    }
+        final FenceRepository repository = FenceRepository.get(getActivity());
+        repository.loadGeofence(itemId, new FenceRepository.Callback<GeofenceData>() {
+            @Override
+            public void onResult(GeofenceData geofenceData) {
+                if (geofenceData == null || !isAdded()) {
+                    return;
                 }
-            });
-        }
-        cursor.close();
+                final String idToDelete = geofenceData.getRequestId();
+                final ArrayList<String> idsToDelete = new ArrayList<String>(1);
+                idsToDelete.add(idToDelete);
+                final PendingResult<Status> result =
+                        LocationServices.GeofencingApi.removeGeofences(mGoogleApiClient, idsToDelete);
+                result.setResultCallback(new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(Status status) {
+                        // We check the status to know if the geofence was successfully added or not
+                        if (status.isSuccess()) {
+                            // In this case we delete the data into the DB
+                            repository.deleteGeofence(itemId, null);
+                            Toast.makeText(getActivity(), R.string.geofence_deleted, Toast.LENGTH_SHORT).show();
+                        } else {
+                            // In this case it failed so we do nothing
+                            Toast.makeText(getActivity(), R.string.geofence_error, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(getActivity(), R.string.geofence_error, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     /**
@@ -525,15 +582,27 @@ public class GeoFenceFragment extends Fragment {
      */
     private void startMockLocations(final long geofenceId) {
         // We get the data related to the given Geofence
-        final Uri geofenceUri = Uri.withAppendedPath(FenceDB.Geofence.CONTENT_URI, String.valueOf(geofenceId));
-        final Cursor cursor = getActivity().getContentResolver().query(geofenceUri, null, null, null, null);
-        final FenceCursorFactory.GeofenceCursorData geoFenceCursor =
-                CursorResolver.CURSOR_RESOLVER.extractGeofenceCursor(cursor);
-        GeofenceData geofenceData = null;
-        if (geoFenceCursor.moveToNext()) {
-            geofenceData = geoFenceCursor.getGeofence();
-        }
-        cursor.close();
+        FenceRepository.get(getActivity()).loadGeofence(geofenceId, new FenceRepository.Callback<GeofenceData>() {
+            @Override
+            public void onResult(GeofenceData geofenceData) {
+                if (isAdded()) {
+                    startMockLocations(geofenceData);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(getActivity(), R.string.geofence_error, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * This method sends a set of Mock Location events until the given Geofence
+     *
+     * @param geofenceData The Geofence to test
+     */
+    private void startMockLocations(final GeofenceData geofenceData) {
         if (geofenceData != null) {
             // We start to simulate the item
             final GeofenceData finalData = geofenceData;
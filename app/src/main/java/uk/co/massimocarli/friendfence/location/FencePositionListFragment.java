@@ -13,8 +13,10 @@ import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 import uk.co.massimocarli.friendfence.Conf;
@@ -22,6 +24,7 @@ import uk.co.massimocarli.friendfence.R;
 import uk.co.massimocarli.friendfence.content.FenceDB;
 import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionMergeCursor;
 import uk.co.massimocarli.friendfence.util.ActivityUtil;
 import uk.co.massimocarli.friendfence.util.DistanceUtil;
 import uk.co.massimocarli.friendfence.util.UI;
@@ -45,7 +48,7 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
      * The FROM field for the CursorAdapter of the DB fields
      */
     private final static String[] FROM = new String[]{FenceDB.FencePosition._ID, FenceDB.FencePosition.POSITION_TIME,
-            FenceDB.FencePosition.LATITUDE, FenceDB.FencePosition.LONGITUDE, FenceDB.FencePosition.DISTANCE,
+            FenceDB.FencePosition.LATITUDE_E7, FenceDB.FencePosition.LONGITUDE_E7, FenceDB.FencePosition.DISTANCE,
             FenceDB.FencePosition.ACTIVITY};
 
     /**
@@ -56,9 +59,30 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
             R.id.fence_activity};
 
     /**
-     * The identifier of the Loader for the position data
+     * The key for the argument with the time of the last position of the previous page
      */
-    private final static int FENCE_POSITION_LOADER_ID = 37;
+    private final static String BEFORE_TIME_ARG_NAME = Conf.PKG + ".arg.BEFORE_TIME_ARG_NAME";
+
+    /**
+     * The key for the argument with the id of the last position of the previous page
+     */
+    private final static String BEFORE_ID_ARG_NAME = Conf.PKG + ".arg.BEFORE_ID_ARG_NAME";
+
+    /**
+     * The identifier of the Loader for the first page of position data. The following pages
+     * use the following identifiers
+     */
+    private final static int FENCE_POSITION_LOADER_ID = 1000;
+
+    /**
+     * The number of positions for every page
+     */
+    private final static int POSITION_PAGE_SIZE = 100;
+
+    /**
+     * When the last visible item is this close to the end we load the next page
+     */
+    private final static int POSITION_PAGE_PREFETCH = 20;
 
     /**
      * The identifier of the Loader for the session data
@@ -96,6 +120,36 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
      */
     private FenceCursorFactory.FencePositionCursorData mPositionCursorData;
 
+    /**
+     * The Date we reuse to format the time of the positions
+     */
+    private final Date mPositionDate = new Date();
+
+    /**
+     * The Cursors for the loaded pages of positions
+     */
+    private final ArrayList<Cursor> mPositionPages = new ArrayList<Cursor>();
+
+    /**
+     * The time of the oldest loaded position
+     */
+    private long mOldestPositionTime;
+
+    /**
+     * The id of the oldest loaded position
+     */
+    private long mOldestPositionId;
+
+    /**
+     * True if we're loading the next page
+     */
+    private boolean mLoadingPage;
+
+    /**
+     * True if there are no more pages to load
+     */
+    private boolean mLastPageLoaded;
+
     /**
      * We create a FencePositionListFragment for the given session
      *
@@ -125,9 +179,9 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
                 // We get the reference to our cursor
                 if (R.id.fence_position_time == view.getId()) {
                     // We have the date so we have to format it and show
-                    final Date positionTime = mPositionCursorData.getPositionTime();
+                    mPositionDate.setTime(mPositionCursorData.getPositionTimeMillis());
                     final TextView dateView = (TextView) view;
-                    dateView.setText(Conf.SIMPLE_DATE_FORMAT.format(positionTime));
+                    dateView.setText(Conf.SIMPLE_DATE_FORMAT.format(mPositionDate));
                     coordinateManaged = false;
                     return true;
                 } else if (R.id.fence_position_coordinates == view.getId()) {
@@ -136,8 +190,8 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
                     } else {
                         coordinateManaged = false;
                         // We get the data
-                        final float latitude = mPositionCursorData.getLatitude();
-                        final float longitude = mPositionCursorData.getLongitude();
+                        final double latitude = mPositionCursorData.getLatitude();
+                        final double longitude = mPositionCursorData.getLongitude();
                         // We format into the pattern
                         final String positionStr = getActivity().getResources()
                                 .getString(R.string.session_position_format,
@@ -179,6 +233,20 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         getListView().setAdapter(mAdapter);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - POSITION_PAGE_PREFETCH) {
+                    loadNextPositionPage();
+                }
+            }
+        });
         getLoaderManager().initLoader(FENCE_SESSION_DATA_LOADER_ID, null, this);
         getLoaderManager().initLoader(FENCE_POSITION_LOADER_ID, null, this);
     }
@@ -191,14 +259,19 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
 
     @Override
     public Loader<Cursor> onCreateLoader(int loaderId, Bundle bundle) {
+        if (loaderId >= FENCE_POSITION_LOADER_ID) {
+            // We create the Uri for a page of positions before the last one we have
+            final Long beforeTime = bundle != null && bundle.containsKey(BEFORE_TIME_ARG_NAME)
+                    ? bundle.getLong(BEFORE_TIME_ARG_NAME) : null;
+            final Long beforeId = bundle != null && bundle.containsKey(BEFORE_ID_ARG_NAME)
+                    ? bundle.getLong(BEFORE_ID_ARG_NAME) : null;
+            final Uri positionPageUri = FenceDB.FencePosition
+                    .getPositionPageUri(mSessionId, null, null, beforeTime, beforeId, POSITION_PAGE_SIZE);
+            CursorLoader loader = new CursorLoader(getActivity(), positionPageUri, null, null, null,
+                    FenceDB.FencePosition.POSITION_TIME + " DESC, " + FenceDB.FencePosition._ID + " DESC");
+            return loader;
+        }
         switch (loaderId) {
-            case FENCE_POSITION_LOADER_ID: {
-                // We create the Uri for all the position of a given session
-                final Uri sessionPositionUri = FenceDB.FencePosition.getPositionUriForSession(mSessionId);
-                CursorLoader loader = new CursorLoader(getActivity(), sessionPositionUri,
-                        null, null, null, FenceDB.FencePosition.POSITION_TIME + " DESC ");
-                return loader;
-            }
             case FENCE_SESSION_DATA_LOADER_ID: {
                 // We create the Uri for all the position of a given session
                 final Uri sessionUri = Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(mSessionId));
@@ -214,12 +287,11 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
     @Override
     public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
         final int loaderId = cursorLoader.getId();
+        if (loaderId >= FENCE_POSITION_LOADER_ID) {
+            onPositionPageLoaded(loaderId - FENCE_POSITION_LOADER_ID, cursor);
+            return;
+        }
         switch (loaderId) {
-            case FENCE_POSITION_LOADER_ID: {
-                mPositionCursorData = CursorResolver.CURSOR_RESOLVER.extractPositionCursor(cursor);
-                mAdapter.swapCursor(cursor);
-                break;
-            }
             case FENCE_SESSION_DATA_LOADER_ID: {
                 // We show the data for the session
                 final FenceCursorFactory.FenceSessionCursorData sessionDataCursor
@@ -247,8 +319,91 @@ public class FencePositionListFragment extends ListFragment implements LoaderMan
     @Override
     public void onLoaderReset(Loader<Cursor> cursorLoader) {
         final int loaderId = cursorLoader.getId();
-        if (FENCE_POSITION_LOADER_ID == loaderId) {
+        if (loaderId >= FENCE_POSITION_LOADER_ID) {
+            // We remove the page and all the following ones
+            final int page = loaderId - FENCE_POSITION_LOADER_ID;
+            if (page < mPositionPages.size()) {
+                while (mPositionPages.size() > page) {
+                    mPositionPages.remove(mPositionPages.size() - 1);
+                }
+                swapPositionCursor();
+            }
+        }
+    }
+
+    /**
+     * Manages a loaded page of positions. When the first page changes because of new positions
+     * the following pages are not contiguous anymore so we drop them and they will be loaded
+     * again during the scroll
+     *
+     * @param page   The index of the page
+     * @param cursor The Cursor for the page
+     */
+    private void onPositionPageLoaded(final int page, final Cursor cursor) {
+        if (page == 0) {
+            dropPositionPagesAfterFirst();
+        } else if (page > mPositionPages.size()) {
+            // This page is not contiguous with the ones we have
+            return;
+        }
+        if (page == mPositionPages.size()) {
+            mPositionPages.add(cursor);
+            mLoadingPage = false;
+        } else {
+            mPositionPages.set(page, cursor);
+        }
+        if (page == mPositionPages.size() - 1) {
+            mLastPageLoaded = cursor.getCount() < POSITION_PAGE_SIZE;
+            if (cursor.moveToLast()) {
+                mOldestPositionTime = cursor.getLong(cursor.getColumnIndex(FenceDB.FencePosition.POSITION_TIME));
+                mOldestPositionId = cursor.getLong(cursor.getColumnIndex(FenceDB.FencePosition._ID));
+            }
+        }
+        swapPositionCursor();
+    }
+
+    /**
+     * Starts the Loader for the page of positions after the ones we have if any
+     */
+    private void loadNextPositionPage() {
+        if (mLoadingPage || mLastPageLoaded || mPositionPages.isEmpty()) {
+            return;
+        }
+        mLoadingPage = true;
+        final Bundle args = new Bundle();
+        args.putLong(BEFORE_TIME_ARG_NAME, mOldestPositionTime);
+        args.putLong(BEFORE_ID_ARG_NAME, mOldestPositionId);
+        getLoaderManager().initLoader(FENCE_POSITION_LOADER_ID + mPositionPages.size(), args, this);
+    }
+
+    /**
+     * Removes all the pages of positions but the first destroying the related Loaders
+     */
+    private void dropPositionPagesAfterFirst() {
+        while (mPositionPages.size() > 1) {
+            mPositionPages.remove(mPositionPages.size() - 1);
+        }
+        int loaderId = FENCE_POSITION_LOADER_ID + 1;
+        while (getLoaderManager().getLoader(loaderId) != null) {
+            getLoaderManager().destroyLoader(loaderId);
+            loaderId++;
+        }
+        mLoadingPage = false;
+    }
+
+    /**
+     * Shows the positions of all the loaded pages
+     */
+    private void swapPositionCursor() {
+        if (mPositionPages.isEmpty()) {
+            mPositionCursorData = null;
             mAdapter.swapCursor(null);
+        } else {
+            final FencePositionMergeCursor mergeCursor = new FencePositionMergeCursor(
+                    mPositionPages.toArray(new Cursor[mPositionPages.size()]));
+            mPositionCursorData = mergeCursor;
+            // The Cursors of the pages are closed by their Loaders
+            mAdapter.swapCursor(mergeCursor);
         }
     }
 
@@ -59,12 +59,16 @@ import uk.co.massimocarli.friendfence.R;
 import uk.co.massimocarli.friendfence.activity.FenceStreetViewActivity;
 import uk.co.massimocarli.friendfence.activity.ShowPathActivity;
 import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.SessionJson;
 import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.drive.DriveSync;
 import uk.co.massimocarli.friendfence.drive.FenceDriveUtil;
+import uk.co.massimocarli.friendfence.drive.GoogleDriveStore;
+import uk.co.massimocarli.friendfence.drive.SessionZipExport;
+import uk.co.massimocarli.friendfence.drive.SyncManifest;
 import uk.co.massimocarli.friendfence.location.dialog.EditSessionDialog;
 import uk.co.massimocarli.friendfence.util.DistanceUtil;
-import uk.co.massimocarli.friendfence.util.IOUtils;
 
 /**
  * This is a Fragment that shows the information related to the available FenceSession and permits
@@ -87,15 +91,20 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
      */
     private final static String LICENSE_DIALOG_TAG = "LICENSE_DIALOG_TAG";
 
+    /**
+     * The min interval in milliseconds between two reloads of the sessions while tracking
+     */
+    private final static long SESSION_LIST_UPDATE_THROTTLE = 2000L;
+
     /**
      * The default title we use for Google Drive files
      */
     private final static String DEFAULT_DRIVE_TITLE = "FenceSession";
 
     /**
-     * The Mime Type we use for JSON
+     * The extension of the title of the archive with many sessions
      */
-    private final static String JSON_MIME_TYPE = "application/json";
+    private final static String ARCHIVE_DRIVE_EXTENSION = ".zip";
 
     /**
      * The Testing driveId
@@ -122,13 +131,14 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
      * The FROM field for the CursorAdapter of the DB fields
      */
     private final static String[] FROM = new String[]{FenceDB.FenceSession._ID,
-            FenceDB.FenceSession.START_DATE, FenceDB.FenceSession.TOTAL_DISTANCE};
+            FenceDB.FenceSession.START_DATE, FenceDB.FenceSession.TOTAL_DISTANCE,
+            FenceDB.FenceSessionSummary.POSITION_COUNT};
 
     /**
      * The TO field for the CursorAdapter of the Views id
      */
     private final static int[] TO = new int[]{R.id.fence_session_id, R.id.fence_session_start_date,
-            R.id.fence_session_distance};
+            R.id.fence_session_distance, R.id.fence_session_position_count};
 
     /**
      * The identifier of the Loader for the session
@@ -155,6 +165,11 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
      */
     private FenceCursorFactory.FenceSessionCursorData mSessionCursorData;
 
+    /**
+     * The Date we reuse to format the start date of the sessions
+     */
+    private final Date mStartDate = new Date();
+
     /**
      * The id of the current session to be saved
      */
@@ -235,15 +250,22 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
             public boolean setViewValue(View view, Cursor cursor, int i) {
                 if (R.id.fence_session_start_date == view.getId()) {
                     // We have the date so we have to format it and show
-                    final Date startDate = mSessionCursorData.getStartDate();
+                    mStartDate.setTime(mSessionCursorData.getStartDateMillis());
                     final TextView dateView = (TextView) view;
-                    dateView.setText(Conf.SIMPLE_DATE_FORMAT.format(startDate));
+                    dateView.setText(Conf.SIMPLE_DATE_FORMAT.format(mStartDate));
                     return true;
                 } else if (R.id.fence_session_distance == view.getId()) {
                     final float distanceInMeters = mSessionCursorData.getTotalDistance();
                     final TextView distanceView = (TextView) view;
                     distanceView.setText(DistanceUtil.formatDistance(getActivity(), distanceInMeters));
                     return true;
+                } else if (R.id.fence_session_position_count == view.getId()) {
+                    // The number of positions comes from the summary of the session
+                    final int positionCount = mSessionCursorData.getPositionCount();
+                    final TextView positionCountView = (TextView) view;
+                    positionCountView.setText(getResources()
+                            .getString(R.string.session_position_count_format, positionCount));
+                    return true;
                 }
                 return false;
             }
@@ -299,7 +321,8 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
                 final DriveId createdFileId = data.getParcelableExtra(
                         CreateFileActivityBuilder.EXTRA_RESPONSE_DRIVE_ID);
                 if (mCurrentSavedSession >= 0) {
-                    PutDataIntoDiveFileTask saveTask = new PutDataIntoDiveFileTask(mCurrentSavedSession);
+                    PutDataIntoDiveFileTask saveTask = new PutDataIntoDiveFileTask(mCurrentSavedSession,
+                            FenceDriveUtil.getExportFormat(getActivity()));
                     saveTask.execute(createdFileId);
                 } else {
                     Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
@@ -332,6 +355,12 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
         } else if (item.getItemId() == R.id.action_drive_import) {
             // We want to read information from Drive
             importFenceSession();
+        } else if (item.getItemId() == R.id.action_drive_export_all) {
+            // We export all the sessions into a single archive
+            exportAllFenceSessions();
+        } else if (item.getItemId() == R.id.action_drive_sync) {
+            // We upload the changed sessions and download the new ones
+            new SyncDriveTask().execute();
         }
         return super.onOptionsItemSelected(item);
     }
@@ -381,6 +410,9 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
         CursorLoader loader = new CursorLoader(getActivity(), FenceDB.FenceSession.CONTENT_URI,
                 null, null, null, FenceDB.FenceSession.START_DATE + " DESC ");
+        // The summary of the current session changes with every position so we don't reload
+        // the list every time
+        loader.setUpdateThrottle(SESSION_LIST_UPDATE_THROTTLE);
         return loader;
     }
 
@@ -523,9 +555,10 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
                     // We update the last session
                     mCurrentSavedSession = sessionToExportId;
                     // We set the initial Metadata
+                    final String exportFormat = FenceDriveUtil.getExportFormat(getActivity());
                     final MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
-                            .setMimeType(JSON_MIME_TYPE)
-                            .setTitle(DEFAULT_DRIVE_TITLE)
+                            .setMimeType(FenceDriveUtil.getExportMimeType(exportFormat))
+                            .setTitle(FenceDriveUtil.getExportTitle(DEFAULT_DRIVE_TITLE, exportFormat))
                             .build();
                     // We Start the CreateFileActivityBuilder
                     final IntentSender intentSender = Drive.DriveApi
@@ -556,13 +589,20 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
          */
         private final long mSessionId;
 
+        /**
+         * The format of the export
+         */
+        private final String mFormat;
+
         /**
          * Initialize the Task we use to save data in Google Drive
          *
          * @param sessionId The sessionId of the data to save
+         * @param format    The format of the export
          */
-        public PutDataIntoDiveFileTask(final long sessionId) {
+        public PutDataIntoDiveFileTask(final long sessionId, final String format) {
             this.mSessionId = sessionId;
+            this.mFormat = format;
         }
 
         @Override
@@ -576,8 +616,7 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
                     return null;
                 }
                 OutputStream outputStream = contentsResult.getDriveContents().getOutputStream();
-                final String sessionJson = FenceDriveUtil.fenceSessionAsJson(getActivity(), mSessionId);
-                outputStream.write(sessionJson.getBytes());
+                FenceDriveUtil.writeFenceSession(getActivity(), mSessionId, mFormat, outputStream);
                 MetadataChangeSet changeSet = new MetadataChangeSet.Builder()
                         .setLastViewedByMeDate(new Date()).build();
                 com.google.android.gms.common.api.Status commitStatus = contentsResult
@@ -618,41 +657,9 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
             @Override
             public void onResult(DriveApi.DriveContentsResult contentsResult) {
                 if (contentsResult.getStatus().isSuccess()) {
-                    // We get the name from the Json
-                    final String sessionName = FenceDriveUtil.getFenceSessionName(getActivity(), sessionToExportId);
-                    // We set the initial Metadata
-                    final MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
-                            .setMimeType(JSON_MIME_TYPE)
-                            .setTitle(sessionName)
-                            .setStarred(true)
-                            .build();
-                    // We save the Json into the content
-                    OutputStream outputStream = contentsResult.getDriveContents().getOutputStream();
-                    // We read the info about the session
-                    final String sessionJson = FenceDriveUtil.fenceSessionAsJson(getActivity(), sessionToExportId);
-                    try {
-                        outputStream.write(sessionJson.getBytes());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    // We create the callback for the file
-                    final ResultCallback<DriveFolder.DriveFileResult> fileCallback = new
-                            ResultCallback<DriveFolder.DriveFileResult>() {
-                                @Override
-                                public void onResult(DriveFolder.DriveFileResult result) {
-                                    if (!result.getStatus().isSuccess()) {
-                                        Log.e(TAG_LOG, "Error while trying to create the file");
-                                        Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
-                                        return;
-                                    }
-                                    final String message = getString(R.string.action_drive_create_success_name, sessionName);
-                                    Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
-                                }
-                            };
-                    // We save directly the file
-                    Drive.DriveApi.getRootFolder(mGoogleApiClient)
-                            .createFile(mGoogleApiClient, metadataChangeSet, contentsResult.getDriveContents())
-                            .setResultCallback(fileCallback);
+                    // We read the session and write the Json into the content in background
+                    new WriteDriveContentsTask(sessionToExportId, FenceDriveUtil.getExportFormat(getActivity()),
+                            contentsResult.getDriveContents()).execute();
                 }
             }
         };
@@ -660,6 +667,90 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
     }
 
 
+    /**
+     * The AsyncTask we use to write a session into new DriveContents before the creation of
+     * the file into the root folder
+     */
+    private class WriteDriveContentsTask extends AsyncTask<Void, Void, String> {
+
+        /**
+         * The Id of the session we need to save
+         */
+        private final long mSessionId;
+
+        /**
+         * The format of the export
+         */
+        private final String mFormat;
+
+        /**
+         * The DriveContents of the new file
+         */
+        private final DriveContents mDriveContents;
+
+        /**
+         * Initialize the Task we use to write the session
+         *
+         * @param sessionId     The sessionId of the data to save
+         * @param format        The format of the export
+         * @param driveContents The DriveContents of the new file
+         */
+        public WriteDriveContentsTask(final long sessionId, final String format,
+                                      final DriveContents driveContents) {
+            this.mSessionId = sessionId;
+            this.mFormat = format;
+            this.mDriveContents = driveContents;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            // We get the name of the session
+            final String sessionName = FenceDriveUtil.getFenceSessionName(getActivity(), mSessionId);
+            // We save the session into the content
+            try {
+                FenceDriveUtil.writeFenceSession(getActivity(), mSessionId, mFormat,
+                        mDriveContents.getOutputStream());
+            } catch (IOException e) {
+                Log.e(TAG_LOG, "IOException while writing the session", e);
+                return null;
+            }
+            return sessionName;
+        }
+
+        @Override
+        protected void onPostExecute(final String sessionName) {
+            super.onPostExecute(sessionName);
+            if (sessionName == null) {
+                Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // We set the initial Metadata
+            final MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
+                    .setMimeType(FenceDriveUtil.getExportMimeType(mFormat))
+                    .setTitle(FenceDriveUtil.getExportTitle(sessionName, mFormat))
+                    .setStarred(true)
+                    .build();
+            // We create the callback for the file
+            final ResultCallback<DriveFolder.DriveFileResult> fileCallback = new
+                    ResultCallback<DriveFolder.DriveFileResult>() {
+                        @Override
+                        public void onResult(DriveFolder.DriveFileResult result) {
+                            if (!result.getStatus().isSuccess()) {
+                                Log.e(TAG_LOG, "Error while trying to create the file");
+                                Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
+                                return;
+                            }
+                            final String message = getString(R.string.action_drive_create_success_name, sessionName);
+                            Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+                        }
+                    };
+            // We save directly the file
+            Drive.DriveApi.getRootFolder(mGoogleApiClient)
+                    .createFile(mGoogleApiClient, metadataChangeSet, mDriveContents)
+                    .setResultCallback(fileCallback);
+        }
+    }
+
     /**
      * This method opens the UI to select a file for reading
      */
@@ -693,16 +784,9 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
                     Toast.makeText(getActivity(), R.string.action_drive_load_failed, Toast.LENGTH_SHORT).show();
                     return;
                 }
-                // We get the Contents
+                // We get the Contents and we import them in background
                 DriveContents contents = contentsResult.getDriveContents();
-                // We read the data from the Contents
-                try {
-                    String contentAsString = IOUtils.toString(contents.getInputStream());
-                    FenceDriveUtil.importFenceSessionJson(getActivity(), contentAsString);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Toast.makeText(getActivity(), R.string.action_drive_load_failed, Toast.LENGTH_SHORT).show();
-                }
+                new ImportDriveContentsTask(contents).execute();
             }
         };
         fenceSessionFile.open(mGoogleApiClient, DriveFile.MODE_READ_ONLY, new DriveFile.DownloadProgressListener() {
@@ -714,6 +798,232 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
     }
 
 
+    /**
+     * The AsyncTask we use to import a session from the DriveContents. The positions are read
+     * and inserted in groups so the file is never all into memory
+     */
+    private class ImportDriveContentsTask extends AsyncTask<Void, Integer, Boolean> {
+
+        /**
+         * The DriveContents to import
+         */
+        private final DriveContents mDriveContents;
+
+        /**
+         * The number of imported positions
+         */
+        private int mImportedPositions;
+
+        /**
+         * True if the imported session was a copy of another session
+         */
+        private boolean mDuplicate;
+
+        /**
+         * Initialize the Task we use to import the session
+         *
+         * @param driveContents The DriveContents to import
+         */
+        public ImportDriveContentsTask(final DriveContents driveContents) {
+            this.mDriveContents = driveContents;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                final long sessionId = FenceDriveUtil.importFenceSession(getActivity(),
+                        mDriveContents.getInputStream(), new SessionJson.ImportListener() {
+                            @Override
+                            public void onProgress(int importedPositions) {
+                                publishProgress(importedPositions);
+                            }
+                        });
+                // We don't keep two copies of the same session
+                final DriveSync driveSync = new DriveSync(getActivity(), new GoogleDriveStore(mGoogleApiClient),
+                        new SyncManifest(getActivity()));
+                mDuplicate = driveSync.deduplicate(sessionId) != sessionId;
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG_LOG, "Error importing the session", e);
+                return false;
+            } finally {
+                mDriveContents.discard(mGoogleApiClient);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            super.onProgressUpdate(values);
+            mImportedPositions = values[0];
+            Log.d(TAG_LOG, "Imported " + mImportedPositions + " positions");
+        }
+
+        @Override
+        protected void onPostExecute(Boolean imported) {
+            super.onPostExecute(imported);
+            if (imported && mDuplicate) {
+                Toast.makeText(getActivity(), R.string.action_drive_load_duplicate, Toast.LENGTH_SHORT).show();
+            } else if (imported) {
+                final String message = getString(R.string.action_drive_load_success_count, mImportedPositions);
+                Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(getActivity(), R.string.action_drive_load_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+
+    /**
+     * Exports all the sessions of the list into a single ZIP file into the root folder
+     */
+    private void exportAllFenceSessions() {
+        final long[] sessionIds = new long[mAdapter.getCount()];
+        for (int i = 0; i < sessionIds.length; i++) {
+            sessionIds[i] = mAdapter.getItemId(i);
+        }
+        if (sessionIds.length == 0) {
+            return;
+        }
+        final String exportFormat = FenceDriveUtil.getExportFormat(getActivity());
+        // We create the Callback for the creation of the Content for the file
+        ResultCallback<DriveApi.DriveContentsResult> contentCallback = new ResultCallback<DriveApi.DriveContentsResult>() {
+            @Override
+            public void onResult(DriveApi.DriveContentsResult contentsResult) {
+                if (contentsResult.getStatus().isSuccess()) {
+                    // We write the archive into the content in background
+                    new WriteDriveArchiveTask(sessionIds, exportFormat, contentsResult.getDriveContents()).execute();
+                }
+            }
+        };
+        Drive.DriveApi.newDriveContents(mGoogleApiClient).setResultCallback(contentCallback);
+    }
+
+
+    /**
+     * The AsyncTask we use to write many sessions into the DriveContents of a single ZIP file
+     * before its creation into the root folder
+     */
+    private class WriteDriveArchiveTask extends AsyncTask<Void, Integer, Boolean> {
+
+        /**
+         * The Ids of the sessions we need to save
+         */
+        private final long[] mSessionIds;
+
+        /**
+         * The format of the sessions into the archive
+         */
+        private final String mFormat;
+
+        /**
+         * The DriveContents of the new file
+         */
+        private final DriveContents mDriveContents;
+
+        /**
+         * Initialize the Task we use to write the archive
+         *
+         * @param sessionIds    The sessionIds of the data to save
+         * @param format        The format of the sessions into the archive
+         * @param driveContents The DriveContents of the new file
+         */
+        public WriteDriveArchiveTask(final long[] sessionIds, final String format,
+                                     final DriveContents driveContents) {
+            this.mSessionIds = sessionIds;
+            this.mFormat = format;
+            this.mDriveContents = driveContents;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                new SessionZipExport(getActivity()).export(mSessionIds, mFormat,
+                        mDriveContents.getOutputStream(), new SessionZipExport.ProgressListener() {
+                            @Override
+                            public void onProgress(int exportedSessions, int totalSessions, long exportedBytes) {
+                                publishProgress(exportedSessions, totalSessions);
+                            }
+                        });
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG_LOG, "IOException while writing the archive", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            super.onProgressUpdate(values);
+            Log.d(TAG_LOG, "Exported " + values[0] + " of " + values[1] + " sessions");
+        }
+
+        @Override
+        protected void onPostExecute(final Boolean exported) {
+            super.onPostExecute(exported);
+            if (!exported) {
+                mDriveContents.discard(mGoogleApiClient);
+                Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // We set the initial Metadata
+            final MetadataChangeSet metadataChangeSet = new MetadataChangeSet.Builder()
+                    .setMimeType(SessionZipExport.ZIP_MIME_TYPE)
+                    .setTitle(DEFAULT_DRIVE_TITLE + ARCHIVE_DRIVE_EXTENSION)
+                    .build();
+            // We create the callback for the file
+            final ResultCallback<DriveFolder.DriveFileResult> fileCallback = new
+                    ResultCallback<DriveFolder.DriveFileResult>() {
+                        @Override
+                        public void onResult(DriveFolder.DriveFileResult result) {
+                            if (!result.getStatus().isSuccess()) {
+                                Log.e(TAG_LOG, "Error while trying to create the archive");
+                                Toast.makeText(getActivity(), R.string.action_drive_create_failed, Toast.LENGTH_SHORT).show();
+                                return;
+                            }
+                            final String message = getString(R.string.action_drive_export_all_success,
+                                    mSessionIds.length);
+                            Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+                        }
+                    };
+            // We save directly the file
+            Drive.DriveApi.getRootFolder(mGoogleApiClient)
+                    .createFile(mGoogleApiClient, metadataChangeSet, mDriveContents)
+                    .setResultCallback(fileCallback);
+        }
+    }
+
+
+    /**
+     * The AsyncTask we use to synchronize the sessions with the files on Drive
+     */
+    private class SyncDriveTask extends AsyncTask<Void, Void, DriveSync.SyncResult> {
+
+        @Override
+        protected DriveSync.SyncResult doInBackground(Void... params) {
+            final DriveSync driveSync = new DriveSync(getActivity(), new GoogleDriveStore(mGoogleApiClient),
+                    new SyncManifest(getActivity()));
+            try {
+                return driveSync.sync();
+            } catch (Exception e) {
+                Log.e(TAG_LOG, "Error synchronizing the sessions", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final DriveSync.SyncResult syncResult) {
+            super.onPostExecute(syncResult);
+            if (syncResult == null) {
+                Toast.makeText(getActivity(), R.string.action_drive_sync_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            final String message = getString(R.string.action_drive_sync_success,
+                    syncResult.getUploadedCount(), syncResult.getDownloadedCount());
+            Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+
     /**
      * This method doesn't use the UI but load directly the content of a file
      */
@@ -739,7 +1049,8 @@ public class FenceSessionListFragment extends ListFragment implements LoaderMana
         final Query query = new Query.Builder()
                 .addFilter(Filters.contains(SearchableField.TITLE, DEFAULT_DRIVE_TITLE))
                 .addFilter(Filters.eq(SearchableField.TRASHED, false))
-                .addFilter(Filters.eq(SearchableField.MIME_TYPE, JSON_MIME_TYPE))
+                .addFilter(Filters.or(Filters.eq(SearchableField.MIME_TYPE, FenceDB.JSON_MIME_TYPE),
+                        Filters.eq(SearchableField.MIME_TYPE, FenceDB.BINARY_MIME_TYPE)))
                 .setSortOrder(sortOrder)
                 .build();
         // We search the given File
@@ -26,7 +26,10 @@ import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.R;
 import uk.co.massimocarli.friendfence.activity.MainActivity;
 import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.content.FenceRepository;
 import uk.co.massimocarli.friendfence.service.LocationService;
+import uk.co.massimocarli.friendfence.service.MaintenanceService;
+import uk.co.massimocarli.friendfence.service.PositionBuffer;
 import uk.co.massimocarli.friendfence.service.ServiceState;
 import uk.co.massimocarli.friendfence.util.UI;
 
@@ -102,6 +105,11 @@ public class MyMoveFragment extends Fragment implements FenceSessionListFragment
      */
     private ToggleButton mStartedButton;
 
+    /**
+     * True while the session to track is being created
+     */
+    private boolean mCreatingSession;
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -233,36 +241,61 @@ public class MyMoveFragment extends Fragment implements FenceSessionListFragment
      * Start the tracking
      */
     private final void startTracking() {
-        if (mServiceState.isRunning()) {
+        if (mServiceState.isRunning() || mCreatingSession) {
             Log.d(TAG_LOG, "Tracking already running!");
             return;
         }
+        // Here we want to create the new session into the DB and get the related id. We don't
+        // access the DB into the UI Thread
+        mCreatingSession = true;
+        final FenceRepository repository = FenceRepository.get(getActivity());
+        repository.createSession(Conf.DEFAULT_USER, new FenceRepository.Callback<Uri>() {
+            @Override
+            public void onResult(Uri newSessionUri) {
+                mCreatingSession = false;
+                if (newSessionUri == null) {
+                    // We show an error message
+                    mStartedButton.setChecked(false);
+                } else if (!isAdded()) {
+                    // The Fragment has gone so nobody tracks the new session
+                    repository.closeSession(FenceDB.FenceSession.getSessionId(newSessionUri), null);
+                } else {
+                    startTrackingSession(FenceDB.FenceSession.getSessionId(newSessionUri));
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                mCreatingSession = false;
+                mStartedButton.setChecked(false);
+            }
+        });
+    }
+
+    /**
+     * Start the tracking of the given session
+     *
+     * @param newSessionId The id of the new session
+     */
+    private void startTrackingSession(final long newSessionId) {
         LocationRequest locationRequest = LocationRequest.create()
                 .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
                 .setFastestInterval(FASTEST_INTERVAL)
                 .setSmallestDisplacement(MIN_DISPLACEMENT)
                 .setInterval(UPDATE_INTERVAL);
-        // Here we want to create the new session into the DB and get the related id
-        final Uri newSessionUri = FenceDB.FenceSession.createNewSession(getActivity(), Conf.DEFAULT_USER);
-        if (newSessionUri != null) {
-            // We get the id from the newSessionUri
-            final long newSessionId = FenceDB.FenceSession.getSessionId(newSessionUri);
-            final Intent locationIntent = LocationService.getLocationIntent(getActivity(), newSessionId);
-            final PendingIntent callbackIntent = PendingIntent.getService(getActivity(), UPDATE_LOCATION_REQUEST_CODE,
-                    locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, locationRequest, callbackIntent);
-            // We manage the ActivityRecognition service
-            final Intent activityRecognitionIntent = LocationService.getActivityRecognitionIntent(getActivity());
-            final PendingIntent activityIntent = PendingIntent.getService(getActivity(), UPDATE_ACTIVITY_REQUEST_CODE,
-                    activityRecognitionIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-            ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(mGoogleApiClient,
-                    ACTIVITY_INTERVAL, activityIntent);
-            // We start the service
-            mServiceState.start(newSessionId);
-            Log.d(TAG_LOG, "Tracking started!");
-        } else {
-            // We show an error message
-        }
+        final Intent locationIntent = LocationService.getLocationIntent(getActivity(), newSessionId);
+        final PendingIntent callbackIntent = PendingIntent.getService(getActivity(), UPDATE_LOCATION_REQUEST_CODE,
+                locationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, locationRequest, callbackIntent);
+        // We manage the ActivityRecognition service
+        final Intent activityRecognitionIntent = LocationService.getActivityRecognitionIntent(getActivity());
+        final PendingIntent activityIntent = PendingIntent.getService(getActivity(), UPDATE_ACTIVITY_REQUEST_CODE,
+                activityRecognitionIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(mGoogleApiClient,
+                ACTIVITY_INTERVAL, activityIntent);
+        // We start the service
+        mServiceState.start(newSessionId);
+        Log.d(TAG_LOG, "Tracking started!");
     }
 
 
@@ -284,10 +317,18 @@ public class MyMoveFragment extends Fragment implements FenceSessionListFragment
         final PendingIntent activityIntent = PendingIntent.getService(getActivity(), UPDATE_ACTIVITY_REQUEST_CODE,
                 activityRecognitionIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         ActivityRecognition.ActivityRecognitionApi.removeActivityUpdates(mGoogleApiClient, activityIntent);
-        // Save data
+        // Save data writing the buffered positions
         long currentSessionId = mServiceState.getSessionId();
+        if (Conf.ARCHIVE_CLOSED_SESSIONS) {
+            // The positions of the closed session are not changed anymore
+            PositionBuffer.get(getActivity()).flushAndArchive(currentSessionId);
+        } else {
+            PositionBuffer.get(getActivity()).flushAndCheckpoint();
+        }
         mServiceState.stop();
-        FenceDB.FenceSession.setSessionAsClosed(getActivity(), currentSessionId);
+        FenceRepository.get(getActivity()).closeSession(currentSessionId, null);
+        // If the device is charging this is a good time for the maintenance of the DB
+        MaintenanceService.start(getActivity());
     }
 
     @Override
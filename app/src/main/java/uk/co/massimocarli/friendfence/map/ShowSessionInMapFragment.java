@@ -1,14 +1,16 @@
 package uk.co.massimocarli.friendfence.map;
 
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 
-import com.google.android.gms.location.DetectedActivity;
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
@@ -16,10 +18,16 @@ import com.google.android.gms.maps.model.PolygonOptions;
 import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.content.FenceDB;
 import uk.co.massimocarli.friendfence.content.cursor.CursorResolver;
 import uk.co.massimocarli.friendfence.content.cursor.FenceCursorFactory;
+import uk.co.massimocarli.friendfence.content.cursor.FencePositionRow;
+import uk.co.massimocarli.friendfence.util.ActivityUtil;
+import uk.co.massimocarli.friendfence.util.MapUtil;
 
 /**
  * Created by Massimo Carli on 21/09/14.
@@ -36,6 +44,21 @@ public class ShowSessionInMapFragment extends SupportMapFragment implements Load
      */
     private static final int FENCE_SESSION_PATH_LOADER_ID = 27;
 
+    /**
+     * The identifier of the Loader for the summary of the session
+     */
+    private static final int FENCE_SESSION_SUMMARY_LOADER_ID = 28;
+
+    /**
+     * The argument for the Loader with the Uri of the positions to show
+     */
+    private static final String POSITION_URI_ARG = "position_uri";
+
+    /**
+     * The margin we add to the visible region of the map when we look for the positions
+     */
+    private static final double VISIBLE_REGION_MARGIN = 0.25;
+
     /**
      * The Default padding
      */
@@ -47,9 +70,14 @@ public class ShowSessionInMapFragment extends SupportMapFragment implements Load
     private static final int PATH_WIDTH = 20;
 
     /**
-     * The Polyline for the path
+     * The Polylines for the visible path
+     */
+    private final List<Polyline> mPathPolylines = new ArrayList<Polyline>();
+
+    /**
+     * The holder we reuse to read the positions
      */
-    private Polyline mLastPolyline;
+    private final FencePositionRow mPositionRow = new FencePositionRow();
 
     /**
      * The Id of the session to show
@@ -87,7 +115,17 @@ public class ShowSessionInMapFragment extends SupportMapFragment implements Load
     @Override
     public void onResume() {
         super.onResume();
-        getLoaderManager().restartLoader(FENCE_SESSION_PATH_LOADER_ID, null, this);
+        // We move the camera to the bounds of the session and then we load the positions
+        // into the visible region every time the camera changes
+        getMap().setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition cameraPosition) {
+                if (isResumed()) {
+                    loadVisiblePath();
+                }
+            }
+        });
+        getLoaderManager().restartLoader(FENCE_SESSION_SUMMARY_LOADER_ID, null, this);
         // Test for Polygon
         //final LatLng rome = new LatLng(41.872389, 12.48018);
         //showRectangle(rome);
@@ -98,78 +136,96 @@ public class ShowSessionInMapFragment extends SupportMapFragment implements Load
 
     @Override
     public android.support.v4.content.Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        CursorLoader loader = new CursorLoader(getActivity(), FenceDB.FencePosition.getPositionUriForSession(mSessionId),
+        if (FENCE_SESSION_SUMMARY_LOADER_ID == i) {
+            // The bounds of the session are into its summary
+            return new CursorLoader(getActivity(), FenceDB.FenceSessionSummary.getSummaryUri(mSessionId),
+                    null, null, null, null);
+        }
+        final Uri positionUri = bundle.getParcelable(POSITION_URI_ARG);
+        CursorLoader loader = new CursorLoader(getActivity(), positionUri,
                 null, null, null, FenceDB.FencePosition.POSITION_TIME + " DESC ");
         return loader;
     }
 
+    /**
+     * Starts the Loader for the positions of the session into the visible region of the map
+     */
+    private void loadVisiblePath() {
+        final double[] boundingBox = MapUtil.getVisibleBoundingBox(getMap(), VISIBLE_REGION_MARGIN);
+        final Bundle args = new Bundle();
+        args.putParcelable(POSITION_URI_ARG, FenceDB.FencePosition.getBoundingBoxUriForSession(mSessionId,
+                boundingBox[MapUtil.MIN_LATITUDE], boundingBox[MapUtil.MIN_LONGITUDE],
+                boundingBox[MapUtil.MAX_LATITUDE], boundingBox[MapUtil.MAX_LONGITUDE]));
+        getLoaderManager().restartLoader(FENCE_SESSION_PATH_LOADER_ID, args, this);
+    }
+
     @Override
     public void onLoadFinished(android.support.v4.content.Loader<Cursor> cursorLoader, Cursor cursor) {
+        if (FENCE_SESSION_SUMMARY_LOADER_ID == cursorLoader.getId()) {
+            showSessionBounds(cursor);
+            return;
+        }
+        // We remove the path of the previous region
+        for (Polyline polyline : mPathPolylines) {
+            polyline.remove();
+        }
+        mPathPolylines.clear();
         // We read the data from the DB and create the Polygon
         final FenceCursorFactory.FencePositionCursorData positionCursorData = CursorResolver.CURSOR_RESOLVER.extractPositionCursor(cursor);
-        LatLngBounds.Builder bounds = new LatLngBounds.Builder();
         PolylineOptions currentPolyline = null;
         int lastActivityType = -1;
         LatLng position = null;
         LatLng previous = null;
         while (cursor.moveToNext()) {
-            final int currentActivityType = positionCursorData.getActivityType();
+            positionCursorData.readRow(mPositionRow);
+            final int currentActivityType = mPositionRow.getActivityType();
             if (lastActivityType != currentActivityType) {
                 // In this case the activity type is different so we add the previous
                 // Polyline and create a new one
                 if (currentPolyline != null) {
-                    getMap().addPolyline(currentPolyline);
+                    mPathPolylines.add(getMap().addPolyline(currentPolyline));
                 }
                 lastActivityType = currentActivityType;
                 currentPolyline = new PolylineOptions()
-                        .color(getActivityColor(currentActivityType))
+                        .color(ActivityUtil.getActivityColor(currentActivityType))
                         .width(PATH_WIDTH);
             }
             if (previous != null) {
                 currentPolyline.add(previous);
             }
-            position = new LatLng(positionCursorData.getLatitude(), positionCursorData.getLongitude());
+            position = new LatLng(mPositionRow.getLatitude(), mPositionRow.getLongitude());
             previous = position;
             currentPolyline.add(position);
-            bounds.include(position);
         }
         // We add the last
-        getMap().addPolyline(currentPolyline);
-        final CameraUpdate cameraUpdate = CameraUpdateFactory.newLatLngBounds(bounds.build(), DEFAULT_PADDING);
-        getMap().moveCamera(cameraUpdate);
-    }
-
-    @Override
-    public void onLoaderReset(android.support.v4.content.Loader<Cursor> cursorLoader) {
+        if (currentPolyline != null) {
+            mPathPolylines.add(getMap().addPolyline(currentPolyline));
+        }
     }
 
-
     /**
-     * Utility method that return a different color for every activity type
+     * Move the camera to the bounds of the session we read from its summary
      *
-     * @return The color for the given Activity
+     * @param summaryCursor The Cursor with the summary of the session
      */
-    private int getActivityColor(final int activityType) {
-        switch (activityType) {
-            case DetectedActivity.UNKNOWN:
-                return 0xff000000;
-            case DetectedActivity.ON_FOOT:
-                return 0xff0000ff;
-            case DetectedActivity.RUNNING:
-                return 0xffff0000;
-            case DetectedActivity.IN_VEHICLE:
-                return 0xffffff00;
-            case DetectedActivity.ON_BICYCLE:
-                return 0xffdddddd;
-            case DetectedActivity.STILL:
-                return 0xff00ff00;
-            case DetectedActivity.TILTING:
-                return 0xffff00ff;
-            case DetectedActivity.WALKING:
-                return 0xffabbaab;
-            default:
-                return 0xff000000;
+    private void showSessionBounds(final Cursor summaryCursor) {
+        if (!summaryCursor.moveToFirst()) {
+            // The session has no positions
+            return;
         }
+        final LatLng southWest = new LatLng(
+                summaryCursor.getDouble(summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.MIN_LATITUDE)),
+                summaryCursor.getDouble(summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.MIN_LONGITUDE)));
+        final LatLng northEast = new LatLng(
+                summaryCursor.getDouble(summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.MAX_LATITUDE)),
+                summaryCursor.getDouble(summaryCursor.getColumnIndex(FenceDB.FenceSessionSummary.MAX_LONGITUDE)));
+        final CameraUpdate cameraUpdate = CameraUpdateFactory
+                .newLatLngBounds(new LatLngBounds(southWest, northEast), DEFAULT_PADDING);
+        getMap().moveCamera(cameraUpdate);
+    }
+
+    @Override
+    public void onLoaderReset(android.support.v4.content.Loader<Cursor> cursorLoader) {
     }
 
 
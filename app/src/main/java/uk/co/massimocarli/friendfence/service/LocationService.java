@@ -1,14 +1,10 @@
 package uk.co.massimocarli.friendfence.service;
 
 import android.app.IntentService;
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.OperationApplicationException;
 import android.location.Location;
-import android.net.Uri;
-import android.os.RemoteException;
 import android.util.Log;
 import android.util.Pair;
 
@@ -16,10 +12,9 @@ import com.google.android.gms.location.ActivityRecognitionResult;
 import com.google.android.gms.location.DetectedActivity;
 import com.google.android.gms.location.FusedLocationProviderApi;
 
-import java.util.ArrayList;
-
 import uk.co.massimocarli.friendfence.Conf;
 import uk.co.massimocarli.friendfence.content.FenceDB;
+import uk.co.massimocarli.friendfence.util.CoordinateUtil;
 
 /**
  * An {@link android.app.IntentService} subclass for handling asynchronous task requests in
@@ -34,11 +29,6 @@ public class LocationService extends IntentService {
      */
     private static final String TAG_LOG = LocationService.class.getName();
 
-    /**
-     * The number of ContentProviderOperation we use to update the data in the ContentProvider
-     */
-    private static final int CONTENT_PROVIDER_OP_SIZE = 2;
-
     /**
      * The value for SessionId in the case the related extra is not present
      */
@@ -59,6 +49,11 @@ public class LocationService extends IntentService {
      */
     private ServiceState mServiceState;
 
+    /**
+     * The buffer for the positions to save
+     */
+    private PositionBuffer mPositionBuffer;
+
     /**
      * This is the static factory method that creates the Intent to launch for this Service
      *
@@ -94,6 +89,8 @@ public class LocationService extends IntentService {
         super.onCreate();
         // We initialize the ServiceState
         mServiceState = ServiceState.get(this);
+        // We get the buffer for the positions
+        mPositionBuffer = PositionBuffer.get(this);
     }
 
     @Override
@@ -134,29 +131,13 @@ public class LocationService extends IntentService {
         final ContentValues locationValues = new ContentValues();
         locationValues.put(FenceDB.FencePosition.POSITION_TIME, location.getTime());
         locationValues.put(FenceDB.FencePosition.ALTITUDE, location.getAltitude());
-        locationValues.put(FenceDB.FencePosition.LATITUDE, location.getLatitude());
-        locationValues.put(FenceDB.FencePosition.LONGITUDE, location.getLongitude());
+        locationValues.put(FenceDB.FencePosition.LATITUDE_E7, CoordinateUtil.toE7(location.getLatitude()));
+        locationValues.put(FenceDB.FencePosition.LONGITUDE_E7, CoordinateUtil.toE7(location.getLongitude()));
         locationValues.put(FenceDB.FencePosition.DISTANCE, distances.second);
         locationValues.put(FenceDB.FencePosition.ACTIVITY, mServiceState.getActivityType());
-        final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(sessionId);
-        final ArrayList<ContentProviderOperation> updateOps =
-                new ArrayList<ContentProviderOperation>(CONTENT_PROVIDER_OP_SIZE);
-        updateOps.add(ContentProviderOperation.newInsert(positionUri).withValues(locationValues).build());
-        // The update for the session data
-        final Uri sessionUri = Uri.withAppendedPath(FenceDB.FenceSession.CONTENT_URI, String.valueOf(sessionId));
-        final ContentValues sessionValues = new ContentValues();
-        sessionValues.put(FenceDB.FenceSession.TOTAL_DISTANCE, distances.second);
-        updateOps.add(ContentProviderOperation.newUpdate(sessionUri).withValues(sessionValues).build());
-        // We insert this data into the ContentProvider
-        try {
-            getContentResolver().applyBatch(FenceDB.AUTHORITY, updateOps);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-            Log.e(TAG_LOG, "RemoteException inserting data into ContentProvider", e);
-        } catch (OperationApplicationException e) {
-            e.printStackTrace();
-            Log.e(TAG_LOG, "OperationApplicationException inserting data into ContentProvider", e);
-        }
+        // We add the position to the buffer which writes it into the ContentProvider
+        // together with the others
+        mPositionBuffer.add(sessionId, locationValues, distances.second);
     }
 
 }
@@ -0,0 +1,20 @@
+package uk.co.massimocarli.friendfence.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.WakefulBroadcastReceiver;
+
+/**
+ * This is the BroadcastReceiver that starts the maintenance of the DB when the device is
+ * connected to the power
+ */
+public class MaintenanceReceiver extends WakefulBroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+            // We keep the device awake until the maintenance is completed
+            startWakefulService(context, new Intent(context, MaintenanceService.class));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package uk.co.massimocarli.friendfence.service;
+
+import android.annotation.TargetApi;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import uk.co.massimocarli.friendfence.Conf;
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * This is the Service that executes the maintenance of the DB when the device is charging and
+ * no tracking session is active. The maintenance is executed at most once every
+ * MIN_MAINTENANCE_INTERVAL and the result of the last one is saved into the SharedPreferences
+ */
+public class MaintenanceService extends IntentService {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = MaintenanceService.class.getName();
+
+    /**
+     * The min time (in milliseconds) between two maintenances
+     */
+    private static final long MIN_MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The name of the SharedPreferences with the result of the last maintenance
+     */
+    private static final String SHARED_NAME = Conf.PKG + ".prefs.MAINTENANCE";
+
+    /**
+     * The key for the time of the last maintenance
+     */
+    private static final String LAST_MAINTENANCE_TIME = Conf.PKG + ".key.LAST_MAINTENANCE_TIME";
+
+    /**
+     * The Default Constructor
+     */
+    public MaintenanceService() {
+        super("MaintenanceService");
+    }
+
+    /**
+     * Starts the maintenance if it's needed. The conditions are checked by the Service
+     *
+     * @param context The Context
+     */
+    public static void start(final Context context) {
+        context.startService(new Intent(context, MaintenanceService.class));
+    }
+
+    /**
+     * @param context The Context
+     * @return The SharedPreferences with the result of the last maintenance. The keys are the
+     * ones of the Bundle returned by FenceDB.METHOD_MAINTENANCE
+     */
+    public static SharedPreferences getLastReport(final Context context) {
+        return context.getSharedPreferences(SHARED_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && isMaintenanceAllowed()) {
+                runMaintenance();
+            }
+        } finally {
+            if (intent != null) {
+                MaintenanceReceiver.completeWakefulIntent(intent);
+            }
+        }
+    }
+
+    /**
+     * @return True if the device is charging, the tracking is idle and the last maintenance is
+     * old enough
+     */
+    private boolean isMaintenanceAllowed() {
+        if (ServiceState.get(this).isRunning()) {
+            Log.d(TAG_LOG, "Maintenance skipped: tracking is running");
+            return false;
+        }
+        // The battery state is a sticky broadcast so we don't need a receiver
+        final Intent batteryIntent = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryIntent == null || batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
+            Log.d(TAG_LOG, "Maintenance skipped: not charging");
+            return false;
+        }
+        final long lastMaintenanceTime = getLastReport(this).getLong(LAST_MAINTENANCE_TIME, 0L);
+        if (System.currentTimeMillis() - lastMaintenanceTime < MIN_MAINTENANCE_INTERVAL) {
+            Log.d(TAG_LOG, "Maintenance skipped: last one at " + lastMaintenanceTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Asks the ContentProvider for the maintenance and saves its result
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void runMaintenance() {
+        final Bundle report;
+        try {
+            report = getContentResolver().call(FenceDB.FenceSession.CONTENT_URI,
+                    FenceDB.METHOD_MAINTENANCE, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG_LOG, "Error during the maintenance", e);
+            return;
+        }
+        final SharedPreferences.Editor editor = getLastReport(this).edit()
+                .putLong(LAST_MAINTENANCE_TIME, System.currentTimeMillis());
+        for (String key : new String[]{FenceDB.EXTRA_CHECKPOINT_TIME, FenceDB.EXTRA_VACUUM_TIME,
+                FenceDB.EXTRA_ANALYZE_TIME, FenceDB.EXTRA_INTEGRITY_CHECK_TIME, FenceDB.EXTRA_RECLAIMED_BYTES}) {
+            editor.putLong(key, report.getLong(key));
+        }
+        editor.putBoolean(FenceDB.EXTRA_INTEGRITY_OK, report.getBoolean(FenceDB.EXTRA_INTEGRITY_OK));
+        editor.commit();
+        Log.i(TAG_LOG, "Maintenance: checkpoint " + report.getLong(FenceDB.EXTRA_CHECKPOINT_TIME)
+                + " ms, vacuum " + report.getLong(FenceDB.EXTRA_VACUUM_TIME)
+                + " ms (" + report.getLong(FenceDB.EXTRA_RECLAIMED_BYTES) + " bytes reclaimed), analyze "
+                + report.getLong(FenceDB.EXTRA_ANALYZE_TIME) + " ms, integrity check "
+                + report.getLong(FenceDB.EXTRA_INTEGRITY_CHECK_TIME) + " ms (ok: "
+                + report.getBoolean(FenceDB.EXTRA_INTEGRITY_OK) + ")");
+    }
+}
@@ -0,0 +1,426 @@
+package uk.co.massimocarli.friendfence.service;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.massimocarli.friendfence.content.FenceDB;
+
+/**
+ * This is the object that buffers the positions we receive from the LocationService and
+ * writes them into the ContentProvider in groups. The buffer is flushed when it reaches
+ * MAX_BUFFERED_POSITIONS items, when the oldest position is older than MAX_FLUSH_DELAY, when the
+ * session is stopped and, from Ice Cream Sandwich, when the system asks to release memory because
+ * the process is into the background. A process can be killed without any of these callbacks so
+ * the positions of the last MAX_FLUSH_DELAY milliseconds can be lost. This is the price we pay
+ * for writing the positions in groups.
+ */
+public final class PositionBuffer {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = PositionBuffer.class.getName();
+
+    /**
+     * The number of positions that triggers a flush
+     */
+    private static final int MAX_BUFFERED_POSITIONS = 20;
+
+    /**
+     * The max time (in milliseconds) a position can stay into the buffer
+     */
+    private static final long MAX_FLUSH_DELAY = 30000L;
+
+    /**
+     * The max number of positions we keep if the ContentProvider cannot be written. The positions
+     * of a failed flush are put back into the buffer and written with the next flush. After this
+     * the oldest positions are dropped
+     */
+    private static final int MAX_PENDING_POSITIONS = 1000;
+
+    /**
+     * The value for a no session id
+     */
+    private static final long NO_SESSION_ID = -1L;
+
+    /**
+     * The SingletonInstance
+     */
+    private static PositionBuffer sInstance;
+
+    /**
+     * The ApplicationContext
+     */
+    private final Context mContext;
+
+    /**
+     * The Handler of the thread where the flushes are executed
+     */
+    private final Handler mFlushHandler;
+
+    /**
+     * The buffered positions
+     */
+    private ArrayList<ContentValues> mPositions = new ArrayList<ContentValues>(MAX_BUFFERED_POSITIONS);
+
+    /**
+     * The session of the buffered positions
+     */
+    private long mSessionId = NO_SESSION_ID;
+
+    /**
+     * The total distance of the session after the last buffered position
+     */
+    private float mTotalDistance;
+
+    /**
+     * The time of the oldest position into the buffer
+     */
+    private long mOldestPositionTime;
+
+    /**
+     * The number of positions added to the buffer
+     */
+    private final AtomicLong mBufferedCount = new AtomicLong();
+
+    /**
+     * The number of positions written into the ContentProvider
+     */
+    private final AtomicLong mFlushedCount = new AtomicLong();
+
+    /**
+     * The number of positions lost because the buffer was full of positions not written or
+     * because their session was deleted
+     */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * The Runnable that executes the flush into the flush thread
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    /**
+     * The Runnable that asks the ContentProvider for a checkpoint
+     */
+    private final Runnable mCheckpointRunnable = new Runnable() {
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public void run() {
+            try {
+                mContext.getContentResolver().call(FenceDB.FenceSession.CONTENT_URI,
+                        FenceDB.METHOD_CHECKPOINT, null, null);
+            } catch (RuntimeException e) {
+                Log.e(TAG_LOG, "Error during the checkpoint", e);
+            }
+        }
+    };
+
+    /**
+     * Creates the PositionBuffer with its flush thread
+     *
+     * @param context The Context
+     */
+    private PositionBuffer(final Context context) {
+        mContext = context.getApplicationContext();
+        final HandlerThread flushThread = new HandlerThread(TAG_LOG);
+        flushThread.start();
+        mFlushHandler = new Handler(flushThread.getLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            registerMemoryCallbacks();
+        }
+    }
+
+    /**
+     * Static Factory method for the PositionBuffer
+     *
+     * @param context The Context
+     * @return The PositionBuffer Singleton Instance
+     */
+    public synchronized static PositionBuffer get(final Context context) {
+        if (sInstance == null) {
+            sInstance = new PositionBuffer(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Add a position to the buffer
+     *
+     * @param sessionId      The session of the position
+     * @param positionValues The values of the position
+     * @param totalDistance  The total distance of the session with this position
+     */
+    public void add(final long sessionId, final ContentValues positionValues, final float totalDistance) {
+        final boolean flushRequired;
+        synchronized (this) {
+            if (mSessionId != NO_SESSION_ID && mSessionId != sessionId && !mPositions.isEmpty()) {
+                // The positions of the previous session have to be written before these
+                mFlushHandler.post(new FlushTask(mSessionId, detachPositions(), mTotalDistance));
+            }
+            if (mPositions.isEmpty()) {
+                mOldestPositionTime = SystemClock.elapsedRealtime();
+                mFlushHandler.postDelayed(mFlushRunnable, MAX_FLUSH_DELAY);
+            }
+            mSessionId = sessionId;
+            mTotalDistance = totalDistance;
+            mPositions.add(positionValues);
+            if (mPositions.size() > MAX_PENDING_POSITIONS) {
+                // We drop the oldest one
+                mPositions.remove(0);
+                mDroppedCount.incrementAndGet();
+            }
+            flushRequired = mPositions.size() >= MAX_BUFFERED_POSITIONS
+                    || SystemClock.elapsedRealtime() - mOldestPositionTime >= MAX_FLUSH_DELAY;
+        }
+        mBufferedCount.incrementAndGet();
+        if (flushRequired) {
+            flush();
+        }
+    }
+
+    /**
+     * Asks for the flush of the buffered positions into the flush thread. We use this when the
+     * session is stopped
+     */
+    public void flush() {
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Asks for the flush of the buffered positions and then for a checkpoint of the DB. We use
+     * this when the session is stopped because the tracking is idle
+     */
+    public void flushAndCheckpoint() {
+        flush();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mFlushHandler.post(mCheckpointRunnable);
+        }
+    }
+
+    /**
+     * Asks for the flush of the buffered positions, then for the archive of the positions of the
+     * given session and then for a checkpoint of the DB. We use this when a session is closed. The
+     * archive is executed into the flush thread so it always comes after the last positions
+     *
+     * @param sessionId The session to archive
+     */
+    public void flushAndArchive(final long sessionId) {
+        flush();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mFlushHandler.post(new ArchiveTask(sessionId));
+            mFlushHandler.post(mCheckpointRunnable);
+        }
+    }
+
+    /**
+     * @return The number of positions added to the buffer
+     */
+    public long getBufferedCount() {
+        return mBufferedCount.get();
+    }
+
+    /**
+     * @return The number of positions written into the ContentProvider
+     */
+    public long getFlushedCount() {
+        return mFlushedCount.get();
+    }
+
+    /**
+     * @return The number of positions that were lost because the ContentProvider could not be
+     * written for too long or because their session doesn't exist anymore
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Write the buffered positions into the ContentProvider. This is always executed into the
+     * flush thread
+     */
+    private void flushNow() {
+        final FlushTask flushTask;
+        synchronized (this) {
+            mFlushHandler.removeCallbacks(mFlushRunnable);
+            if (mPositions.isEmpty()) {
+                return;
+            }
+            flushTask = new FlushTask(mSessionId, detachPositions(), mTotalDistance);
+        }
+        flushTask.run();
+    }
+
+    /**
+     * Put the positions of a failed flush back at the beginning of the buffer so they are written
+     * with the next flush. If the buffer already contains the positions of another session we
+     * cannot keep them together so they are lost. This is executed into the flush thread
+     *
+     * @param sessionId     The session of the positions
+     * @param positions     The positions not written
+     * @param totalDistance The total distance of the session after the positions
+     */
+    private synchronized void requeue(final long sessionId, final ArrayList<ContentValues> positions,
+                                      final float totalDistance) {
+        if (mSessionId != sessionId && !mPositions.isEmpty()) {
+            mDroppedCount.addAndGet(positions.size());
+            return;
+        }
+        if (mPositions.isEmpty()) {
+            mOldestPositionTime = SystemClock.elapsedRealtime();
+            mSessionId = sessionId;
+            mTotalDistance = totalDistance;
+        }
+        positions.addAll(mPositions);
+        mPositions = positions;
+        final int excess = mPositions.size() - MAX_PENDING_POSITIONS;
+        if (excess > 0) {
+            // We drop the oldest ones
+            mPositions.subList(0, excess).clear();
+            mDroppedCount.addAndGet(excess);
+        }
+        // We try again later
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.postDelayed(mFlushRunnable, MAX_FLUSH_DELAY);
+    }
+
+    /**
+     * Return the buffered positions replacing them with an empty buffer. It must be called
+     * holding the lock on this object
+     *
+     * @return The buffered positions
+     */
+    private ArrayList<ContentValues> detachPositions() {
+        final ArrayList<ContentValues> positions = mPositions;
+        mPositions = new ArrayList<ContentValues>(MAX_BUFFERED_POSITIONS);
+        return positions;
+    }
+
+    /**
+     * We register the callbacks to flush the buffer when the process is into the background and
+     * so it could be killed. They are not called if the process is killed in other ways
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerMemoryCallbacks() {
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                    // The process is into the background LRU list so it could be killed
+                    flush();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Nothing to do
+            }
+
+            @Override
+            public void onLowMemory() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * The task that writes a group of positions and updates the related session. The
+     * ContentProvider writes both into the same transaction
+     */
+    private final class FlushTask implements Runnable {
+
+        /**
+         * The session of the positions
+         */
+        private final long mTaskSessionId;
+
+        /**
+         * The positions to write
+         */
+        private final ArrayList<ContentValues> mTaskPositions;
+
+        /**
+         * The total distance for the session
+         */
+        private final float mTaskTotalDistance;
+
+        private FlushTask(final long sessionId, final ArrayList<ContentValues> positions,
+                          final float totalDistance) {
+            mTaskSessionId = sessionId;
+            mTaskPositions = positions;
+            mTaskTotalDistance = totalDistance;
+        }
+
+        @Override
+        public void run() {
+            final int positionNumber = mTaskPositions.size();
+            try {
+                // We insert all the positions and the total distance in a single transaction
+                final Uri positionUri = FenceDB.FencePosition.getPositionUriForSession(mTaskSessionId,
+                        mTaskTotalDistance);
+                final ContentValues[] positionValues = new ContentValues[positionNumber];
+                mContext.getContentResolver().bulkInsert(positionUri, mTaskPositions.toArray(positionValues));
+                mFlushedCount.addAndGet(positionNumber);
+                Log.d(TAG_LOG, "Flushed " + positionNumber + " positions for session " + mTaskSessionId);
+            } catch (SQLiteConstraintException e) {
+                // The session doesn't exist anymore, for instance because it was deleted, so the
+                // positions would fail again. We drop them instead of retrying forever
+                Log.w(TAG_LOG, "Dropped " + positionNumber + " positions for the session " + mTaskSessionId, e);
+                mDroppedCount.addAndGet(positionNumber);
+            } catch (RuntimeException e) {
+                Log.e(TAG_LOG, "Error flushing " + positionNumber + " positions for session " + mTaskSessionId, e);
+                requeue(mTaskSessionId, mTaskPositions, mTaskTotalDistance);
+            }
+        }
+    }
+
+    /**
+     * The task that asks the ContentProvider to archive the positions of a closed session
+     */
+    private final class ArchiveTask implements Runnable {
+
+        /**
+         * The session to archive
+         */
+        private final long mTaskSessionId;
+
+        private ArchiveTask(final long sessionId) {
+            mTaskSessionId = sessionId;
+        }
+
+        @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public void run() {
+            try {
+                final Bundle result = mContext.getContentResolver().call(FenceDB.FenceSession.CONTENT_URI,
+                        FenceDB.METHOD_ARCHIVE_SESSION, String.valueOf(mTaskSessionId), null);
+                Log.d(TAG_LOG, "Archived " + result.getInt(FenceDB.EXTRA_ARCHIVED_POSITION_COUNT)
+                        + " positions for session " + mTaskSessionId + " into "
+                        + result.getInt(FenceDB.EXTRA_ARCHIVE_SIZE) + " bytes");
+            } catch (RuntimeException e) {
+                // The positions are still into the FencePosition table
+                Log.e(TAG_LOG, "Error archiving the session " + mTaskSessionId, e);
+            }
+        }
+    }
+
+}
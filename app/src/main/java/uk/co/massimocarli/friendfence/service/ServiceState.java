@@ -27,7 +27,7 @@ public final class ServiceState {
     private static final long NO_SESSION_ID = -1L;
 
     /**
-     * The name for the SharedPrefs
+     * The name for the SharedPrefs we used before the journal
      */
     private static final String SHARED_NAME = Conf.PKG + ".prefs.LOCATION_SERVICE_STATE";
 
@@ -61,6 +61,26 @@ public final class ServiceState {
      */
     private static ServiceState sInstance;
 
+    /**
+     * The current session id
+     */
+    private long mSessionId = NO_SESSION_ID;
+
+    /**
+     * True if we have received a position for the current session
+     */
+    private boolean mHasLastPosition;
+
+    /**
+     * The last latitude
+     */
+    private double mLastLatitude;
+
+    /**
+     * The last longitude
+     */
+    private double mLastLongitude;
+
     /**
      * The total distance
      */
@@ -72,9 +92,14 @@ public final class ServiceState {
     private int mCurrentActivityType = DetectedActivity.UNKNOWN;
 
     /**
-     * The Preference reference
+     * The array we reuse for the distance calculation
      */
-    private final SharedPreferences mPrefs;
+    private final float[] mDistanceResult = new float[1];
+
+    /**
+     * The journal we use to persist the state
+     */
+    private final ServiceStateJournal mJournal;
 
     /**
      * The Helper to manage notification
@@ -87,7 +112,19 @@ public final class ServiceState {
      * @param context The Context
      */
     private ServiceState(final Context context) {
-        mPrefs = context.getSharedPreferences(SHARED_NAME, Context.MODE_PRIVATE);
+        mJournal = new ServiceStateJournal(context);
+        // We restore the state of the previous process if any
+        final ServiceStateJournal.Snapshot snapshot = mJournal.replay();
+        if (snapshot != null) {
+            mSessionId = snapshot.sessionId;
+            mHasLastPosition = snapshot.hasLastPosition;
+            mLastLatitude = snapshot.lastLatitude;
+            mLastLongitude = snapshot.lastLongitude;
+            mCurrentDistance = snapshot.currentDistance;
+            mCurrentActivityType = snapshot.activityType;
+        } else {
+            importLegacyState(context);
+        }
         // NotificationHelper initialisation
         mNotificationHelper = FenceNotificationHelper.get(context);
     }
@@ -113,10 +150,11 @@ public final class ServiceState {
     public synchronized void start(final long currentSessionId) {
         // we start the session and reset all the information for the
         // location and distance
-        mPrefs.edit()
-                .putLong(CURRENT_SESSION_ID, currentSessionId)
-                .putInt(ACTIVITY_STATE, DetectedActivity.UNKNOWN)
-                .commit();
+        mSessionId = currentSessionId;
+        mHasLastPosition = false;
+        mCurrentDistance = 0.0f;
+        mCurrentActivityType = DetectedActivity.UNKNOWN;
+        saveState(true);
         Log.d(TAG_LOG, "Start session " + currentSessionId);
     }
 
@@ -125,13 +163,11 @@ public final class ServiceState {
      */
     public synchronized void stop() {
         Log.d(TAG_LOG, "Stop session " + getSessionId());
-        mPrefs.edit()
-                .remove(CURRENT_SESSION_ID)
-                .remove(LAST_LATITUDE)
-                .remove(LAST_LONGITUDE)
-                .remove(ACTIVITY_STATE)
-                .putFloat(CURRENT_DISTANCE, 0.0f)
-                .commit();
+        mSessionId = NO_SESSION_ID;
+        mHasLastPosition = false;
+        mCurrentDistance = 0.0f;
+        mCurrentActivityType = DetectedActivity.UNKNOWN;
+        saveState(true);
         // We remove the notification
         mNotificationHelper.dismissDistanceNotification();
     }
@@ -147,7 +183,7 @@ public final class ServiceState {
      * @return The current running serviceId if any or NO_SESSION_ID (-1) if not
      */
     public synchronized long getSessionId() {
-        return mPrefs.getLong(CURRENT_SESSION_ID, NO_SESSION_ID);
+        return mSessionId;
     }
 
     /**
@@ -156,10 +192,10 @@ public final class ServiceState {
      * @param activityState The current Activity type
      */
     public synchronized void updateActivityType(final int activityState) {
-        mCurrentActivityType = activityState;
-        mPrefs.edit()
-                .putInt(ACTIVITY_STATE, mCurrentActivityType)
-                .commit();
+        if (mCurrentActivityType != activityState) {
+            mCurrentActivityType = activityState;
+            saveState(false);
+        }
     }
 
 
@@ -167,9 +203,6 @@ public final class ServiceState {
      * @return The current ActivityType
      */
     public synchronized int getActivityType() {
-        if (mCurrentActivityType == DetectedActivity.UNKNOWN) {
-            mCurrentActivityType = mPrefs.getInt(ACTIVITY_STATE, DetectedActivity.UNKNOWN);
-        }
         return mCurrentActivityType;
     }
 
@@ -183,26 +216,20 @@ public final class ServiceState {
         final float distance;
         final double newLatitude = newLocation.getLatitude();
         final double newLongitude = newLocation.getLongitude();
-        if (mPrefs.contains(LAST_LATITUDE)) {
-            // In this case we have a previous Location
-            final float previousLatitude = mPrefs.getFloat(LAST_LATITUDE, 0.0f);
-            final float previousLongitude = mPrefs.getFloat(LAST_LONGITUDE, 0.0f);
-            // We calculate the distance
-            final float[] distances = new float[1];
-            Location.distanceBetween(previousLatitude, previousLongitude,
-                    newLatitude, newLongitude, distances);
-            distance = distances[0];
+        if (mHasLastPosition) {
+            // In this case we have a previous Location so we calculate the distance
+            Location.distanceBetween(mLastLatitude, mLastLongitude,
+                    newLatitude, newLongitude, mDistanceResult);
+            distance = mDistanceResult[0];
         } else {
             // We don't have a previous location
             distance = 0.0f;
         }
-        mCurrentDistance = mPrefs.getFloat(CURRENT_DISTANCE, 0.0f);
         mCurrentDistance = mCurrentDistance + distance;
-        mPrefs.edit()
-                .putFloat(LAST_LATITUDE, (float) newLatitude)
-                .putFloat(LAST_LONGITUDE, (float) newLongitude)
-                .putFloat(CURRENT_DISTANCE, mCurrentDistance)
-                .commit();
+        mHasLastPosition = true;
+        mLastLatitude = newLatitude;
+        mLastLongitude = newLongitude;
+        saveState(false);
         Log.d(TAG_LOG, "Distance to position [" + newLatitude + "," + newLongitude + "] is "
                 + distance + " total:" + mCurrentDistance);
         // We show the notification
@@ -211,5 +238,36 @@ public final class ServiceState {
         return new Pair<Float, Float>(distance, mCurrentDistance);
     }
 
+    /**
+     * Save the current state into the journal. The write is asynchronous
+     *
+     * @param sync True if the journal has to be synced on the storage
+     */
+    private void saveState(final boolean sync) {
+        mJournal.append(new ServiceStateJournal.Snapshot(mSessionId, mHasLastPosition,
+                mLastLatitude, mLastLongitude, mCurrentDistance, mCurrentActivityType), sync);
+    }
+
+    /**
+     * Read the state from the SharedPreferences we used before the journal. This is needed if
+     * the application is updated while a session is running
+     *
+     * @param context The Context
+     */
+    private void importLegacyState(final Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(SHARED_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains(CURRENT_SESSION_ID)) {
+            return;
+        }
+        mSessionId = prefs.getLong(CURRENT_SESSION_ID, NO_SESSION_ID);
+        mHasLastPosition = prefs.contains(LAST_LATITUDE);
+        mLastLatitude = prefs.getFloat(LAST_LATITUDE, 0.0f);
+        mLastLongitude = prefs.getFloat(LAST_LONGITUDE, 0.0f);
+        mCurrentDistance = prefs.getFloat(CURRENT_DISTANCE, 0.0f);
+        mCurrentActivityType = prefs.getInt(ACTIVITY_STATE, DetectedActivity.UNKNOWN);
+        saveState(true);
+        prefs.edit().clear().apply();
+    }
+
 
 }
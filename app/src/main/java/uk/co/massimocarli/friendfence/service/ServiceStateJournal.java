@@ -0,0 +1,308 @@
+package uk.co.massimocarli.friendfence.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import uk.co.massimocarli.friendfence.util.IOUtils;
+
+/**
+ * This is the append-only journal we use to persist the ServiceState. Every record is a
+ * complete snapshot of the state with its checksum so the replay only needs the last valid
+ * record. Records are written into a dedicated thread and only the most recent snapshot is
+ * written if more are waiting. When the file becomes too big it's compacted into a single record.
+ */
+final class ServiceStateJournal {
+
+    /**
+     * The Tag for the Log
+     */
+    private static final String TAG_LOG = ServiceStateJournal.class.getName();
+
+    /**
+     * The name of the journal file
+     */
+    private static final String JOURNAL_NAME = "service_state.journal";
+
+    /**
+     * The size of a record: sessionId, hasLastPosition, lastLatitude, lastLongitude,
+     * currentDistance, activityType and the CRC32 of all of them
+     */
+    static final int RECORD_SIZE = 8 + 1 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * The max number of records before the compaction
+     */
+    private static final int MAX_RECORDS = 1024;
+
+    /**
+     * The immutable snapshot of the state saved into the journal
+     */
+    static final class Snapshot {
+
+        /**
+         * The current session or -1 if not running
+         */
+        final long sessionId;
+
+        /**
+         * True if we have the last position
+         */
+        final boolean hasLastPosition;
+
+        /**
+         * The last latitude
+         */
+        final double lastLatitude;
+
+        /**
+         * The last longitude
+         */
+        final double lastLongitude;
+
+        /**
+         * The total distance of the session
+         */
+        final float currentDistance;
+
+        /**
+         * The current Activity type
+         */
+        final int activityType;
+
+        Snapshot(final long sessionId, final boolean hasLastPosition, final double lastLatitude,
+                 final double lastLongitude, final float currentDistance, final int activityType) {
+            this.sessionId = sessionId;
+            this.hasLastPosition = hasLastPosition;
+            this.lastLatitude = lastLatitude;
+            this.lastLongitude = lastLongitude;
+            this.currentDistance = currentDistance;
+            this.activityType = activityType;
+        }
+    }
+
+    /**
+     * The journal file
+     */
+    private final File mJournalFile;
+
+    /**
+     * The Handler for the thread where we write
+     */
+    private final Handler mWriteHandler;
+
+    /**
+     * The buffer for a single record
+     */
+    private final ByteBuffer mRecordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+
+    /**
+     * The CRC we use for the written records
+     */
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * The next snapshot to write, if any
+     */
+    private Snapshot mPendingSnapshot;
+
+    /**
+     * True if the next write should also sync the file on the storage
+     */
+    private boolean mPendingSync;
+
+    /**
+     * The number of records into the journal
+     */
+    private int mRecordCount;
+
+    /**
+     * The Runnable that writes the pending snapshot
+     */
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Snapshot snapshot;
+            final boolean sync;
+            synchronized (ServiceStateJournal.this) {
+                snapshot = mPendingSnapshot;
+                sync = mPendingSync;
+                mPendingSnapshot = null;
+                mPendingSync = false;
+            }
+            if (snapshot != null) {
+                write(snapshot, sync);
+            }
+        }
+    };
+
+    /**
+     * Creates the journal into the private files of the application
+     *
+     * @param context The Context
+     */
+    ServiceStateJournal(final Context context) {
+        this(new File(context.getFilesDir(), JOURNAL_NAME));
+    }
+
+    /**
+     * Creates the journal into the given file
+     *
+     * @param journalFile The journal file
+     */
+    ServiceStateJournal(final File journalFile) {
+        mJournalFile = journalFile;
+        final HandlerThread writeThread = new HandlerThread(TAG_LOG);
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper());
+    }
+
+    /**
+     * Read the last valid snapshot into the journal. This is used when the process restarts
+     *
+     * @return The last snapshot or null if not available
+     */
+    synchronized Snapshot replay() {
+        if (!mJournalFile.exists()) {
+            return null;
+        }
+        Snapshot lastSnapshot = null;
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(mJournalFile, "r");
+            final byte[] record = new byte[RECORD_SIZE];
+            mRecordCount = 0;
+            while (journal.getFilePointer() + RECORD_SIZE <= journal.length()) {
+                journal.readFully(record);
+                final Snapshot snapshot = decode(record);
+                if (snapshot == null) {
+                    // A corrupted record, probably the last one was not completely written.
+                    // The next write will compact the journal so it's not appended after this
+                    mRecordCount = MAX_RECORDS;
+                    break;
+                }
+                lastSnapshot = snapshot;
+                mRecordCount++;
+            }
+            if (journal.length() % RECORD_SIZE != 0) {
+                // A partial record left by a crash during a write. The next write would be
+                // misaligned after it so we compact the journal
+                mRecordCount = MAX_RECORDS;
+            }
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Error reading the journal", e);
+        } finally {
+            IOUtils.closeQuietly(journal);
+        }
+        return lastSnapshot;
+    }
+
+    /**
+     * Asks for the write of the given snapshot. The write is asynchronous and only the last
+     * snapshot is written if more are requested before the write
+     *
+     * @param snapshot The snapshot to write
+     * @param sync     True if the file has to be synced on the storage
+     */
+    void append(final Snapshot snapshot, final boolean sync) {
+        synchronized (this) {
+            final boolean alreadyPosted = mPendingSnapshot != null;
+            mPendingSnapshot = snapshot;
+            mPendingSync |= sync;
+            if (alreadyPosted) {
+                return;
+            }
+        }
+        mWriteHandler.post(mWriteRunnable);
+    }
+
+    /**
+     * Stops the write thread after the pending snapshot is written. The journal cannot be used
+     * after this
+     */
+    void close() {
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Write the snapshot into the journal. This is executed into the write thread
+     *
+     * @param snapshot The snapshot to write
+     * @param sync     True if we have to sync the file
+     */
+    private void write(final Snapshot snapshot, final boolean sync) {
+        final byte[] record = encode(snapshot);
+        // If the journal is too big we replace it with a new one with the last record only
+        final boolean compact = mRecordCount >= MAX_RECORDS;
+        final File targetFile = compact ? new File(mJournalFile.getPath() + ".tmp") : mJournalFile;
+        FileOutputStream journal = null;
+        try {
+            journal = new FileOutputStream(targetFile, !compact);
+            journal.write(record);
+            if (sync || compact) {
+                journal.getFD().sync();
+            }
+            journal.close();
+            journal = null;
+            if (compact && !targetFile.renameTo(mJournalFile)) {
+                throw new IOException("Unable to replace the journal " + mJournalFile);
+            }
+            mRecordCount = compact ? 1 : mRecordCount + 1;
+        } catch (IOException e) {
+            Log.e(TAG_LOG, "Error writing the journal", e);
+        } finally {
+            IOUtils.closeQuietly(journal);
+        }
+    }
+
+    /**
+     * Encode the snapshot as a record
+     *
+     * @param snapshot The snapshot to encode
+     * @return The record
+     */
+    private byte[] encode(final Snapshot snapshot) {
+        mRecordBuffer.clear();
+        mRecordBuffer.putLong(snapshot.sessionId)
+                .put((byte) (snapshot.hasLastPosition ? 1 : 0))
+                .putDouble(snapshot.lastLatitude)
+                .putDouble(snapshot.lastLongitude)
+                .putFloat(snapshot.currentDistance)
+                .putInt(snapshot.activityType);
+        mCrc.reset();
+        mCrc.update(mRecordBuffer.array(), 0, RECORD_SIZE - 4);
+        mRecordBuffer.putInt((int) mCrc.getValue());
+        return mRecordBuffer.array().clone();
+    }
+
+    /**
+     * Decode a record into a snapshot
+     *
+     * @param record The record to decode
+     * @return The snapshot or null if the record is not valid
+     */
+    private static Snapshot decode(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, RECORD_SIZE - 4);
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (buffer.getInt(RECORD_SIZE - 4) != (int) crc.getValue()) {
+            return null;
+        }
+        return new Snapshot(buffer.getLong(), buffer.get() == 1, buffer.getDouble(),
+                buffer.getDouble(), buffer.getFloat(), buffer.getInt());
+    }
+}
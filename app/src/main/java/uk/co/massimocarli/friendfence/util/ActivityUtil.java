@@ -65,5 +65,35 @@ public final class ActivityUtil {
         }
     }
 
+    /**
+     * Utility method that return a different color for every activity type. It's the color of
+     * the path on the map and into the exported KML
+     *
+     * @param activityType The constants for the ActivityType
+     * @return The color for the given Activity as ARGB
+     */
+    public static int getActivityColor(final int activityType) {
+        switch (activityType) {
+            case DetectedActivity.UNKNOWN:
+                return 0xff000000;
+            case DetectedActivity.ON_FOOT:
+                return 0xff0000ff;
+            case DetectedActivity.RUNNING:
+                return 0xffff0000;
+            case DetectedActivity.IN_VEHICLE:
+                return 0xffffff00;
+            case DetectedActivity.ON_BICYCLE:
+                return 0xffdddddd;
+            case DetectedActivity.STILL:
+                return 0xff00ff00;
+            case DetectedActivity.TILTING:
+                return 0xffff00ff;
+            case DetectedActivity.WALKING:
+                return 0xffabbaab;
+            default:
+                return 0xff000000;
+        }
+    }
+
 
 }
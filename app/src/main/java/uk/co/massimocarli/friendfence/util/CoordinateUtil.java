@@ -0,0 +1,40 @@
+package uk.co.massimocarli.friendfence.util;
+
+/**
+ * Utility class for the conversion of the coordinates in degrees into the E7 fixed point
+ * representation which is the number of degrees multiplied by 10^7 as an int
+ */
+public final class CoordinateUtil {
+
+    /**
+     * The factor for the E7 representation
+     */
+    public static final double E7_FACTOR = 1E7;
+
+    /**
+     * Private constructor
+     */
+    private CoordinateUtil() {
+        throw new AssertionError("Never call this!!! I'm an Utility class!");
+    }
+
+    /**
+     * Converts the degrees into the E7 representation
+     *
+     * @param degrees The coordinate in degrees
+     * @return The coordinate in E7
+     */
+    public static int toE7(final double degrees) {
+        return (int) Math.round(degrees * E7_FACTOR);
+    }
+
+    /**
+     * Converts the E7 representation into degrees
+     *
+     * @param e7 The coordinate in E7
+     * @return The coordinate in degrees
+     */
+    public static double fromE7(final int e7) {
+        return e7 / E7_FACTOR;
+    }
+}
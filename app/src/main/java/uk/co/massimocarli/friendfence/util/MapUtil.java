@@ -0,0 +1,81 @@
+package uk.co.massimocarli.friendfence.util;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Utility class for the Google Map management
+ */
+public final class MapUtil {
+
+    /**
+     * The index of the min latitude into the bounding box
+     */
+    public static final int MIN_LATITUDE = 0;
+
+    /**
+     * The index of the min longitude into the bounding box
+     */
+    public static final int MIN_LONGITUDE = 1;
+
+    /**
+     * The index of the max latitude into the bounding box
+     */
+    public static final int MAX_LATITUDE = 2;
+
+    /**
+     * The index of the max longitude into the bounding box
+     */
+    public static final int MAX_LONGITUDE = 3;
+
+    /**
+     * Private constructor
+     */
+    private MapUtil() {
+        throw new AssertionError("Never call this!!! I'm an Utility class!");
+    }
+
+    /**
+     * Return the bounding box of the visible region of the map enlarged by the given margin
+     * so that small movements of the map don't need a new query
+     *
+     * @param googleMap The GoogleMap
+     * @param margin    The margin as a fraction of the size of the visible region
+     * @return The bounding box as min latitude, min longitude, max latitude and max longitude
+     */
+    public static double[] getVisibleBoundingBox(final GoogleMap googleMap, final double margin) {
+        final LatLngBounds bounds = googleMap.getProjection().getVisibleRegion().latLngBounds;
+        final double latitudeMargin = (bounds.northeast.latitude - bounds.southwest.latitude) * margin;
+        final double[] boundingBox = new double[4];
+        boundingBox[MIN_LATITUDE] = Math.max(-90.0, bounds.southwest.latitude - latitudeMargin);
+        boundingBox[MAX_LATITUDE] = Math.min(90.0, bounds.northeast.latitude + latitudeMargin);
+        // If the visible region crosses the 180th meridian the min longitude is bigger than the
+        // max one and the bounding box is split into two ranges by the queries
+        double longitudeSpan = bounds.northeast.longitude - bounds.southwest.longitude;
+        if (longitudeSpan < 0.0) {
+            longitudeSpan += 360.0;
+        }
+        final double longitudeMargin = longitudeSpan * margin;
+        if (longitudeSpan + 2 * longitudeMargin >= 360.0) {
+            boundingBox[MIN_LONGITUDE] = -180.0;
+            boundingBox[MAX_LONGITUDE] = 180.0;
+        } else {
+            boundingBox[MIN_LONGITUDE] = wrapLongitude(bounds.southwest.longitude - longitudeMargin);
+            boundingBox[MAX_LONGITUDE] = wrapLongitude(bounds.northeast.longitude + longitudeMargin);
+        }
+        return boundingBox;
+    }
+
+    /**
+     * @param longitude A longitude that could be out of the valid range because of the margin
+     * @return The same longitude between -180 and 180
+     */
+    private static double wrapLongitude(final double longitude) {
+        if (longitude < -180.0) {
+            return longitude + 360.0;
+        } else if (longitude > 180.0) {
+            return longitude - 360.0;
+        }
+        return longitude;
+    }
+}